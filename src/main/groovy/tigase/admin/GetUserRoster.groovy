@@ -79,10 +79,8 @@ if (isAllowedForDomain.apply(bareJID.getDomain())) {
 		Element query = new Element("query");
 		query.setXMLNS("jabber:iq:roster");
 		if (session == null) {
-			String rosterStr = repository.getData(bareJID, null,
-												  RosterAbstract.ROSTER, null) ?: ""
 			Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
-			RosterFlat.parseRosterUtil(rosterStr, roster, null)
+			RosterFlat.readRosterUtil(repository, bareJID, roster)
 			roster.values().each {
 				query.addChild(it.getRosterItem());
 			}
@@ -96,9 +94,7 @@ if (isAllowedForDomain.apply(bareJID.getDomain())) {
 	} else {
 		Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 		if (session == null) {
-			String rosterStr = repository.getData(bareJID, null,
-												  RosterAbstract.ROSTER, null) ?: ""
-			RosterFlat.parseRosterUtil(rosterStr, roster, null)
+			RosterFlat.readRosterUtil(repository, bareJID, roster)
 		} else {
 			def conn = session.getActiveResources().get(0)
 			RosterAbstract rosterUtil = RosterFactory.getRosterImplementation(true)
@@ -136,10 +136,8 @@ def updateRoster = { sess, online, jid, i_jid, i_name, i_subscr ->
 //		}
 	} else {
 		// Update offline
-		String rosterStr = repository.getData(jid.getBareJID(), null,
-											  RosterAbstract.ROSTER, null) ?: ""
 		Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
-		RosterFlat.parseRosterUtil(rosterStr, roster, null)
+		RosterFlat.readRosterUtil(repository, jid.getBareJID(), roster)
 		if (remove_item) {
 			roster.remove(i_jid.getBareJID())
 			res_report += "Buddy: " + i_jid + " removed"
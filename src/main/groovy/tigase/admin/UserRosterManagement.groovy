@@ -182,11 +182,9 @@ class RosterChangesControler {
 
 	def modifyDbRoster(String ownerJid, modifyFunc) {
 		BareJID ownerBareJID = BareJID.bareJIDInstance(ownerJid)
-		String rosterStr = repository.getData(ownerBareJID, null, RosterAbstract.ROSTER, null)
-		rosterStr = (rosterStr == null) ? "" : rosterStr
 		Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
 
-		RosterFlat.parseRosterUtil(rosterStr, roster, null)
+		RosterFlat.readRosterUtil(repository, ownerBareJID, roster)
 		modifyFunc(roster)
 		StringBuilder sb = new StringBuilder()
 		for (RosterElement relem : roster.values()) {
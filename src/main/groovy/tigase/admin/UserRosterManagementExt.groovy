@@ -146,9 +146,8 @@ try {
 			// Is there a better object to use for synchronization?
 			synchronized (repository) {
 				// Update offline and only on original node
-				String rosterStr = repository.getData(jid.getBareJID(), null, RosterAbstract.ROSTER, null) ?: ""
 				Map<BareJID, RosterElement> roster = new LinkedHashMap<BareJID, RosterElement>()
-				RosterFlat.parseRosterUtil(rosterStr, roster, null)
+				RosterFlat.readRosterUtil(repository, jid.getBareJID(), roster)
 				if (remove_item) {
 					roster.remove(i_jid.getBareJID())
 				} else {
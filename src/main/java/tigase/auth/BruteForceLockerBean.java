@@ -97,6 +97,9 @@ public class BruteForceLockerBean
 	@Inject
 	private EventBus eventBus;
 	private Map<Key, Value> map;
+	@ConfigField(desc = "Use map replicated in batches for sharing invalid logins between cluster nodes",
+			alias = "replicated-map")
+	private boolean replicatedMap = false;
 	@Inject
 	private SessionManager sessionManager;
 
@@ -256,7 +259,10 @@ public class BruteForceLockerBean
 
 	@Override
 	public void initialize() {
-		this.map = ClusterMapFactory.get().createMap(MAP_TYPE, Key.class, Value.class);
+		// nodes using different types of map do not share invalid logins, so all nodes should be switched at once
+		this.map = replicatedMap
+				   ? ClusterMapFactory.get().createReplicatedMap(MAP_TYPE, Key.class, Value.class)
+				   : ClusterMapFactory.get().createMap(MAP_TYPE, Key.class, Value.class);
 		assert this.map != null : "Distributed Map is NULL!";
 		assert this.sessionManager != null : "SessionManager is NULL!";
 
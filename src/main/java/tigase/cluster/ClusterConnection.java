@@ -23,15 +23,27 @@ import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
+ * Connections with a single cluster node.
+ * <br>
+ * Packets are assigned to stripes by a stable key, so packets with the same key are sent over the same connection in
+ * order. Every stripe remembers connection used for it, which allows {@link ClusterConnectionSelector} to move a
+ * stripe to another connection when the one used is congested.
+ *
  * @author andrzej
  */
 public class ClusterConnection {
 
+	public static final int STRIPES = 64;
+
 	private final String addr;
 	private final CopyOnWriteArrayList<XMPPIOService<Object>> conns = new CopyOnWriteArrayList<>();
+	private final Stripe[] stripes = new Stripe[STRIPES * 2];
 
 	public ClusterConnection(String addr) {
 		this.addr = addr;
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new Stripe(i % STRIPES);
+		}
 	}
 
 	public boolean addConn(XMPPIOService<Object> conn) {
@@ -46,13 +58,64 @@ public class ClusterConnection {
 		return conns.size();
 	}
 
+	public String getAddr() {
+		return addr;
+	}
+
 	public List<XMPPIOService<Object>> getConnections() {
 		return conns;
 	}
 
+	/**
+	 * Returns stripe for the key. Packets sent over connections reserved for system packets use separate stripes.
+	 */
+	public Stripe getStripe(boolean system, int code) {
+		int idx = (code ^ (code >>> 16)) & (STRIPES - 1);
+
+		return stripes[system ? idx : STRIPES + idx];
+	}
+
 	@Override
 	public String toString() {
 		return addr + conns;
 	}
 
+	public static class Stripe {
+
+		private final int index;
+		private volatile long lastSeq = 0;
+		private volatile long lastUsed = 0;
+		private volatile XMPPIOService<Object> owner = null;
+
+		private Stripe(int index) {
+			this.index = index;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Returns number of packets queued on the connection used for the stripe, including the last packet of the
+		 * stripe.
+		 */
+		public long getLastSeq() {
+			return lastSeq;
+		}
+
+		public long getLastUsed() {
+			return lastUsed;
+		}
+
+		public XMPPIOService<Object> getOwner() {
+			return owner;
+		}
+
+		void used(XMPPIOService<Object> owner, long lastSeq, long now) {
+			this.owner = owner;
+			this.lastSeq = lastSeq;
+			this.lastUsed = now;
+		}
+	}
+
 }
@@ -42,6 +42,7 @@ import tigase.net.SocketType;
 import tigase.server.ConnectionManager;
 import tigase.server.Iq;
 import tigase.server.Packet;
+import tigase.server.Priority;
 import tigase.server.ServiceChecker;
 import tigase.stats.MaxDailyCounterQueue;
 import tigase.stats.StatisticsList;
@@ -52,6 +53,7 @@ import tigase.util.datetime.TimeUtils;
 import tigase.util.reflection.ReflectionHelper;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
+import tigase.xmpp.AckTracker;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
 import tigase.xmpp.XMPPIOService;
@@ -66,6 +68,9 @@ import java.net.UnknownHostException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
@@ -85,6 +90,8 @@ public class ClusterConnectionManager
 		extends ConnectionManager<XMPPIOService<Object>>
 		implements ClusteredComponentIfc, RepositoryChangeListenerIfc<ClusterRepoItem>, ClusterConnectionHandler {
 
+	public static final String BINARY_FRAMING_PROP_KEY = "binary-framing";
+
 	public static final String CLUSTER_CONNECTIONS_PER_NODE_PROP_KEY = "cluster-connections-per-node";
 
 	public static final int CLUSTER_CONNECTIONS_PER_NODE_VAL = 5;
@@ -105,6 +112,8 @@ public class ClusterConnectionManager
 	public static final String RETURN_SERVICE_DISCO_KEY = "service-disco";
 	public static final String SECRET_PROP_KEY = "secret";
 	public static final String XMLNS = "tigase:cluster";
+	public static final String XMPP_ACK_PROP_KEY = "xmpp-ack";
+	public static final String XMPP_ACK_MAX_WAITING_PROP_KEY = "xmpp-ack-max-waiting";
 	public static final boolean RETURN_SERVICE_DISCO_VAL = true;
 	public static final boolean CONNECT_ALL_PROP_VAL = false;
 	public static final boolean COMPRESS_STREAM_PROP_VAL = false;
@@ -122,6 +131,24 @@ public class ClusterConnectionManager
 	 */
 	public static int ELEMENTS_NUMBER_LIMIT_CLUSTER_PROP_VAL = 100 * 1000;
 
+	@ConfigField(desc = "Maximal time in ms for which sending of a packet may be delayed by backpressure", alias = "backpressure-max-wait")
+	private long backpressureMaxWait = 100;
+	@ConfigField(desc = "Number of packets waiting on all connections to node above which sending is delayed", alias = "backpressure-threshold")
+	private int backpressureThreshold = 0;
+	private final Object backpressureMonitor = new Object();
+	private final LongAdder backpressureTimeouts = new LongAdder();
+	private final AtomicInteger backpressureWaiters = new AtomicInteger();
+	private final Runnable backpressureWakeUp = () -> {
+		if (backpressureWaiters.get() > 0) {
+			synchronized (backpressureMonitor) {
+				backpressureMonitor.notifyAll();
+			}
+		}
+	};
+	private final LongAdder backpressureWaitTime = new LongAdder();
+	private final LongAdder backpressureWaits = new LongAdder();
+	@ConfigField(desc = "Use binary framing for connections with nodes supporting it", alias = BINARY_FRAMING_PROP_KEY)
+	private boolean binaryFraming = false;
 	@Inject
 	private ClusterControllerIfc clusterController = null;
 	private tigase.eventbus.EventListener<ClusterInitializedEvent> clusterEventHandler = null;
@@ -155,6 +182,11 @@ public class ClusterConnectionManager
 	private int per_node_conns = CLUSTER_CONNECTIONS_PER_NODE_VAL;
 	@Inject
 	private ComponentRepository<ClusterRepoItem> repo = null;
+	@ConfigField(desc = "Confirm delivery of cluster packets", alias = XMPP_ACK_PROP_KEY)
+	private boolean xmppAck = false;
+	@ConfigField(desc = "Maximal number of cluster packets waiting for confirmation per connection",
+			alias = XMPP_ACK_MAX_WAITING_PROP_KEY)
+	private int xmppAckMaxWaiting = AckTracker.DEF_MAX_SIZE;
 	private final TimerTask repoReloadTimerTask = new TimerTask() {
 		@Override
 		public void run() {
@@ -170,6 +202,7 @@ public class ClusterConnectionManager
 	private CommandListener sendPacket = new SendPacket(ClusterControllerIfc.DELIVER_CLUSTER_PACKET_CMD);
 	private long servConnectedTimeouts = 0;
 	private long totalNodeDisconnects = 0;
+	private long ackLimitStops = 0;
 
 	public ClusterConnectionManager() {
 		super();
@@ -200,6 +233,19 @@ public class ClusterConnectionManager
 
 	@Override
 	public int hashCodeForPacket(Packet packet) {
+		return hashCodeForPacket(packet, false);
+	}
+
+	/**
+	 * Generates code of the key for the packet using bare JIDs, so packets for all resources of a user are sent over
+	 * the same cluster connection.
+	 */
+	@Override
+	public int stripeCodeForPacket(Packet packet) {
+		return hashCodeForPacket(packet, true);
+	}
+
+	private int hashCodeForPacket(Packet packet, boolean bare) {
 
 		// If this is a cluster packet let's try to do a bit more smart hashing
 		// based on the stanza from/to addresses
@@ -215,7 +261,7 @@ public class ClusterConnectionManager
 			String userId = clel.getMethodParam("userId");
 
 			if (userId != null) {
-				return userId.hashCode();
+				return hashCodeForJid(userId, bare);
 			}
 
 			Queue<Element> children = clel.getDataPackets();
@@ -225,14 +271,14 @@ public class ClusterConnectionManager
 				String stanzaAdd = child.getAttributeStaticStr(Packet.TO_ATT);
 
 				if (stanzaAdd != null) {
-					return stanzaAdd.hashCode();
+					return hashCodeForJid(stanzaAdd, bare);
 				} else {
 
 					// This might be user's initial presence. In such a case we take
 					// stanzaFrom instead
 					stanzaAdd = child.getAttributeStaticStr(Packet.FROM_ATT);
 					if (stanzaAdd != null) {
-						return stanzaAdd.hashCode();
+						return hashCodeForJid(stanzaAdd, bare);
 					} else {
 
 						// This may happen for some cluster packets, like:
@@ -247,10 +293,30 @@ public class ClusterConnectionManager
 		// process packets in a separate thread for each connection, so let's try
 		// to get the hash code by the destination node address
 		if (packet.getStanzaTo() != null) {
-			return packet.getStanzaTo().hashCode();
+			return bare ? packet.getStanzaTo().getBareJID().hashCode() : packet.getStanzaTo().hashCode();
 		}
 
-		return packet.getTo().hashCode();
+		return bare ? packet.getTo().getBareJID().hashCode() : packet.getTo().hashCode();
+	}
+
+	/**
+	 * Returns hash code of the JID string or of its bare part, the same as <code>String.hashCode()</code> of the bare
+	 * JID, without creating a new string.
+	 */
+	private static int hashCodeForJid(String jid, boolean bare) {
+		if (!bare) {
+			return jid.hashCode();
+		}
+
+		int h = 0;
+		for (int i = 0; i < jid.length(); i++) {
+			char c = jid.charAt(i);
+			if (c == '/') {
+				break;
+			}
+			h = 31 * h + c;
+		}
+		return h;
 	}
 
 	@Override
@@ -462,6 +528,11 @@ public class ClusterConnectionManager
 		return true;
 	}
 
+	@Override
+	protected List<Packet> drainUnackedPackets(XMPPIOService<Object> service) {
+		return xmppAck ? service.drainWaitingForAck() : Collections.emptyList();
+	}
+
 	@Override
 	public void reconnectionFailed(Map<String, Object> port_props) {
 
@@ -478,6 +549,9 @@ public class ClusterConnectionManager
 			addTimerTaskWithTimeout(repoReloadTimerTask, 0, 15 * SECOND);
 		}
 
+		// ack mode has to be set before first packet is queued for sending
+		serv.setAckMode(false, xmppAck, false);
+		serv.setMaxWaitingForAck(xmppAckMaxWaiting);
 		super.serviceStarted(serv);
 		log.log(Level.INFO, "Cluster connection opened: {0}, type: {1}, id={2}",
 				new Object[]{serv.getRemoteAddress(), serv.connectionType().toString(), serv.getUniqueId()});
@@ -498,7 +572,8 @@ public class ClusterConnectionManager
 
 				String data = "<stream:stream" + " xmlns='" + XMLNS + "'" +
 						" xmlns:stream='http://etherx.jabber.org/streams'" + " from='" + getDefHostName() + "'" +
-						" to='" + remote_host + "'" + ">";
+						" to='" + remote_host + "'" + (isBinaryFramingSupported(serv) ? " " +
+						ClusterFrameCodec.FRAMING_ATTR + "='" + ClusterFrameCodec.FRAMING_BINARY + "'" : "") + ">";
 
 				log.log(Level.INFO, "cid: {0}, sending: {1}",
 						new Object[]{(String) serv.getSessionData().get("cid"), data});
@@ -561,6 +636,9 @@ public class ClusterConnectionManager
 				}
 			}    // end of if (type == ConnectionType.connect)
 			++totalNodeDisconnects;
+			if (service.isAckLimitReached()) {
+				++ackLimitStops;
+			}
 
 			int hour = TimeUtils.getHourNow();
 
@@ -622,6 +700,12 @@ public class ClusterConnectionManager
 				String id = attribs.get("id");
 
 				service.getSessionData().put(XMPPIOService.SESSION_ID_KEY, id);
+				if (isBinaryFramingSupported(service) &&
+						ClusterFrameCodec.FRAMING_BINARY.equals(attribs.get(ClusterFrameCodec.FRAMING_ATTR))) {
+					// other node accepted binary framing, so handshake is already sent in a frame
+					((ClusterIOService<Object>) service).startBinaryFraming();
+					log.log(Level.INFO, "Binary framing started for: {0}", service);
+				}
 
 				ClusterRepoItem item = repo.getItem(getDefHostName().getDomain());
 				String secret = item.getPassword();
@@ -656,9 +740,23 @@ public class ClusterConnectionManager
 				service.getSessionData().put(XMPPIOService.SESSION_ID_KEY, id);
 				updateConnectionDetails(service.getSessionData());
 
-				return new String[] { "<stream:stream" + " xmlns='" + XMLNS + "'" +
+				boolean binary = isBinaryFramingSupported(service) &&
+						ClusterFrameCodec.FRAMING_BINARY.equals(attribs.get(ClusterFrameCodec.FRAMING_ATTR));
+				String data = "<stream:stream" + " xmlns='" + XMLNS + "'" +
 						" xmlns:stream='http://etherx.jabber.org/streams'" + " from='" + getDefHostName() + "'" +
-						" to='" + remote_host + "'" + " id='" + id + "'" + ">" };
+						" to='" + remote_host + "'" + " id='" + id + "'" + (binary ? " " +
+						ClusterFrameCodec.FRAMING_ATTR + "='" + ClusterFrameCodec.FRAMING_BINARY + "'" : "") + ">";
+
+				if (binary) {
+					// stream open has to be sent as XML before the connection is switched to binary framing
+					service.xmppStreamOpen(data);
+					((ClusterIOService<Object>) service).startBinaryFraming();
+					log.log(Level.INFO, "Binary framing started for: {0}", service);
+
+					return null;
+				}
+
+				return new String[] { data };
 			}
 
 			default:
@@ -692,6 +790,39 @@ public class ClusterConnectionManager
 		list.add(getName(), "Average compression ratio", ioStatsGetter.getAverageCompressionRatio(), Level.FINE);
 		list.add(getName(), "Average decompression ratio", ioStatsGetter.getAverageDecompressionRatio(), Level.FINE);
 		list.add(getName(), "Waiting to send", ioStatsGetter.getWaitingToSend(), Level.FINE);
+		if (xmppAck) {
+			list.add(getName(), "Waiting for ack", ioStatsGetter.getWaitingForAck(), Level.FINE);
+			list.add(getName(), "Stopped on ack limit", ackLimitStops, Level.FINE);
+		}
+		if (binaryFraming) {
+			list.add(getName(), "Binary framed connections", ioStatsGetter.getBinaryFramed(), Level.FINE);
+		}
+		if (backpressureThreshold > 0) {
+			list.add(getName(), "Backpressure waits", backpressureWaits.sum(), Level.FINE);
+			list.add(getName(), "Backpressure wait time [ms]", backpressureWaitTime.sum(), Level.FINE);
+			list.add(getName(), "Backpressure timeouts", backpressureTimeouts.sum(), Level.FINE);
+		}
+		if (connectionSelector instanceof ClusterConnectionSelector) {
+			list.add(getName(), "Stripe moves", ((ClusterConnectionSelector) connectionSelector).getStripeMoves(),
+					 Level.FINE);
+		}
+		if (list.checkLevel(Level.FINER)) {
+			for (ClusterConnection conns : connectionsPool.values()) {
+				int i = 0;
+				for (XMPPIOService<Object> serv : conns.getConnections()) {
+					String prefix = "Link " + conns.getAddr() + "#" + (i++);
+					list.add(getName(), prefix + " queue", ClusterConnectionSelector.getLoad(serv), Level.FINER);
+					if (serv instanceof ClusterIOService) {
+						list.add(getName(), prefix + " packets/s",
+								 ((ClusterIOService<Object>) serv).samplePacketsWrittenRate(), Level.FINER);
+					}
+					if (xmppAck) {
+						list.add(getName(), prefix + " ack latency [ms]",
+								 TimeUnit.NANOSECONDS.toMillis(serv.getAckLatencyNanos()), Level.FINER);
+					}
+				}
+			}
+		}
 
 		list.add(getName(), "Max daily cluster nodes count in last month", maxNodes, Level.INFO);
 		list.add(getName(), "Max nodes count within last week", maxNodesWithinLastWeek, Level.INFO);
@@ -858,7 +989,9 @@ public class ClusterConnectionManager
 
 	@Override
 	protected XMPPIOService<Object> getXMPPIOServiceInstance() {
-		return new XMPPIOService<>();
+		ClusterIOService<Object> serv = new ClusterIOService<>();
+		serv.setWriteListener(backpressureWakeUp);
+		return serv;
 	}
 
 	@Override
@@ -866,6 +999,10 @@ public class ClusterConnectionManager
 		return true;
 	}
 
+	private boolean isBinaryFramingSupported(XMPPIOService<Object> serv) {
+		return binaryFraming && serv instanceof ClusterIOService;
+	}
+
 	private void sendEvent(REPO_ITEM_UPDATE_TYPE action, ClusterRepoItem item) {
 
 		// either RepositoryItem was wrong or EventBus is not enabled - skiping broadcasting the event;
@@ -1022,7 +1159,9 @@ public class ClusterConnectionManager
 	private class IOServiceStatisticsGetter
 			implements ServiceChecker<XMPPIOService<Object>> {
 
+		private int binaryFramed = 0;
 		private int clIOQueue = 0;
+		private int clWaitingForAck = 0;
 		private float compressionRatio = 0f;
 		private int counter = 0;
 		private float decompressionRatio = 0f;
@@ -1035,6 +1174,10 @@ public class ClusterConnectionManager
 			decompressionRatio += list.getValue("zlibio", "Average decompression rate", -1f);
 			++counter;
 			clIOQueue += service.waitingToSendSize();
+			clWaitingForAck += service.waitingForAckSize();
+			if (service instanceof ClusterIOService && ((ClusterIOService<Object>) service).isBinaryFraming()) {
+				++binaryFramed;
+			}
 		}
 
 		public void reset() {
@@ -1044,7 +1187,9 @@ public class ClusterConnectionManager
 			// any stats in case of the disconnection.
 			// bytesReceived = 0;
 			// bytesSent = 0;
+			binaryFramed = 0;
 			clIOQueue = 0;
+			clWaitingForAck = 0;
 			counter = 0;
 			compressionRatio = 0f;
 			decompressionRatio = 0f;
@@ -1061,6 +1206,86 @@ public class ClusterConnectionManager
 		public int getWaitingToSend() {
 			return clIOQueue;
 		}
+
+		public int getWaitingForAck() {
+			return clWaitingForAck;
+		}
+
+		public int getBinaryFramed() {
+			return binaryFramed;
+		}
+	}
+
+	/**
+	 * Delays the calling thread if connections to destination nodes of the packets are congested, so cluster traffic
+	 * generated faster than it can be sent is throttled at its source instead of piling up in connection queues. The
+	 * thread waits once for all packets, at most <code>backpressureMaxWait</code>, and is woken up when a connection
+	 * writes data. System and cluster priority packets are never delayed.
+	 */
+	private void waitForBackpressure(List<Packet> packets) {
+		if (backpressureThreshold <= 0) {
+			return;
+		}
+
+		List<ClusterConnection> congested = null;
+		for (Packet packet : packets) {
+			if (packet.getTo() == null ||
+					(packet.getPriority() != null && packet.getPriority().ordinal() <= Priority.CLUSTER.ordinal())) {
+				continue;
+			}
+			ClusterConnection conns = connectionsPool.get(packet.getTo().getDomain());
+			if (conns != null && getMinLoad(conns) >= backpressureThreshold) {
+				if (congested == null) {
+					congested = new ArrayList<>(2);
+				}
+				if (!congested.contains(conns)) {
+					congested.add(conns);
+				}
+			}
+		}
+		if (congested == null) {
+			return;
+		}
+
+		backpressureWaits.increment();
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(backpressureMaxWait);
+		// waiters are counted before load is checked, so a write completed after the check always wakes them up
+		backpressureWaiters.incrementAndGet();
+		try {
+			synchronized (backpressureMonitor) {
+				while (isCongested(congested)) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						backpressureTimeouts.increment();
+						break;
+					}
+					TimeUnit.NANOSECONDS.timedWait(backpressureMonitor, remaining);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			backpressureWaiters.decrementAndGet();
+			backpressureWaitTime.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+
+	private boolean isCongested(List<ClusterConnection> congested) {
+		for (ClusterConnection conns : congested) {
+			if (getMinLoad(conns) >= backpressureThreshold) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int getMinLoad(ClusterConnection conns) {
+		int min = Integer.MAX_VALUE;
+		for (XMPPIOService<Object> serv : conns.getConnections()) {
+			min = Math.min(min, ClusterConnectionSelector.getLoad(serv));
+		}
+		return min == Integer.MAX_VALUE ? 0 : min;
 	}
 
 	private class SendPacket
@@ -1077,15 +1302,18 @@ public class ClusterConnectionManager
 				log.log(Level.FINEST, "Called fromNode: {0}, visitedNodes: {1}, data: {2}, packets: {3}",
 						new Object[]{fromNode, visitedNodes, data, packets});
 			}
+			List<Packet> result = new ArrayList<>(packets.size());
 			for (Element element : packets) {
 				try {
-					addPacketNB(Packet.packetInstance(element));
-
-					// writePacketToSocket();
+					result.add(Packet.packetInstance(element));
 				} catch (TigaseStringprepException ex) {
 					log.log(Level.WARNING, "Stringprep exception for packet: {0}", element);
 				}
 			}
+			waitForBackpressure(result);
+			for (Packet packet : result) {
+				addPacketNB(packet);
+			}
 		}
 	}
 	
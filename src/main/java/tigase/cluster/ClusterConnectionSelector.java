@@ -28,10 +28,17 @@ import tigase.xmpp.XMPPIOService;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Advanced implementation of ClusterConnectionSelectorIfc which separates packets with priority CLUSTER or higher from
  * other packets in cluster connections by using separate connections for them
+ * <br>
+ * Packets are assigned to stripes by the key returned by {@link ClusterConnectionHandler#stripeCodeForPacket(Packet)}
+ * and all packets of a stripe are sent over the same connection, so their order is kept. When the connection is
+ * congested (too many packets are waiting to be written or ack latency is much higher than for other connections) the
+ * stripe is moved to the least loaded connection, but only after all packets of the stripe were written, so packets
+ * of a stripe are not reordered.
  *
  * @author andrzej
  */
@@ -45,31 +52,62 @@ public class ClusterConnectionSelector
 	private int allConns = ClusterConnectionManager.CLUSTER_CONNECTIONS_PER_NODE_VAL;
 	@Inject(nullAllowed = true)
 	private ClusterConnectionHandler handler;
+	@ConfigField(desc = "Ack latency of congested connection compared to the fastest one", alias = "latency-factor")
+	private int latencyFactor = 4;
+	@ConfigField(desc = "Number of waiting packets above which connection is congested", alias = "stripe-high-watermark")
+	private int stripeHighWatermark = 1000;
+	@ConfigField(desc = "Time in ms for which stripe has to be unused before it is moved", alias = "stripe-idle-time")
+	private long stripeIdleTime = 50;
+	private final LongAdder stripeMoves = new LongAdder();
 	@ConfigField(desc = "Number of system connections per node", alias = "cluster-sys-connections-per-node")
 	private int sysConns = 2;
 
+	/**
+	 * Returns number of packets waiting to be sent over the connection.
+	 */
+	public static int getLoad(XMPPIOService<Object> serv) {
+		if (serv instanceof ClusterIOService) {
+			int load = ((ClusterIOService<Object>) serv).getQueueDepth();
+			return serv.isConnected() ? load + serv.waitingToSendSize() : load;
+		}
+		return 0;
+	}
+
 	@Override
 	public XMPPIOService<Object> selectConnection(Packet p, ClusterConnection conn) {
 		if (conn == null) {
 			return null;
 		}
 
-		int code = Math.abs(handler.hashCodeForPacket(p));
 		List<XMPPIOService<Object>> conns = conn.getConnections();
-		if (conns.size() > 0) {
-			if (conns.size() > sysConns) {
-				if (p.getPriority() != null && p.getPriority().ordinal() <= Priority.CLUSTER.ordinal()) {
-					return conns.get(code % sysConns);
+		int size = conns.size();
+		if (size > 0) {
+			boolean system = p.getPriority() != null && p.getPriority().ordinal() <= Priority.CLUSTER.ordinal();
+			int from = 0;
+			int count = size;
+			if (size > sysConns) {
+				if (system) {
+					count = sysConns;
 				} else {
-					return conns.get(sysConns + (code % (conns.size() - sysConns)));
+					from = sysConns;
+					count = size - sysConns;
 				}
-			} else {
-				return conns.get(code % conns.size());
 			}
+
+			ClusterConnection.Stripe stripe = conn.getStripe(system, handler.stripeCodeForPacket(p));
+			XMPPIOService<Object> def = conns.get(from + (stripe.getIndex() % count));
+			if (count == 1 || !(def instanceof ClusterIOService)) {
+				return def;
+			}
+			return selectForStripe(stripe, def, conns, from, count);
 		}
 		return null;
 	}
 
+	public long getStripeMoves() {
+		return stripeMoves.sum();
+	}
+
 	@Override
 	public void setClusterConnectionHandler(ClusterConnectionHandler handler) {
 		this.handler = handler;
@@ -84,4 +122,63 @@ public class ClusterConnectionSelector
 			allConns = (Integer) props.get(ClusterConnectionManager.CLUSTER_CONNECTIONS_PER_NODE_PROP_KEY);
 		}
 	}
+
+	protected XMPPIOService<Object> selectForStripe(ClusterConnection.Stripe stripe, XMPPIOService<Object> def,
+													List<XMPPIOService<Object>> conns, int from, int count) {
+		long now = System.currentTimeMillis();
+		XMPPIOService<Object> owner = stripe.getOwner();
+		int idx = owner == null ? -1 : conns.indexOf(owner);
+
+		if (idx < from || idx >= from + count) {
+			// connection used for the stripe is closed, packets waiting on it will be sent again anyway
+			owner = def;
+		} else {
+			int ownerLoad = getLoad(owner);
+			boolean slow = isSlow(owner, conns, from, count);
+
+			if ((ownerLoad >= stripeHighWatermark || slow) && isStripeWritten(stripe, owner, now)) {
+				XMPPIOService<Object> best = null;
+				int bestLoad = Integer.MAX_VALUE;
+
+				for (int i = from; i < from + count; i++) {
+					XMPPIOService<Object> serv = conns.get(i);
+					int load = getLoad(serv);
+					if (load < bestLoad && !isSlow(serv, conns, from, count)) {
+						best = serv;
+						bestLoad = load;
+					}
+				}
+				if (best != null && best != owner && (slow || bestLoad * 2 <= ownerLoad)) {
+					owner = best;
+					stripeMoves.increment();
+				}
+			}
+		}
+
+		stripe.used(owner, ((ClusterIOService<Object>) owner).getPacketsQueued() + 1, now);
+		return owner;
+	}
+
+	private boolean isSlow(XMPPIOService<Object> serv, List<XMPPIOService<Object>> conns, int from, int count) {
+		long latency = serv.getAckLatencyNanos();
+		if (latency == 0) {
+			return false;
+		}
+		for (int i = from; i < from + count; i++) {
+			long other = conns.get(i).getAckLatencyNanos();
+			if (other > 0 && other * latencyFactor < latency) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if all packets of the stripe were already written to the socket of the connection. Stripe has to be
+	 * unused for some time, so that packets selected concurrently with the last packet of the stripe are queued as
+	 * well.
+	 */
+	private boolean isStripeWritten(ClusterConnection.Stripe stripe, XMPPIOService<Object> owner, long now) {
+		return now - stripe.getLastUsed() >= stripeIdleTime && owner.getTotalPacketsWritten() >= stripe.getLastSeq();
+	}
 }
@@ -0,0 +1,587 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.cluster.api.ClusterElement;
+import tigase.io.ByteBufferPool;
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary framing of packets sent over cluster connections.
+ * <br>
+ * Every frame starts with 4 bytes of length (big endian) of the rest of the frame, followed by a single byte of the
+ * frame type:
+ * <ul>
+ * <li>{@link #ELEMENT_FRAME} - element tree encoded as described below,</li>
+ * <li>{@link #TEXT_FRAME} - UTF-8 encoded XML data, used for stream level data (handshake, acks, stream errors,
+ * stream close) and elements which cannot be encoded as binary (mixed content).</li>
+ * </ul>
+ * Element names, attribute names and values of <code>xmlns</code> and <code>type</code> attributes and of
+ * <code>name</code> attribute of <code>ClusterElement</code> method calls, parameters and results are sent as integer
+ * ids of the dictionary, which starts with {@link #STATIC_NAMES} and is extended by every new name sent over the
+ * connection (up to {@link #MAX_DICTIONARY_SIZE} entries). In effect, after the first packet for a cluster method, the
+ * method is identified by an integer command id. Other strings are sent as UTF-8 bytes prefixed with the length.
+ * Strings are sent in the form kept by <code>Element</code>, so they are not escaped nor unescaped.
+ * <br>
+ * Both sides of the connection have to use the same static dictionary, so any change to the format or to the static
+ * dictionary requires a new value of {@link #FRAMING_BINARY}.
+ */
+public class ClusterFrameCodec {
+
+	public static final byte ELEMENT_FRAME = 1;
+	public static final String FRAMING_ATTR = "framing";
+	public static final String FRAMING_BINARY = "binary-1";
+	public static final int HEADER_SIZE = 5;
+	public static final int MAX_DICTIONARY_SIZE = 8192;
+	public static final int MAX_DEPTH = 256;
+	public static final String[] STATIC_NAMES = {ClusterElement.CLUSTER_EL_NAME,
+												 ClusterElement.CLUSTER_CONTROL_EL_NAME,
+												 ClusterElement.CLUSTER_DATA_EL_NAME,
+												 ClusterElement.CLUSTER_METHOD_EL_NAME,
+												 ClusterElement.CLUSTER_METHOD_PAR_EL_NAME,
+												 ClusterElement.CLUSTER_METHOD_RESULTS_EL_NAME,
+												 ClusterElement.CLUSTER_METHOD_RESULTS_VAL_EL_NAME,
+												 ClusterElement.CLUSTER_NAME_ATTR, ClusterElement.FIRST_NODE_EL_NAME,
+												 ClusterElement.NODE_ID_EL_NAME, ClusterElement.VISITED_NODES_EL_NAME,
+												 ClusterElement.XMLNS, "xmlns", "from", "to", "type", "id", "set",
+												 "get", "result", "error", "message", "presence", "iq", "route",
+												 "jabber:client", "body", "status", "show", "priority", "ping",
+												 "urn:xmpp:ping", "req", "ack"};
+	public static final byte TEXT_FRAME = 2;
+
+	/**
+	 * Value of the name reference followed by a new name, which is added to the dictionary.
+	 */
+	private static final int NAME_DEFINE = 0;
+	/**
+	 * Value of the name reference followed by a literal string.
+	 */
+	private static final int NAME_LITERAL = 1;
+	/**
+	 * Value added to the dictionary id in the name reference.
+	 */
+	private static final int NAME_ID_OFFSET = 2;
+
+	private static boolean isInternedValue(String elemName, String attrName) {
+		switch (attrName) {
+			case "xmlns":
+			case "type":
+				return true;
+			case ClusterElement.CLUSTER_NAME_ATTR:
+				return ClusterElement.CLUSTER_METHOD_EL_NAME.equals(elemName) ||
+						ClusterElement.CLUSTER_METHOD_PAR_EL_NAME.equals(elemName) ||
+						ClusterElement.CLUSTER_METHOD_RESULTS_VAL_EL_NAME.equals(elemName);
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Exception thrown when received data are not valid binary frames.
+	 */
+	public static class FrameException
+			extends RuntimeException {
+
+		public FrameException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Receiver of decoded frames.
+	 */
+	public interface FrameHandler {
+
+		void elementReceived(Element elem);
+
+		/**
+		 * Called with XML data of the text frame. The buffer is valid only until the method returns.
+		 */
+		void textReceived(ByteBuffer data);
+
+	}
+
+	/**
+	 * Encodes frames to a buffer, which is reused between calls. Encoded frames have to be sent in the same order as
+	 * they were encoded as the dictionary is shared by all frames sent over the connection.
+	 * <br>
+	 * Instances are not thread safe.
+	 */
+	public static class Encoder {
+
+		private static final int INITIAL_SIZE = 1024;
+		private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+		private final Map<String, Integer> dictionary = new HashMap<>();
+		private final List<String> defined = new ArrayList<>();
+		private byte[] buf = new byte[INITIAL_SIZE];
+		private int pos = 0;
+
+		public Encoder() {
+			for (String name : STATIC_NAMES) {
+				dictionary.put(name, dictionary.size());
+			}
+		}
+
+		/**
+		 * Returns number of bytes encoded since the last call to {@link #flush()}.
+		 */
+		public int length() {
+			return pos;
+		}
+
+		/**
+		 * Returns number of names in the dictionary.
+		 */
+		public int getDictionarySize() {
+			return dictionary.size();
+		}
+
+		/**
+		 * Returns a buffer from the {@link ByteBufferPool} with all frames encoded since the last call, ready to be
+		 * read. Ownership of the buffer is passed to the caller.
+		 */
+		public ByteBuffer flush() {
+			ByteBuffer result = ByteBufferPool.getInstance().acquire(pos);
+
+			result.put(buf, 0, pos);
+			result.flip();
+			pos = 0;
+			if (buf.length > MAX_RETAINED_SIZE) {
+				buf = new byte[INITIAL_SIZE];
+			}
+			return result;
+		}
+
+		/**
+		 * Returns encoded frames as an array, for testing only.
+		 */
+		byte[] toByteArray() {
+			byte[] result = Arrays.copyOf(buf, pos);
+
+			pos = 0;
+			return result;
+		}
+
+		public void writeElement(Element elem) {
+			int start = pos;
+			int dictionarySize = defined.size();
+
+			ensureCapacity(HEADER_SIZE);
+			pos += HEADER_SIZE;
+			if (writeNode(elem)) {
+				finishFrame(start, ELEMENT_FRAME);
+			} else {
+				// mixed content, dictionary entries added by this frame are not sent so they have to be removed
+				pos = start;
+				while (defined.size() > dictionarySize) {
+					dictionary.remove(defined.remove(defined.size() - 1));
+				}
+				writeText(elem.toString());
+			}
+		}
+
+		public void writeText(String data) {
+			int start = pos;
+			int len = utf8Length(data);
+
+			ensureCapacity(HEADER_SIZE + len);
+			pos += HEADER_SIZE;
+			writeUtf8(data, len);
+			finishFrame(start, TEXT_FRAME);
+		}
+
+		private void finishFrame(int start, byte type) {
+			int len = pos - start - 4;
+
+			buf[start] = (byte) (len >>> 24);
+			buf[start + 1] = (byte) (len >>> 16);
+			buf[start + 2] = (byte) (len >>> 8);
+			buf[start + 3] = (byte) len;
+			buf[start + 4] = type;
+		}
+
+		private boolean writeNode(Element elem) {
+			List<Element> children = elem.getChildren();
+			String cdata = elem.getCData();
+			int childrenCount = children == null ? 0 : children.size();
+
+			if (childrenCount > 0 && cdata != null && !cdata.isEmpty()) {
+				return false;
+			}
+
+			String name = elem.getName();
+
+			writeName(name);
+
+			Map<String, String> attributes = elem.getAttributes();
+
+			if (attributes == null) {
+				writeVarInt(0);
+			} else {
+				writeVarInt(attributes.size());
+				for (Map.Entry<String, String> attr : attributes.entrySet()) {
+					writeName(attr.getKey());
+					if (isInternedValue(name, attr.getKey())) {
+						writeName(attr.getValue());
+					} else {
+						writeString(attr.getValue());
+					}
+				}
+			}
+
+			int count = 0;
+
+			if (childrenCount > 0) {
+				for (Element child : children) {
+					if (child != null) {
+						++count;
+					}
+				}
+			}
+			writeVarInt(count);
+			if (count > 0) {
+				for (Element child : children) {
+					if (child != null && !writeNode(child)) {
+						return false;
+					}
+				}
+			}
+			if (cdata == null || count > 0) {
+				writeVarInt(0);
+			} else {
+				int len = utf8Length(cdata);
+
+				writeVarInt(len + 1);
+				writeUtf8(cdata, len);
+			}
+			return true;
+		}
+
+		private void writeName(String name) {
+			Integer id = dictionary.get(name);
+
+			if (id != null) {
+				writeVarInt(id + NAME_ID_OFFSET);
+			} else if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+				dictionary.put(name, dictionary.size());
+				defined.add(name);
+				writeVarInt(NAME_DEFINE);
+				writeString(name);
+			} else {
+				writeVarInt(NAME_LITERAL);
+				writeString(name);
+			}
+		}
+
+		private void writeString(String str) {
+			int len = utf8Length(str);
+
+			writeVarInt(len);
+			writeUtf8(str, len);
+		}
+
+		private void writeUtf8(String str, int len) {
+			ensureCapacity(len);
+
+			int strLen = str.length();
+
+			if (len == strLen) {
+				for (int i = 0; i < strLen; i++) {
+					buf[pos++] = (byte) str.charAt(i);
+				}
+				return;
+			}
+			for (int i = 0; i < strLen; i++) {
+				char c = str.charAt(i);
+
+				if (c < 0x80) {
+					buf[pos++] = (byte) c;
+				} else if (c < 0x800) {
+					buf[pos++] = (byte) (0xC0 | (c >> 6));
+					buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < strLen &&
+						Character.isLowSurrogate(str.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, str.charAt(++i));
+
+					buf[pos++] = (byte) (0xF0 | (cp >> 18));
+					buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					// unpaired surrogate, replaced like by the String.getBytes()
+					buf[pos++] = (byte) '?';
+				} else {
+					buf[pos++] = (byte) (0xE0 | (c >> 12));
+					buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+		}
+
+		private void writeVarInt(int value) {
+			ensureCapacity(5);
+			while ((value & ~0x7F) != 0) {
+				buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buf[pos++] = (byte) value;
+		}
+
+		private void ensureCapacity(int bytes) {
+			if (pos + bytes > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+			}
+		}
+
+		private static int utf8Length(String str) {
+			int strLen = str.length();
+			int len = strLen;
+
+			for (int i = 0; i < strLen; i++) {
+				char c = str.charAt(i);
+
+				if (c >= 0x80) {
+					if (c < 0x800) {
+						len += 1;
+					} else if (Character.isHighSurrogate(c) && i + 1 < strLen &&
+							Character.isLowSurrogate(str.charAt(i + 1))) {
+						// 4 bytes for 2 chars
+						len += 2;
+						++i;
+					} else if (!Character.isSurrogate(c)) {
+						len += 2;
+					}
+				}
+			}
+			return len;
+		}
+	}
+
+	/**
+	 * Decodes frames from data read from the connection. Data of incomplete frames are kept until the rest of the
+	 * frame is received.
+	 * <br>
+	 * Instances are not thread safe.
+	 */
+	public static class Decoder {
+
+		private static final int INITIAL_SIZE = 1024;
+		private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+		private final int maxFrameSize;
+		private byte[] buf = new byte[INITIAL_SIZE];
+		private String[] dictionary = Arrays.copyOf(STATIC_NAMES, 64);
+		private int dictionarySize = STATIC_NAMES.length;
+		private int end = 0;
+		private int pos = 0;
+
+		public Decoder(int maxFrameSize) {
+			this.maxFrameSize = maxFrameSize;
+		}
+
+		/**
+		 * Returns number of bytes of incomplete frame kept by the decoder.
+		 */
+		public int getPendingBytes() {
+			return end;
+		}
+
+		/**
+		 * Decodes all complete frames from the data passing them to the handler. Data of incomplete frame is kept
+		 * until next call.
+		 *
+		 * @return number of decoded frames
+		 *
+		 * @throws FrameException if data are not valid binary frames
+		 */
+		public int decode(ByteBuffer data, FrameHandler handler) {
+			int len = data.remaining();
+
+			if (end + len > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, end + len));
+			}
+			data.get(buf, end, len);
+			end += len;
+
+			int frames = 0;
+			int start = 0;
+
+			while (end - start >= HEADER_SIZE) {
+				int frameLen = ((buf[start] & 0xFF) << 24) | ((buf[start + 1] & 0xFF) << 16) |
+						((buf[start + 2] & 0xFF) << 8) | (buf[start + 3] & 0xFF);
+
+				if (frameLen < 1 || frameLen > maxFrameSize) {
+					throw new FrameException("Invalid frame size: " + frameLen);
+				}
+				if (end - start < frameLen + 4) {
+					break;
+				}
+
+				int frameEnd = start + 4 + frameLen;
+
+				pos = start + HEADER_SIZE;
+				switch (buf[start + 4]) {
+					case ELEMENT_FRAME:
+						Element elem = readNode(null, frameEnd, 0);
+
+						if (pos != frameEnd) {
+							throw new FrameException("Invalid element frame, " + (frameEnd - pos) + " bytes left");
+						}
+						handler.elementReceived(elem);
+						break;
+					case TEXT_FRAME:
+						handler.textReceived(ByteBuffer.wrap(buf, pos, frameEnd - pos));
+						break;
+					default:
+						throw new FrameException("Unknown frame type: " + buf[start + 4]);
+				}
+				++frames;
+				start = frameEnd;
+			}
+
+			// data of incomplete frame is moved to the beginning of the buffer
+			end -= start;
+			if (end > 0 && start > 0) {
+				System.arraycopy(buf, start, buf, 0, end);
+			}
+			if (end < INITIAL_SIZE && buf.length > MAX_RETAINED_SIZE) {
+				buf = Arrays.copyOf(buf, INITIAL_SIZE);
+			}
+			return frames;
+		}
+
+		private Element readNode(Element parent, int limit, int depth) {
+			if (depth > MAX_DEPTH) {
+				throw new FrameException("Too deeply nested elements");
+			}
+
+			String name = readName(limit);
+			int attrsCount = readVarInt(limit);
+			String[] attrNames = null;
+			String[] attrValues = null;
+
+			if (attrsCount > 0) {
+				if (attrsCount > limit - pos) {
+					throw new FrameException("Invalid number of attributes: " + attrsCount);
+				}
+				attrNames = new String[attrsCount];
+				attrValues = new String[attrsCount];
+				for (int i = 0; i < attrsCount; i++) {
+					attrNames[i] = readName(limit);
+					attrValues[i] = isInternedValue(name, attrNames[i]) ? readName(limit) : readString(limit);
+				}
+			}
+
+			Element elem = new Element(name, null, attrNames, attrValues);
+
+			if (parent != null && elem.getXMLNS() == null && parent.getXMLNS() != null) {
+				// the same as done by XMPPDomBuilderHandler for elements without xmlns
+				elem.setDefXMLNS(parent.getXMLNS());
+			}
+
+			int childrenCount = readVarInt(limit);
+
+			if (childrenCount > limit - pos) {
+				throw new FrameException("Invalid number of children: " + childrenCount);
+			}
+			for (int i = 0; i < childrenCount; i++) {
+				elem.addChild(readNode(elem, limit, depth + 1));
+			}
+
+			int cdataLen = readVarInt(limit);
+
+			if (cdataLen > 0) {
+				elem.setCData(readUtf8(cdataLen - 1, limit));
+			}
+			return elem;
+		}
+
+		private String readName(int limit) {
+			int ref = readVarInt(limit);
+
+			switch (ref) {
+				case NAME_DEFINE:
+					if (dictionarySize >= MAX_DICTIONARY_SIZE) {
+						throw new FrameException("Dictionary size exceeded");
+					}
+
+					String name = readString(limit).intern();
+
+					if (dictionarySize == dictionary.length) {
+						dictionary = Arrays.copyOf(dictionary, dictionary.length * 2);
+					}
+					dictionary[dictionarySize++] = name;
+					return name;
+				case NAME_LITERAL:
+					return readString(limit);
+				default:
+					int id = ref - NAME_ID_OFFSET;
+
+					if (id >= dictionarySize) {
+						throw new FrameException("Unknown name id: " + id);
+					}
+					return dictionary[id];
+			}
+		}
+
+		private String readString(int limit) {
+			return readUtf8(readVarInt(limit), limit);
+		}
+
+		private String readUtf8(int len, int limit) {
+			if (len < 0 || len > limit - pos) {
+				throw new FrameException("Invalid string length: " + len);
+			}
+
+			String result = new String(buf, pos, len, StandardCharsets.UTF_8);
+
+			pos += len;
+			return result;
+		}
+
+		private int readVarInt(int limit) {
+			int result = 0;
+
+			for (int shift = 0; shift < 32; shift += 7) {
+				if (pos >= limit) {
+					throw new FrameException("Unexpected end of frame");
+				}
+
+				byte b = buf[pos++];
+
+				result |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					if (result < 0) {
+						break;
+					}
+					return result;
+				}
+			}
+			throw new FrameException("Invalid variable length integer");
+		}
+	}
+}
@@ -0,0 +1,309 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import tigase.net.IOService;
+import tigase.server.Packet;
+import tigase.server.xmppclient.XMPPIOProcessor;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPDomBuilderHandler;
+import tigase.xmpp.XMPPIOService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cluster connection which, after the stream is opened, may switch to binary framing of packets described in {@link
+ * ClusterFrameCodec}. Packets are then encoded directly to frames and decoded from frames without serialization to
+ * XML and parsing it. Data written as strings (handshake, acks, stream errors and stream close) are sent in text
+ * frames and parsed as XML by the receiving side.
+ * <br>
+ * Binary framing is started by {@link ClusterConnectionManager} if both nodes support it, so connections with nodes
+ * not supporting it use XML.
+ * <br>
+ * Connection counts packets queued and written, so {@link ClusterConnectionSelector} may check how many packets are
+ * waiting to be sent over it.
+ */
+public class ClusterIOService<RefObject>
+		extends XMPPIOService<RefObject> {
+
+	private static final int DEF_BATCH_BYTES = 64 * 1024;
+	private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+	private static final Logger log = Logger.getLogger(ClusterIOService.class.getName());
+
+	private final XMPPDomBuilderHandler<RefObject> domHandler;
+	private final ClusterFrameCodec.FrameHandler frameHandler = new ClusterFrameCodec.FrameHandler() {
+		@Override
+		public void elementReceived(Element elem) {
+			// decoded elements are queued with elements parsed from text frames to keep order of packets
+			domHandler.getParsedElements().offer(elem);
+		}
+
+		@Override
+		public void textReceived(ByteBuffer data) {
+			if (isByteParsing()) {
+				if (!byteParser.parse(domHandler, data)) {
+					domHandler.error("Malformed UTF-8 data in text frame");
+				}
+			} else {
+				CharBuffer chars = StandardCharsets.UTF_8.decode(data);
+
+				parser.parse(domHandler, chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+			}
+			if (domHandler.parseError()) {
+				throw new ClusterFrameCodec.FrameException("Invalid XML data in text frame");
+			}
+		}
+	};
+	private volatile ClusterFrameCodec.Decoder decoder = null;
+	private volatile ClusterFrameCodec.Encoder encoder = null;
+	private final AtomicLong packetsQueued = new AtomicLong();
+	private boolean readingFrames = false;
+	private long statsPacketsWritten = 0;
+	private long statsTime = System.currentTimeMillis();
+	private volatile Runnable writeListener = null;
+
+	@SuppressWarnings("unchecked")
+	public ClusterIOService() {
+		super();
+		domHandler = (XMPPDomBuilderHandler<RefObject>) getSessionData().get(DOM_HANDLER);
+	}
+
+	/**
+	 * Switches connection to binary framing. All data received after the data being processed and all data sent from
+	 * now on are binary frames.
+	 */
+	public void startBinaryFraming() {
+		writeInProgress.lock();
+		try {
+			encoder = new ClusterFrameCodec.Encoder();
+			decoder = new ClusterFrameCodec.Decoder(MAX_FRAME_SIZE);
+		} finally {
+			writeInProgress.unlock();
+		}
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Binary framing started [{0}]", toString());
+		}
+	}
+
+	public boolean isBinaryFraming() {
+		return encoder != null;
+	}
+
+	@Override
+	public void addPacketToSend(Packet packet) {
+		// cluster connections do not use io processors, so every packet is queued
+		super.addPacketToSend(packet);
+		packetsQueued.incrementAndGet();
+	}
+
+	/**
+	 * Returns number of packets queued for sending since the connection was created.
+	 */
+	public long getPacketsQueued() {
+		return packetsQueued.get();
+	}
+
+	/**
+	 * Returns number of packets queued and not written to the socket yet.
+	 */
+	public int getQueueDepth() {
+		return (int) Math.max(0, packetsQueued.get() - getTotalPacketsWritten());
+	}
+
+	/**
+	 * Returns number of packets written per second since the previous call.
+	 */
+	public synchronized long samplePacketsWrittenRate() {
+		long now = System.currentTimeMillis();
+		long written = getTotalPacketsWritten();
+		long rate = now > statsTime ? (written - statsPacketsWritten) * 1000 / (now - statsTime) : 0;
+
+		statsPacketsWritten = written;
+		statsTime = now;
+		return rate;
+	}
+
+	/**
+	 * Sets listener called after the connection wrote data to the socket, so threads waiting for its queue to drain
+	 * may be woken up.
+	 */
+	public void setWriteListener(Runnable writeListener) {
+		this.writeListener = writeListener;
+	}
+
+	@Override
+	public IOService<?> call() throws IOException {
+		try {
+			return super.call();
+		} finally {
+			// data waiting in the socket buffer could be written
+			notifyWriteListener();
+		}
+	}
+
+	@Override
+	public void processWaitingPackets() throws IOException {
+		try {
+			if (encoder == null) {
+				super.processWaitingPackets();
+				return;
+			}
+
+			writeFrames();
+
+			// notify io processors that all waiting packets were sent
+			if (processors != null) {
+				for (XMPPIOProcessor processor : processors) {
+					processor.packetsSent(this);
+				}
+			}
+		} finally {
+			notifyWriteListener();
+		}
+	}
+
+	@Override
+	public void writeRawData(String data) throws IOException {
+		if (encoder == null || data == null || data.isEmpty()) {
+			super.writeRawData(data);
+			return;
+		}
+
+		writeInProgress.lock();
+		try {
+			encoder.writeText(data);
+			writeBuffers(new ByteBuffer[]{encoder.flush()}, 1);
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
+	@Override
+	protected void processSocketData() throws IOException {
+		if (decoder == null) {
+			super.processSocketData();
+
+			// binary framing could be started while the stream open was processed
+			if (decoder == null || !isConnected()) {
+				return;
+			}
+		}
+
+		readingFrames = true;
+		try {
+			processFrames();
+		} finally {
+			readingFrames = false;
+		}
+	}
+
+	@Override
+	protected ByteBuffer readBytes() throws IOException {
+		// data following the stream open are not XML, so they cannot be passed to the XML parser
+		return (decoder != null && !readingFrames) ? null : super.readBytes();
+	}
+
+	@Override
+	protected char[] readData() throws IOException {
+		return decoder != null ? null : super.readData();
+	}
+
+	private void notifyWriteListener() {
+		Runnable listener = writeListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	private void processFrames() throws IOException {
+		ByteBuffer data = readBytes();
+
+		while (isConnected() && (data != null) && data.hasRemaining()) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "READ: {1} bytes [{0}]", new Object[]{toString(), data.remaining()});
+			}
+			try {
+				decoder.decode(data, frameHandler);
+				if (!checkBufferLimit(decoder.getPendingBytes())) {
+					return;
+				}
+				moveParsedPacketsToReceived(true);
+			} catch (Exception ex) {
+				log.log(Level.INFO, "Incorrect binary frame data, stopping connection [" + toString() + "] exception: ",
+						ex);
+				forceStop();
+			} finally {
+				// buffer is cleared so it can be returned to the pool while the connection is idle
+				data.clear();
+				if (domHandler.isStreamClosed()) {
+					xmppStreamClosed();
+				}
+			}
+			data = readBytes();
+		}
+	}
+
+	private void writeFrames() {
+		Queue<Packet> waitingPackets = getWaitingPackets();
+		int maxBatchBytes = getWriteBatchBytes() > 0 ? getWriteBatchBytes() : DEF_BATCH_BYTES;
+
+		// encoder keeps state, so frames have to be written in the order they were encoded
+		writeInProgress.lock();
+		try {
+			while (!waitingPackets.isEmpty()) {
+				int count = 0;
+
+				try {
+					// packets are only peeked here and polled after they are sent
+					for (Packet packet : waitingPackets) {
+						if (count > 0 && encoder.length() >= maxBatchBytes) {
+							break;
+						}
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Sending packet: {1} [{0}]", new Object[]{toString(), packet});
+						}
+						encoder.writeElement(packet.getElement());
+						++count;
+					}
+				} catch (RuntimeException ex) {
+					// dictionary of the encoder may be already changed, so the connection cannot be used anymore
+					log.log(Level.WARNING, "Packet encoding error, stopping connection [" + toString() + "]", ex);
+					forceStop();
+					return;
+				}
+
+				writeBuffers(new ByteBuffer[]{encoder.flush()}, count);
+
+				// and after sending them we should remove them to minimalize chances of lost packets
+				for (int i = 0; i < count; i++) {
+					waitingPackets.poll();
+				}
+				packetsWritten(count);
+			}
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+}
@@ -32,4 +32,12 @@ public interface ClusterConnectionHandler {
 	 */
 	int hashCodeForPacket(Packet packet);
 
+	/**
+	 * Generates code of the key for particular packet used to send packets with the same key over the same cluster
+	 * connection, so their order is kept. By default the same as {@link #hashCodeForPacket(Packet)}.
+	 */
+	default int stripeCodeForPacket(Packet packet) {
+		return hashCodeForPacket(packet);
+	}
+
 }
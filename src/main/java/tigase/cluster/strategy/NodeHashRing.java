@@ -0,0 +1,145 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+/**
+ * Consistent hashing ring of cluster nodes. Each node is placed on the ring at a number of points (virtual nodes) and a
+ * key belongs to the first node found on the ring after hash of the key. When a node joins or leaves the cluster only
+ * keys of this node are moved to other nodes.
+ * <br>
+ * Placement of nodes depends only on node names, so all cluster nodes knowing the same set of nodes select the same
+ * node for a key.
+ */
+public class NodeHashRing {
+
+	private static final Ring EMPTY = new Ring(new long[0], new JID[0], Collections.emptyList());
+
+	private final int virtualNodes;
+	private volatile Ring ring = EMPTY;
+
+	/**
+	 * Calculates 64-bit hash of the string which is the same on every JVM.
+	 */
+	public static long hash(String value) {
+		// FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			h ^= value.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		// finalization step of MurmurHash3 to spread similar keys over the ring
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public NodeHashRing(int virtualNodes) {
+		this.virtualNodes = Math.max(1, virtualNodes);
+	}
+
+	/**
+	 * Returns node responsible for the key or <code>null</code> if there are no nodes.
+	 */
+	public JID getNode(BareJID key) {
+		return getNode(key.toString());
+	}
+
+	public JID getNode(String key) {
+		Ring current = ring;
+		if (current.nodes.length == 0) {
+			return null;
+		}
+		int idx = Arrays.binarySearch(current.hashes, hash(key));
+		if (idx < 0) {
+			idx = -idx - 1;
+			if (idx == current.hashes.length) {
+				idx = 0;
+			}
+		}
+		return current.nodes[idx];
+	}
+
+	public List<JID> getNodes() {
+		return ring.members;
+	}
+
+	/**
+	 * Replaces nodes placed on the ring.
+	 */
+	public void setNodes(Collection<JID> nodes) {
+		List<JID> members = new ArrayList<>(new TreeSet<>(nodes));
+		Point[] points = new Point[members.size() * virtualNodes];
+		int i = 0;
+		for (JID node : members) {
+			String name = node.toString();
+			for (int v = 0; v < virtualNodes; v++) {
+				points[i++] = new Point(hash(name + "#" + v), node);
+			}
+		}
+		// ties are resolved by node name so the ring does not depend on order of nodes
+		Arrays.sort(points, (p1, p2) -> {
+			int result = Long.compare(p1.hash, p2.hash);
+			return result != 0 ? result : p1.node.compareTo(p2.node);
+		});
+
+		long[] hashes = new long[points.length];
+		JID[] ringNodes = new JID[points.length];
+		for (i = 0; i < points.length; i++) {
+			hashes[i] = points[i].hash;
+			ringNodes[i] = points[i].node;
+		}
+		ring = new Ring(hashes, ringNodes, Collections.unmodifiableList(members));
+	}
+
+	@Override
+	public String toString() {
+		return "NodeHashRing[nodes: " + ring.members + ", virtualNodes: " + virtualNodes + "]";
+	}
+
+	private static class Point {
+
+		private final long hash;
+		private final JID node;
+
+		private Point(long hash, JID node) {
+			this.hash = hash;
+			this.node = node;
+		}
+	}
+
+	private static class Ring {
+
+		private final long[] hashes;
+		private final List<JID> members;
+		private final JID[] nodes;
+
+		private Ring(long[] hashes, JID[] nodes, List<JID> members) {
+			this.hashes = hashes;
+			this.nodes = nodes;
+			this.members = members;
+		}
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import tigase.cluster.SessionManagerClustered;
+import tigase.cluster.api.ClusterCommandException;
+import tigase.cluster.api.CommandListenerAbstract;
+import tigase.cluster.api.SessionManagerClusteredIfc;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.server.Packet;
+import tigase.server.Priority;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.StanzaType;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Clustering strategy with cluster wide directory of user sessions partitioned between cluster nodes.
+ * <br>
+ * Each bare JID has an owner node selected by consistent hashing of the bare JID. Every node reports connection records
+ * of its local sessions to owners of their bare JIDs. A packet for a user without a local session is sent to the owner
+ * node which forwards it to nodes with user's sessions, so the packet takes at most two hops instead of visiting all
+ * cluster nodes. If there are no sessions, the owner returns the packet to the first node which processes it as a
+ * packet for an offline user.
+ * <br>
+ * When a node joins or leaves the cluster, nodes report their local sessions to new owners and drop records of bare
+ * JIDs they do not own anymore.
+ */
+public class SessionDirectoryClusteringStrategy<E extends ConnectionRecordIfc>
+		extends DefaultClusteringStrategy<E> {
+
+	private static final String ACTION_ADD = "add";
+	private static final String ACTION_KEY = "action";
+	private static final String ACTION_REMOVE = "remove";
+	private static final String DIRECTORY_UPDATE_CMD = "directory-update-sm-cmd";
+
+	private static final Logger log = Logger.getLogger(SessionDirectoryClusteringStrategy.class.getName());
+
+	private final Set<JID> clusterNodes = new ConcurrentSkipListSet<>();
+	private final AtomicLong directoryHits = new AtomicLong();
+	private final AtomicLong directoryMisses = new AtomicLong();
+	/**
+	 * Connection records of users for which this node is the owner
+	 */
+	private final ConcurrentHashMap<BareJID, Set<E>> directory = new ConcurrentHashMap<>();
+	private final AtomicLong forwardedInOneHop = new AtomicLong();
+	private final AtomicLong forwardedInTwoHops = new AtomicLong();
+	private final AtomicLong forwardedToOwner = new AtomicLong();
+	private final AtomicLong returnedToFirstNode = new AtomicLong();
+	private NodeHashRing ring = null;
+	@ConfigField(desc = "Number of points on hash ring for each cluster node", alias = "virtual-nodes")
+	private int virtualNodes = 64;
+
+	public SessionDirectoryClusteringStrategy() {
+		super();
+		addCommandListener(new DirectoryUpdateCommand(DIRECTORY_UPDATE_CMD));
+	}
+
+	@Override
+	public String getInfo() {
+		return "session directory strategy";
+	}
+
+	/**
+	 * Returns copy of connection records of the user, as callers may modify returned set.
+	 */
+	@Override
+	public Set<E> getConnectionRecords(BareJID bareJID) {
+		Set<E> records = directory.get(bareJID);
+		return records == null ? null : new HashSet<>(records);
+	}
+
+	@Override
+	public E getConnectionRecord(JID jid) {
+		Set<E> records = directory.get(jid.getBareJID());
+		if (records != null) {
+			for (E rec : records) {
+				if (jid.equals(rec.getUserJid())) {
+					return rec;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns node which keeps connection records of the user.
+	 */
+	public JID getOwnerNode(BareJID jid) {
+		JID owner = getRing().getNode(jid);
+		return owner == null ? sm.getComponentId() : owner;
+	}
+
+	@Override
+	public List<JID> getNodesForPacketForward(JID fromNode, Set<JID> visitedNodes, Packet packet) {
+		if (visitedNodes == null) {
+			if (isPresenceUpdate(packet) || !isSuitableForForward(packet) || isIqResponseToNode(packet)) {
+				return super.getNodesForPacketForward(fromNode, visitedNodes, packet);
+			}
+
+			BareJID jid = packet.getStanzaTo().getBareJID();
+			JID owner = getOwnerNode(jid);
+			if (sm.getComponentId().equals(owner)) {
+				List<JID> result = lookup(jid, visitedNodes);
+				if (result != null) {
+					forwardedInOneHop.incrementAndGet();
+				}
+				return result;
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Forwarding packet to owner node: {0}, packet: {1}",
+						new Object[]{owner, packet});
+			}
+			forwardedToOwner.incrementAndGet();
+			return Collections.singletonList(owner);
+		}
+
+		// packet was forwarded by other node
+		if (isIqResponseToNode(packet) || sm.getComponentId().equals(fromNode) || packet.getStanzaTo() == null) {
+			return null;
+		}
+
+		BareJID jid = packet.getStanzaTo().getBareJID();
+		if (!sm.getComponentId().equals(getOwnerNode(jid))) {
+			return null;
+		}
+
+		List<JID> result = lookup(jid, visitedNodes);
+		if (result != null) {
+			forwardedInTwoHops.incrementAndGet();
+		}
+		return result;
+	}
+
+	@Override
+	public boolean sendToNextNode(JID fromNode, Set<JID> visitedNodes, Map<String, String> data, Packet packet) {
+		boolean result = super.sendToNextNode(fromNode, visitedNodes, data, packet);
+
+		if (!result && visitedNodes != null && !sm.getComponentId().equals(fromNode) &&
+				(data == null || data.get(SessionManagerClusteredIfc.SESSION_FOUND_KEY) == null) &&
+				packet.getType() != StanzaType.error && !isIqResponseToNode(packet)) {
+			// there is no session for the packet, the first node will process it as a packet for offline user
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "No session found, returning packet to the first node: {0}, packet: {1}",
+						new Object[]{fromNode, packet});
+			}
+			returnedToFirstNode.incrementAndGet();
+			cluster.sendToNodes(PACKET_FORWARD_CMD, data, packet.getElement(), fromNode, visitedNodes, fromNode);
+			result = true;
+		}
+
+		return result;
+	}
+
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		list.add(comp, prefix + "Directory size", directory.size(), Level.FINE);
+		list.add(comp, prefix + "Directory hits", directoryHits.get(), Level.FINE);
+		list.add(comp, prefix + "Directory misses", directoryMisses.get(), Level.FINE);
+		list.add(comp, prefix + "Packets forwarded to owner node", forwardedToOwner.get(), Level.FINE);
+		list.add(comp, prefix + "Packets forwarded in 1 hop", forwardedInOneHop.get(), Level.FINE);
+		list.add(comp, prefix + "Packets forwarded in 2 hops", forwardedInTwoHops.get(), Level.FINE);
+		list.add(comp, prefix + "Packets returned to first node", returnedToFirstNode.get(), Level.FINE);
+	}
+
+	@Override
+	public void handleLocalResourceBind(XMPPResourceConnection conn) {
+		super.handleLocalResourceBind(conn);
+
+		E rec = createRecord(conn, null);
+		if (rec != null) {
+			publish(ACTION_ADD, Collections.singletonList(rec));
+		}
+	}
+
+	@Override
+	public void handleLocalUserLogout(BareJID userId, XMPPResourceConnection conn) {
+		super.handleLocalUserLogout(userId, conn);
+
+		E rec = createRecord(conn, null);
+		if (rec != null) {
+			publish(ACTION_REMOVE, Collections.singletonList(rec));
+		}
+	}
+
+	@Override
+	public void handleLocalUserChangedConnId(BareJID userId, XMPPResourceConnection conn, JID oldConnId,
+											 JID newConnId) {
+		super.handleLocalUserChangedConnId(userId, conn, oldConnId, newConnId);
+
+		E oldRec = createRecord(conn, oldConnId);
+		E newRec = createRecord(conn, newConnId);
+		if (oldRec != null && newRec != null) {
+			publish(ACTION_REMOVE, Collections.singletonList(oldRec));
+			publish(ACTION_ADD, Collections.singletonList(newRec));
+		}
+	}
+
+	@Override
+	public void nodeConnected(JID node) {
+		super.nodeConnected(node);
+		clusterNodes.add(node);
+		rebalance(null);
+	}
+
+	@Override
+	public void nodeDisconnected(JID node) {
+		super.nodeDisconnected(node);
+		clusterNodes.remove(node);
+		rebalance(node);
+	}
+
+	protected void addRecord(E rec) {
+		directory.computeIfAbsent(rec.getUserJid().getBareJID(), jid -> ConcurrentHashMap.newKeySet()).add(rec);
+	}
+
+	protected void removeRecord(E rec) {
+		directory.computeIfPresent(rec.getUserJid().getBareJID(), (jid, records) -> {
+			records.remove(rec);
+			return records.isEmpty() ? null : records;
+		});
+	}
+
+	private synchronized NodeHashRing getRing() {
+		if (ring == null) {
+			ring = new NodeHashRing(virtualNodes);
+			ring.setNodes(getRingNodes());
+		}
+		return ring;
+	}
+
+	private Set<JID> getRingNodes() {
+		Set<JID> nodes = new HashSet<>(clusterNodes);
+		nodes.add(sm.getComponentId());
+		return nodes;
+	}
+
+	private boolean isPresenceUpdate(Packet packet) {
+		return (packet.getElemName() == "presence") && (packet.getType() != StanzaType.error) &&
+				(packet.getStanzaFrom() != null) && (packet.getStanzaTo() == null);
+	}
+
+	private List<JID> lookup(BareJID jid, Set<JID> visitedNodes) {
+		Set<E> records = directory.get(jid);
+		List<JID> result = null;
+
+		if (records != null) {
+			for (E rec : records) {
+				JID node = rec.getNode();
+				if (sm.getComponentId().equals(node) || (visitedNodes != null && visitedNodes.contains(node))) {
+					continue;
+				}
+				if (result == null) {
+					result = new ArrayList<>(2);
+				}
+				if (!result.contains(node)) {
+					result.add(node);
+				}
+			}
+		}
+		if (result == null) {
+			directoryMisses.incrementAndGet();
+		} else {
+			directoryHits.incrementAndGet();
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Directory lookup for: {0}, records: {1}, result: {2}",
+					new Object[]{jid, records, result});
+		}
+
+		return result;
+	}
+
+	private E createRecord(XMPPResourceConnection conn, JID connectionId) {
+		try {
+			E rec = getConnectionRecordInstance();
+			rec.setRecordFields(sm.getComponentId(), JID.jidInstanceNS(conn.getBareJID(), conn.getResource()),
+								conn.getSessionId(), connectionId == null ? conn.getConnectionId() : connectionId);
+			return rec;
+		} catch (Exception ex) {
+			log.log(Level.FINE, "Could not create connection record for: " + conn, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Sends records to owner nodes of their bare JIDs, records owned by this node are updated locally.
+	 */
+	private void publish(String action, Collection<E> records) {
+		Map<JID, Queue<Element>> byOwner = new HashMap<>();
+
+		for (E rec : records) {
+			JID owner = getOwnerNode(rec.getUserJid().getBareJID());
+			if (sm.getComponentId().equals(owner)) {
+				if (ACTION_ADD.equals(action)) {
+					addRecord(rec);
+				} else {
+					removeRecord(rec);
+				}
+				continue;
+			}
+
+			Queue<Element> elems = byOwner.computeIfAbsent(owner, node -> new ArrayDeque<>());
+			elems.add(rec.toElement());
+			if (elems.size() >= SessionManagerClustered.SYNC_MAX_BATCH_SIZE) {
+				sendRecords(action, owner, elems);
+				byOwner.remove(owner);
+			}
+		}
+		byOwner.forEach((owner, elems) -> sendRecords(action, owner, elems));
+	}
+
+	/**
+	 * Updates hash ring after change of cluster nodes and moves connection records to their new owners.
+	 */
+	private synchronized void rebalance(JID disconnectedNode) {
+		NodeHashRing oldRing = getRing();
+		NodeHashRing newRing = new NodeHashRing(virtualNodes);
+		newRing.setNodes(getRingNodes());
+		ring = newRing;
+
+		JID self = sm.getComponentId();
+		int removed = 0;
+		for (Iterator<Map.Entry<BareJID, Set<E>>> it = directory.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<BareJID, Set<E>> e = it.next();
+			if (!self.equals(newRing.getNode(e.getKey()))) {
+				// nodes with sessions of this user will send records to the new owner
+				it.remove();
+				removed += e.getValue().size();
+			} else if (disconnectedNode != null) {
+				e.getValue().removeIf(rec -> disconnectedNode.equals(rec.getNode()));
+				if (e.getValue().isEmpty()) {
+					directory.remove(e.getKey(), e.getValue());
+				}
+			}
+		}
+
+		List<E> moved = new ArrayList<>();
+		for (XMPPResourceConnection conn : sm.getXMPPResourceConnections().values()) {
+			if (!conn.isAuthorized() || !conn.isResourceSet()) {
+				continue;
+			}
+			try {
+				BareJID jid = conn.getBareJID();
+				if (!Objects.equals(oldRing.getNode(jid), newRing.getNode(jid))) {
+					E rec = createRecord(conn, null);
+					if (rec != null) {
+						moved.add(rec);
+					}
+				}
+			} catch (Exception ex) {
+				log.log(Level.FINEST, "Could not check owner of session: " + conn, ex);
+			}
+		}
+		publish(ACTION_ADD, moved);
+
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Rebalanced session directory for nodes: {0}, removed records: {1}, " +
+							"local sessions moved to new owners: {2}",
+					new Object[]{newRing.getNodes(), removed, moved.size()});
+		}
+	}
+
+	private void sendRecords(String action, JID owner, Queue<Element> elems) {
+		Map<String, String> data = new LinkedHashMap<>();
+		data.put(ACTION_KEY, action);
+		cluster.sendToNodes(DIRECTORY_UPDATE_CMD, data, elems, sm.getComponentId(), null, owner);
+	}
+
+	private class DirectoryUpdateCommand
+			extends CommandListenerAbstract {
+
+		public DirectoryUpdateCommand(String name) {
+			super(name, Priority.CLUSTER);
+		}
+
+		@Override
+		public void executeCommand(JID fromNode, Set<JID> visitedNodes, Map<String, String> data,
+								   Queue<Element> packets) throws ClusterCommandException {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Called fromNode: {0}, data: {1}, records: {2}",
+						new Object[]{fromNode, data, packets == null ? 0 : packets.size()});
+			}
+			if (packets == null) {
+				return;
+			}
+
+			boolean add = ACTION_ADD.equals(data.get(ACTION_KEY));
+			for (Element elem : packets) {
+				E rec = getConnectionRecordInstance();
+				rec.setElement(elem);
+				if (add) {
+					addRecord(rec);
+				} else {
+					removeRecord(rec);
+				}
+			}
+		}
+	}
+}
@@ -687,6 +687,8 @@ public class JDBCRepository
 				log.log(Level.WARNING,
 						"Error setting data , user_id: " + user_id + ", subnode: " + subnode + ", key: " + key +
 								", uid: " + uid + ", nid: " + nid + ", value: " + value, e);
+			} finally {
+				data_repo.releaseRepoHandle(repo);
 			}
 		}
 	}
@@ -0,0 +1,770 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.jdbc;
+
+import tigase.db.*;
+import tigase.db.util.DBInitForkJoinPoolCache;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.LatencyHistogram;
+import tigase.stats.StatisticsList;
+import tigase.stats.StatisticsProviderIfc;
+import tigase.util.Version;
+import tigase.xmpp.jid.BareJID;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of data repositories in which every connection is borrowed exclusively for the time of a single statement
+ * execution and returned to the pool afterwards.
+ * <br>
+ * Each repository added to the pool (usually {@link DataRepositoryImpl}) represents a single database connection
+ * with its own cache of prepared statements. Unlike {@link DataRepositoryPool}, which picks a connection by hash of
+ * the user id and shares it with all users hashed to it, a slow query keeps busy only the connection it is executed
+ * on.
+ * <br>
+ * Statements returned by <code>getPreparedStatement()</code> are lightweight handles, so existing code
+ * synchronizing on them keeps working. Parameters set on a handle are recorded and applied to the prepared statement
+ * of a borrowed connection when the statement is executed. The connection is returned to the pool right after the
+ * execution, so a caller which does not close a statement or a result set does not keep it busy. Rows of a returned
+ * <code>ResultSet</code> and generated keys of a statement which may return them are read before the connection is
+ * returned, so query results are available only as forward-only result sets with values read by the column type, and
+ * only the first result of a statement is available.
+ * <br>
+ * Transactions are not supported on the pool itself, as every statement may be executed on a different connection.
+ * A connection has to be taken exclusively with {@link #takeRepoHandle(BareJID)} before a transaction is started.
+ * <br>
+ * The pool may be enabled for a data source by setting <code>pool-class</code> to the name of this class.
+ */
+public class PooledDataRepository
+		implements DataRepository, DataSourcePool<DataRepository>, StatisticsProviderIfc {
+
+	private static final Logger log = Logger.getLogger(PooledDataRepository.class.getName());
+
+	private final LongAdder borrowTimeouts = new LongAdder();
+	private final LinkedBlockingDeque<DataRepository> idle = new LinkedBlockingDeque<>();
+	private final Map<String, Integer> keysGenerated = new ConcurrentHashMap<>();
+	private final CopyOnWriteArrayList<DataRepository> repoPool = new CopyOnWriteArrayList<>();
+	private static final Map<Class<?>, Object> PRIMITIVE_DEFAULTS = Map.of(boolean.class, false, byte.class,
+																			(byte) 0, short.class, (short) 0,
+																			int.class, 0, long.class, 0L,
+																			float.class, 0f, double.class, 0d);
+
+	private final LatencyHistogram waitTime = new LatencyHistogram("Connection wait time");
+	@ConfigField(desc = "Maximal time to wait for a free connection", alias = "borrow-timeout")
+	private Duration borrowTimeout = Duration.ofSeconds(DataRepositoryImpl.DB_CONN_TIMEOUT);
+	private dbTypes database = null;
+	private String resource_uri = null;
+
+	@Override
+	public void addRepo(DataRepository repo) {
+		if (repoPool.addIfAbsent(repo)) {
+			idle.offerFirst(repo);
+		}
+	}
+
+	@Override
+	public boolean automaticSchemaManagement() {
+		if (repoPool.isEmpty()) {
+			return true;
+		}
+		return repoPool.get(0).automaticSchemaManagement();
+	}
+
+	@Override
+	public void checkConnectivity(Duration watchdogTime) {
+		repoPool.forEach(repo -> repo.checkConnectivity(watchdogTime));
+	}
+
+	@Override
+	public boolean checkSchemaVersion(DataSourceAware<? extends DataSource> datasource, boolean shutdownServer) {
+		DataRepository repo = takeRepoHandle(null);
+		try {
+			return repo.checkSchemaVersion(datasource, shutdownServer);
+		} finally {
+			releaseRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public Optional<Version> getSchemaVersion(String component) {
+		DataRepository repo = takeRepoHandle(null);
+		try {
+			return repo.getSchemaVersion(component);
+		} finally {
+			releaseRepoHandle(repo);
+		}
+	}
+
+	@Override
+	public boolean checkTable(String tableName) throws SQLException {
+		DataRepository repo = borrow();
+		try {
+			return repo.checkTable(tableName);
+		} finally {
+			giveBack(repo);
+		}
+	}
+
+	@Override
+	public boolean checkTable(String tableName, String createTableQuery) throws SQLException {
+		DataRepository repo = borrow();
+		try {
+			return repo.checkTable(tableName, createTableQuery);
+		} finally {
+			giveBack(repo);
+		}
+	}
+
+	@Override
+	public Statement createStatement(BareJID user_id) throws SQLException {
+		return (Statement) Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class[]{Statement.class},
+												  new StatementHandler(null));
+	}
+
+	@Override
+	public PreparedStatement getPreparedStatement(BareJID user_id, String stIdKey) throws SQLException {
+		return getPreparedStatement(0, stIdKey);
+	}
+
+	@Override
+	public PreparedStatement getPreparedStatement(int hashCode, String stIdKey) throws SQLException {
+		return (PreparedStatement) Proxy.newProxyInstance(this.getClass().getClassLoader(),
+														  new Class[]{PreparedStatement.class},
+														  new StatementHandler(stIdKey));
+	}
+
+	@Override
+	public String getResourceUri() {
+		if (resource_uri == null && !repoPool.isEmpty()) {
+			return repoPool.get(0).getResourceUri();
+		}
+		return resource_uri;
+	}
+
+	@Override
+	public dbTypes getDatabaseType() {
+		return database;
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "uri", getResourceUri(), Level.FINE);
+		list.add(compName, "connections count", repoPool.size(), Level.FINE);
+		list.add(compName, "connections in use", repoPool.size() - idle.size(), Level.FINE);
+		list.add(compName, "connection wait timeouts", borrowTimeouts.sum(), Level.FINE);
+		waitTime.getStatistics(compName, list, Level.FINER);
+		for (DataRepository repo : repoPool) {
+			if (repo instanceof StatisticsProviderIfc) {
+				((StatisticsProviderIfc) repo).getStatistics(compName, list);
+			}
+		}
+	}
+
+	public LatencyHistogram getWaitTimeHistogram() {
+		return waitTime;
+	}
+
+	public void setBorrowTimeout(Duration borrowTimeout) {
+		this.borrowTimeout = borrowTimeout;
+	}
+
+	@Override
+	public void initPreparedStatement(String stIdKey, String query) throws SQLException {
+		keysGenerated.put(stIdKey, Statement.NO_GENERATED_KEYS);
+		executeForEachDataSource(dataRepository -> dataRepository.initPreparedStatement(stIdKey, query));
+	}
+
+	@Override
+	public void initPreparedStatement(String stIdKey, String query, int autoGeneratedKeys) throws SQLException {
+		keysGenerated.put(stIdKey, autoGeneratedKeys);
+		executeForEachDataSource(
+				dataRepository -> dataRepository.initPreparedStatement(stIdKey, query, autoGeneratedKeys));
+	}
+
+	@Override
+	public void initialize(String resource_uri) throws DBInitException {
+		this.resource_uri = resource_uri;
+
+		if (this.database == null) {
+			database = DataRepositoryImpl.parseDatabaseType(resource_uri);
+		}
+	}
+
+	@Override
+	@Deprecated
+	public void initRepository(String resource_uri, Map<String, String> params) throws DBInitException {
+		initialize(resource_uri);
+
+		for (DataRepository dataRepository : repoPool) {
+			dataRepository.initRepository(resource_uri, params);
+			this.database = dataRepository.getDatabaseType();
+		}
+	}
+
+	@Override
+	public void release(Statement stmt, ResultSet rs) {
+		if (rs != null) {
+			try {
+				rs.close();
+			} catch (SQLException sqlEx) {
+			}
+		}
+
+		if (stmt != null) {
+			try {
+				stmt.close();
+			} catch (SQLException sqlEx) {
+			}
+		}
+	}
+
+	/**
+	 * Takes a connection from the pool for exclusive use of the caller, it has to be returned with {@link
+	 * #releaseRepoHandle(DataRepository)}.
+	 *
+	 * @throws IllegalStateException if there is no free connection within the borrow timeout
+	 */
+	@Override
+	public DataRepository takeRepoHandle(BareJID user_id) {
+		try {
+			return borrow();
+		} catch (SQLException ex) {
+			throw new IllegalStateException("No free connection for exclusive use: " + ex.getMessage(), ex);
+		}
+	}
+
+	@Override
+	public void releaseRepoHandle(DataRepository repo) {
+		if (repoPool.contains(repo)) {
+			giveBack(repo);
+		}
+	}
+
+	@Override
+	public void startTransaction() throws SQLException {
+		throw transactionNotSupported();
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		throw transactionNotSupported();
+	}
+
+	@Override
+	public void rollback() throws SQLException {
+		throw transactionNotSupported();
+	}
+
+	@Override
+	public void endTransaction() throws SQLException {
+		throw transactionNotSupported();
+	}
+
+	@Override
+	public int getPoolSize() {
+		return repoPool.size();
+	}
+
+	protected int getIdleCount() {
+		return idle.size();
+	}
+
+	private DataRepository borrow() throws SQLException {
+		long start = System.nanoTime();
+		DataRepository repo = idle.pollFirst();
+
+		if (repo == null) {
+			try {
+				repo = idle.pollFirst(borrowTimeout.toNanos(), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a free connection", ex);
+			}
+			if (repo == null) {
+				borrowTimeouts.increment();
+				throw new SQLTimeoutException(
+						"No free connection to " + getResourceUri() + " within " + borrowTimeout.toMillis() + "ms");
+			}
+		}
+		waitTime.record(System.nanoTime() - start);
+		return repo;
+	}
+
+	private void giveBack(DataRepository repo) {
+		idle.offerFirst(repo);
+	}
+
+	private void executeForEachDataSource(ForkWithSqlException taskToRun) throws SQLException {
+		Queue<ForkJoinTask<DataRepository>> tasks = new ArrayDeque<>();
+		final ForkJoinPool pool = DBInitForkJoinPoolCache.shared.pool("dbinit-" + this.hashCode(),
+																	  Math.min(repoPool.size(), 128));
+		for (DataRepository dataRepository : repoPool) {
+			tasks.offer(pool.submit(() -> {
+				try {
+					taskToRun.run(dataRepository);
+					return dataRepository;
+				} catch (SQLException ex) {
+					throw new RuntimeException("Could not initialize prepared statement", ex);
+				}
+			}));
+		}
+		try {
+			ForkJoinTask<DataRepository> task;
+			while ((task = tasks.poll()) != null) {
+				task.join();
+			}
+		} catch (RuntimeException ex) {
+			throw new SQLException("Could not initialize prepared statement", ex);
+		}
+	}
+
+	private SQLException transactionNotSupported() {
+		return new SQLFeatureNotSupportedException(
+				"Transactions are not supported on the connection pool, take a connection with takeRepoHandle() first");
+	}
+
+	@FunctionalInterface
+	private interface ForkWithSqlException {
+
+		void run(DataRepository dataRepository) throws SQLException;
+
+	}
+
+	private class StatementHandler
+			implements InvocationHandler {
+
+		private final List<Object[]> calls = new ArrayList<>();
+		private final String stIdKey;
+		private boolean closed = false;
+		private Object generatedKeys = null;
+		private int lastUpdateCount = -1;
+		private DataRepository repo = null;
+		private DetachedResultSetHandler resultSet = null;
+		private Statement target = null;
+
+		private StatementHandler(String stIdKey) {
+			this.stIdKey = stIdKey;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+
+			if (method.getDeclaringClass() == Object.class) {
+				switch (name) {
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return "PooledStatement[" + stIdKey + "]";
+				}
+			}
+
+			switch (name) {
+				case "close":
+					closed = true;
+					resultSet = null;
+					return null;
+				case "isClosed":
+					return closed;
+				case "getUpdateCount":
+					return lastUpdateCount;
+				case "getGeneratedKeys":
+					return generatedKeys(proxy);
+				case "getResultSet":
+					DetachedResultSetHandler rs = resultSet;
+					resultSet = null;
+					return rs == null ? null : rs.newResultSet(proxy);
+				case "getMoreResults":
+					lastUpdateCount = -1;
+					resultSet = null;
+					return false;
+				default:
+					break;
+			}
+
+			if (closed) {
+				throw new SQLException("Statement is closed");
+			}
+
+			if (method.getReturnType() == void.class &&
+					(name.startsWith("set") || name.startsWith("clear") || name.equals("addBatch"))) {
+				calls.add(new Object[]{method, args});
+				return null;
+			}
+
+			boolean execute = name.startsWith("execute");
+
+			if (execute) {
+				generatedKeys = null;
+				lastUpdateCount = -1;
+				resultSet = null;
+			}
+
+			bind();
+			try {
+				Object result = invokeOn(target, method, args);
+
+				if (result instanceof ResultSet) {
+					return new DetachedResultSetHandler((ResultSet) result, database).newResultSet(proxy);
+				}
+				if (execute) {
+					if ("execute".equals(name) && Boolean.TRUE.equals(result)) {
+						// result set will be retrieved with getResultSet()
+						resultSet = new DetachedResultSetHandler(target.getResultSet(), database);
+						return result;
+					}
+					lastUpdateCount = target.getUpdateCount();
+					if (mayReturnGeneratedKeys(args)) {
+						try {
+							generatedKeys = new DetachedResultSetHandler(target.getGeneratedKeys(), database);
+						} catch (SQLException | RuntimeException ex) {
+							generatedKeys = ex;
+						}
+					}
+				}
+				return result;
+			} finally {
+				unbind();
+			}
+		}
+
+		private ResultSet generatedKeys(Object proxy) throws SQLException {
+			if (generatedKeys instanceof SQLException) {
+				throw (SQLException) generatedKeys;
+			}
+			if (generatedKeys instanceof RuntimeException) {
+				throw (RuntimeException) generatedKeys;
+			}
+			DetachedResultSetHandler handler = generatedKeys == null
+											   ? new DetachedResultSetHandler()
+											   : (DetachedResultSetHandler) generatedKeys;
+			generatedKeys = null;
+			return handler.newResultSet(proxy);
+		}
+
+		private void bind() throws SQLException {
+			DataRepository repo = borrow();
+			Statement target;
+
+			try {
+				target = stIdKey == null ? repo.createStatement(null) : repo.getPreparedStatement(0, stIdKey);
+				if (target == null) {
+					throw new SQLException("Statement " + stIdKey + " is not initialized");
+				}
+				for (Object[] call : calls) {
+					invokeOn(target, (Method) call[0], (Object[]) call[1]);
+				}
+			} catch (SQLException | RuntimeException ex) {
+				giveBack(repo);
+				throw ex;
+			} finally {
+				calls.clear();
+			}
+
+			this.repo = repo;
+			this.target = target;
+		}
+
+		private Object invokeOn(Object target, Method method, Object[] args) throws SQLException {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException ex) {
+				Throwable cause = ex.getTargetException();
+				if (cause instanceof SQLException) {
+					throw (SQLException) cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new SQLException(cause);
+			} catch (IllegalAccessException ex) {
+				throw new SQLException(ex);
+			}
+		}
+
+		private boolean mayReturnGeneratedKeys(Object[] args) {
+			if (database == dbTypes.sqlserver) {
+				// stored procedures for SQL Server return their results as generated keys
+				return true;
+			}
+			if (stIdKey == null) {
+				if (args == null || args.length < 2) {
+					return false;
+				}
+				return !Integer.valueOf(Statement.NO_GENERATED_KEYS).equals(args[1]);
+			}
+			Integer keys = keysGenerated.get(stIdKey);
+			return keys != null && keys != Statement.NO_GENERATED_KEYS;
+		}
+
+		private void unbind() {
+			if (target == null) {
+				return;
+			}
+			try {
+				if (stIdKey == null) {
+					target.close();
+				} else {
+					((PreparedStatement) target).clearParameters();
+					target.clearBatch();
+				}
+			} catch (SQLException | RuntimeException ex) {
+				log.log(Level.FINEST, "Could not clear statement " + stIdKey, ex);
+			}
+
+			DataRepository repo = this.repo;
+
+			target = null;
+			this.repo = null;
+			giveBack(repo);
+		}
+	}
+
+	/**
+	 * Copy of a result set which is available after the statement it was read from was returned to the pool. All rows
+	 * are read right after the execution, so it supports only forward reading of columns converted to the basic types,
+	 * strings, byte arrays and date/time values. Timestamps are read with the calendar used by {@link
+	 * DataRepository#getTimestamp(ResultSet, int)}, so a calendar passed to the getters is ignored.
+	 */
+	private static class DetachedResultSetHandler
+			implements InvocationHandler {
+
+		private final String[] labels;
+		private final List<Object[]> rows = new ArrayList<>();
+		private boolean closed = false;
+		private int position = -1;
+		private Object statement = null;
+		private boolean wasNull = false;
+
+		private DetachedResultSetHandler() {
+			this.labels = new String[0];
+		}
+
+		private DetachedResultSetHandler(ResultSet rs, dbTypes database) throws SQLException {
+			if (rs == null) {
+				this.labels = new String[0];
+				return;
+			}
+			try {
+				ResultSetMetaData metaData = rs.getMetaData();
+				this.labels = new String[metaData.getColumnCount()];
+				int[] types = new int[labels.length];
+				for (int i = 0; i < labels.length; i++) {
+					labels[i] = metaData.getColumnLabel(i + 1);
+					types[i] = metaData.getColumnType(i + 1);
+				}
+				while (rs.next()) {
+					Object[] row = new Object[labels.length];
+					for (int i = 0; i < labels.length; i++) {
+						row[i] = read(rs, i + 1, types[i], database);
+					}
+					rows.add(row);
+				}
+			} finally {
+				rs.close();
+			}
+		}
+
+		private static Object read(ResultSet rs, int column, int type, dbTypes database) throws SQLException {
+			switch (type) {
+				case Types.TIMESTAMP:
+					return database == dbTypes.sqlserver || database == dbTypes.jtds
+						   ? rs.getTimestamp(column, UTC_CALENDAR)
+						   : rs.getTimestamp(column);
+				case Types.DATE:
+					return rs.getDate(column);
+				case Types.TIME:
+					return rs.getTime(column);
+				case Types.CHAR:
+				case Types.VARCHAR:
+				case Types.LONGVARCHAR:
+				case Types.NCHAR:
+				case Types.NVARCHAR:
+				case Types.LONGNVARCHAR:
+				case Types.CLOB:
+				case Types.NCLOB:
+					return rs.getString(column);
+				case Types.BINARY:
+				case Types.VARBINARY:
+				case Types.LONGVARBINARY:
+				case Types.BLOB:
+					return rs.getBytes(column);
+				default:
+					return rs.getObject(column);
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+
+			if (method.getDeclaringClass() == Object.class) {
+				switch (name) {
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					default:
+						return "DetachedResultSet" + Arrays.toString(labels);
+				}
+			}
+
+			switch (name) {
+				case "close":
+					closed = true;
+					return null;
+				case "isClosed":
+					return closed;
+				case "getStatement":
+					return statement;
+				default:
+					break;
+			}
+
+			if (closed) {
+				throw new SQLException("Result set is closed");
+			}
+
+			switch (name) {
+				case "next":
+					if (position < rows.size()) {
+						position++;
+					}
+					return position < rows.size();
+				case "wasNull":
+					return wasNull;
+				case "findColumn":
+					return findColumn((String) args[0]);
+				default:
+					break;
+			}
+
+			if (name.startsWith("get") && args != null && (args.length == 1 || (args.length == 2 &&
+					(("getObject".equals(name) && args[1] instanceof Class) || args[1] instanceof Calendar)))) {
+				if (position < 0 || position >= rows.size()) {
+					throw new SQLException("Result set is not positioned on a row");
+				}
+				int column = args[0] instanceof String ? findColumn((String) args[0]) : (Integer) args[0];
+				if (column < 1 || column > labels.length) {
+					throw new SQLException("Invalid column index " + column);
+				}
+				Object value = rows.get(position)[column - 1];
+				wasNull = value == null;
+				Class<?> type = args.length == 2 && args[1] instanceof Class
+								? (Class<?>) args[1]
+								: method.getReturnType();
+				return type == Object.class ? value : convert(value, type);
+			}
+			throw new SQLFeatureNotSupportedException("Method " + name + " is not supported on a detached result set");
+		}
+
+		private ResultSet newResultSet(Object statement) {
+			this.statement = statement;
+			return (ResultSet) Proxy.newProxyInstance(PooledDataRepository.class.getClassLoader(),
+													  new Class[]{ResultSet.class}, this);
+		}
+
+		private int findColumn(String label) throws SQLException {
+			for (int i = 0; i < labels.length; i++) {
+				if (label.equalsIgnoreCase(labels[i])) {
+					return i + 1;
+				}
+			}
+			throw new SQLException("Column " + label + " not found");
+		}
+
+		private static Object convert(Object value, Class<?> type) throws SQLException {
+			if (value == null) {
+				return PRIMITIVE_DEFAULTS.get(type);
+			}
+			if (type.isInstance(value)) {
+				return value;
+			}
+			if (type == String.class) {
+				return value.toString();
+			}
+			if (type == Timestamp.class && value instanceof java.util.Date) {
+				return new Timestamp(((java.util.Date) value).getTime());
+			}
+			if (type == Reader.class && value instanceof String) {
+				return new StringReader((String) value);
+			}
+			if (type == InputStream.class && value instanceof byte[]) {
+				return new ByteArrayInputStream((byte[]) value);
+			}
+			if (value instanceof String) {
+				try {
+					value = new BigDecimal((String) value);
+				} catch (NumberFormatException ex) {
+					throw new SQLException("Cannot convert " + value + " to " + type.getSimpleName(), ex);
+				}
+			}
+			if (value instanceof Number) {
+				Number number = (Number) value;
+				if (type == long.class || type == Long.class) {
+					return number.longValue();
+				}
+				if (type == int.class || type == Integer.class) {
+					return number.intValue();
+				}
+				if (type == short.class || type == Short.class) {
+					return number.shortValue();
+				}
+				if (type == byte.class || type == Byte.class) {
+					return number.byteValue();
+				}
+				if (type == double.class || type == Double.class) {
+					return number.doubleValue();
+				}
+				if (type == float.class || type == Float.class) {
+					return number.floatValue();
+				}
+				if (type == boolean.class || type == Boolean.class) {
+					return number.intValue() != 0;
+				}
+				if (type == BigDecimal.class) {
+					return new BigDecimal(number.toString());
+				}
+			}
+			throw new SQLException(
+					"Cannot convert " + value.getClass().getSimpleName() + " to " + type.getSimpleName());
+		}
+	}
+}
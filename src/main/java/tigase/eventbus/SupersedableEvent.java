@@ -0,0 +1,32 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.eventbus;
+
+/**
+ * Interface which may be implemented by events describing current state of something, for which only the latest event
+ * matters. If a few events of the same class with equal keys are waiting to be sent to the same cluster node, only the
+ * latest one is sent.
+ */
+public interface SupersedableEvent {
+
+	/**
+	 * Returns key identifying state described by this event or <code>null</code> if event may not be dropped.
+	 */
+	Object getSupersedeKey();
+
+}
@@ -20,6 +20,7 @@ package tigase.eventbus.component;
 import tigase.component.exceptions.ComponentException;
 import tigase.criteria.Criteria;
 import tigase.eventbus.EventRoutingSelector;
+import tigase.eventbus.SupersedableEvent;
 import tigase.eventbus.component.stores.Subscription;
 import tigase.eventbus.component.stores.SubscriptionStore;
 import tigase.eventbus.impl.AbstractHandler;
@@ -30,14 +31,19 @@ import tigase.kernel.beans.Bean;
 import tigase.kernel.beans.Initializable;
 import tigase.kernel.beans.Inject;
 import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
 import tigase.server.Packet;
 import tigase.server.Permissions;
+import tigase.stats.StatisticsList;
+import tigase.util.common.TimerTask;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.jid.JID;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.logging.Level;
 
 @Bean(name = EventPublisherModule.ID, active = true)
@@ -46,6 +52,15 @@ public class EventPublisherModule
 		implements Initializable, UnregisterAware {
 
 	public final static String ID = "publisher";
+	private static final String PUBSUB_EVENT_XMLNS = "http://jabber.org/protocol/pubsub#event";
+	@ConfigField(desc = "Time in ms for collecting events sent to cluster nodes into batches (0 - disabled)",
+			alias = "remote-batch-delay")
+	private long batchDelay = 0;
+	@ConfigField(desc = "Maximal number of events sent to cluster node in single batch",
+			alias = "remote-batch-max-size")
+	private int batchMaxSize = 100;
+	private RemoteEventsBatcher batcher;
+	private TimerTask batchFlushTask;
 	@Inject
 	private EventBusComponent component;
 	@Inject(nullAllowed = false, bean = "localEventBus")
@@ -76,6 +91,12 @@ public class EventPublisherModule
 	@Override
 	public void beforeUnregister() {
 		localEventBus.removeHandler(firedEventHandler);
+		if (batchFlushTask != null) {
+			batchFlushTask.cancel();
+		}
+		if (batcher != null) {
+			batcher.flush();
+		}
 	}
 
 	@Override
@@ -88,10 +109,37 @@ public class EventPublisherModule
 		return null;
 	}
 
+	public void getStatistics(String compName, StatisticsList list) {
+		RemoteEventsBatcher batcher = this.batcher;
+		if (batcher == null) {
+			return;
+		}
+		list.add(compName, "Remote events batches sent", batcher.getBatchesSent(), Level.FINE);
+		list.add(compName, "Remote events sent in batches", batcher.getEventsSent(), Level.FINE);
+		list.add(compName, "Remote events superseded", batcher.getEventsSuperseded(), Level.FINE);
+		list.add(compName, "Remote events average batch size", batcher.getAverageBatchSize(), Level.FINE);
+		list.add(compName, "Remote events max batch size", batcher.getMaxBatchSize(), Level.FINE);
+		list.add(compName, "Remote events average batch delay [ms]", batcher.getAverageDelay(), Level.FINE);
+		list.add(compName, "Remote events max batch delay [ms]", batcher.getMaxDelay(), Level.FINE);
+	}
+
 	@Override
 	public void initialize() {
+		if (batchDelay > 0) {
+			batcher = new RemoteEventsBatcher(batchMaxSize, this::publishEvent);
+			batchFlushTask = new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						batcher.flush();
+					} catch (Throwable ex) {
+						log.log(Level.WARNING, "Sending batch of remote events failed", ex);
+					}
+				}
+			};
+			component.addTimerTask(batchFlushTask, batchDelay, batchDelay);
+		}
 		localEventBus.addHandler(firedEventHandler);
-
 	}
 
 	@Override
@@ -121,36 +169,7 @@ public class EventPublisherModule
 	}
 
 	public void publishEvent(String eventPackage, String name, Element event, Collection<Subscription> subscribers) {
-		try {
-			final Element eventElem = new Element("event", new String[]{"xmlns"},
-												  new String[]{"http://jabber.org/protocol/pubsub#event"});
-			final Element itemsElem = new Element("items", new String[]{"node"},
-												  new String[]{EventName.toString(eventPackage, name)});
-			eventElem.addChild(itemsElem);
-			final Element itemElem = new Element("item");
-			itemElem.addChild(event);
-			itemsElem.addChild(itemElem);
-
-			if (log.isLoggable(Level.FINER)) {
-				log.log(Level.FINER, "Sending event ({0}, {1}, {2}) to {3}",
-						new Object[]{name, eventPackage, event, subscribers});
-			}
-
-			for (Subscription subscriber : subscribers) {
-
-				String from;
-				if (subscriber.getServiceJID() == null) {
-					from = component.getComponentId().toString();
-				} else {
-					from = subscriber.getServiceJID().toString();
-				}
-				JID toJID = subscriber.getJid();
-
-				publishEvent(eventElem, from, toJID);
-			}
-		} catch (Exception e) {
-			log.log(Level.FINEST, "Error publishing event", e);
-		}
+		publishEvent(eventPackage, name, event, subscribers, null);
 	}
 
 	public void publishObjectEvent(Object event) {
@@ -169,7 +188,15 @@ public class EventPublisherModule
 		Element eventElement = serializer.serialize(event);
 		eventElement.setAttribute("serialized", "true");
 
-		publishEvent(packageName, eventName, eventElement, subscribers);
+		Object supersedeKey = null;
+		if (event instanceof SupersedableEvent) {
+			Object key = ((SupersedableEvent) event).getSupersedeKey();
+			if (key != null) {
+				supersedeKey = Arrays.asList(eventClass, key);
+			}
+		}
+
+		publishEvent(packageName, eventName, eventElement, subscribers, supersedeKey);
 	}
 
 	protected Collection<Subscription> getSubscribers(String packageName, String eventName, Object event) {
@@ -187,6 +214,59 @@ public class EventPublisherModule
 		return subscribers;
 	}
 
+	/**
+	 * Creates <code>event</code> element with <code>items</code> of single event (if <code>node</code> is set) or of
+	 * batch of different events (if <code>node</code> is <code>null</code>).
+	 */
+	static Element createEventElem(String node, Collection<Element> items) {
+		final Element eventElem = new Element("event", new String[]{"xmlns"}, new String[]{PUBSUB_EVENT_XMLNS});
+		final Element itemsElem = node == null
+								  ? new Element("items")
+								  : new Element("items", new String[]{"node"}, new String[]{node});
+		eventElem.addChild(itemsElem);
+		for (Element item : items) {
+			itemsElem.addChild(item);
+		}
+		return eventElem;
+	}
+
+	private void publishEvent(String eventPackage, String name, Element event, Collection<Subscription> subscribers,
+							  Object supersedeKey) {
+		try {
+			final String node = EventName.toString(eventPackage, name);
+			final Element itemElem = new Element("item");
+			itemElem.addChild(event);
+			Element eventElem = null;
+
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Sending event ({0}, {1}, {2}) to {3}",
+						new Object[]{name, eventPackage, event, subscribers});
+			}
+
+			for (Subscription subscriber : subscribers) {
+
+				String from;
+				if (subscriber.getServiceJID() == null) {
+					from = component.getComponentId().toString();
+				} else {
+					from = subscriber.getServiceJID().toString();
+				}
+				JID toJID = subscriber.getJid();
+
+				if (batcher != null && subscriber.isInClusterSubscription()) {
+					batcher.add(from, toJID, node, itemElem, supersedeKey);
+					continue;
+				}
+				if (eventElem == null) {
+					eventElem = createEventElem(node, Collections.singletonList(itemElem));
+				}
+				publishEvent(eventElem, from, toJID);
+			}
+		} catch (Exception e) {
+			log.log(Level.FINEST, "Error publishing event", e);
+		}
+	}
+
 	private void publishEvent(Element pubsubEventElem, String from, JID toJID) throws TigaseStringprepException {
 		Packet message = Packet.packetInstance(new Element("message", new String[]{"to", "from", "id"},
 														   new String[]{toJID.toString(), from, nextStanzaID()}));
@@ -0,0 +1,219 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.eventbus.component;
+
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects events published to other cluster nodes and sends them as a single message per target node, either when
+ * {@link #flush()} is called or when batch reaches its maximal size. Events implementing {@link
+ * tigase.eventbus.SupersedableEvent} replace older events of the same class with the same key which are still waiting
+ * in the batch.
+ */
+class RemoteEventsBatcher {
+
+	private static final Logger log = Logger.getLogger(RemoteEventsBatcher.class.getCanonicalName());
+
+	private final ConcurrentHashMap<String, Batch> batches = new ConcurrentHashMap<>();
+	private final LongAdder batchesSent = new LongAdder();
+	private final LongAdder delaySum = new LongAdder();
+	private final LongAdder eventsSent = new LongAdder();
+	private final LongAdder eventsSuperseded = new LongAdder();
+	private final int maxBatchSize;
+	private final LongAccumulator maxBatchSizeSent = new LongAccumulator(Long::max, 0);
+	private final LongAccumulator maxDelay = new LongAccumulator(Long::max, 0);
+	private final Sender sender;
+
+	RemoteEventsBatcher(int maxBatchSize, Sender sender) {
+		this.maxBatchSize = maxBatchSize;
+		this.sender = sender;
+	}
+
+	/**
+	 * Adds event to the batch for the target node.
+	 *
+	 * @param from address of sender
+	 * @param to address of eventbus component on target node
+	 * @param node name of event
+	 * @param item <code>item</code> element containing event
+	 * @param supersedeKey key of event (including event class) or <code>null</code> if event may not be dropped
+	 */
+	void add(String from, JID to, String node, Element item, Object supersedeKey) {
+		final String key = from + " " + to;
+		while (true) {
+			Batch batch = batches.computeIfAbsent(key, k -> new Batch(from, to));
+			synchronized (batch) {
+				if (batch.closed) {
+					// batch was sent in the meantime, a new one needs to be created
+					continue;
+				}
+				batch.add(node, item, supersedeKey);
+				if (batch.size() < maxBatchSize) {
+					return;
+				}
+				batch.closed = true;
+				batches.remove(key, batch);
+			}
+			send(batch);
+			return;
+		}
+	}
+
+	/**
+	 * Sends all waiting events.
+	 */
+	void flush() {
+		for (Batch batch : batches.values()) {
+			synchronized (batch) {
+				if (batch.closed) {
+					continue;
+				}
+				batch.closed = true;
+				batches.remove(batch.key(), batch);
+			}
+			send(batch);
+		}
+	}
+
+	long getAverageBatchSize() {
+		long batches = batchesSent.sum();
+		return batches == 0 ? 0 : eventsSent.sum() / batches;
+	}
+
+	long getAverageDelay() {
+		long batches = batchesSent.sum();
+		return batches == 0 ? 0 : delaySum.sum() / batches;
+	}
+
+	long getBatchesSent() {
+		return batchesSent.sum();
+	}
+
+	long getEventsSent() {
+		return eventsSent.sum();
+	}
+
+	long getEventsSuperseded() {
+		return eventsSuperseded.sum();
+	}
+
+	long getMaxBatchSize() {
+		return maxBatchSizeSent.get();
+	}
+
+	long getMaxDelay() {
+		return maxDelay.get();
+	}
+
+	private void send(Batch batch) {
+		List<Element> items = batch.getItems();
+		if (items.isEmpty()) {
+			return;
+		}
+		final String node = items.size() == 1 ? batch.getNode(items.get(0)) : null;
+		long delay = System.currentTimeMillis() - batch.created;
+		batchesSent.increment();
+		eventsSent.add(items.size());
+		maxBatchSizeSent.accumulate(items.size());
+		delaySum.add(delay);
+		maxDelay.accumulate(delay);
+
+		// single event is sent exactly as if batching was disabled
+		Element eventElem = EventPublisherModule.createEventElem(node, items);
+		try {
+			sender.send(eventElem, batch.from, batch.to);
+		} catch (Exception e) {
+			log.log(Level.FINEST, "Error publishing batch of events to " + batch.to, e);
+		}
+	}
+
+	interface Sender {
+
+		void send(Element pubsubEventElem, String from, JID to) throws TigaseStringprepException;
+
+	}
+
+	private class Batch {
+
+		private final long created = System.currentTimeMillis();
+		private final String from;
+		private final List<Element> items = new ArrayList<>();
+		private final List<String> nodes = new ArrayList<>();
+		private final Map<Object, Integer> supersedable = new HashMap<>();
+		private final JID to;
+		private boolean closed = false;
+		private int size = 0;
+
+		private Batch(String from, JID to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		private void add(String node, Element item, Object supersedeKey) {
+			if (supersedeKey != null) {
+				Integer idx = supersedable.put(supersedeKey, items.size());
+				if (idx != null) {
+					// older event is dropped, newer is appended to keep order relative to other events
+					items.set(idx, null);
+					size--;
+					eventsSuperseded.increment();
+				}
+			}
+			items.add(item);
+			nodes.add(node);
+			size++;
+		}
+
+		private List<Element> getItems() {
+			if (size == items.size()) {
+				return items;
+			}
+			List<Element> result = new ArrayList<>(size);
+			for (Element item : items) {
+				if (item != null) {
+					result.add(item);
+				}
+			}
+			return result;
+		}
+
+		private String getNode(Element item) {
+			return nodes.get(items.indexOf(item));
+		}
+
+		private String key() {
+			return from + " " + to;
+		}
+
+		private int size() {
+			return size;
+		}
+	}
+}
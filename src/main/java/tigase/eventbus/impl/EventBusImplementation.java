@@ -28,6 +28,8 @@ import java.util.logging.Logger;
 public class EventBusImplementation
 		implements EventBus {
 
+	public static final String DISPATCH_MODE_PROP_KEY = "eventbus-dispatch-mode";
+	private static final AbstractHandler[] NO_HANDLERS = new AbstractHandler[0];
 	private static final Logger log = Logger.getLogger(EventBusImplementation.class.getName());
 	private final EventsNameMap<AbstractHandler> listeners = new EventsNameMap<>();
 	private final ReflectEventListenerHandlerFactory reflectEventListenerFactory = new ReflectEventListenerHandlerFactory();
@@ -38,6 +40,13 @@ public class EventBusImplementation
 	private final Map<Class<?>, EventRoutingSelector> routingSelectors = new ConcurrentHashMap<>();
 	private final Serializer serializer = new EventBusSerializer();
 	private boolean acceptOnlyRegisteredEvents = false;
+	private DispatchMode dispatchMode = getDefaultDispatchMode();
+	/**
+	 * Handlers matching event class (or name of event in <code>Element</code> form), computed once and reused until
+	 * any handler is added or removed. Map is replaced (not cleared) on change, so lookup which started before change
+	 * will not store stale handlers in new map.
+	 */
+	private volatile ConcurrentHashMap<Object, AbstractHandler[]> dispatchCache = new ConcurrentHashMap<>();
 	private Executor executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 4);
 	private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
@@ -52,6 +61,7 @@ public class EventBusImplementation
 
 	public void addHandler(AbstractHandler listenerHandler) {
 		listeners.put(listenerHandler.getPackageName(), listenerHandler.getEventName(), listenerHandler);
+		invalidateDispatchCache();
 	}
 
 	public <T> void addListener(Class<T> eventClass, tigase.eventbus.EventListener<T> listener) {
@@ -95,20 +105,30 @@ public class EventBusImplementation
 
 	public void fire(Object event, Object source, boolean remotelyGeneratedEvent) {
 		try {
-			HashSet<AbstractHandler> listeners;
+			AbstractHandler[] handlers;
 			if (event instanceof Element) {
 				String eventFullName = ((Element) event).getName();
-				int i = eventFullName.lastIndexOf(".");
-				final String packageName = i >= 0 ? eventFullName.substring(0, i) : "";
-				final String eventName = eventFullName.substring(i + 1);
 				checkIfEventIsRegistered(eventFullName);
-				listeners = getListenersForEvent(packageName, eventName);
+				handlers = getHandlersForEvent(eventFullName);
 			} else {
 				checkIfEventIsRegistered(event.getClass().getName());
-				listeners = getListenersForEvent(event.getClass());
+				handlers = getHandlersForEvent(event.getClass());
 			}
 
-			doFireThreadPerHandler(event, source, remotelyGeneratedEvent, listeners);
+			if (handlers.length == 0) {
+				return;
+			}
+			final List<AbstractHandler> handlersList = Arrays.asList(handlers);
+			switch (dispatchMode) {
+				case inline:
+					doFireInline(event, source, remotelyGeneratedEvent, handlersList);
+					break;
+				case batched:
+					executor.execute(() -> doFireInline(event, source, remotelyGeneratedEvent, handlersList));
+					break;
+				default:
+					doFireThreadPerHandler(event, source, remotelyGeneratedEvent, handlersList);
+			}
 		} catch (Exception e) {
 			log.log(Level.WARNING, "Problem on firing event", e);
 		}
@@ -150,6 +170,14 @@ public class EventBusImplementation
 		return handler;
 	}
 
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	public void setDispatchMode(DispatchMode dispatchMode) {
+		this.dispatchMode = dispatchMode;
+	}
+
 	public Executor getExecutor() {
 		return executor;
 	}
@@ -207,6 +235,7 @@ public class EventBusImplementation
 
 	public void removeHandler(AbstractHandler listenerHandler) {
 		listeners.delete(listenerHandler);
+		invalidateDispatchCache();
 	}
 
 	public <T> void removeListener(EventSourceListener<T> listener) {
@@ -251,6 +280,29 @@ public class EventBusImplementation
 		return result;
 	}
 
+	AbstractHandler[] getHandlersForEvent(final Class<?> eventClass) {
+		final ConcurrentHashMap<Object, AbstractHandler[]> cache = dispatchCache;
+		AbstractHandler[] handlers = cache.get(eventClass);
+		if (handlers == null) {
+			handlers = getListenersForEvent(eventClass).toArray(NO_HANDLERS);
+			cache.put(eventClass, handlers);
+		}
+		return handlers;
+	}
+
+	AbstractHandler[] getHandlersForEvent(final String eventFullName) {
+		final ConcurrentHashMap<Object, AbstractHandler[]> cache = dispatchCache;
+		AbstractHandler[] handlers = cache.get(eventFullName);
+		if (handlers == null) {
+			int i = eventFullName.lastIndexOf(".");
+			final String packageName = i >= 0 ? eventFullName.substring(0, i) : "";
+			final String eventName = eventFullName.substring(i + 1);
+			handlers = getListenersForEvent(packageName, eventName).toArray(NO_HANDLERS);
+			cache.put(eventFullName, handlers);
+		}
+		return handlers;
+	}
+
 	HashSet<AbstractHandler> getListenersForEvent(final Class<?> eventClass) {
 
 		final HashSet<AbstractHandler> result = new HashSet<>();
@@ -281,7 +333,20 @@ public class EventBusImplementation
 	}
 
 	protected void doFireThreadPerHandler(final Object event, final Object source, boolean remotelyGeneratedEvent,
-										  HashSet<AbstractHandler> handlers) {
+										  Collection<AbstractHandler> handlers) {
+		doFire(event, source, remotelyGeneratedEvent, handlers, executor);
+	}
+
+	/**
+	 * Calls all handlers one after another in current thread.
+	 */
+	protected void doFireInline(final Object event, final Object source, boolean remotelyGeneratedEvent,
+								Collection<AbstractHandler> handlers) {
+		doFire(event, source, remotelyGeneratedEvent, handlers, Runnable::run);
+	}
+
+	private void doFire(final Object event, final Object source, boolean remotelyGeneratedEvent,
+						Collection<AbstractHandler> handlers, Executor executor) {
 		Element eventConverted = null;
 		for (AbstractHandler listenerHandler : handlers) {
 			Object eventObject;
@@ -314,6 +379,22 @@ public class EventBusImplementation
 		}
 	}
 
+	private static DispatchMode getDefaultDispatchMode() {
+		String mode = System.getProperty(DISPATCH_MODE_PROP_KEY);
+		if (mode != null) {
+			try {
+				return DispatchMode.valueOf(mode);
+			} catch (IllegalArgumentException e) {
+				log.log(Level.WARNING, "Unknown event bus dispatch mode: " + mode + ", using default");
+			}
+		}
+		return DispatchMode.threadPerHandler;
+	}
+
+	private void invalidateDispatchCache() {
+		dispatchCache = new ConcurrentHashMap<>();
+	}
+
 	private void checkIfEventIsRegistered(final String eventName) throws EventBusException {
 		if (!registrar.isRegistered(eventName)) {
 			if (this.acceptOnlyRegisteredEvents) {
@@ -340,6 +421,25 @@ public class EventBusImplementation
 		fire(event);
 	}
 
+	/**
+	 * Defines how handlers of fired event are executed.
+	 */
+	public enum DispatchMode {
+		/**
+		 * Each handler is called in separate executor task (default).
+		 */
+		threadPerHandler,
+		/**
+		 * All handlers of event are called one after another in single executor task.
+		 */
+		batched,
+		/**
+		 * All handlers of event are called in thread firing event. Should be used only if all handlers are fast and
+		 * do not block.
+		 */
+		inline
+	}
+
 	public interface InternalEventbusEvent {
 
 	}
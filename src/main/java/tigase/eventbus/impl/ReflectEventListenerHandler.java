@@ -19,7 +19,11 @@ package tigase.eventbus.impl;
 
 import tigase.eventbus.HandleEvent;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
 public class ReflectEventListenerHandler
 		extends AbstractHandler {
@@ -27,6 +31,11 @@ public class ReflectEventListenerHandler
 	protected final Object consumerObject;
 	protected final HandleEvent.Type filter;
 	protected final Method handlerMethod;
+	/**
+	 * Handle bound to consumer object and adapted to generic <code>(Object...)void</code> type, so it can be called
+	 * with <code>invokeExact()</code> without reflective access checks and array allocation on every event.
+	 */
+	protected final MethodHandle handlerHandle;
 
 	public ReflectEventListenerHandler(HandleEvent.Type filter, final String packageName, final String eventName,
 									   Object consumerObject, Method handlerMethod) {
@@ -34,6 +43,34 @@ public class ReflectEventListenerHandler
 		this.filter = filter;
 		this.consumerObject = consumerObject;
 		this.handlerMethod = handlerMethod;
+		this.handlerHandle = createHandle(consumerObject, handlerMethod);
+	}
+
+	/**
+	 * Creates method handle for given handler method. Returns <code>null</code> if method is not accessible, in which
+	 * case handler falls back to reflection.
+	 */
+	protected static MethodHandle createHandle(Object consumerObject, Method handlerMethod) {
+		try {
+			MethodHandle handle = MethodHandles.lookup().unreflect(handlerMethod);
+			if (!Modifier.isStatic(handlerMethod.getModifiers())) {
+				handle = handle.bindTo(consumerObject);
+			}
+			return handle.asType(MethodType.genericMethodType(handlerMethod.getParameterCount())
+										 .changeReturnType(void.class));
+		} catch (IllegalAccessException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	protected static RuntimeException rethrow(Throwable e) {
+		if (e instanceof RuntimeException) {
+			return (RuntimeException) e;
+		}
+		if (e instanceof Error) {
+			throw (Error) e;
+		}
+		return new RuntimeException(e);
 	}
 
 	@Override
@@ -43,9 +80,13 @@ public class ReflectEventListenerHandler
 			return;
 		}
 		try {
-			handlerMethod.invoke(consumerObject, event);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+			if (handlerHandle != null) {
+				handlerHandle.invokeExact(event);
+			} else {
+				handlerMethod.invoke(consumerObject, event);
+			}
+		} catch (Throwable e) {
+			throw rethrow(e);
 		}
 
 	}
@@ -38,6 +38,9 @@ public class ReflectEventListenerHandlerFactory {
 		final String packageName = eventType.getPackage().getName();
 		final String eventName = eventType.getSimpleName();
 
+		// must be accessible before handler is created, as handler unreflects method to method handle
+		method.setAccessible(true);
+
 		ReflectEventListenerHandler handler;
 		switch (method.getParameterCount()) {
 			case 1:
@@ -56,8 +59,6 @@ public class ReflectEventListenerHandlerFactory {
 				throw new RegistrationException("Handler method must have exactly one parameter!");
 		}
 
-		method.setAccessible(true);
-
 		return handler;
 	};
 	protected final Logger log = Logger.getLogger(this.getClass().getName());
@@ -36,9 +36,13 @@ public class ReflectEventSourceListenerHandler
 			return;
 		}
 		try {
-			handlerMethod.invoke(consumerObject, event, source);
-		} catch (Exception e) {
-			throw new RuntimeException(e);
+			if (handlerHandle != null) {
+				handlerHandle.invokeExact(event, source);
+			} else {
+				handlerMethod.invoke(consumerObject, event, source);
+			}
+		} catch (Throwable e) {
+			throw rethrow(e);
 		}
 
 	}
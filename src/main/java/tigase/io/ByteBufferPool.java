@@ -0,0 +1,181 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of direct <code>ByteBuffer</code>s shared by all connections.
+ * <br>
+ * Buffers are grouped in size classes (powers of 2 and 1.5 times powers of 2), so a buffer returned by one connection
+ * may be reused by another connection requesting buffer of a similar size. Connections take buffers from the pool when
+ * they receive data and keep them while they are open. Buffers are given back only when a connection is parked after
+ * <code>park-after</code> of inactivity, which is disabled by default, so by default idle connections keep their
+ * network buffers.
+ * <br>
+ * Total size of buffers kept in the pool is limited by <code>buffer-pool-max-size</code> system property (in bytes),
+ * buffers released above the limit are left for the garbage collector. Buffers bigger than the biggest size class are
+ * allocated on heap and never pooled.
+ */
+public class ByteBufferPool {
+
+	public static final String BUFFER_POOL_MAX_SIZE_PROP_KEY = "buffer-pool-max-size";
+
+	public static final long BUFFER_POOL_MAX_SIZE_PROP_DEF = 64L * 1024 * 1024;
+
+	private static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+	private static final int MIN_BUFFER_SIZE = 1024;
+	private static final Logger log = Logger.getLogger(ByteBufferPool.class.getName());
+
+	private static final ByteBufferPool instance = new ByteBufferPool(
+			Long.getLong(BUFFER_POOL_MAX_SIZE_PROP_KEY, BUFFER_POOL_MAX_SIZE_PROP_DEF));
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] buffers;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final long maxPooledBytes;
+	private final LongAdder misses = new LongAdder();
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+	private final LongAdder released = new LongAdder();
+	private final int[] sizes;
+
+	public static ByteBufferPool getInstance() {
+		return instance;
+	}
+
+	@SuppressWarnings("unchecked")
+	public ByteBufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+
+		List<Integer> classes = new ArrayList<>();
+		for (int size = MIN_BUFFER_SIZE; size <= MAX_BUFFER_SIZE; size <<= 1) {
+			classes.add(size);
+			if (size < MAX_BUFFER_SIZE) {
+				classes.add(size + (size >> 1));
+			}
+		}
+		this.sizes = classes.stream().mapToInt(Integer::intValue).toArray();
+		this.buffers = new ConcurrentLinkedQueue[sizes.length];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = new ConcurrentLinkedQueue<>();
+		}
+
+		log.log(Level.CONFIG, "using pool of direct byte buffers with max size {0} bytes", maxPooledBytes);
+	}
+
+	/**
+	 * Returns cleared buffer with capacity at least of the requested size.
+	 * <br>
+	 * Buffer should be given back with {@link #release(ByteBuffer)} as soon as it is no longer used and must not be used
+	 * after that.
+	 */
+	public ByteBuffer acquire(int size) {
+		int idx = sizeClass(size);
+
+		if (idx < 0) {
+			misses.increment();
+			return ByteBuffer.allocate(size);
+		}
+
+		ByteBuffer buffer = buffers[idx].poll();
+
+		if (buffer != null) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			hits.increment();
+			return buffer;
+		}
+
+		misses.increment();
+		return ByteBuffer.allocateDirect(sizes[idx]);
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Buffer pool hits", getHits(), Level.FINE);
+		list.add(compName, "Buffer pool misses", getMisses(), Level.FINE);
+		list.add(compName, "Buffer pool released", released.sum(), Level.FINER);
+		list.add(compName, "Buffer pool dropped", getDropped(), Level.FINER);
+		list.add(compName, "Buffer pool size [KB]", getPooledBytes() / 1024, Level.FINE);
+	}
+
+	/**
+	 * Gives buffer back to the pool. The pool does not track which buffers it handed out, so any direct buffer with
+	 * capacity equal to one of the size classes is accepted and may be returned by {@link #acquire(int)} later. Heap
+	 * buffers and direct buffers of other sizes are ignored. Buffer must not be used after it was released.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+
+		int capacity = buffer.capacity();
+		int idx = Arrays.binarySearch(sizes, capacity);
+
+		if (idx < 0) {
+			return;
+		}
+
+		released.increment();
+		if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			pooledBytes.addAndGet(-capacity);
+			dropped.increment();
+			return;
+		}
+
+		buffer.clear();
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		buffers[idx].offer(buffer);
+	}
+
+	private int sizeClass(int size) {
+		int idx = Arrays.binarySearch(sizes, size);
+
+		if (idx < 0) {
+			idx = -idx - 1;
+		}
+
+		return idx < sizes.length ? idx : -1;
+	}
+
+}
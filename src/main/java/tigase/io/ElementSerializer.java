@@ -0,0 +1,235 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import tigase.xml.Element;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializes <code>Element</code> trees directly to UTF-8 encoded bytes in buffers taken from the
+ * {@link ByteBufferPool}, without creating an intermediate <code>String</code> for every element.
+ * <br>
+ * Attribute values and character data are kept by <code>Element</code> in the escaped form, so they are written as
+ * they are. Attribute values are written between double quotes, like <code>Element.toString()</code> does, and double
+ * quotes inside of a value (which may be received in a value between single quotes) are escaped, so the output is
+ * well-formed whatever quotes were used by the sender. Elements with mixed content (character data between
+ * child elements) are written using <code>Element.toString()</code> as the order of text and child elements is not
+ * available otherwise.
+ * <br>
+ * Instances are not thread safe.
+ */
+public class ElementSerializer {
+
+	private static final int MIN_BUFFER_SIZE = 1024;
+
+	private final List<ByteBuffer> buffers = new ArrayList<>();
+	private final int bufferSize;
+	private final ByteBufferPool pool;
+	private final byte[] scratch = new byte[512];
+	private ByteBuffer current = null;
+	private int length = 0;
+	private int scratchPos = 0;
+
+	public ElementSerializer() {
+		this(ByteBufferPool.getInstance(), 16 * 1024);
+	}
+
+	public ElementSerializer(ByteBufferPool pool, int bufferSize) {
+		this.pool = pool;
+		this.bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+	}
+
+	/**
+	 * Returns buffers with all data written since the last call, ready to be read. Ownership of returned buffers is
+	 * passed to the caller.
+	 */
+	public ByteBuffer[] flush() {
+		flushScratch();
+		if (current != null) {
+			current.flip();
+			buffers.add(current);
+			current = null;
+		}
+
+		ByteBuffer[] result = buffers.toArray(new ByteBuffer[buffers.size()]);
+
+		buffers.clear();
+		length = 0;
+
+		return result;
+	}
+
+	/**
+	 * Returns number of bytes written since the last call to {@link #flush()}.
+	 */
+	public int length() {
+		return length + scratchPos;
+	}
+
+	/**
+	 * Returns all acquired buffers back to the pool dropping written data.
+	 */
+	public void reset() {
+		for (ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+		buffers.clear();
+		if (current != null) {
+			pool.release(current);
+			current = null;
+		}
+		length = 0;
+		scratchPos = 0;
+	}
+
+	public void write(Element elem) {
+		List<Element> children = elem.getChildren();
+		String cdata = elem.getCData();
+		boolean hasChildren = children != null && !children.isEmpty();
+		boolean hasCData = cdata != null && !cdata.isEmpty();
+
+		if (hasChildren && hasCData) {
+			write(elem.toString());
+			return;
+		}
+
+		String name = elem.getName();
+
+		writeAscii('<');
+		write(name);
+
+		Map<String, String> attributes = elem.getAttributes();
+
+		if (attributes != null) {
+			for (Map.Entry<String, String> attr : attributes.entrySet()) {
+				writeAscii(' ');
+				write(attr.getKey());
+				writeAscii('=');
+				writeAscii('"');
+				writeAttributeValue(attr.getValue());
+				writeAscii('"');
+			}
+		}
+
+		if (hasChildren) {
+			writeAscii('>');
+			for (Element child : children) {
+				if (child != null) {
+					write(child);
+				}
+			}
+		} else if (hasCData) {
+			writeAscii('>');
+			write(cdata);
+		} else {
+			writeAscii('/');
+			writeAscii('>');
+			return;
+		}
+
+		writeAscii('<');
+		writeAscii('/');
+		write(name);
+		writeAscii('>');
+	}
+
+	/**
+	 * Writes string, which should be already properly escaped XML, encoding it to UTF-8.
+	 */
+	public void write(String str) {
+		write(str, 0, str.length());
+	}
+
+	private void write(String str, int from, int end) {
+		for (int i = from; i < end; i++) {
+			char c = str.charAt(i);
+
+			if (scratchPos > scratch.length - 4) {
+				flushScratch();
+			}
+			if (c < 0x80) {
+				scratch[scratchPos++] = (byte) c;
+			} else if (c < 0x800) {
+				scratch[scratchPos++] = (byte) (0xC0 | (c >> 6));
+				scratch[scratchPos++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(str.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, str.charAt(++i));
+
+				scratch[scratchPos++] = (byte) (0xF0 | (cp >> 18));
+				scratch[scratchPos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				scratch[scratchPos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				scratch[scratchPos++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// unpaired surrogate, replaced like by the String.getBytes()
+				scratch[scratchPos++] = (byte) '?';
+			} else {
+				scratch[scratchPos++] = (byte) (0xE0 | (c >> 12));
+				scratch[scratchPos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				scratch[scratchPos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	/**
+	 * Writes attribute value between double quotes. Values are kept escaped by the parser, but a value received
+	 * between single quotes may contain a double quote, which has to be escaped here.
+	 */
+	private void writeAttributeValue(String value) {
+		int from = 0;
+		int idx;
+
+		while ((idx = value.indexOf('"', from)) >= 0) {
+			write(value, from, idx);
+			write("&quot;");
+			from = idx + 1;
+		}
+		write(value, from, value.length());
+	}
+
+	private void flushScratch() {
+		int pos = 0;
+
+		while (pos < scratchPos) {
+			if (current == null || !current.hasRemaining()) {
+				if (current != null) {
+					current.flip();
+					buffers.add(current);
+				}
+				current = pool.acquire(bufferSize);
+			}
+
+			int count = Math.min(current.remaining(), scratchPos - pos);
+
+			current.put(scratch, pos, count);
+			pos += count;
+		}
+		length += scratchPos;
+		scratchPos = 0;
+	}
+
+	private void writeAscii(char c) {
+		if (scratchPos == scratch.length) {
+			flushScratch();
+		}
+		scratch[scratchPos++] = (byte) c;
+	}
+}
@@ -60,6 +60,13 @@ public interface IOInterface {
 
 	ByteBuffer read(final ByteBuffer buff) throws IOException;
 
+	/**
+	 * Returns buffers which are not needed while the connection is idle to the {@link ByteBufferPool}. Buffers are
+	 * acquired again on the next read.
+	 */
+	default void releaseBuffers() {
+	}
+
 	void stop() throws IOException;
 
 	boolean waitingToSend();
@@ -68,6 +75,31 @@ public interface IOInterface {
 
 	int write(final ByteBuffer buff) throws IOException;
 
+	/**
+	 * Writes many buffers at once. By default content of all buffers is copied to a single buffer, so it is
+	 * encrypted or compressed as a whole and sent with a single write.
+	 * <br>
+	 * Direct buffers passed to this method are returned to the {@link ByteBufferPool} and must not be used by the
+	 * caller afterwards.
+	 */
+	default int writeBatch(final ByteBuffer[] buffs) throws IOException {
+		int size = 0;
+
+		for (ByteBuffer buff : buffs) {
+			size += buff.remaining();
+		}
+
+		ByteBuffer data = ByteBuffer.allocate(size);
+
+		for (ByteBuffer buff : buffs) {
+			data.put(buff);
+			ByteBufferPool.getInstance().release(buff);
+		}
+		data.flip();
+
+		return write(data);
+	}
+
 	void setLogId(String logId);
 
 }    // IOInterface
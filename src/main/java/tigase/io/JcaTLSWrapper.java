@@ -324,12 +324,13 @@ public class JcaTLSWrapper
 			log.log(Level.FINER, "Resizing tlsInput to {1} bytes [{0}]", new Object[]{debugId, newSize});
 		}
 
-		ByteBuffer bb = ByteBuffer.allocate(newSize);
+		ByteBuffer bb = ByteBufferPool.getInstance().acquire(newSize);
 
 		// bb.clear();
 		bb.order(app.order());
 		app.flip();
 		bb.put(app);
+		ByteBufferPool.getInstance().release(app);
 
 		return bb;
 
@@ -25,6 +25,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
@@ -42,6 +43,7 @@ public class SocketIO
 
 	private static final Logger log = Logger.getLogger(SocketIO.class.getName());
 	private static final int MAX_USER_IO_QUEUE_SIZE_PROP_DEF = 1000;
+	private static final int MAX_GATHERED_BUFFERS = 64;
 
 	// ~--- fields ---------------------------------------------------------------
 	private static final String MAX_USER_IO_QUEUE_SIZE_PROP_KEY = "max-user-io-queue-size";
@@ -60,6 +62,8 @@ public class SocketIO
 	private long totalBuffOverflow = 0;
 	private long totalBytesReceived = 0;
 	private long totalBytesSent = 0;
+	private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHERED_BUFFERS];
+	private long gatheredWrites = 0;
 
 	public SocketIO(final SocketChannel sock) throws IOException {
 		channel = sock;
@@ -112,6 +116,7 @@ public class SocketIO
 		list.add("socketio", "Total bytes sent", totalBytesSent, Level.FINE);
 		list.add("socketio", "Total bytes received", totalBytesReceived, Level.FINE);
 		list.add("socketio", "Ttoal buffers overflow", totalBuffOverflow, Level.FINE);
+		list.add("socketio", "Writes saved by gathering", gatheredWrites, Level.FINE);
 		if (reset) {
 			bytesSent = 0;
 			bytesReceived = 0;
@@ -179,15 +184,20 @@ public class SocketIO
 
 	@Override
 	public ByteBuffer read(final ByteBuffer buff) throws IOException {
-		ByteBuffer tmp = IOUtil.getDirectBuffer(buff.remaining());
-		try {
-			bytesRead = channel.read(tmp);
-			tmp.flip();
-			if (bytesRead > 0) {
-				buff.put(tmp);
+		if (buff.isDirect()) {
+			// no need to copy data through temporary direct buffer
+			bytesRead = channel.read(buff);
+		} else {
+			ByteBuffer tmp = IOUtil.getDirectBuffer(buff.remaining());
+			try {
+				bytesRead = channel.read(tmp);
+				tmp.flip();
+				if (bytesRead > 0) {
+					buff.put(tmp);
+				}
+			} finally {
+				IOUtil.returnDirectBuffer(tmp);
 			}
-		} finally {
-			IOUtil.returnDirectBuffer(tmp);
 		}
 
 		if (log.isLoggable(Level.FINER)) {
@@ -237,6 +247,12 @@ public class SocketIO
 		return dataToSend.size();
 	}
 
+	/**
+	 * Writes data to the socket or queues it if socket is not ready to accept all of it.
+	 * <br>
+	 * Direct buffers are written without copying and, after they are fully written, are returned to the
+	 * {@link ByteBufferPool}, so caller passing a direct buffer must not use it afterwards.
+	 */
 	@Override
 	public int write(final ByteBuffer buff) throws IOException {
 
@@ -251,20 +267,50 @@ public class SocketIO
 		// log.finer("Wrote to channel " + result + " bytes.");
 		// return result;
 		if ((buff != null) && buff.hasRemaining()) {
-			if (log.isLoggable(Level.FINER)) {
-				log.log(Level.FINER, "SOCKET - Writing data, remaining: {0} [{1}]",
-						new Object[]{buff.remaining(), toString()});
+			enqueue(buff);
+		}
+
+		return writeQueued();
+	}
+
+	/**
+	 * Queues all buffers and writes them to the socket, consecutive direct buffers are sent with a single gathering
+	 * write.
+	 */
+	@Override
+	public int writeBatch(final ByteBuffer[] buffs) throws IOException {
+		for (ByteBuffer buff : buffs) {
+			if (buff.hasRemaining()) {
+				enqueue(buff);
+			} else {
+				ByteBufferPool.getInstance().release(buff);
 			}
-			if (!dataToSend.offer(buff)) {
-				++buffOverflow;
-				++totalBuffOverflow;
-				if (log.isLoggable(LOG_SOCKET_OVERFLOW_LEVEL)) {
-					log.log(LOG_SOCKET_OVERFLOW_LEVEL, "SOCKET - Buffer overflow: {0}, {1} [{2}]",
-							new Object[]{totalBuffOverflow, dataToSend.size(), toString()});
-				}
+		}
+
+		return writeQueued();
+	}
+
+	@Override
+	public void setLogId(String logId) {
+		this.logId = logId;
+	}
+
+	private void enqueue(ByteBuffer buff) {
+		if (log.isLoggable(Level.FINER)) {
+			log.log(Level.FINER, "SOCKET - Writing data, remaining: {0} [{1}]",
+					new Object[]{buff.remaining(), toString()});
+		}
+		if (!dataToSend.offer(buff)) {
+			++buffOverflow;
+			++totalBuffOverflow;
+			if (log.isLoggable(LOG_SOCKET_OVERFLOW_LEVEL)) {
+				log.log(LOG_SOCKET_OVERFLOW_LEVEL, "SOCKET - Buffer overflow: {0}, {1} [{2}]",
+						new Object[]{totalBuffOverflow, dataToSend.size(), toString()});
 			}
 		}
+	}
 
+	private int writeQueued() throws IOException {
 		int result = 0;
 		ByteBuffer dataBuffer = null;
 
@@ -272,6 +318,43 @@ public class SocketIO
 		// memory, and we use our own cache of DirectByteBuffers as cache from JDK
 		// may keep up to 1024 buffers for single thread!!
 		while ((dataBuffer = dataToSend.peek()) != null) {
+			if (dataBuffer.isDirect()) {
+				// direct buffers do not need copying, so all of them are written at once
+				int count = 0;
+				for (ByteBuffer buff : dataToSend) {
+					if (!buff.isDirect() || count == MAX_GATHERED_BUFFERS) {
+						break;
+					}
+					gathered[count++] = buff;
+				}
+
+				long res;
+				try {
+					res = count == 1 ? channel.write(dataBuffer) : channel.write(gathered, 0, count);
+				} finally {
+					Arrays.fill(gathered, 0, count, null);
+				}
+
+				if (res == -1) {
+					throw new EOFException("Channel has been closed.");
+				} else {
+					result += res;
+				}
+				if (count > 1) {
+					gatheredWrites += count - 1;
+				}
+
+				while ((dataBuffer = dataToSend.peek()) != null && dataBuffer.isDirect() &&
+						!dataBuffer.hasRemaining()) {
+					dataToSend.poll();
+					ByteBufferPool.getInstance().release(dataBuffer);
+				}
+				if (dataBuffer != null && dataBuffer.hasRemaining() && dataBuffer.isDirect()) {
+					break;
+				}
+				continue;
+			}
+
 			int pos = dataBuffer.position();
 			int lim = dataBuffer.limit();
 			int rem = (pos <= lim ? lim - pos : 0);
@@ -312,9 +395,4 @@ public class SocketIO
 
 		return result;
 	}
-
-	@Override
-	public void setLogId(String logId) {
-		this.logId = logId;
-	}
 }
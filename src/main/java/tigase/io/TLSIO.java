@@ -48,8 +48,11 @@ public class TLSIO
 
 	private IOInterface io = null;
 
+	private ByteOrder order = null;
+
 	/**
-	 * <code>tlsInput</code> buffer keeps data decoded from tlsWrapper.
+	 * <code>tlsInput</code> buffer keeps data decoded from tlsWrapper. It is taken from the {@link ByteBufferPool}
+	 * when data is received and returned to the pool by {@link #releaseBuffers()} when the connection is parked.
 	 */
 	private ByteBuffer tlsInput = null;
 
@@ -74,8 +77,7 @@ public class TLSIO
 		io = ioi;
 		tlsWrapper = wrapper;
 		tlsWrapper.setDebugId(toString());
-		tlsInput = ByteBuffer.allocate(tlsWrapper.getAppBuffSize());
-		tlsInput.order(order);
+		this.order = order;
 
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "TLS Socket created: {0}", io.toString());
@@ -175,21 +177,16 @@ public class TLSIO
 
 			return decodeData(tmpBuffer);
 		} else {
-			if (tlsInput.capacity() > tlsWrapper.getAppBuffSize() && tlsInput.capacity() == tlsInput.remaining()) {
-				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Resizing tlsInput to {0} bytes, capacity: {1}, remaining: {2}; IO: {3}",
-							new Object[]{tlsWrapper.getAppBuffSize(), tlsInput.capacity(), tlsInput.remaining(), toString()});
-				}
-				ByteBuffer bb = ByteBuffer.allocate(tlsWrapper.getAppBuffSize());
-
-				bb.order(tlsInput.order());
-
-				tlsInput = bb;
-			}
 			return null;
 		} // end of else
 	}
 
+	@Override
+	public void releaseBuffers() {
+		releaseTlsInput();
+		io.releaseBuffers();
+	}
+
 	@Override
 	public void stop() throws IOException {
 		if (log.isLoggable(Level.FINEST)) {
@@ -254,7 +251,7 @@ public class TLSIO
 					// I wonder if some real data can be read from the socket here (and we
 					// would
 					// loose the data) or this is just TLS stuff here.....
-					ByteBuffer rbuff = read(ByteBuffer.allocate(tlsWrapper.getNetBuffSize()));
+					readHandshakeData();
 
 					break;
 
@@ -346,6 +343,10 @@ public class TLSIO
 			// log.finer("tlsInput.limit()=" + tlsInput.limit());
 			// log.finer("tlsInput.position()=" + tlsInput.position());
 			// }
+			if (tlsInput == null) {
+				tlsInput = ByteBufferPool.getInstance().acquire(tlsWrapper.getAppBuffSize());
+				tlsInput.order(order);
+			}
 			tlsInput = tlsWrapper.unwrap(input, tlsInput);
 
 			// if (log.isLoggable(Level.FINEST)) {
@@ -433,6 +434,24 @@ public class TLSIO
 		return tlsInput;
 	}
 
+	private void readHandshakeData() throws IOException {
+		ByteBuffer rbuff = ByteBufferPool.getInstance().acquire(tlsWrapper.getNetBuffSize());
+
+		try {
+			read(rbuff);
+		} finally {
+			ByteBufferPool.getInstance().release(rbuff);
+		}
+	}
+
+	private void releaseTlsInput() {
+		// buffer is cleared by the IOService after its content is consumed
+		if (tlsInput != null && tlsInput.position() == 0 && tlsInput.limit() == tlsInput.capacity()) {
+			ByteBufferPool.getInstance().release(tlsInput);
+			tlsInput = null;
+		}
+	}
+
 	private int writeBuff(ByteBuffer buff, int loop_cnt) throws IOException {
 		int result = 0;
 		int wr = 0;
@@ -455,25 +474,30 @@ public class TLSIO
 				// I wonder if some real data can be read from the socket here (and we
 				// would
 				// loose the data) or this is just TLS stuff here.....
-				ByteBuffer rbuff = read(ByteBuffer.allocate(tlsWrapper.getNetBuffSize()));
+				readHandshakeData();
 				if ((!TLS_WAIT_FOR_HANDSHAKE_NOT_READY) && loop_cnt > 2 && tlsWrapper.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP &&
 						tlsWrapper.getStatus() == TLSStatus.NEED_READ) {
 					throw new IOException("TLS handshake not established!");
 				}
 			}
 
-			ByteBuffer tlsOutput = ByteBuffer.allocate(tlsWrapper.getNetBuffSize());
+			// Buffer is passed to the socket which returns it to the pool when it is sent
+			ByteBuffer tlsOutput = ByteBufferPool.getInstance().acquire(tlsWrapper.getNetBuffSize());
 
-			// Not sure if this is really needed, I guess not...
-			tlsOutput.clear();
 			tlsWrapper.wrap(buff, tlsOutput);
 
 			if (tlsWrapper.getStatus() == TLSStatus.CLOSED) {
+				ByteBufferPool.getInstance().release(tlsOutput);
 				throw new EOFException("Socket has been closed.");
 			} // end of if (tlsWrapper.getStatus() == TLSStatus.CLOSED)
 
 			tlsOutput.flip();
-			wr = io.write(tlsOutput);
+			if (tlsOutput.hasRemaining()) {
+				wr = io.write(tlsOutput);
+			} else {
+				ByteBufferPool.getInstance().release(tlsOutput);
+				wr = io.write(null);
+			}
 			result += wr;
 
 			if (log.isLoggable(Level.FINER)) {
@@ -124,7 +124,7 @@ public class ZLibIO
 		ByteBuffer tmpBuffer = io.read(buff);
 
 		if (io.bytesRead() > 0) {
-			ByteBuffer decompressed_buff = zlib.decompress(tmpBuffer);
+			ByteBuffer decompressed_buff = zlib.decompress(tmpBuffer.hasArray() ? tmpBuffer : copyToHeap(tmpBuffer));
 
 			// The buffer is reused to it needs to be cleared before it can be
 			// used again.
@@ -137,6 +137,11 @@ public class ZLibIO
 		return null;
 	}
 
+	@Override
+	public void releaseBuffers() {
+		io.releaseBuffers();
+	}
+
 	@Override
 	public void stop() throws IOException {
 		if (log.isLoggable(Level.FINEST)) {
@@ -186,5 +191,16 @@ public class ZLibIO
 	public void setIOListener(IOListener listener) {
 		zlib.setIOListener(listener);
 	}
+
+	private static ByteBuffer copyToHeap(ByteBuffer buff) {
+		// ZLibWrapper works on array backed buffers, while buffers from the pool are direct
+		ByteBuffer heapBuffer = ByteBuffer.allocate(buff.remaining());
+
+		heapBuffer.order(buff.order());
+		heapBuffer.put(buff);
+		heapBuffer.flip();
+
+		return heapBuffer;
+	}
 }
 
@@ -20,24 +20,50 @@ package tigase.map;
 import tigase.eventbus.EventBus;
 import tigase.eventbus.EventBusFactory;
 import tigase.eventbus.HandleEvent;
+import tigase.eventbus.RouteEvent;
+import tigase.eventbus.component.stores.Subscription;
+import tigase.eventbus.SupersedableEvent;
 import tigase.eventbus.impl.EventName;
 import tigase.kernel.DefaultTypesConverter;
 import tigase.kernel.TypesConverter;
+import tigase.stats.StatisticsList;
+import tigase.util.dns.DNSResolverFactory;
+import tigase.xml.Element;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ClusterMapFactory {
 
+	public static final String FLUSH_INTERVAL_PROP_KEY = "cluster-map-flush-interval";
+	public static final String SYNC_INTERVAL_PROP_KEY = "cluster-map-sync-interval";
+	public static final String TOMBSTONE_TTL_PROP_KEY = "cluster-map-tombstone-ttl";
+	private static final int MAX_ITEMS_PER_EVENT = 1000;
 	private final static EventName NEWMAP_EVENT_NAME = new EventName(NewMapCreatedEvent.class);
+	private static final long NODE_CONNECTED_SYNC_DELAY = 5000;
 	private static ClusterMapFactory instance;
+	private final LongAdder digestMismatches = new LongAdder();
+	private final long flushInterval = Long.getLong(FLUSH_INTERVAL_PROP_KEY, 100);
 	private final Logger log = Logger.getLogger(this.getClass().getName());
 	private final ConcurrentHashMap<String, DMap> maps = new ConcurrentHashMap<>();
+	private final LongAdder reconciledItems = new LongAdder();
+	private final ConcurrentHashMap<String, ReplicatedDMap> replicatedMaps = new ConcurrentHashMap<>();
+	private final long syncInterval = Long.getLong(SYNC_INTERVAL_PROP_KEY, 60 * 1000);
+	private final long tombstoneTtl = Long.getLong(TOMBSTONE_TTL_PROP_KEY, 10 * 60 * 1000);
 	private final TypesConverter typesConverter = new DefaultTypesConverter();
 	private EventBus eventBus;
+	private String nodeId = DNSResolverFactory.getInstance().getDefaultHost();
+	private Timer timer = null;
 	private final DMap.DMapListener mapListener = new DMap.DMapListener() {
 		@Override
 		public void onClear(DMap map) {
@@ -102,6 +128,31 @@ public class ClusterMapFactory {
 		return map;
 	}
 
+	/**
+	 * Creates map which changes are sent to other nodes in batches every {@link #FLUSH_INTERVAL_PROP_KEY} ms. Concurrent
+	 * changes are resolved using version vectors and content of the map is periodically compared with other nodes, so
+	 * a node which missed some changes will get them.
+	 */
+	public <K, V> Map<K, V> createReplicatedMap(final String uid, final Class<K> keyClass, final Class<V> valueClass,
+												final String... params) {
+		ReplicatedDMap<K, V> map = replicatedMaps.computeIfAbsent(uid, (u) -> new ReplicatedDMap<K, V>(uid, nodeId,
+																										 typesConverter,
+																										 keyClass,
+																										 valueClass));
+		startReplication();
+
+		NewMapCreatedEvent event = new NewMapCreatedEvent();
+		event.setUid(uid);
+		event.setKeyClass(keyClass);
+		event.setValueClass(valueClass);
+		event.setParams(params);
+		event.setReplicated(true);
+		event.setNode(nodeId);
+		eventBus.fire(event);
+
+		return map;
+	}
+
 	public void destroyMap(Map map) {
 		if (map instanceof DMap) {
 			MapDestroyEvent event = new MapDestroyEvent();
@@ -109,6 +160,12 @@ public class ClusterMapFactory {
 
 			eventBus.fire(event);
 			this.maps.remove(((DMap) map).getUid(), map);
+		} else if (map instanceof ReplicatedDMap) {
+			MapDestroyEvent event = new MapDestroyEvent();
+			event.setUid(((ReplicatedDMap) map).getUid());
+
+			eventBus.fire(event);
+			this.replicatedMaps.remove(((ReplicatedDMap) map).getUid(), map);
 		}
 	}
 
@@ -131,7 +188,203 @@ public class ClusterMapFactory {
 	}
 
 	public <K, V> Map<K, V> getMap(String uid) {
-		return this.maps.get(uid);
+		Map<K, V> map = this.maps.get(uid);
+		return map != null ? map : this.replicatedMaps.get(uid);
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		if (replicatedMaps.isEmpty()) {
+			return;
+		}
+		list.add(compName, "Replicated maps digest mismatches", digestMismatches.sum(), Level.FINE);
+		list.add(compName, "Replicated maps reconciled items", reconciledItems.sum(), Level.FINE);
+		for (ReplicatedDMap map : replicatedMaps.values()) {
+			String prefix = "Map " + map.getUid();
+			list.add(compName, prefix + " size", map.size(), Level.FINE);
+			list.add(compName, prefix + " pending changes", map.getPendingChanges(), Level.FINE);
+			list.add(compName, prefix + " pending age [ms]", map.getPendingAge(), Level.FINE);
+			list.add(compName, prefix + " replication lag [ms]", map.getLag(), Level.FINE);
+			list.add(compName, prefix + " max replication lag [ms]", map.getMaxLag(), Level.FINE);
+			list.add(compName, prefix + " sent batches", map.getSentBatches(), Level.FINER);
+			list.add(compName, prefix + " sent items", map.getSentItems(), Level.FINER);
+			list.add(compName, prefix + " received batches", map.getReceivedBatches(), Level.FINER);
+			list.add(compName, prefix + " conflicts", map.getConflicts(), Level.FINER);
+		}
+	}
+
+	/**
+	 * Schedules comparison of replicated maps with other nodes, so a node which was disconnected will get changes it
+	 * missed.
+	 */
+	public void nodeConnected(String node) {
+		Timer timer = this.timer;
+		if (timer != null) {
+			timer.schedule(new ReplicationTask(this::sendDigests), NODE_CONNECTED_SYNC_DELAY);
+		}
+	}
+
+	public void nodeDisconnected(String node) {
+		for (ReplicatedDMap map : replicatedMaps.values()) {
+			map.nodeDisconnected(node);
+		}
+	}
+
+	/**
+	 * Sends changes of replicated maps made since the previous call.
+	 */
+	void flush() {
+		for (ReplicatedDMap map : replicatedMaps.values()) {
+			long since = map.resetPendingSince();
+			Element items = map.collectChanges();
+			if (items != null) {
+				fireItems(map, items, true, since, null);
+			}
+		}
+	}
+
+	/**
+	 * Sends digests of replicated maps and removes expired tombstones.
+	 */
+	void sendDigests() {
+		long removedBefore = System.currentTimeMillis() - tombstoneTtl;
+		for (ReplicatedDMap map : replicatedMaps.values()) {
+			map.purgeTombstones(removedBefore);
+			sendDigest(map);
+		}
+	}
+
+	void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapDigest(MapDigestEvent event) {
+		final ReplicatedDMap map = this.replicatedMaps.get(event.getUid());
+		if (map == null || nodeId.equals(event.getNode())) {
+			return;
+		}
+
+		BitSet diff = map.diffBuckets(event.getBuckets());
+		if (diff.isEmpty()) {
+			return;
+		}
+
+		digestMismatches.increment();
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Map {0} differs from node {1} in buckets {2}",
+					new Object[]{map.getUid(), event.getNode(), diff});
+		}
+		fireItems(map, map.collectItems(diff), false, 0, event.getNode());
+
+		MapSyncRequestEvent request = new MapSyncRequestEvent();
+		request.setUid(map.getUid());
+		request.setNode(nodeId);
+		request.setTarget(event.getNode());
+		request.setBuckets(diff.stream().toArray());
+		eventBus.fire(request);
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapItems(MapItemsEvent event) {
+		final ReplicatedDMap map = this.replicatedMaps.get(event.getUid());
+		if (map == null) {
+			log.log(Level.FINE, "No map '" + event.getUid() + "' created on this node! Ignoring MapItems event.");
+			return;
+		}
+		if (event.getItems() == null || (event.getTarget() != null && !nodeId.equals(event.getTarget()))) {
+			return;
+		}
+
+		if (event.getSeq() > 0 && map.batchReceived(event.getNode(), event.getSeq(), event.getSince())) {
+			log.log(Level.FINE, "Missed changes of map {0} from node {1}, requesting synchronization",
+					new Object[]{map.getUid(), event.getNode()});
+			sendDigest(map);
+		}
+		int changed = map.apply(event.getItems());
+		if (event.getSeq() == 0) {
+			reconciledItems.add(changed);
+		}
+	}
+
+	@HandleEvent(filter = HandleEvent.Type.remote)
+	void onMapSyncRequest(MapSyncRequestEvent event) {
+		final ReplicatedDMap map = this.replicatedMaps.get(event.getUid());
+		if (map == null || !nodeId.equals(event.getTarget()) || event.getBuckets() == null) {
+			return;
+		}
+
+		BitSet buckets = new BitSet(ReplicatedDMap.BUCKETS);
+		for (int bucket : event.getBuckets()) {
+			buckets.set(bucket);
+		}
+		fireItems(map, map.collectItems(buckets), false, 0, event.getNode());
+	}
+
+	@RouteEvent
+	Collection<Subscription> routeMapItems(MapItemsEvent event, Collection<Subscription> subscriptions) {
+		return routeToTarget(event.getTarget(), subscriptions);
+	}
+
+	@RouteEvent
+	Collection<Subscription> routeMapSyncRequest(MapSyncRequestEvent event, Collection<Subscription> subscriptions) {
+		return routeToTarget(event.getTarget(), subscriptions);
+	}
+
+	/**
+	 * Removes subscriptions of cluster nodes other than <code>target</code>, so items sent in reply to a single node
+	 * are not delivered to all nodes.
+	 */
+	private Collection<Subscription> routeToTarget(String target, Collection<Subscription> subscriptions) {
+		if (target == null) {
+			return subscriptions;
+		}
+		List<Subscription> result = new ArrayList<>(subscriptions.size());
+		for (Subscription s : subscriptions) {
+			if (!s.isInClusterSubscription() || target.equals(s.getJid().getDomain())) {
+				result.add(s);
+			}
+		}
+		return result;
+	}
+
+	private void fireItems(ReplicatedDMap map, Element items, boolean sequenced, long since, String target) {
+		List<Element> children = items.getChildren();
+		if (children == null || children.isEmpty()) {
+			return;
+		}
+
+		for (int from = 0; from < children.size(); from += MAX_ITEMS_PER_EVENT) {
+			Element chunk = items;
+			if (children.size() > MAX_ITEMS_PER_EVENT) {
+				chunk = new Element(ReplicatedDMap.ITEMS_EL_NAME);
+				chunk.addChildren(children.subList(from, Math.min(children.size(), from + MAX_ITEMS_PER_EVENT)));
+			}
+			MapItemsEvent event = new MapItemsEvent();
+			event.setUid(map.getUid());
+			event.setNode(nodeId);
+			event.setSeq(sequenced ? map.nextBatchSeq() : 0);
+			event.setSince(since);
+			event.setTarget(target);
+			event.setItems(chunk);
+			eventBus.fire(event);
+		}
+	}
+
+	private void sendDigest(ReplicatedDMap map) {
+		MapDigestEvent event = new MapDigestEvent();
+		event.setUid(map.getUid());
+		event.setNode(nodeId);
+		event.setBuckets(map.getDigest());
+		eventBus.fire(event);
+	}
+
+	private synchronized void startReplication() {
+		if (timer != null) {
+			return;
+		}
+		timer = new Timer("cluster-maps", true);
+		timer.schedule(new ReplicationTask(this::flush), flushInterval, flushInterval);
+		timer.schedule(new ReplicationTask(this::sendDigests), syncInterval, syncInterval);
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
@@ -152,6 +405,10 @@ public class ClusterMapFactory {
 		if (map != null) {
 			fireOnMapDestroyed(map, map.uid);
 		}
+		ReplicatedDMap replicatedMap = this.replicatedMaps.remove(uid);
+		if (replicatedMap != null) {
+			fireOnMapDestroyed(replicatedMap, replicatedMap.uid);
+		}
 	}
 
 	@HandleEvent(filter = HandleEvent.Type.remote)
@@ -191,6 +448,20 @@ public class ClusterMapFactory {
 	@HandleEvent(filter = HandleEvent.Type.remote)
 	void onNewMapCreated(final NewMapCreatedEvent event) {
 		final String uid = event.getUid();
+		if (event.isReplicated()) {
+			ReplicatedDMap map = replicatedMaps.get(uid);
+			if (map == null) {
+				map = new ReplicatedDMap(uid, nodeId, typesConverter, event.getKeyClass(), event.getValueClass());
+				if (replicatedMaps.putIfAbsent(uid, map) == null) {
+					startReplication();
+					fireOnMapCreated(map, uid, event.getParams());
+				}
+			} else {
+				// full state transfer only to the node which has just created the map
+				fireItems(map, map.collectItems(null), false, 0, event.getNode());
+			}
+			return;
+		}
 		if (!maps.containsKey(uid)) {
 			final Class keyClass = event.getKeyClass();
 			final Class valueClass = event.getValueClass();
@@ -275,6 +546,153 @@ public class ClusterMapFactory {
 		}
 	}
 
+	public static class MapDigestEvent
+			implements Serializable, SupersedableEvent {
+
+		private long[] buckets;
+		private String node;
+		private String uid;
+
+		public long[] getBuckets() {
+			return buckets;
+		}
+
+		public void setBuckets(long[] buckets) {
+			this.buckets = buckets;
+		}
+
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		@Override
+		public Object getSupersedeKey() {
+			return node + "/" + uid;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+
+	public static class MapItemsEvent
+			implements Serializable {
+
+		private Element items;
+		private String node;
+		private long seq;
+		private long since;
+		private String target;
+		private String uid;
+
+		public Element getItems() {
+			return items;
+		}
+
+		public void setItems(Element items) {
+			this.items = items;
+		}
+
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		/**
+		 * Returns sequence number of the batch of changes or <code>0</code> if items are sent during
+		 * synchronization.
+		 */
+		public long getSeq() {
+			return seq;
+		}
+
+		public void setSeq(long seq) {
+			this.seq = seq;
+		}
+
+		/**
+		 * Returns time of the oldest change in the batch.
+		 */
+		public long getSince() {
+			return since;
+		}
+
+		public void setSince(long since) {
+			this.since = since;
+		}
+
+		/**
+		 * Returns node to which items are sent or <code>null</code> if they are sent to all nodes.
+		 */
+		public String getTarget() {
+			return target;
+		}
+
+		public void setTarget(String target) {
+			this.target = target;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+
+	public static class MapSyncRequestEvent
+			implements Serializable {
+
+		private int[] buckets;
+		private String node;
+		private String target;
+		private String uid;
+
+		public int[] getBuckets() {
+			return buckets;
+		}
+
+		public void setBuckets(int[] buckets) {
+			this.buckets = buckets;
+		}
+
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		public String getTarget() {
+			return target;
+		}
+
+		public void setTarget(String target) {
+			this.target = target;
+		}
+
+		public String getUid() {
+			return uid;
+		}
+
+		public void setUid(String uid) {
+			this.uid = uid;
+		}
+	}
+
 	public static class MapDestroyEvent
 			implements Serializable {
 
@@ -293,7 +711,9 @@ public class ClusterMapFactory {
 			implements Serializable {
 
 		private Class keyClass;
+		private String node;
 		private String[] params;
+		private boolean replicated;
 		private String uid;
 		private Class valueClass;
 
@@ -313,6 +733,22 @@ public class ClusterMapFactory {
 			this.params = params;
 		}
 
+		public String getNode() {
+			return node;
+		}
+
+		public void setNode(String node) {
+			this.node = node;
+		}
+
+		public boolean isReplicated() {
+			return replicated;
+		}
+
+		public void setReplicated(boolean replicated) {
+			this.replicated = replicated;
+		}
+
 		public String getUid() {
 			return uid;
 		}
@@ -331,4 +767,23 @@ public class ClusterMapFactory {
 
 	}
 
+	private class ReplicationTask
+			extends TimerTask {
+
+		private final Runnable task;
+
+		private ReplicationTask(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (Throwable ex) {
+				log.log(Level.WARNING, "Replication of cluster maps failed", ex);
+			}
+		}
+	}
+
 }
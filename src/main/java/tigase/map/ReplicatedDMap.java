@@ -0,0 +1,453 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import tigase.kernel.TypesConverter;
+import tigase.xml.Element;
+import tigase.xml.XMLUtils;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distributed map which replicates changes in batches.
+ * <br>
+ * Every entry has a {@link VersionVector}, so entries may be sent to other nodes many times and in any order and all
+ * nodes will end with the same state. Removed entries are kept as tombstones for some time, so a removal is not undone
+ * by an older version of the entry received later. Concurrent changes of an entry are resolved in the same way on all
+ * nodes.
+ * <br>
+ * Keys are split into {@link #BUCKETS} buckets and for each bucket a hash of its live entries is maintained. Nodes
+ * exchange these hashes from time to time and send each other entries of buckets which differ, so a node which missed
+ * some changes is brought back in sync without a full state transfer.
+ */
+class ReplicatedDMap<K, V>
+		extends AbstractMap<K, V> {
+
+	static final int BUCKETS = 64;
+	static final String ITEM_EL_NAME = "item";
+	static final String ITEMS_EL_NAME = "items";
+	private static final String KEY_ATT = "k";
+	private static final String VALUE_ATT = "v";
+	private static final String VERSION_ATT = "ver";
+
+	final Class<K> keyClass;
+	final String uid;
+	final Class<V> valueClass;
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder conflicts = new LongAdder();
+	private final ConcurrentHashMap<K, Item<V>> items = new ConcurrentHashMap<>();
+	private final AtomicLong lastBatchSeq = new AtomicLong();
+	private final String nodeId;
+	private final Set<K> pending = ConcurrentHashMap.newKeySet();
+	private final AtomicLong pendingSince = new AtomicLong();
+	private final LongAdder receivedBatches = new LongAdder();
+	private final Map<String, Long> receivedSeqs = new ConcurrentHashMap<>();
+	private final LongAdder sentBatches = new LongAdder();
+	private final LongAdder sentItems = new LongAdder();
+	private final AtomicInteger size = new AtomicInteger();
+	private final TypesConverter typesConverter;
+	private volatile long lag = 0;
+	private volatile long maxLag = 0;
+
+	static int bucketOf(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (BUCKETS - 1);
+	}
+
+	private static long entryHash(String key, VersionVector version) {
+		long h = ((long) key.hashCode() << 32) ^ (version.toString().hashCode() & 0xffffffffL);
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	ReplicatedDMap(String uid, String nodeId, TypesConverter typesConverter, Class<K> keyClass,
+				   Class<V> valueClass) {
+		this.uid = uid;
+		this.nodeId = nodeId;
+		this.typesConverter = typesConverter;
+		this.keyClass = keyClass;
+		this.valueClass = valueClass;
+	}
+
+	@Override
+	public void clear() {
+		for (K key : items.keySet()) {
+			remove(key);
+		}
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public Set<Entry<K, V>> entrySet() {
+		return new EntrySet();
+	}
+
+	@Override
+	public V get(Object key) {
+		Item<V> item = items.get(key);
+		return item == null ? null : item.value;
+	}
+
+	public String getUid() {
+		return uid;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	@Override
+	public V put(K key, V value) {
+		Objects.requireNonNull(value);
+		final Object[] old = new Object[1];
+		final long now = System.currentTimeMillis();
+		items.compute(key, (k, item) -> {
+			Item<V> result;
+			if (item == null) {
+				result = new Item<>(typesConverter.toString(k), value, VersionVector.EMPTY.increment(nodeId), now);
+			} else {
+				old[0] = item.value;
+				result = new Item<>(item.key, value, item.version.increment(nodeId), now);
+			}
+			updateDigest(item, result);
+			return result;
+		});
+		changed(key, now);
+		return (V) old[0];
+	}
+
+	@Override
+	public V remove(Object key) {
+		final Object[] old = new Object[1];
+		final long now = System.currentTimeMillis();
+		items.computeIfPresent((K) key, (k, item) -> {
+			if (item.value == null) {
+				return item;
+			}
+			old[0] = item.value;
+			Item<V> result = new Item<>(item.key, null, item.version.increment(nodeId), now);
+			updateDigest(item, result);
+			return result;
+		});
+		if (old[0] != null) {
+			changed((K) key, now);
+		}
+		return (V) old[0];
+	}
+
+	@Override
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * Applies entries received from another node.
+	 *
+	 * @return number of entries which changed local state.
+	 */
+	int apply(Element itemsEl) {
+		List<Element> children = itemsEl.getChildren();
+		if (children == null) {
+			return 0;
+		}
+		int changed = 0;
+		for (Element itemEl : children) {
+			String keyStr = XMLUtils.unescape(itemEl.getAttributeStaticStr(KEY_ATT));
+			String valueStr = itemEl.getAttributeStaticStr(VALUE_ATT);
+			VersionVector version = VersionVector.parse(itemEl.getAttributeStaticStr(VERSION_ATT));
+			K key = typesConverter.convert(keyStr, keyClass);
+			V value = valueStr == null ? null : typesConverter.convert(XMLUtils.unescape(valueStr), valueClass);
+			if (apply(keyStr, key, value, version)) {
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Returns entries changed locally since the previous call or <code>null</code> if there were no changes.
+	 */
+	Element collectChanges() {
+		if (pending.isEmpty()) {
+			return null;
+		}
+		Element result = new Element(ITEMS_EL_NAME);
+		for (Iterator<K> it = pending.iterator(); it.hasNext(); ) {
+			K key = it.next();
+			it.remove();
+			Item<V> item = items.get(key);
+			if (item != null) {
+				result.addChild(toElement(item));
+			}
+		}
+		sentBatches.increment();
+		sentItems.add(result.getChildren() == null ? 0 : result.getChildren().size());
+		return result;
+	}
+
+	/**
+	 * Returns all entries, including tombstones, from buckets marked in the set or from all buckets if the set is
+	 * <code>null</code>.
+	 */
+	Element collectItems(BitSet bucketsToSend) {
+		Element result = new Element(ITEMS_EL_NAME);
+		for (Item<V> item : items.values()) {
+			if (bucketsToSend == null || bucketsToSend.get(bucketOf(item.key))) {
+				result.addChild(toElement(item));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns set of buckets which content differs from the content on the other node.
+	 */
+	BitSet diffBuckets(long[] remote) {
+		BitSet result = new BitSet(BUCKETS);
+		for (int i = 0; i < BUCKETS; i++) {
+			if (remote == null || remote.length <= i || remote[i] != buckets.get(i)) {
+				result.set(i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Records receiving of a batch of changes from another node.
+	 *
+	 * @param seq sequence number of the batch
+	 * @param since time of the oldest change in the batch
+	 *
+	 * @return <code>true</code> if some batches sent by the node were missed.
+	 */
+	boolean batchReceived(String node, long seq, long since) {
+		receivedBatches.increment();
+		if (since > 0) {
+			long l = Math.max(0, System.currentTimeMillis() - since);
+			lag = l;
+			if (l > maxLag) {
+				maxLag = l;
+			}
+		}
+		Long last = receivedSeqs.put(node, seq);
+		return last != null && seq > last + 1;
+	}
+
+	long getConflicts() {
+		return conflicts.sum();
+	}
+
+	long[] getDigest() {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			result[i] = buckets.get(i);
+		}
+		return result;
+	}
+
+	long getLag() {
+		return lag;
+	}
+
+	long getMaxLag() {
+		return maxLag;
+	}
+
+	/**
+	 * Returns time since the oldest change which was not sent yet.
+	 */
+	long getPendingAge() {
+		long since = pendingSince.get();
+		return since == 0 ? 0 : Math.max(0, System.currentTimeMillis() - since);
+	}
+
+	int getPendingChanges() {
+		return pending.size();
+	}
+
+	long getReceivedBatches() {
+		return receivedBatches.sum();
+	}
+
+	long getSentBatches() {
+		return sentBatches.sum();
+	}
+
+	long getSentItems() {
+		return sentItems.sum();
+	}
+
+	long nextBatchSeq() {
+		return lastBatchSeq.incrementAndGet();
+	}
+
+	void nodeDisconnected(String node) {
+		receivedSeqs.remove(node);
+	}
+
+	/**
+	 * Removes tombstones of entries removed before the given time.
+	 *
+	 * @return number of removed tombstones
+	 */
+	int purgeTombstones(long removedBefore) {
+		int purged = 0;
+		for (Map.Entry<K, Item<V>> e : items.entrySet()) {
+			Item<V> item = e.getValue();
+			if (item.value == null && item.modified < removedBefore && items.remove(e.getKey(), item)) {
+				purged++;
+			}
+		}
+		return purged;
+	}
+
+	/**
+	 * Returns time of the oldest change which was not sent yet and resets it.
+	 */
+	long resetPendingSince() {
+		return pendingSince.getAndSet(0);
+	}
+
+	private boolean apply(String keyStr, K key, V value, VersionVector version) {
+		final boolean[] changed = new boolean[1];
+		final long now = System.currentTimeMillis();
+		items.compute(key, (k, item) -> {
+			Item<V> result = item;
+			if (item == null) {
+				result = new Item<>(keyStr, value, version, now);
+			} else {
+				switch (version.compare(item.version)) {
+					case AFTER:
+						result = new Item<>(item.key, value, version, now);
+						break;
+					case CONCURRENT:
+						conflicts.increment();
+						V winner = version.winsWith(item.version) ? value : item.value;
+						result = new Item<>(item.key, winner, version.merge(item.version), now);
+						break;
+					default:
+						break;
+				}
+			}
+			if (result != item) {
+				changed[0] = true;
+				updateDigest(item, result);
+			}
+			return result;
+		});
+		return changed[0];
+	}
+
+	private void changed(K key, long now) {
+		pendingSince.compareAndSet(0, now);
+		pending.add(key);
+	}
+
+	private Element toElement(Item<V> item) {
+		Element el = new Element(ITEM_EL_NAME, new String[]{KEY_ATT, VERSION_ATT},
+								 new String[]{XMLUtils.escape(item.key), item.version.toString()});
+		if (item.value != null) {
+			el.setAttribute(VALUE_ATT, XMLUtils.escape(typesConverter.toString(item.value)));
+		}
+		return el;
+	}
+
+	private void updateDigest(Item<V> old, Item<V> item) {
+		if (old != null && old.value != null) {
+			buckets.accumulateAndGet(bucketOf(old.key), entryHash(old.key, old.version), (a, b) -> a ^ b);
+			size.decrementAndGet();
+		}
+		if (item != null && item.value != null) {
+			buckets.accumulateAndGet(bucketOf(item.key), entryHash(item.key, item.version), (a, b) -> a ^ b);
+			size.incrementAndGet();
+		}
+	}
+
+	private static class Item<V> {
+
+		private final String key;
+		private final long modified;
+		private final V value;
+		private final VersionVector version;
+
+		private Item(String key, V value, VersionVector version, long modified) {
+			this.key = key;
+			this.value = value;
+			this.version = version;
+			this.modified = modified;
+		}
+	}
+
+	private class EntrySet
+			extends AbstractSet<Entry<K, V>> {
+
+		@Override
+		public Iterator<Entry<K, V>> iterator() {
+			final Iterator<Map.Entry<K, Item<V>>> it = items.entrySet().iterator();
+			return new Iterator<Entry<K, V>>() {
+
+				private Entry<K, V> next = advance();
+
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public Entry<K, V> next() {
+					if (next == null) {
+						throw new NoSuchElementException();
+					}
+					Entry<K, V> result = next;
+					next = advance();
+					return result;
+				}
+
+				private Entry<K, V> advance() {
+					while (it.hasNext()) {
+						Map.Entry<K, Item<V>> e = it.next();
+						V value = e.getValue().value;
+						if (value != null) {
+							return new SimpleImmutableEntry<>(e.getKey(), value);
+						}
+					}
+					return null;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return size.get();
+		}
+	}
+}
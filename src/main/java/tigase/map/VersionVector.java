@@ -0,0 +1,208 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import java.util.Arrays;
+
+/**
+ * Immutable version vector of a single entry of {@link ReplicatedDMap}. It keeps number of changes of the entry made
+ * on each cluster node, which allows to detect if one version of the entry is based on another one or if they were
+ * changed concurrently.
+ */
+final class VersionVector {
+
+	static final VersionVector EMPTY = new VersionVector(new String[0], new long[0]);
+
+	enum Order {
+		BEFORE,
+		EQUAL,
+		AFTER,
+		CONCURRENT
+	}
+
+	private final long[] counters;
+	private final String[] nodes;
+	private String str;
+
+	/**
+	 * Parses version vector from the string created by {@link #toString()}.
+	 */
+	static VersionVector parse(String str) {
+		if (str == null || str.isEmpty()) {
+			return EMPTY;
+		}
+		String[] parts = str.split(",");
+		String[] nodes = new String[parts.length];
+		long[] counters = new long[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			int idx = parts[i].lastIndexOf(':');
+			if (idx < 0) {
+				throw new IllegalArgumentException("Invalid version vector: " + str);
+			}
+			nodes[i] = parts[i].substring(0, idx);
+			counters[i] = Long.parseLong(parts[i].substring(idx + 1));
+			if (i > 0 && nodes[i - 1].compareTo(nodes[i]) >= 0) {
+				throw new IllegalArgumentException("Nodes of version vector are not sorted: " + str);
+			}
+		}
+		return new VersionVector(nodes, counters);
+	}
+
+	private VersionVector(String[] nodes, long[] counters) {
+		this.nodes = nodes;
+		this.counters = counters;
+	}
+
+	long get(String node) {
+		int idx = Arrays.binarySearch(nodes, node);
+		return idx < 0 ? 0 : counters[idx];
+	}
+
+	/**
+	 * Returns version following this version after change made on the node.
+	 */
+	VersionVector increment(String node) {
+		int idx = Arrays.binarySearch(nodes, node);
+		if (idx >= 0) {
+			long[] c = counters.clone();
+			c[idx]++;
+			return new VersionVector(nodes, c);
+		}
+
+		int pos = -idx - 1;
+		String[] n = new String[nodes.length + 1];
+		long[] c = new long[counters.length + 1];
+		System.arraycopy(nodes, 0, n, 0, pos);
+		System.arraycopy(counters, 0, c, 0, pos);
+		n[pos] = node;
+		c[pos] = 1;
+		System.arraycopy(nodes, pos, n, pos + 1, nodes.length - pos);
+		System.arraycopy(counters, pos, c, pos + 1, counters.length - pos);
+		return new VersionVector(n, c);
+	}
+
+	/**
+	 * Returns the smallest version which follows both versions.
+	 */
+	VersionVector merge(VersionVector other) {
+		String[] n = new String[nodes.length + other.nodes.length];
+		long[] c = new long[n.length];
+		int i = 0, j = 0, k = 0;
+		while (i < nodes.length || j < other.nodes.length) {
+			int cmp = i == nodes.length ? 1 : j == other.nodes.length ? -1 : nodes[i].compareTo(other.nodes[j]);
+			if (cmp < 0) {
+				n[k] = nodes[i];
+				c[k++] = counters[i++];
+			} else if (cmp > 0) {
+				n[k] = other.nodes[j];
+				c[k++] = other.counters[j++];
+			} else {
+				n[k] = nodes[i];
+				c[k++] = Math.max(counters[i++], other.counters[j++]);
+			}
+		}
+		return new VersionVector(Arrays.copyOf(n, k), Arrays.copyOf(c, k));
+	}
+
+	/**
+	 * Compares this version with the other one.
+	 *
+	 * @return {@link Order#BEFORE} if the other version is based on this one, {@link Order#AFTER} if this version is
+	 * based on the other one and {@link Order#CONCURRENT} if versions were created independently.
+	 */
+	Order compare(VersionVector other) {
+		boolean less = false, greater = false;
+		int i = 0, j = 0;
+		while (i < nodes.length || j < other.nodes.length) {
+			int cmp = i == nodes.length ? 1 : j == other.nodes.length ? -1 : nodes[i].compareTo(other.nodes[j]);
+			long a, b;
+			if (cmp < 0) {
+				a = counters[i++];
+				b = 0;
+			} else if (cmp > 0) {
+				a = 0;
+				b = other.counters[j++];
+			} else {
+				a = counters[i++];
+				b = other.counters[j++];
+			}
+			if (a < b) {
+				less = true;
+			} else if (a > b) {
+				greater = true;
+			}
+		}
+		if (less && greater) {
+			return Order.CONCURRENT;
+		}
+		return less ? Order.BEFORE : greater ? Order.AFTER : Order.EQUAL;
+	}
+
+	/**
+	 * Checks if this version wins with the concurrent one. All nodes resolve conflict in the same way: version with
+	 * more changes wins and if both have the same number of changes, the one with greater string representation wins.
+	 */
+	boolean winsWith(VersionVector other) {
+		long sum = sum(), otherSum = other.sum();
+		if (sum != otherSum) {
+			return sum > otherSum;
+		}
+		return toString().compareTo(other.toString()) > 0;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof VersionVector)) {
+			return false;
+		}
+		VersionVector that = (VersionVector) o;
+		return Arrays.equals(nodes, that.nodes) && Arrays.equals(counters, that.counters);
+	}
+
+	@Override
+	public int hashCode() {
+		return toString().hashCode();
+	}
+
+	@Override
+	public String toString() {
+		String s = str;
+		if (s == null) {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < nodes.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(nodes[i]).append(':').append(counters[i]);
+			}
+			s = str = sb.toString();
+		}
+		return s;
+	}
+
+	private long sum() {
+		long sum = 0;
+		for (long c : counters) {
+			sum += c;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * I/O engine with a single event loop per CPU core. Each connection is registered with one loop for its whole life and
+ * interest in <code>OP_WRITE</code> is toggled on the existing selection key whenever the service has data waiting to
+ * be sent, so there is no key cancellation or re-registration for each read.
+ * <br>
+ * With <code>-Dio-engine-workers=0</code> the loop thread calls {@link IOService#call()} inline, so reading,
+ * parsing and enqueueing of received packets is done without any thread handoff. This is not the default, because
+ * <code>call()</code> may block (ie. on TLS handshake or on a full queue of the connection manager) and a blocked call
+ * would stall all connections assigned to the same loop. By default a ready service is handed to a shared pool of
+ * worker threads instead and its interest ops are cleared until the worker is done, so a single slow connection
+ * stalls only one worker. The key of the connection stays registered in both modes.
+ * <br>
+ * Engine is selected at startup with <code>-Dio-engine=event-loop</code> and used by {@link SocketThread} instead of
+ * its reading and writing threads.
+ */
+public class EventLoopEngine {
+
+	public static final String EVENT_LOOP_ENGINE = "event-loop";
+	public static final String IO_ENGINE_LOOPS_PROP_KEY = "io-engine-loops";
+	public static final String IO_ENGINE_PROP_KEY = "io-engine";
+	public static final String IO_ENGINE_WORKERS_PROP_KEY = "io-engine-workers";
+	private static final Logger log = Logger.getLogger(EventLoopEngine.class.getName());
+
+	private final EventLoop[] loops;
+	// null if services are called inline by the loop threads
+	private final ThreadPoolExecutor workers;
+
+	public static boolean isSelected() {
+		return EVENT_LOOP_ENGINE.equals(System.getProperty(IO_ENGINE_PROP_KEY));
+	}
+
+	public EventLoopEngine(int nLoops, int nWorkers) throws IOException {
+		final AtomicInteger workerNo = new AtomicInteger();
+		workers = nWorkers <= 0
+				  ? null
+				  : new ThreadPoolExecutor(nWorkers, nWorkers, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+										   r -> new Thread(r, "eventLoopWorker-" + workerNo.getAndIncrement()));
+		loops = new EventLoop[nLoops];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop("eventLoop-" + i);
+			loops[i].start();
+		}
+		log.log(Level.WARNING, "{0} eventLoops with {1} workers started.",
+				new Object[]{loops.length, workers == null ? 0 : nWorkers});
+	}
+
+	public void addSocketService(IOService<?> s) {
+		loopFor(s).updateService(s);
+	}
+
+	public void removeSocketService(IOService<?> s) {
+		loopFor(s).updateService(s);
+	}
+
+	public void shutdown() {
+		for (EventLoop loop : loops) {
+			loop.stopping = true;
+			loop.selector.wakeup();
+		}
+		if (workers != null) {
+			workers.shutdown();
+		}
+	}
+
+	private EventLoop loopFor(IOService<?> s) {
+		return loops[Math.abs(s.hashCode() % loops.length)];
+	}
+
+	private class EventLoop
+			extends Thread {
+
+		// services currently processed by a worker thread, not watched by the selector until it is done
+		private final Set<IOService<?>> busy = ConcurrentHashMap.newKeySet();
+		// services which interest ops has to be updated by the loop thread
+		private final ConcurrentSkipListSet<IOService<?>> pending = new ConcurrentSkipListSet<>(
+				(o1, o2) -> o1.getUniqueId().compareTo(o2.getUniqueId()));
+		private final Selector selector;
+		private volatile boolean stopping = false;
+
+		private int interestOps(IOService<?> s) {
+			if (!s.isSocketServiceReady() || busy.contains(s)) {
+				return 0;
+			}
+			int ops = s.waitingToRead() ? SelectionKey.OP_READ : 0;
+			if (s.waitingToSend()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			return ops;
+		}
+
+		private EventLoop(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			while (!stopping) {
+				try {
+					selector.select();
+
+					Set<SelectionKey> selected = selector.selectedKeys();
+					for (Iterator<SelectionKey> it = selected.iterator(); it.hasNext(); ) {
+						SelectionKey sk = it.next();
+						it.remove();
+						processKey(sk, (IOService<?>) sk.attachment());
+					}
+
+					IOService<?> s;
+					while ((s = pending.pollFirst()) != null) {
+						applyInterestOps(s);
+					}
+				} catch (Exception ex) {
+					log.log(Level.SEVERE, "Server I/O error: ", ex);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException ex) {
+				log.log(Level.FINEST, "Exception while closing selector: ", ex);
+			}
+		}
+
+		private void updateService(IOService<?> s) {
+			if (Thread.currentThread() == this) {
+				applyInterestOps(s);
+				return;
+			}
+
+			SocketChannel sc = s.getSocketChannel();
+			SelectionKey key = sc == null ? null : sc.keyFor(selector);
+			try {
+				if (key != null && key.isValid() && key.interestOps() == interestOps(s)) {
+					return;
+				}
+			} catch (CancelledKeyException ex) {
+				// key was cancelled concurrently, let the loop handle it
+			}
+
+			if (pending.add(s)) {
+				selector.wakeup();
+			}
+		}
+
+		private void processKey(SelectionKey sk, IOService<?> s) {
+			if (!sk.isValid()) {
+				return;
+			}
+			if (s.isSocketServiceReady() && busy.add(s)) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "AWAKEN: {0}, readyOps() = {1}", new Object[]{s.getIO(), sk.readyOps()});
+				}
+				try {
+					// key stays registered, it is only muted until the worker is done with the service
+					sk.interestOps(0);
+					if (workers == null) {
+						callService(s);
+					} else {
+						workers.execute(() -> callService(s));
+					}
+				} catch (CancelledKeyException | RejectedExecutionException ex) {
+					busy.remove(s);
+					if (log.isLoggable(Level.FINER)) {
+						log.log(Level.FINER, "Can't process socket data, stopping the service: " + s.getIO(), ex);
+					}
+					forceStop(s);
+				}
+				return;
+			}
+			applyInterestOps(s);
+		}
+
+		private void callService(IOService<?> s) {
+			try {
+				s.call();
+			} catch (Exception ex) {
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER, "Exception processing socket data, stopping the service: " + s.getIO(), ex);
+				}
+				forceStop(s);
+			} finally {
+				busy.remove(s);
+				updateService(s);
+			}
+		}
+
+		private void applyInterestOps(IOService<?> s) {
+			SocketChannel sc = s.getSocketChannel();
+			if (sc == null) {
+				return;
+			}
+
+			SelectionKey key = sc.keyFor(selector);
+			try {
+				if (!sc.isConnected()) {
+					if (key != null) {
+						key.cancel();
+					}
+					if (s.isSocketServiceReady()) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Socket not connected: {0}", s.getIO());
+						}
+						forceStop(s);
+					}
+					return;
+				}
+
+				int ops = interestOps(s);
+				if (key == null) {
+					if (ops != 0) {
+						sc.register(selector, ops, s);
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "REGISTERED: {0}, interestOps = {1}", new Object[]{s.getIO(), ops});
+						}
+					}
+				} else if (key.interestOps() != ops) {
+					key.interestOps(ops);
+				}
+			} catch (Exception ex) {
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER, "Forcing stopping the service: " + s.getIO(), ex);
+				}
+				forceStop(s);
+			}
+		}
+
+		private void forceStop(IOService<?> s) {
+			try {
+				s.forceStop();
+			} catch (Exception ex) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Exception while stopping service: " + s.getIO(), ex);
+				}
+			}
+		}
+	}
+}
@@ -38,6 +38,8 @@ import java.nio.charset.*;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -89,12 +91,16 @@ public abstract class IOService<RefObject>
 
 	private static final Logger log = Logger.getLogger(IOService.class.getName());
 	private static final long MAX_ALLOWED_EMPTY_CALLS = 1000;
+	private static final int DEF_CHAR_BUFFER_SIZE = 2048;
 
 	private final ReentrantLock readInProgress = new ReentrantLock();
 	private final ReentrantLock writeInProgress = new ReentrantLock();
-	protected CharBuffer cb = CharBuffer.allocate(2048);
-	protected CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
-	protected CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+	/**
+	 * Character buffer and codecs are created on first use and released when the connection is parked.
+	 */
+	protected CharBuffer cb = null;
+	protected CharsetDecoder decoder = null;
+	protected CharsetEncoder encoder = null;
 	/**
 	 * The saved partial bytes for multi-byte UTF-8 characters between reads
 	 */
@@ -114,6 +120,7 @@ public abstract class IOService<RefObject>
 	 * This variable keeps the time of last transfer in any direction it is used to help detect dead connections.
 	 */
 	private long lastTransferTime = 0;
+	private volatile boolean parked = false;
 	private Certificate localCertificate;
 	private String local_address = null;
 	private Certificate peerCertificate;
@@ -127,15 +134,18 @@ public abstract class IOService<RefObject>
 	private ConcurrentMap<String, Object> sessionData = new ConcurrentHashMap<String, Object>(4, 0.75f, 4);
 	private IOInterface socketIO = null;
 	/**
-	 * <code>socketInput</code> buffer keeps data read from socket.
+	 * <code>socketInput</code> buffer keeps data read from socket. It is taken from the {@link ByteBufferPool} before
+	 * reading and returned to the pool when the connection is parked.
 	 */
 	private ByteBuffer socketInput = null;
 	private int socketInputSize = 2048;
-	private boolean socketServiceReady = false;
+	private volatile boolean socketServiceReady = false;
 	private SSLContextContainerIfc sslContextContainer;
 	private boolean stopping = false;
 	private byte[] tlsUniqueId;
 	private long[] wrData = new long[60];
+	private int writeBatchBytes = 0;
+	private long writesSaved = 0;
 
 	private TrustManager[] x509TrustManagers;
 
@@ -178,8 +188,6 @@ public abstract class IOService<RefObject>
 			throw e;
 		}
 		socketInputSize = socketIO.getSocketChannel().socket().getReceiveBufferSize();
-		socketInput = ByteBuffer.allocate(socketInputSize);
-		socketInput.order(byteOrder());
 
 		Socket sock = socketIO.getSocketChannel().socket();
 
@@ -375,8 +383,7 @@ public abstract class IOService<RefObject>
 //		}
 
 		setLastTransferTime();
-		encoder.reset();
-		decoder.reset();
+		resetCodecs();
 	}
 
 	public CertificateContainerIfc getCertificateContainer() {
@@ -425,8 +432,7 @@ public abstract class IOService<RefObject>
 															 wantClientAuth, needClientAuth, byteOrder(),
 															 x509TrustManagers, this, socketIO, certificateContainer);
 			setLastTransferTime();
-			encoder.reset();
-			decoder.reset();
+			resetCodecs();
 		}
 	}
 
@@ -591,6 +597,23 @@ public abstract class IOService<RefObject>
 		return wrData;
 	}
 
+	public int getWriteBatchBytes() {
+		return writeBatchBytes;
+	}
+
+	/**
+	 * Returns number of socket writes saved by writing many packets at once.
+	 */
+	public long getWritesSaved(boolean reset) {
+		long tmp = writesSaved;
+
+		if (reset) {
+			writesSaved = 0;
+		}
+
+		return tmp;
+	}
+
 	public boolean isConnected() {
 		boolean result = (socketIO != null) && socketIO.isConnected();
 
@@ -605,6 +628,14 @@ public abstract class IOService<RefObject>
 		this.bufferLimit = bufferLimit;
 	}
 
+	/**
+	 * Sets maximal number of characters of data written to the socket at once by {@link #writeDataBatch(List)}, value
+	 * <code>0</code> disables batching.
+	 */
+	public void setWriteBatchBytes(int writeBatchBytes) {
+		this.writeBatchBytes = writeBatchBytes;
+	}
+
 	public void setIOServiceListener(IOServiceListener<IOService<RefObject>> sl) {
 		this.serviceListener = sl;
 	}
@@ -663,7 +694,7 @@ public abstract class IOService<RefObject>
 			log.log(Level.FINEST, "Socket: " + socketIO, thr);
 		}
 		try {
-			ByteBuffer tmpBuffer = socketIO.read(socketInput);
+			ByteBuffer tmpBuffer = socketIO.read(acquireInputBuffer());
 
 			if (socketIO.bytesRead() > 0) {
 				empty_read_call_count = 0;
@@ -696,7 +727,10 @@ public abstract class IOService<RefObject>
 	}
 
 	protected void readCompleted() {
-		decoder.reset();
+		CharsetDecoder dec = decoder;
+		if (dec != null) {
+			dec.reset();
+		}
 	}
 
 	protected char[] readData() throws IOException {
@@ -714,18 +748,7 @@ public abstract class IOService<RefObject>
 		try {
 
 			// resizeInputBuffer();
-			// Maybe we can shrink the input buffer??
-			if ((socketInput.capacity() > socketInputSize) && (socketInput.remaining() == socketInput.capacity())) {
-
-				// Yes, looks like we can
-				if (log.isLoggable(Level.FINE)) {
-					log.log(Level.FINE, "Resizing socketInput down to {1} bytes. [{0}]",
-							new Object[]{socketIO, socketInputSize});
-				}
-				socketInput = ByteBuffer.allocate(socketInputSize);
-				socketInput.order(byteOrder());
-				cb = CharBuffer.allocate(socketInputSize * 4);
-			}
+			// Input buffer is shrunk by returning it to the pool in releaseIdleState()
 
 			// if (log.isLoggable(Level.FINEST)) {
 			// log.finer("Before read from socket.");
@@ -734,7 +757,7 @@ public abstract class IOService<RefObject>
 			// log.finer("socketInput.limit()=" + socketInput.limit());
 			// log.finer("socketInput.position()=" + socketInput.position());
 			// }
-			ByteBuffer tmpBuffer = socketIO.read(socketInput);
+			ByteBuffer tmpBuffer = socketIO.read(acquireInputBuffer());
 
 			if (socketIO.bytesRead() > 0) {
 				empty_read_call_count = 0;
@@ -784,15 +807,8 @@ public abstract class IOService<RefObject>
 					// log.finer("cb.position()=" + cb.position());
 					// }
 					// tmpBuffer.flip();
-					if (cb.capacity() < tmpBuffer.remaining() * 4) {
-						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "Resizing character buffer to: {1} [{0}]",
-									new Object[]{socketIO, tmpBuffer.remaining()});
-						}
-						cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-					}
-
-					CoderResult cr = decoder.decode(tmpBuffer, cb, false);
+					CharBuffer cb = getCharBuffer(tmpBuffer.remaining() * 4);
+					CoderResult cr = getDecoder().decode(tmpBuffer, cb, false);
 
 					if (cr.isMalformed()) {
 						if (!handleMalformedInput(tmpBuffer, cb)) {
@@ -970,6 +986,7 @@ public abstract class IOService<RefObject>
 				// log.finest("Writing data_str (" + data_str.length() + "), idx_start="
 				// + idx_start + ", idx_offset=" + idx_offset + ": " + data_str);
 				// }
+				CharsetEncoder encoder = getEncoder();
 				encoder.reset();
 
 				// dataBuffer = encoder.encode(CharBuffer.wrap(data, idx_start,
@@ -1010,6 +1027,103 @@ public abstract class IOService<RefObject>
 		}
 	}
 
+	/**
+	 * Writes many strings at once. Data is encoded into buffers from the {@link ByteBufferPool} which are passed to
+	 * the socket together, so they are sent with a single gathering write (or encrypted and compressed as a whole)
+	 * instead of a write per string.
+	 */
+	protected void writeDataBatch(final List<String> data) {
+		if (data.isEmpty()) {
+			writeData(null);
+			return;
+		}
+		if (data.size() == 1) {
+			writeData(data.get(0));
+			return;
+		}
+
+		writeInProgress.lock();
+		try {
+			int length = 0;
+
+			for (String str : data) {
+				length += str.length();
+			}
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Writing batch of {1} strings: {2} [{0}]",
+						new Object[]{socketIO, data.size(), length});
+			}
+
+			ByteBufferPool pool = ByteBufferPool.getInstance();
+			List<ByteBuffer> buffers = new ArrayList<>();
+			ByteBuffer dataBuffer = pool.acquire(length);
+
+			CharsetEncoder encoder = getEncoder();
+			encoder.reset();
+			for (String str : data) {
+				CharBuffer in = CharBuffer.wrap(str);
+				CoderResult cr;
+
+				while ((cr = encoder.encode(in, dataBuffer, false)).isOverflow()) {
+					dataBuffer.flip();
+					buffers.add(dataBuffer);
+					dataBuffer = pool.acquire(Math.max(in.remaining(), 1024));
+				}
+				if (cr.isError()) {
+					cr.throwException();
+				}
+			}
+			encoder.encode(CharBuffer.allocate(0), dataBuffer, true);
+			encoder.flush(dataBuffer);
+			dataBuffer.flip();
+			buffers.add(dataBuffer);
+
+			writeBuffers(buffers.toArray(new ByteBuffer[buffers.size()]), data.size());
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data encoding exception [" + socketIO + "]" + e);
+			}
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Writes buffers with already encoded data of many packets at once. Ownership of the buffers is passed to the
+	 * socket, which returns them to the {@link ByteBufferPool} when data is sent.
+	 *
+	 * @param buffers buffers with data ready to be read
+	 * @param items number of packets encoded in the buffers
+	 */
+	protected void writeBuffers(final ByteBuffer[] buffers, int items) {
+		writeInProgress.lock();
+		try {
+			int length = socketIO.writeBatch(buffers);
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Wrote: {1} [{0}]", new Object[]{socketIO, length});
+			}
+			if (items > 1) {
+				writesSaved += items - 1;
+			}
+			setLastTransferTime();
+			empty_read_call_count = 0;
+		} catch (SSLHandshakeException e) {
+			if (log.isLoggable(Level.INFO)) {
+				log.log(Level.INFO, "Exception starting connection [" + socketIO + "]" + e);
+			}
+			forceStop();
+		} catch (Exception e) {
+			if (log.isLoggable(Level.FINER)) {
+				log.log(Level.FINER, "Data writing exception [" + socketIO + "]" + e);
+			}
+			forceStop();
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
 	protected boolean isSocketServiceReady() {
 		return socketServiceReady;
 	}
@@ -1022,14 +1136,168 @@ public abstract class IOService<RefObject>
 		return false;
 	}
 
+	/**
+	 * Called when data parsed directly from bytes contains invalid input. Buffer position is set to the first invalid
+	 * byte.
+	 *
+	 * @return <code>true</code> if the input was handled and the connection should not be stopped.
+	 */
+	protected boolean handleMalformedInput(ByteBuffer buffer) {
+		return false;
+	}
+
 	protected boolean isInputBufferEmpty() {
-		return (socketInput != null) && (socketInput.remaining() == socketInput.capacity());
+		return (socketInput == null) || (socketInput.remaining() == socketInput.capacity());
 	}
 
 	protected IOInterface getIO() {
 		return socketIO;
 	}
 
+	/**
+	 * Parks idle connection by releasing its transient buffers, codecs and parser state. They are recreated on the next
+	 * read or write, so parking is transparent for the connection. Connection is not parked if it is just reading or
+	 * writing data, has unprocessed input or data waiting to be sent.
+	 *
+	 * @return <code>true</code> if the connection is parked
+	 */
+	public boolean park() {
+		if (parked) {
+			return true;
+		}
+		if (!readInProgress.tryLock()) {
+			return false;
+		}
+		try {
+			if (!writeInProgress.tryLock()) {
+				return false;
+			}
+			try {
+				if (stopping || socketIO == null || !isInputBufferEmpty() || partialCharacterBytes != null ||
+						socketIO.waitingToSend() || !canPark()) {
+					return false;
+				}
+				releaseIdleState();
+				parked = true;
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Connection parked. [{0}]", socketIO);
+				}
+				return true;
+			} finally {
+				writeInProgress.unlock();
+			}
+		} finally {
+			readInProgress.unlock();
+		}
+	}
+
+	public boolean isParked() {
+		return parked;
+	}
+
+	/**
+	 * Returns rough estimation of heap memory retained by buffers and queues of this connection which are released
+	 * when the connection is parked, excluding direct network buffers.
+	 */
+	public long getRetainedHeapEstimate() {
+		long size = 0;
+		CharBuffer buffer = cb;
+		if (buffer != null) {
+			size += buffer.capacity() * 2L;
+		}
+		if (decoder != null) {
+			size += 64;
+		}
+		if (encoder != null) {
+			size += 64;
+		}
+		byte[] partial = partialCharacterBytes;
+		if (partial != null) {
+			size += partial.length;
+		}
+		return size;
+	}
+
+	/**
+	 * Subclasses may veto parking of the connection, ie. if they have data which are not processed yet. Called with read
+	 * and write locks held.
+	 */
+	protected boolean canPark() {
+		return true;
+	}
+
+	/**
+	 * Releases state which may be recreated lazily and returns network buffers to the {@link ByteBufferPool}. Called
+	 * with read and write locks held, subclasses overriding this method must call it.
+	 */
+	protected void releaseIdleState() {
+		if (socketInput != null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Releasing socketInput of {1} bytes. [{0}]",
+						new Object[]{socketIO, socketInput.capacity()});
+			}
+			ByteBufferPool.getInstance().release(socketInput);
+			socketInput = null;
+		}
+		cb = null;
+		decoder = null;
+		encoder = null;
+		socketIO.releaseBuffers();
+	}
+
+	/**
+	 * Returns character buffer with at least given capacity, creating it if it was released when the connection was
+	 * parked. Subclasses must use this method instead of accessing the field directly.
+	 */
+	protected CharBuffer getCharBuffer(int minCapacity) {
+		if (cb == null || cb.capacity() < minCapacity) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Resizing character buffer to: {1} [{0}]", new Object[]{socketIO, minCapacity});
+			}
+			cb = CharBuffer.allocate(Math.max(DEF_CHAR_BUFFER_SIZE, minCapacity));
+		}
+		return cb;
+	}
+
+	/**
+	 * Returns UTF-8 decoder, creating it if it was released when the connection was parked.
+	 */
+	protected CharsetDecoder getDecoder() {
+		if (decoder == null) {
+			decoder = StandardCharsets.UTF_8.newDecoder();
+		}
+		return decoder;
+	}
+
+	/**
+	 * Returns UTF-8 encoder, creating it if it was released when the connection was parked.
+	 */
+	protected CharsetEncoder getEncoder() {
+		if (encoder == null) {
+			encoder = StandardCharsets.UTF_8.newEncoder();
+		}
+		return encoder;
+	}
+
+	private void resetCodecs() {
+		CharsetEncoder enc = encoder;
+		if (enc != null) {
+			enc.reset();
+		}
+		CharsetDecoder dec = decoder;
+		if (dec != null) {
+			dec.reset();
+		}
+	}
+
+	private ByteBuffer acquireInputBuffer() {
+		if (socketInput == null) {
+			socketInput = ByteBufferPool.getInstance().acquire(socketInputSize);
+			socketInput.order(byteOrder());
+		}
+		return socketInput;
+	}
+
 	private void resizeInputBuffer() throws IOException {
 		int netSize = socketIO.getInputPacketSize();
 
@@ -1055,10 +1323,11 @@ public abstract class IOService<RefObject>
 				log.log(Level.FINE, "Resizing socketInput to {1} bytes. [{0}]", new Object[]{socketIO, newSize});
 			}
 
-			ByteBuffer b = ByteBuffer.allocate(newSize);
+			ByteBuffer b = ByteBufferPool.getInstance().acquire(newSize);
 
 			b.order(byteOrder());
 			b.put(socketInput);
+			ByteBufferPool.getInstance().release(socketInput);
 			socketInput = b;
 		} else {
 
@@ -1094,6 +1363,9 @@ public abstract class IOService<RefObject>
 
 	private void setLastTransferTime() {
 		lastTransferTime = System.currentTimeMillis();
+		if (parked) {
+			parked = false;
+		}
 	}
 
 }    // IOService
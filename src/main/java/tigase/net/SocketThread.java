@@ -53,12 +53,22 @@ public class SocketThread
 	private static ThreadPoolExecutor executor = null;
 	private static SocketThread[] socketReadThread = null;
 	private static SocketThread[] socketWriteThread = null;
+	private static EventLoopEngine eventLoopEngine = null;
 
 	//private static int threadNo = 0;
 //private static final int READ_ONLY = SelectionKey.OP_READ;
 //private static final int READ_WRITE = SelectionKey.OP_READ | SelectionKey.OP_WRITE;
 	static {
-		if (socketReadThread == null) {
+		if (EventLoopEngine.isSelected()) {
+			try {
+				eventLoopEngine = new EventLoopEngine(Integer.getInteger(EventLoopEngine.IO_ENGINE_LOOPS_PROP_KEY, cpus),
+													  Integer.getInteger(EventLoopEngine.IO_ENGINE_WORKERS_PROP_KEY,
+																		 (cpus * DEF_MAX_THREADS_PER_CPU) / 2 + 1));
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Can't start eventLoops, falling back to socketThreads.", e);
+			}
+		}
+		if (eventLoopEngine == null && socketReadThread == null) {
 			int nThreads = (cpus * DEF_MAX_THREADS_PER_CPU) / 2 + 1;
 
 			executor = new ThreadPoolExecutor(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS,
@@ -111,6 +121,10 @@ public class SocketThread
 
 	public static void addSocketService(IOService<?> s) {
 		s.setSocketServiceReady(true);
+		if (eventLoopEngine != null) {
+			eventLoopEngine.addSocketService(s);
+			return;
+		}
 		// Due to a delayed SelectionKey cancelling deregistering
 		// nature this distribution doesn't work well, it leads to
 		// dead-lock. Let's make sure the service is always processed
@@ -128,6 +142,10 @@ public class SocketThread
 
 	public static void removeSocketService(IOService<Object> s) {
 		s.setSocketServiceReady(false);
+		if (eventLoopEngine != null) {
+			eventLoopEngine.removeSocketService(s);
+			return;
+		}
 		socketReadThread[s.hashCode() % socketReadThread.length].removeSocketServicePriv(s);
 		socketWriteThread[s.hashCode() % socketWriteThread.length].removeSocketServicePriv(s);
 	}
@@ -26,6 +26,7 @@ import tigase.stats.StatisticsContainer;
 import tigase.stats.StatisticsList;
 import tigase.sys.TigaseRuntime;
 import tigase.util.Algorithms;
+import tigase.util.processing.KeyedSerialExecutor;
 import tigase.util.routing.PatternComparator;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.util.workqueue.PriorityQueueAbstract;
@@ -36,6 +37,7 @@ import java.text.DecimalFormat;
 import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -70,6 +72,17 @@ public abstract class AbstractMessageReceiver
 	 */
 	public static final String INCOMING_FILTERS_PROP_VAL = "tigase.server.filters.PacketCounter";
 
+	/**
+	 * Configuration property key enabling processing of incoming packets by <code>KeyedSerialExecutor</code> instead
+	 * of a thread per queue.
+	 */
+	public static final String KEYED_SERIAL_PROCESSING_PROP_KEY = "keyed-serial-processing";
+
+	/**
+	 * Number of buckets of <code>KeyedSerialExecutor</code> created for each processing thread.
+	 */
+	public static final int KEYED_SERIAL_BUCKETS_PER_THREAD = 64;
+
 	/**
 	 * Configuration property key allowing to overwrite a default (memory size dependent) size for the component
 	 * internal queues. By default the queue size is adjusted to the available memory size to avoid out of memory
@@ -101,6 +114,12 @@ public abstract class AbstractMessageReceiver
 
 	public static final String PACKET_DELIVERY_RETRY_COUNT_PROP_KEY = "packet-delivery-retry-count";
 
+	/**
+	 * Configuration property key for setting maximal number of packets taken at once from an internal queue by a
+	 * processing thread.
+	 */
+	public static final String QUEUE_BATCH_SIZE_PROP_KEY = "queue-batch-size";
+
 	/**
 	 * Configuration property key for setting number of threads used by component ScheduledExecutorService.
 	 */
@@ -126,6 +145,8 @@ public abstract class AbstractMessageReceiver
 
 	private static final Logger log = Logger.getLogger("tigase.debug.AbstractMessageReceiver");
 
+	private static final ToIntFunction<Packet> PACKET_PRIORITY = packet -> packet.getPriority().ordinal();
+
 	// PriorityQueueAbstract.getPriorityQueue(pr_cache.length, maxQueueSize);
 	@Inject
 	private PacketFiltersBean.IncomingPacketFiltersBean incoming_filters;
@@ -157,6 +178,14 @@ public abstract class AbstractMessageReceiver
 	@ConfigField(desc = "Maximum size of internal queues", alias = "max-queue-size")
 	protected int maxQueueSize = MAX_QUEUE_SIZE_PROP_VAL;
 	private int in_queues_size = processingInThreads();
+	@ConfigField(desc = "Process incoming packets on a shared pool of threads keeping order per packet hash code",
+			alias = KEYED_SERIAL_PROCESSING_PROP_KEY)
+	private boolean keyedSerialProcessing = false;
+	/**
+	 * Executor used for incoming packets if keyed serial processing is enabled. Packet priorities are not used in this
+	 * mode, packets with the same hash code are processed in the order they were added.
+	 */
+	private volatile KeyedSerialExecutor<Packet> keyedInExecutor = null;
 	private long last_hour_packets = 0;
 	private long last_minute_packets = 0;
 	private long last_second_packets = 0;
@@ -168,6 +197,7 @@ public abstract class AbstractMessageReceiver
 	private long packets_per_hour = 0;
 	private long packets_per_minute = 0;
 	private long packets_per_second = 0;
+	private boolean outPacketsBatching = false;
 	private MessageReceiver parent = null;
 	private int pptIdx = 0;
 	@ConfigField(desc = "Priority queue class", alias = "priority-queue-implementation")
@@ -179,6 +209,9 @@ public abstract class AbstractMessageReceiver
 	private int processingInThreads = processingInThreads();
 	@ConfigField(desc = "Number of threads processing outgoing packages", alias = "processing-out-threads")
 	private int processingOutThreads = processingOutThreads();
+	@ConfigField(desc = "Maximal number of packets taken at once from a queue by a processing thread",
+			alias = QUEUE_BATCH_SIZE_PROP_KEY)
+	private int queueBatchSize = 16;
 	private ScheduledExecutorService receiverScheduler = null;
 	private Timer receiverTasks = null;
 	private String resourceForPacketWithTimeout = null;
@@ -274,6 +307,22 @@ public abstract class AbstractMessageReceiver
 	 */
 	@Override
 	public boolean addPacket(Packet packet) {
+		KeyedSerialExecutor<Packet> executor = keyedInExecutor;
+		if (executor != null) {
+			try {
+				executor.put(hashCodeForPacket(packet), packet);
+				++statReceivedPacketsOk;
+				return true;
+			} catch (InterruptedException e) {
+				++statReceivedPacketsEr;
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Packet dropped for unknown reason: {0}", packet);
+				}
+
+				return false;
+			}
+		}
+
 		int queueIdx = Math.abs(hashCodeForPacket(packet) % in_queues_size);
 
 		if (log.isLoggable(Level.FINEST)) {
@@ -314,14 +363,21 @@ public abstract class AbstractMessageReceiver
 	 */
 	@Override
 	public boolean addPacketNB(Packet packet) {
-		int queueIdx = Math.abs(hashCodeForPacket(packet) % in_queues_size);
+		boolean result;
+		KeyedSerialExecutor<Packet> executor = keyedInExecutor;
 
-		if (log.isLoggable(Level.FINEST)) {
-			log.log(Level.FINEST, "[{0}] queueIdx={1}, {2}",
-					new Object[]{getName(), queueIdx, packet.toStringSecure()});
-		}
+		if (executor != null) {
+			result = executor.offer(hashCodeForPacket(packet), packet);
+		} else {
+			int queueIdx = Math.abs(hashCodeForPacket(packet) % in_queues_size);
 
-		boolean result = in_queues.get(queueIdx).offer(packet, packet.getPriority().ordinal());
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "[{0}] queueIdx={1}, {2}",
+						new Object[]{getName(), queueIdx, packet.toStringSecure()});
+			}
+
+			result = in_queues.get(queueIdx).offer(packet, packet.getPriority().ordinal());
+		}
 
 		if (result) {
 			++statReceivedPacketsOk;
@@ -339,9 +395,9 @@ public abstract class AbstractMessageReceiver
 
 	/**
 	 * This is a convenience method for adding all packets stored in given queue to the component's internal input
-	 * queue.<br> The method calls <code>addPacket(Packet)</code> in a loop for each packet in the queue. If the call
-	 * returns <code>true</code> then the packet is removed from the given queue, otherwise the methods ends the loop
-	 * and returns <code>false</code>. <br> Please note, if the method returns <code>true</code> it means that all the
+	 * queue.<br> Packets are grouped by the internal queue they are assigned to and each group is added to its queue
+	 * with a single call, so the processing thread is woken up once for the whole group. Packets which were added are
+	 * removed from the given queue. <br> Please note, if the method returns <code>true</code> it means that all the
 	 * packets from the queue passed as a parameter have been successfuly run through the <code>addPacket(Packet)</code>
 	 * method and the queue passed as a parameter should be empty. If the method returns false then at least one packet
 	 * from the parameter queue wasn't successfully run through the <code>addPacket(Packet)</code> method. If the method
@@ -361,20 +417,102 @@ public abstract class AbstractMessageReceiver
 	 */
 	@Override
 	public boolean addPackets(Queue<Packet> packets) {
-		boolean result = true;
-		Packet p = packets.peek();
+		if (keyedInExecutor != null || packets.size() == 1) {
+			Packet p = packets.peek();
+
+			while (p != null) {
+				if (addPacket(p)) {
+					packets.poll();
+				} else {
+					return false;
+				}
+				p = packets.peek();
+			}
 
-		while (p != null) {
-			result = addPacket(p);
-			if (result) {
-				packets.poll();
-			} else {
-				break;
-			}    // end of if (result) else
-			p = packets.peek();
-		}      // end of while ()
+			return true;
+		}
 
-		return result;
+		Queue<Packet>[] groups = groupByInQueue(packets);
+
+		for (int i = 0; i < groups.length; i++) {
+			Queue<Packet> group = groups[i];
+
+			if (group == null) {
+				continue;
+			}
+
+			int size = group.size();
+
+			try {
+				in_queues.get(i).putAll(group, PACKET_PRIORITY);
+				statReceivedPacketsOk += size;
+			} catch (InterruptedException e) {
+				statReceivedPacketsOk += size - group.size();
+				++statReceivedPacketsEr;
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Packet dropped for unknown reason: {0}", group.peek());
+				}
+
+				// Packets which were not added are given back to the caller
+				for (int j = i; j < groups.length; j++) {
+					if (groups[j] != null) {
+						packets.addAll(groups[j]);
+					}
+				}
+
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * This is a variant of <code>addPackets(Queue)</code> method which adds packets to the component's internal input
+	 * queues without blocking. Packets assigned to the same internal queue are added with a single call to the queue, so
+	 * the processing thread is woken up once for all of them. <br> Packets which could not be added due to queue
+	 * overflow are left in the queue passed as a parameter, all other packets are removed from it.
+	 *
+	 * @param packets is a <code>Queue</code> of packets for adding to the component internal input queue.
+	 *
+	 * @return a <code>boolean</code> value of <code>true</code> if all packets has been successfully added to the
+	 * component's internal input queue and <code>false</code> otherwise.
+	 *
+	 * @see AbstractMessageReceiver#addPacketNB(Packet packet)
+	 */
+	@Override
+	public boolean addPacketsNB(Queue<Packet> packets) {
+		if (keyedInExecutor != null || packets.size() == 1) {
+			for (Iterator<Packet> it = packets.iterator(); it.hasNext(); ) {
+				if (addPacketNB(it.next())) {
+					it.remove();
+				}
+			}
+
+			return packets.isEmpty();
+		}
+
+		Queue<Packet>[] groups = groupByInQueue(packets);
+
+		for (int i = 0; i < groups.length; i++) {
+			Queue<Packet> group = groups[i];
+
+			if (group == null) {
+				continue;
+			}
+			statReceivedPacketsOk += in_queues.get(i).offerAll(group, PACKET_PRIORITY);
+			if (!group.isEmpty()) {
+
+				// Queue overflow!
+				statReceivedPacketsEr += group.size();
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Packets dropped due to queue overflow: {0}", group);
+				}
+				packets.addAll(group);
+			}
+		}
+
+		return packets.isEmpty();
 	}
 
 	/**
@@ -427,6 +565,18 @@ public abstract class AbstractMessageReceiver
 		task.setScheduledFuture(future);
 	}
 
+	/**
+	 * Method executes the task without delay using ScheduledExecutorService of this component, which is used for
+	 * executing timer tasks.
+	 */
+	public void executeTimerTask(Runnable task) {
+		if (receiverScheduler == null) {
+			tasksAwaitingReceiver.offer(() -> this.executeTimerTask(task));
+			return;
+		}
+		receiverScheduler.execute(task);
+	}
+
 	public void addTimerTask(tigase.util.common.TimerTask task, long initialDelay, long period) {
 		if (task.isCancelled()) {
 			return;
@@ -767,6 +917,12 @@ public abstract class AbstractMessageReceiver
 			in_queue_size += total_size.totalSize();
 		}
 
+		KeyedSerialExecutor<Packet> executor = keyedInExecutor;
+		if (executor != null) {
+			in_queue_size += executor.size();
+			executor.getStatistics(getName(), list);
+		}
+
 		int out_queue_size = 0;
 
 		for (PriorityQueueAbstract<Packet> total_size : out_queues) {
@@ -864,6 +1020,10 @@ public abstract class AbstractMessageReceiver
 			this.out_queues.clear();
 		}
 
+		if (keyedSerialProcessing != (keyedInExecutor != null)) {
+			recreate = true;
+		}
+
 		if (recreate) {
 			recreateProcessingQueues(maxQueueSize);
 		}
@@ -1012,6 +1172,33 @@ public abstract class AbstractMessageReceiver
 		return def;
 	}
 
+	/**
+	 * Method processes a batch of packets taken at once from the component's internal input queue. It is called by the
+	 * thread processing the queue and by default calls <code>processPacket(Packet)</code> for each packet. <br>
+	 * Components may override it to collect results of processing of all packets from the batch and pass them further
+	 * at once, after the whole batch is processed.
+	 *
+	 * @param packets is a list of packets taken from the input queue in the order in which they should be processed.
+	 */
+	protected void processInPackets(List<Packet> packets) {
+		for (Packet packet : packets) {
+			try {
+				processInPacket(packet);
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "[" + getName() + "] Exception during packet processing: " + packet, e);
+			}
+		}
+	}
+
+	private boolean isProcessOutPacketOverridden() {
+		try {
+			return getClass().getMethod("processOutPacket", Packet.class).getDeclaringClass() !=
+					AbstractMessageReceiver.class;
+		} catch (NoSuchMethodException e) {
+			return true;
+		}
+	}
+
 	private void recreateProcessingQueues(int maxQueueSize) {
 		// Processing threads number is split to incoming and outgoing queues...
 		// So real processing threads number of in_queues is processingThreads()/2
@@ -1050,6 +1237,7 @@ public abstract class AbstractMessageReceiver
 				in_queues.get(i).setMaxSize(maxInQueueSize);
 			}
 		}
+		recreateKeyedInExecutor();
 		if (out_queues.size() == 0) {
 			for (int i = 0; i < out_queues_size; i++) {
 				PriorityQueueAbstract<Packet> queue = PriorityQueueAbstract.getPriorityQueue(pr_cache.length,
@@ -1065,6 +1253,120 @@ public abstract class AbstractMessageReceiver
 		}
 	}
 
+	/**
+	 * Moves packets from the given queue to groups of packets assigned to the same internal input queue, keeping
+	 * order of packets within each group.
+	 *
+	 * @return array of groups indexed by the input queue index, with <code>null</code> for queues without packets
+	 */
+	@SuppressWarnings("unchecked")
+	private Queue<Packet>[] groupByInQueue(Queue<Packet> packets) {
+		Queue<Packet>[] groups = new Queue[in_queues_size];
+		Packet packet;
+
+		while ((packet = packets.poll()) != null) {
+			int queueIdx = Math.abs(hashCodeForPacket(packet) % in_queues_size);
+
+			if (groups[queueIdx] == null) {
+				groups[queueIdx] = new ArrayDeque<>();
+			}
+			groups[queueIdx].offer(packet);
+		}
+
+		return groups;
+	}
+
+	private void processInPacket(Packet packet) {
+		long startPPT = System.currentTimeMillis();
+
+		// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
+		// packet.getFrom(), getName(), type.name(), null, packet);
+		PacketReceiverTaskIfc task = null;
+
+		if (packet.getTo() != null) {
+			String id = packet.getTo().toString() + packet.getStanzaId();
+
+			task = waitingTasks.remove(id);
+		}
+		if (task == null && packet.getStanzaTo() != null) {
+			String id = packet.getStanzaTo().toString() + packet.getStanzaId();
+
+			task = waitingTasks.remove(id);
+		}
+		if (task != null) {
+			task.handleResponse(packet);
+		} else {
+
+			// log.finest("[" + getName() + "]  " +
+			// "No task found for id: " + id);
+			// Maybe this is a command for local processing...
+			boolean processed = false;
+
+			if (packet.isCommand() && (packet.getStanzaTo() != null) &&
+					getName().equals(packet.getStanzaTo().getLocalpart()) &&
+					isLocalDomain(packet.getStanzaTo().getDomain())) {
+				Queue<Packet> results = new ArrayDeque<>(2);
+
+				processed = processScriptCommand(packet, results);
+				if (processed) {
+					Packet result = null;
+
+					while ((result = results.poll()) != null) {
+						addOutPacket(result);
+					}
+				}
+			}
+			if (!processed) {
+				Packet filtered = filterPacket(packet, incoming_filters.getFilters());
+				if (filtered != null) {
+					processPacket(filtered);
+				}
+			}
+
+			// It is all concurrent so we have to use a local index variable
+			int idx = pptIdx;
+
+			pptIdx = (pptIdx + 1) % processPacketTimings.length;
+
+			long timing = System.currentTimeMillis() - startPPT;
+
+			processPacketTimings[idx] = timing;
+		}
+	}
+
+	private void processOutPackets(List<Packet> packets, Queue<Packet> pending) {
+		for (Packet packet : packets) {
+			try {
+
+				// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
+				// packet.getTo(), getName(), type.name(), null, packet);
+				Packet filtered = filterPacket(packet, outgoing_filters.getFilters());
+
+				if (filtered != null) {
+					if (outPacketsBatching) {
+						pending.offer(filtered);
+					} else {
+						processOutPacket(filtered);
+					}
+				}
+			} catch (Exception e) {
+				log.log(Level.SEVERE, "[" + getName() + "] Exception during packet processing: " + packet, e);
+			}
+		}
+		if (!pending.isEmpty()) {
+			if (parent != null) {
+				// packets which were not added, because the thread was interrupted, are left in the queue
+				parent.addPackets(pending);
+			} else {
+
+				// It may happen for MessageRouter and this is intentional
+				addPacketsNB(pending);
+				// packets left in the queue were dropped due to queue overflow
+				pending.clear();
+			}
+		}
+	}
+
 	private Packet filterPacket(Packet packet, List<PacketFilterIfc> filters) {
 		Packet result = packet;
 
@@ -1078,6 +1380,104 @@ public abstract class AbstractMessageReceiver
 		return result;
 	}
 
+	/**
+	 * Creates, replaces or removes executor for keyed serial processing of incoming packets. Packets waiting in the
+	 * replaced executor or in the input queues are moved to the new ones, so they are not lost. Packets which are added
+	 * while processing is being switched may be processed out of order.
+	 */
+	private void recreateKeyedInExecutor() {
+		final boolean running = threadsQueueIn != null;
+		final KeyedSerialExecutor<Packet> oldExecutor = keyedInExecutor;
+		if (keyedSerialProcessing) {
+			if (oldExecutor != null && oldExecutor.getThreadsNo() == in_queues_size &&
+					oldExecutor.getMaxQueueSize() == maxInQueueSize * in_queues_size) {
+				return;
+			}
+			KeyedSerialExecutor<Packet> executor = new KeyedSerialExecutor<>("in-" + getName(), in_queues_size,
+																			 in_queues_size *
+																					 KEYED_SERIAL_BUCKETS_PER_THREAD,
+																			 maxInQueueSize * in_queues_size,
+																			 this::processInPacket);
+			if (running) {
+				executor.start();
+			}
+			keyedInExecutor = executor;
+			if (oldExecutor != null) {
+				oldExecutor.stop();
+				oldExecutor.drainTo((packet, key) -> moveInPacket(packet, running));
+			} else if (running) {
+				try {
+					stopThread(threadsQueueIn);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+				threadsQueueIn.clear();
+				for (PriorityQueueAbstract<Packet> queue : in_queues) {
+					try {
+						while (queue.totalSize() > 0) {
+							moveInPacket(queue.take(), running);
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		} else if (oldExecutor != null) {
+			keyedInExecutor = null;
+			if (running && threadsQueueIn.isEmpty()) {
+				startInQueueListeners();
+			}
+			oldExecutor.stop();
+			oldExecutor.drainTo((packet, key) -> moveInPacket(packet, running));
+		}
+	}
+
+	/**
+	 * Adds incoming packet taken from replaced executor or queue to the current one, waiting for room if the current
+	 * one is processed.
+	 */
+	private void moveInPacket(Packet packet, boolean wait) {
+		KeyedSerialExecutor<Packet> executor = keyedInExecutor;
+		boolean added;
+		try {
+			if (executor != null) {
+				if (wait) {
+					executor.put(hashCodeForPacket(packet), packet);
+					added = true;
+				} else {
+					added = executor.offer(hashCodeForPacket(packet), packet);
+				}
+			} else {
+				PriorityQueueAbstract<Packet> queue = in_queues.get(
+						Math.abs(hashCodeForPacket(packet) % in_queues_size));
+				if (wait) {
+					queue.put(packet, packet.getPriority().ordinal());
+					added = true;
+				} else {
+					added = queue.offer(packet, packet.getPriority().ordinal());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			added = false;
+		}
+		if (!added) {
+			++statReceivedPacketsEr;
+			log.log(Level.WARNING, "{0}: packet dropped while switching processing of incoming packets: {1}",
+					new Object[]{getName(), packet.toStringSecure()});
+		}
+	}
+
+	private void startInQueueListeners() {
+		for (int i = 0; i < in_queues_size; i++) {
+			QueueListener in_thread = new QueueListener(in_queues.get(i), QueueType.IN_QUEUE);
+
+			in_thread.setName("in_" + i + "-" + getName());
+			in_thread.start();
+			threadsQueueIn.add(in_thread);
+		}
+	}
+
 	private void startThreads() {
 		if (log.isLoggable(Level.CONFIG)) {
 			log.log(Level.CONFIG,
@@ -1086,15 +1486,14 @@ public abstract class AbstractMessageReceiver
 		}
 		if (threadsQueueIn == null) {
 			threadsQueueIn = new ArrayDeque<>(8);
-			for (int i = 0; i < in_queues_size; i++) {
-				QueueListener in_thread = new QueueListener(in_queues.get(i), QueueType.IN_QUEUE);
-
-				in_thread.setName("in_" + i + "-" + getName());
-				in_thread.start();
-				threadsQueueIn.add(in_thread);
+			if (keyedInExecutor != null) {
+				keyedInExecutor.start();
+			} else {
+				startInQueueListeners();
 			}
 		}
 		if (threadsQueueOut == null) {
+			outPacketsBatching = !isProcessOutPacketOverridden();
 			threadsQueueOut = new ArrayDeque<>(8);
 			for (int i = 0; i < out_queues_size; i++) {
 				QueueListener out_thread = new QueueListener(out_queues.get(i), QueueType.OUT_QUEUE);
@@ -1140,6 +1539,9 @@ public abstract class AbstractMessageReceiver
 	private void stopThreads() {
 		// stopped = true;
 		try {
+			if (keyedInExecutor != null) {
+				keyedInExecutor.stop();
+			}
 			stopThread(threadsQueueIn);
 			stopThread(threadsQueueOut);
 
@@ -1320,7 +1722,6 @@ public abstract class AbstractMessageReceiver
 	private class QueueListener
 			extends Thread {
 
-		private String compName = null;
 		private long packetCounter = 0;
 		private PriorityQueueAbstract<Packet> queue;
 		private boolean threadStopped = false;
@@ -1329,7 +1730,6 @@ public abstract class AbstractMessageReceiver
 		private QueueListener(PriorityQueueAbstract<Packet> q, QueueType type) {
 			this.queue = q;
 			this.type = type;
-			compName = AbstractMessageReceiver.this.getName();
 		}
 
 		@Override
@@ -1338,83 +1738,26 @@ public abstract class AbstractMessageReceiver
 				log.log(Level.FINEST, "{0} starting queue processing.", getName());
 			}
 
-			Packet packet = null;
-			Queue<Packet> results = new ArrayDeque<Packet>(2);
+			List<Packet> packets = new ArrayList<>(Math.max(1, queueBatchSize));
+			Queue<Packet> pending = new ArrayDeque<>(Math.max(1, queueBatchSize));
 
 			while (!threadStopped) {
 				try {
 
-					// Now process next waiting packet
-					// log.finest("[" + getName() + "] before take... " + type);
-					// packet = queue.take(getName() + ":" + type);
-					packet = queue.take();
-					++packetCounter;
+					// Now process next waiting packets
+					packetCounter += queue.drainTo(packets, Math.max(1, queueBatchSize));
 
-					// if (log.isLoggable(Level.INFO)) {
-					// log.info("[" + getName() + "] packet from " + type + " queue: " +
-					// packet);
-					// }
 					switch (type) {
 						case IN_QUEUE:
-							long startPPT = System.currentTimeMillis();
-
-							// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
-							// packet.getFrom(), getName(), type.name(), null, packet);
-							PacketReceiverTaskIfc task = null;
-
-							if (packet.getTo() != null) {
-								String id = packet.getTo().toString() + packet.getStanzaId();
-
-								task = waitingTasks.remove(id);
-							}
-							if (task == null && packet.getStanzaTo() != null) {
-								String id = packet.getStanzaTo().toString() + packet.getStanzaId();
-
-								task = waitingTasks.remove(id);
-							}
-							if (task != null) {
-								task.handleResponse(packet);
-							} else {
-
-								// log.finest("[" + getName() + "]  " +
-								// "No task found for id: " + id);
-								// Maybe this is a command for local processing...
-								boolean processed = false;
-
-								if (packet.isCommand() && (packet.getStanzaTo() != null) &&
-										compName.equals(packet.getStanzaTo().getLocalpart()) &&
-										isLocalDomain(packet.getStanzaTo().getDomain())) {
-									processed = processScriptCommand(packet, results);
-									if (processed) {
-										Packet result = null;
-
-										while ((result = results.poll()) != null) {
-											addOutPacket(result);
-										}
-									}
-								}
-								if (!processed && ((packet = filterPacket(packet, incoming_filters.getFilters())) != null)) {
-									processPacket(packet);
-								}
-
-								// It is all concurrent so we have to use a local index variable
-								int idx = pptIdx;
-
-								pptIdx = (pptIdx + 1) % processPacketTimings.length;
-
-								long timing = System.currentTimeMillis() - startPPT;
-
-								processPacketTimings[idx] = timing;
-							}
+							processInPackets(packets);
 
 							break;
 
 						case OUT_QUEUE:
-
-							// tracer.trace(null, packet.getElemTo(), packet.getElemFrom(),
-							// packet.getTo(), getName(), type.name(), null, packet);
-							if ((packet = filterPacket(packet, outgoing_filters.getFilters())) != null) {
-								processOutPacket(packet);
+							processOutPackets(packets, pending);
+							// retry packets not passed to the parent due to interruption, unless the thread is stopped
+							while (!pending.isEmpty() && !threadStopped) {
+								parent.addPackets(pending);
 							}
 
 							break;
@@ -1430,10 +1773,17 @@ public abstract class AbstractMessageReceiver
 					// stopped = true;
 				} catch (Exception e) {
 					if (!threadStopped) {
-						log.log(Level.SEVERE, "[" + getName() + "] Exception during packet processing: " + packet, e);
+						log.log(Level.SEVERE, "[" + getName() + "] Exception during packets processing: " + packets, e);
 					} else {
 						//log.log(Level.FINEST, "[" + getName() + "] Stopping processing thread");
 					}
+				} finally {
+					packets.clear();
+					if (!pending.isEmpty()) {
+						log.log(Level.WARNING, "[{0}] {1} outgoing packets dropped",
+								new Object[]{getName(), pending.size()});
+						pending.clear();
+					}
 				}    // end of try-catch
 			}      // end of while (! threadStopped)
 		}
@@ -18,6 +18,7 @@
 package tigase.server;
 
 import tigase.annotations.TODO;
+import tigase.io.ByteBufferPool;
 import tigase.io.CertificateContainerIfc;
 import tigase.io.SSLContextContainerIfc;
 import tigase.kernel.beans.*;
@@ -30,6 +31,7 @@ import tigase.server.script.CommandIfc;
 import tigase.server.xmppclient.XMPPIOProcessor;
 import tigase.stats.StatisticsList;
 import tigase.util.common.TimerTask;
+import tigase.util.common.TimingWheel;
 import tigase.util.repository.DataTypes;
 import tigase.xml.Element;
 import tigase.xmpp.StreamError;
@@ -106,10 +108,16 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	public static final String XMPP_ACK_PROP_KEY = "xmpp-ack";
 	public static final boolean XMPP_ACK_PROP_VAL = false;
 	public static final boolean WHITE_CHAR_ACK_PROP_VAL = false;
+	public static final String WRITE_BATCH_BYTES_PROP_KEY = "write-batch-bytes";
+	public static final int WRITE_BATCH_BYTES_PROP_VAL = 16 * 1024;
+	public static final String BYTE_PARSER_PROP_KEY = "byte-parser";
+	public static final String PARK_AFTER_PROP_KEY = "park-after";
 	public static final String PORTS_PROP_KEY = PROP_KEY + "ports";
 	public static final String WATCHDOG_DELAY = "watchdog_delay";
 	public static final String WATCHDOG_TIMEOUT = "watchdog_timeout";
 	public static final String WATCHDOG_PING_TYPE_KEY = "watchdog_ping_type";
+	private static final String WATCHDOG_TASK_KEY = "WatchdogTask";
+	private static final String PARK_TASK_KEY = "ParkTask";
 
 	protected static final Element pingElement = new Element("iq", new Element[]{
 			new Element("ping", new String[]{"xmlns"}, new String[]{"urn:xmpp:ping"})}, new String[]{"type", "id"},
@@ -135,6 +143,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	private static ConnectionOpenThread connectThread = ConnectionOpenThread.getInstance();
 	@ConfigField(desc = "Interfaces to listen on", alias = PORT_IFC_PROP_KEY)
 	public String[] PORT_IFC_PROP_VAL = {"*"};
+	@ConfigField(desc = "Parse received data directly from bytes", alias = BYTE_PARSER_PROP_KEY)
+	protected boolean byteParser = false;
 	@ConfigField(desc = "Delay before connection is established")
 	protected long connectionDelay = 2 * SECOND;
 	protected boolean delayPortListening = PORT_LISTENING_DELAY_DEF;
@@ -153,8 +163,12 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	protected String trafficThrottling = null;
 	@ConfigField(desc = "Watchdog delay", alias = "watchdog-delay")
 	protected long watchdogDelay = 10 * MINUTE; // 600 000
+	@ConfigField(desc = "Time of inactivity after which connection is parked", alias = PARK_AFTER_PROP_KEY)
+	protected long parkAfter = 0;
 	@ConfigField(desc = "Watchdog ping type", alias = "watchdog-ping-type")
 	protected WATCHDOG_PING_TYPE watchdogPingType = WATCHDOG_PING_TYPE.WHITESPACE;
+	@ConfigField(desc = "Watchdog checks connections using timing wheel", alias = "watchdog-timing-wheel")
+	protected boolean watchdogTimingWheel = true;
 	@ConfigField(desc = "Watchdog timeout", alias = "watchdog-timeout")
 	protected long watchdogTimeout = 29 * MINUTE; // 1 740 000
 	private long bytesReceived = 0;
@@ -187,13 +201,19 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	private long total_bin_limit = TOTAL_BIN_LIMIT_PROP_VAL;
 	@ConfigField(desc = "Limit of total number of packets per connection")
 	private long total_packets_limit = TOTAL_PACKETS_LIMIT_PROP_VAL;
+	private volatile TimingWheel timingWheel = null;
+	private long parkedTotal = 0;
 	private LinkedList<Map<String, Object>> waitingTasks = new LinkedList<Map<String, Object>>();
 	private Watchdog watchdog = null;
+	private long watchdogChecks = 0;
 	private long watchdogRuns = 0;
 	private long watchdogStopped = 0;
 	private long watchdogTests = 0;
 	private boolean white_char_ack = WHITE_CHAR_ACK_PROP_VAL;
 
+	@ConfigField(desc = "Maximal size of packets written to socket at once", alias = WRITE_BATCH_BYTES_PROP_KEY)
+	private int writeBatchBytes = WRITE_BATCH_BYTES_PROP_VAL;
+	private long writesSaved = 0;
 	@ConfigField(desc = "Action taken if XMPP limit is exceeded")
 	private LIMIT_ACTION xmppLimitAction = LIMIT_ACTION.DISCONNECT;
 	private boolean xmpp_ack = XMPP_ACK_PROP_VAL;
@@ -371,6 +391,15 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 	 */
 	public abstract boolean processUndeliveredPacket(Packet packet, Long stamp, String errorMessage);
 
+	/**
+	 * Removes and returns packets sent with XMPP ack request over the stopped connection which were not confirmed,
+	 * so they are processed as undelivered. Connection managers which do not enable XMPP acks on their connections
+	 * return an empty list.
+	 */
+	protected List<Packet> drainUnackedPackets(IO service) {
+		return Collections.emptyList();
+	}
+
 	public abstract void reconnectionFailed(Map<String, Object> port_props);
 
 	public HashSet<Integer> getDefPorts() {
@@ -409,6 +438,22 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		super.release();
 	}
 
+	/**
+	 * Method schedules execution of the task using timing wheel of this connection manager, which is suitable for a
+	 * large number of timeouts which are usually cancelled before they expire. Expired task is executed by the
+	 * scheduler of this component, the same as tasks added with {@link #addTimerTask(TimerTask, long, TimeUnit)}, and
+	 * it may be executed up to 10ms later than requested. If connection manager is not started, task is scheduled with
+	 * {@link #addTimerTask(TimerTask, long, TimeUnit)}.
+	 */
+	public void addTimeoutTask(TimerTask task, long delay, TimeUnit unit) {
+		TimingWheel wheel = timingWheel;
+		if (wheel == null) {
+			addTimerTask(task, delay, unit);
+			return;
+		}
+		task.setTimeout(wheel.schedule(task, delay, unit));
+	}
+
 	protected void serviceConnected(IO service) {
 		ServiceConnectedTimer.cancel(service);
 	}
@@ -445,7 +490,13 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 
 		if (enableServiceConnectedTimeout(service)) {
 			ServiceConnectedTimer startTimer = new ServiceConnectedTimer(service);
-			addTimerTask(startTimer, serviceConnectedTimeout, TimeUnit.SECONDS);
+			addTimeoutTask(startTimer, serviceConnectedTimeout, TimeUnit.SECONDS);
+		}
+		if (watchdog != null && watchdogTimingWheel) {
+			watchdog.schedule(service);
+		}
+		if (parkAfter > 0) {
+			ParkTask.schedule(this, service);
 		}
 		// }
 	}
@@ -462,6 +513,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		}
 
 		ServiceConnectedTimer.cancel(service);
+		if (watchdog != null) {
+			watchdog.cancel(service);
+		}
+		ParkTask.cancel(service);
 
 		// synchronized(service) {
 		String id = getUniqueId(service);
@@ -479,6 +534,17 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			if (result) {
 				--services_size;
 
+				// packets sent with ack request which were not confirmed yet, including packets still waiting in
+				// the queue
+				List<Packet> unackedPackets = drainUnackedPackets(service);
+				if (!unackedPackets.isEmpty()) {
+					log.log(Level.FINEST, "[[{0}]] processing not confirmed packets: {1}",
+							new Object[]{getName(), unackedPackets.size()});
+					for (Packet p : unackedPackets) {
+						processUndeliveredPacket(p, null, null);
+					}
+				}
+
 				Queue<Packet> undeliveredPackets = service.getWaitingPackets();
 				log.log(Level.FINEST, "[[{0}]] processing undelivered packets: {1}",
 						new Object[]{getName(), undeliveredPackets.size()});
@@ -507,6 +573,15 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		sslContextContainer.start();
 		super.start();
 
+		// expired tasks are executed by the scheduler, as they may write to sockets
+		timingWheel = new TimingWheel("Timing wheel - " + getName(), 10, TimeUnit.MILLISECONDS, 4096,
+									  task -> executeTimerTask(() -> {
+										  if (!(task instanceof TimerTask) || !((TimerTask) task).isCancelled()) {
+											  task.run();
+										  }
+									  }));
+		// watchdog has to be ready before any connection is started
+		setupWatchdogThread();
 		started = true;
 		if (!delayPortListening) {
 			connectWaitingTasks();
@@ -514,8 +589,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			log.log(Level.WARNING, "Delaying opening ports of component: {0}", getName());
 		}
 
-		setupWatchdogThread();
-		if (null != watchdog) {
+		if (null != watchdog && !watchdogTimingWheel && Thread.State.NEW.equals(watchdog.getState())) {
 			watchdog.start();
 		}
 	}
@@ -533,6 +607,10 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			service.forceStop();
 		}
 		portsConfigBean.stop();
+		if (timingWheel != null) {
+			timingWheel.shutdown();
+			timingWheel = null;
+		}
 		super.stop();
 		sslContextContainer.stop();
 	}
@@ -641,18 +719,35 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 		list.add(getName(), "Open connections", services_size, Level.INFO);
 		if (list.checkLevel(Level.FINEST) || (services.size() < 1000)) {
 			int waitingToSendSize = 0;
+			int parked = 0;
+			long retainedHeap = 0;
 
 			for (IO serv : services.values()) {
 				waitingToSendSize += serv.waitingToSendSize();
+				if (serv.isParked()) {
+					++parked;
+				}
+				retainedHeap += serv.getRetainedHeapEstimate();
 			}
 			list.add(getName(), "Waiting to send", waitingToSendSize, Level.FINE);
+			list.add(getName(), "Parked connections", parked, Level.FINE);
+			list.add(getName(), "Estimated retained heap per connection [B]",
+					 services.isEmpty() ? 0 : retainedHeap / services.size(), Level.FINE);
 		}
+		list.add(getName(), "Connections parked", parkedTotal, Level.FINER);
 		list.add(getName(), "Bytes sent", bytesSent, Level.FINE);
 		list.add(getName(), "Bytes received", bytesReceived, Level.FINE);
 		list.add(getName(), "Socket overflow", socketOverflow, Level.FINE);
+		list.add(getName(), "Socket writes saved by batching", writesSaved, Level.FINE);
 		list.add(getName(), "Watchdog runs", watchdogRuns, Level.FINER);
+		list.add(getName(), "Watchdog connection checks", watchdogChecks, Level.FINER);
 		list.add(getName(), "Watchdog tests", watchdogTests, Level.FINE);
 		list.add(getName(), "Watchdog stopped", watchdogStopped, Level.FINE);
+		ByteBufferPool.getInstance().getStatistics(getName(), list);
+		TimingWheel wheel = timingWheel;
+		if (wheel != null) {
+			wheel.getStatistics(getName(), list);
+		}
 		for (XMPPIOProcessor proc : processors) {
 			proc.getStatistics(list);
 		}
@@ -771,7 +866,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			reconnectService(params, connectionDelay);
 		}
 		waitingTasks.clear();
-		if (null != watchdog && Thread.State.NEW.equals(watchdog.getState())) {
+		if (null != watchdog && !watchdogTimingWheel && Thread.State.NEW.equals(watchdog.getState())) {
 			watchdog.start();
 		}
 		delayPortListening = false;
@@ -1201,6 +1296,8 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			IO serv = getXMPPIOServiceInstance();
 			serv.setSslContextContainer(sslContextContainer);
 			serv.setBufferLimit(net_buffer_limit);
+			serv.setWriteBatchBytes(writeBatchBytes);
+			serv.setByteParsing(byteParser);
 			serv.setCertificateContainer(certificateContainer);
 
 			((XMPPDomBuilderHandler) serv.getSessionData().get(DOM_HANDLER)).setElementsLimit(elements_number_limit);
@@ -1345,6 +1442,7 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			bytesReceived += service.getBytesReceived(true);
 			bytesSent += service.getBytesSent(true);
 			socketOverflow += service.getBuffOverflow(true);
+			writesSaved += service.getWritesSaved(true);
 			service.getPacketsReceived(true);
 			service.getPacketsSent(true);
 
@@ -1400,6 +1498,106 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			return curr_time - lastTransfer;
 		}
 
+		/**
+		 * Starts checking of the service using timing wheel. Service is checked when it may be inactive for
+		 * <code>watchdogTimeout</code> and then every <code>watchdogDelay</code> until it becomes active again or it is
+		 * stopped, so connections are not scanned periodically.
+		 */
+		protected void schedule(final XMPPIOService service) {
+			TimingWheel wheel = timingWheel;
+			if (wheel == null) {
+				return;
+			}
+			WatchdogTask task = new WatchdogTask(service);
+			service.getSessionData().put(WATCHDOG_TASK_KEY, task);
+			task.setTimeout(wheel.schedule(task, Math.min(watchdogTimeout, maxInactivityTime), TimeUnit.MILLISECONDS));
+		}
+
+		protected void cancel(final XMPPIOService service) {
+			WatchdogTask task = (WatchdogTask) service.getSessionData().remove(WATCHDOG_TASK_KEY);
+			if (task != null) {
+				task.cancel();
+			}
+		}
+
+		/**
+		 * Checks whether the service is alive, sends ping if it is inactive for <code>watchdogTimeout</code> and stops
+		 * it if it is inactive for longer than allowed maximal inactivity time.
+		 *
+		 * @return delay in milliseconds after which the service should be checked again or <code>-1</code> if the
+		 * service was stopped
+		 */
+		protected long check(final XMPPIOService service) {
+			try {
+				long sinceLastTransfer = getDurationSinceLastTransfer(service);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST,
+							"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
+							new Object[]{service, sinceLastTransfer, maxInactivityTime, watchdogTimeout,
+										 watchdogDelay, watchdogPingType});
+				}
+				if (sinceLastTransfer >= maxInactivityTime) {
+
+					// Stop the service if max keep-alive time is exceeded
+					// for non-active connections.
+					if (log.isLoggable(Level.INFO)) {
+						log.log(Level.INFO,
+								"Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} ) [{0}]",
+								new Object[]{getName(), service, sinceLastTransfer, maxInactivityTime,
+											 watchdogTimeout, watchdogDelay, watchdogPingType});
+					}
+					++watchdogStopped;
+					service.forceStop();
+					return -1;
+				}
+
+				long nextCheck = watchdogTimeout - sinceLastTransfer;
+				if (sinceLastTransfer >= (watchdogTimeout)) {
+
+					/** At least once every configured timings check if the
+					 * connection is still alive with the use of configured
+					 * ping type. */
+					switch (watchdogPingType) {
+						case XMPP:
+							pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
+									(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
+														   JID.jidInstanceNS(service.getUserJid()));
+							if (log.isLoggable(Level.FINEST)) {
+								log.log(Level.FINEST, "Sending XMPP ping {1} [{0}]", new Object[]{service, pingPacket});
+							}
+							if (!writePacketToSocket((IO) service, pingPacket)) {
+								// writing failed, stopp service
+								++watchdogStopped;
+								service.forceStop();
+								return -1;
+							}
+							break;
+
+						case WHITESPACE:
+							if (log.isLoggable(Level.FINEST)) {
+								log.log(Level.FINEST, "Sending whitespace ping for service {0}", new Object[]{service});
+							}
+							service.writeRawData(" ");
+							break;
+					}
+					++watchdogTests;
+					nextCheck = watchdogDelay;
+				}
+				return Math.min(nextCheck, maxInactivityTime - sinceLastTransfer);
+			} catch (IOException e) {
+
+				// Close the service
+				try {
+					log.info(getName() + ": Found dead connection, stopping: " + service);
+					++watchdogStopped;
+					service.forceStop();
+				} catch (Exception ignore) {
+					// Do nothing here as we expect Exception to be thrown here...
+				}
+				return -1;
+			}
+		}
+
 		private void executeWatchdog() {
 			/** Walk through all connections and check whether they are really
 			 * alive. Depending on the configuration send either whitespace or
@@ -1409,78 +1607,81 @@ public abstract class ConnectionManager<IO extends XMPPIOService<?>>
 			doForAllServices(new ServiceChecker<IO>() {
 				@Override
 				public void check(final XMPPIOService service) {
-					try {
-						if (null != service) {
-							long sinceLastTransfer = getDurationSinceLastTransfer(service);
-							if (log.isLoggable(Level.FINEST)) {
-								log.log(Level.FINEST,
-										"Testing service: {0}, sinceLastTransfer: {1}, maxInactivityTime: {2}, watchdogTimeout: {3}, watchdogDelay: {4}, watchdogPingType: {5} ",
-										new Object[]{service, sinceLastTransfer, maxInactivityTime,
-													 watchdogTimeout, watchdogDelay, watchdogPingType});
-							}
-							if (sinceLastTransfer >= maxInactivityTime) {
-
-								// Stop the service if max keep-alive time is exceeded
-								// for non-active connections.
-								if (log.isLoggable(Level.INFO)) {
-									log.log(Level.INFO,
-											"Max inactive time exceeded, stopping: {1} ( sinceLastTransfer: {2}, maxInactivityTime: {3}, watchdogTimeout: {4}, watchdogDelay: {5}, watchdogPingType: {6} ) [{0}]",
-											new Object[]{getName(), service, sinceLastTransfer,
-														 maxInactivityTime, watchdogTimeout, watchdogDelay,
-														 watchdogPingType});
-								}
-								++watchdogStopped;
-								service.forceStop();
-							} else {
-								if (sinceLastTransfer >= (watchdogTimeout)) {
-
-									/** At least once every configured timings check if the
-									 * connection is still alive with the use of configured
-									 * ping type. */
-									switch (watchdogPingType) {
-										case XMPP:
-											pingPacket = Iq.packetInstance(pingElement.clone(), JID.jidInstanceNS(
-													(String) service.getSessionData().get(XMPPIOService.HOSTNAME_KEY)),
-																		   JID.jidInstanceNS(service.getUserJid()));
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "Sending XMPP ping {1} [{0}]",
-														new Object[]{service, pingPacket});
-											}
-											if (!writePacketToSocket((IO) service, pingPacket)) {
-												// writing failed, stopp service
-												++watchdogStopped;
-												service.forceStop();
-											}
-											break;
-
-										case WHITESPACE:
-											if (log.isLoggable(Level.FINEST)) {
-												log.log(Level.FINEST, "Sending whitespace ping for service {0}",
-														new Object[]{service});
-											}
-											service.writeRawData(" ");
-											break;
-									}
-									++watchdogTests;
-								}
-							}
-						}
-					} catch (IOException e) {
-
-						// Close the service
-						try {
-							if (service != null) {
-								log.info(getName() + ": Found dead connection, stopping: " + service);
-								++watchdogStopped;
-								service.forceStop();
-							}
-						} catch (Exception ignore) {
-							// Do nothing here as we expect Exception to be thrown here...
-						}
+					if (null != service) {
+						Watchdog.this.check(service);
 					}
 				}
 			});
 		}
+
+		private class WatchdogTask
+				extends TimerTask {
+
+			private final XMPPIOService service;
+
+			private WatchdogTask(XMPPIOService service) {
+				this.service = service;
+			}
+
+			@Override
+			public void run() {
+				if (service.getSessionData().get(WATCHDOG_TASK_KEY) != this) {
+					return;
+				}
+				++watchdogChecks;
+				long nextCheck = check(service);
+				TimingWheel wheel = timingWheel;
+				if (nextCheck > 0 && wheel != null && service.getSessionData().get(WATCHDOG_TASK_KEY) == this) {
+					setTimeout(wheel.schedule(this, nextCheck, TimeUnit.MILLISECONDS));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parks the connection when it is inactive for <code>parkAfter</code>. Task is rescheduled from the time of the
+	 * last transfer, so activity of the connection does not have to update it.
+	 */
+	private static class ParkTask<IO extends XMPPIOService<?>>
+			extends TimerTask {
+
+		private final ConnectionManager<IO> manager;
+		private final IO service;
+
+		private static <IO extends XMPPIOService<?>> void schedule(ConnectionManager<IO> manager, IO service) {
+			ParkTask<IO> task = new ParkTask<>(manager, service);
+			service.getSessionData().put(PARK_TASK_KEY, task);
+			manager.addTimeoutTask(task, manager.parkAfter, TimeUnit.MILLISECONDS);
+		}
+
+		private static void cancel(XMPPIOService<?> service) {
+			ParkTask<?> task = (ParkTask<?>) service.getSessionData().remove(PARK_TASK_KEY);
+			if (task != null) {
+				task.cancel();
+			}
+		}
+
+		private ParkTask(ConnectionManager<IO> manager, IO service) {
+			this.manager = manager;
+			this.service = service;
+		}
+
+		@Override
+		public void run() {
+			if (service.getSessionData().get(PARK_TASK_KEY) != this) {
+				return;
+			}
+			long nextCheck = manager.parkAfter - (System.currentTimeMillis() - service.getLastTransferTime());
+			if (nextCheck <= 0) {
+				if (!service.isParked() && service.park()) {
+					++manager.parkedTotal;
+				}
+				nextCheck = manager.parkAfter;
+			}
+			if (service.getSessionData().get(PARK_TASK_KEY) == this) {
+				manager.addTimeoutTask(this, nextCheck, TimeUnit.MILLISECONDS);
+			}
+		}
 	}
 
 	private static class ServiceConnectedTimer<IO extends XMPPIOService> extends TimerTask {
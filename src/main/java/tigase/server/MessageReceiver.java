@@ -40,6 +40,8 @@ public interface MessageReceiver
 
 	boolean addPackets(Queue<Packet> packets);
 
+	boolean addPacketsNB(Queue<Packet> packets);
+
 	BareJID getDefHostName();
 
 	///**
@@ -97,6 +97,11 @@ public class MessageRouter
 	private Kernel kernel;
 	@Inject(nullAllowed = true)
 	private MonitoringBeanIfc monitoringBean;
+	/**
+	 * Packets addressed to the same component by the thread processing a batch of packets, delivered to the component
+	 * at once.
+	 */
+	private final ThreadLocal<PacketsDelivery> packetsDelivery = ThreadLocal.withInitial(PacketsDelivery::new);
 	private Map<String, MessageReceiver> receivers = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<String, ComponentRegistrator> registrators = new ConcurrentHashMap<>();
 	@Inject
@@ -271,6 +276,19 @@ public class MessageRouter
 		return 1;
 	}
 
+	@Override
+	protected void processInPackets(List<Packet> packets) {
+		PacketsDelivery delivery = packetsDelivery.get();
+
+		delivery.active = true;
+		try {
+			super.processInPackets(packets);
+		} finally {
+			delivery.active = false;
+			delivery.flush();
+		}
+	}
+
 	@Override
 	public void processPacket(Packet packet) {
 
@@ -370,7 +388,11 @@ public class MessageRouter
 			} else {
 
 				// All other components process the packet the same way.
-				comp.processPacket(packet, results);
+				// Consecutive packets for the same component are delivered
+				// together when processing a batch of packets.
+				if (!addToPacketsDelivery(comp, packet)) {
+					comp.processPacket(packet, results);
+				}
 			}
 			if (results.size() > 0) {
 				for (Packet res : results) {
@@ -413,6 +435,10 @@ public class MessageRouter
 		// way
 		if (comps != null) {
 
+			// Packets collected for delivery have to reach components before this
+			// one to keep packets order
+			packetsDelivery.get().flush();
+
 			// Processing packet and handling results out
 			Queue<Packet> results = new ArrayDeque<Packet>();
 
@@ -902,6 +928,21 @@ public class MessageRouter
 		return null;
 	}
 
+	private boolean addToPacketsDelivery(ServerComponent comp, Packet packet) {
+		if (!(comp instanceof AbstractMessageReceiver)) {
+			return false;
+		}
+
+		PacketsDelivery delivery = packetsDelivery.get();
+
+		if (!delivery.active) {
+			return false;
+		}
+		delivery.add((AbstractMessageReceiver) comp, packet);
+
+		return true;
+	}
+
 	private ServerComponent[] getServerComponentsForRegex(String id) {
 		LinkedHashSet<ServerComponent> comps = new LinkedHashSet<ServerComponent>();
 
@@ -953,5 +994,32 @@ public class MessageRouter
 //  .toString()))) {
 		return result;
 	}
-}
 
+	/**
+	 * Consecutive packets addressed to the same component, collected by a single thread.
+	 */
+	private static class PacketsDelivery {
+
+		private final ArrayDeque<Packet> packets = new ArrayDeque<>();
+		private boolean active = false;
+		private AbstractMessageReceiver receiver = null;
+
+		private void add(AbstractMessageReceiver receiver, Packet packet) {
+			if (this.receiver != receiver) {
+				flush();
+				this.receiver = receiver;
+			}
+			packets.offer(packet);
+		}
+
+		private void flush() {
+			if (receiver != null) {
+				// Packets dropped due to queue overflow are already logged
+				// by the receiver, the same as for a single packet
+				receiver.addPacketsNB(packets);
+				packets.clear();
+				receiver = null;
+			}
+		}
+	}
+}
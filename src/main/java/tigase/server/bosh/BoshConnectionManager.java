@@ -293,7 +293,7 @@ public class BoshConnectionManager
 	public BoshSendQueueTask scheduleSendQueueTask(final BoshSession bs, long delay) {
 		BoshSendQueueTask bt = new BoshSendQueueTask(bs);
 
-		addTimerTask(bt, delay);
+		addTimeoutTask(bt, delay, TimeUnit.MILLISECONDS);
 
 		// boshTasks.schedule(bt, delay);
 		return bt;
@@ -303,7 +303,7 @@ public class BoshConnectionManager
 	public BoshTask scheduleTask(BoshSession bs, long delay) {
 		BoshTask bt = new BoshTask(bs, this);
 
-		addTimerTask(bt, delay);
+		addTimeoutTask(bt, delay, TimeUnit.MILLISECONDS);
 
 		// boshTasks.schedule(bt, delay);
 		return bt;
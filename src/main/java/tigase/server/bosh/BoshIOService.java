@@ -26,6 +26,7 @@ import tigase.xmpp.XMPPIOService;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.List;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -202,6 +203,24 @@ public class BoshIOService
 		}
 	}
 
+	@Override
+	protected boolean isElementSerializationSupported() {
+		return false;
+	}
+
+	@Override
+	protected boolean isByteParsingSupported() {
+		return false;
+	}
+
+	@Override
+	public void writeRawDataBatch(List<String> data) throws IOException {
+		// every body needs its own HTTP headers
+		for (String str : data) {
+			writeRawData(str);
+		}
+	}
+
 	@Override
 	public boolean checkData(char[] data) throws IOException {
 		// we need to check this every time as Webkit based browser are reusing
@@ -24,10 +24,12 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
 import java.nio.charset.MalformedInputException;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -240,6 +242,26 @@ public class WebSocketXMPPIOService<RefObject>
 		return null;
 	}
 
+	@Override
+	protected boolean isElementSerializationSupported() {
+		return false;
+	}
+
+	@Override
+	protected boolean isByteParsingSupported() {
+		return false;
+	}
+
+	/**
+	 * Every string is encoded in a separate WebSocket protocol frame
+	 */
+	@Override
+	protected void writeDataBatch(final List<String> data) {
+		for (String str : data) {
+			writeData(str);
+		}
+	}
+
 	/**
 	 * Custom implementation of writeData function which encodes data in WebSocket protocol frames
 	 *
@@ -433,11 +455,8 @@ public class WebSocketXMPPIOService<RefObject>
 			oldTmpBuffer.clear();
 			partialCharacterBytes = null;
 		}
-		if (cb.capacity() < tmpBuffer.remaining() * 4) {
-			cb = CharBuffer.allocate(tmpBuffer.remaining() * 4);
-		}
-
-		CoderResult cr = decoder.decode(tmpBuffer, cb, false);
+		final CharBuffer cb = getCharBuffer(tmpBuffer.remaining() * 4);
+		CoderResult cr = getDecoder().decode(tmpBuffer, cb, false);
 
 		if (cr.isMalformed()) {
 			throw new MalformedInputException(tmpBuffer.remaining());
@@ -466,6 +485,7 @@ public class WebSocketXMPPIOService<RefObject>
 	private ByteBuffer encode(String data) throws CharacterCodingException {
 		ByteBuffer dataBuffer = null;
 
+		final CharsetEncoder encoder = getEncoder();
 		encoder.reset();
 
 		// dataBuffer = encoder.encode(CharBuffer.wrap(data, idx_start,
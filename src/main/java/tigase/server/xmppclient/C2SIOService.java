@@ -133,7 +133,47 @@ public class C2SIOService<RefObject>
 			cb.position(cb.position() + i + 1);
 		}
 
-		for (i = 0; i < buffer.limit(); i++) {
+		if (extractTlsHandshakeData(buffer)) {
+			return true;
+		}
+		if (log.isLoggable(Level.FINER)) {
+			// input buffer may be a direct buffer from the pool
+			log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}, contents: {1} , cb: {2}",
+					new String[]{String.valueOf(buffer),
+								 buffer.hasArray() ? Arrays.toString(buffer.array()) : "[direct]",
+								 String.valueOf(cb.array())});
+		}
+		return false;
+	}
+
+	@Override
+	protected boolean handleMalformedInput(ByteBuffer buffer) {
+		if (extractTlsHandshakeData(buffer)) {
+			return true;
+		}
+		if (log.isLoggable(Level.FINER)) {
+			log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}", buffer);
+		}
+		return false;
+	}
+
+	@Override
+	public void startTLS(boolean clientMode, boolean wantClientAuth, boolean needClientAuth) throws IOException {
+		super.startTLS(clientMode, wantClientAuth, needClientAuth);
+		if (tlsData != null && getIO() instanceof TLSIOIfc) {
+			synchronized (this) {
+				((TLSIOIfc) getIO()).processHandshake(tlsData);
+				tlsData = null;
+			}
+		}
+	}
+
+	/**
+	 * Looks for SSL/TLS handshake in the received data, which is sent by clients connecting with SSL/TLS to the port
+	 * expecting plain connections.
+	 */
+	private boolean extractTlsHandshakeData(ByteBuffer buffer) {
+		for (int i = 0; i < buffer.limit(); i++) {
 			byte b = buffer.get(i);
 			switch (b) {
 				case 0x16:
@@ -157,22 +197,9 @@ public class C2SIOService<RefObject>
 					break;
 			}
 		}
-		log.log(Level.FINER, "Tried Not found SSL/TLS handshake, bb: {0}, contents: {1} , cb: {2}",
-				new String[]{String.valueOf(buffer), Arrays.toString(buffer.array()), String.valueOf(cb.array())});
 		return false;
 	}
 
-	@Override
-	public void startTLS(boolean clientMode, boolean wantClientAuth, boolean needClientAuth) throws IOException {
-		super.startTLS(clientMode, wantClientAuth, needClientAuth);
-		if (tlsData != null && getIO() instanceof TLSIOIfc) {
-			synchronized (this) {
-				((TLSIOIfc) getIO()).processHandshake(tlsData);
-				tlsData = null;
-			}
-		}
-	}
-
 	private void extractTlsHandshakeData(ByteBuffer buffer, int i) {
 		buffer.position(i);
 		tlsData = new byte[buffer.limit() - (i)];
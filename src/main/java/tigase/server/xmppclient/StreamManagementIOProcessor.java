@@ -35,9 +35,13 @@ import tigase.xmpp.impl.MessageCarbons;
 import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -76,6 +80,7 @@ public class StreamManagementIOProcessor
 	private static final String IN_COUNTER_KEY = XMLNS + "_in";
 	private static final String MAX_RESUMPTION_TIMEOUT_KEY = XMLNS + "_resumption-timeout";
 	private static final String MAX_RESUMPTION_TIMEOUT_PROP_KEY = "max-resumption-timeout";
+	private static final String MAX_OUT_QUEUE_SIZE_PROP_KEY = "max-unacked-packets";
 	private static final String OUT_COUNTER_KEY = XMLNS + "_out";
 	private static final String RESUMPTION_TASK_KEY = XMLNS + "_resumption-task";
 	private static final String RESUMPTION_TIMEOUT_PROP_KEY = "resumption-timeout";
@@ -84,20 +89,19 @@ public class StreamManagementIOProcessor
 
 	private static final Element[] FEATURES = {new Element("sm", new String[]{"xmlns"}, new String[]{XMLNS})};
 
-	private static final SimpleDateFormat formatter;
-
-	static {
-		formatter = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-		formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-	}
+	private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'")
+			.withZone(ZoneOffset.UTC);
 
 	private final ConcurrentHashMap<String, XMPPIOService> services = new ConcurrentHashMap<String, XMPPIOService>();
+	private final AtomicLong spilledPackets = new AtomicLong();
 	@ConfigField(desc = "Number of sent packets after should ask for confirmation of delivery", alias = ACK_REQUEST_COUNT_KEY)
 	private int ack_request_count = DEF_ACK_REQUEST_COUNT_VAL;
 	@Inject(bean = "service")
 	private ConnectionManager connectionManager;
 	@ConfigField(desc = "Ignore undelivered presence packets", alias = IGNORE_UNDELIVERED_PRESENCE_KEY)
 	private boolean ignoreUndeliveredPresence = true;
+	@ConfigField(desc = "Maximal number of packets waiting for ack per session", alias = MAX_OUT_QUEUE_SIZE_PROP_KEY)
+	private int max_out_queue_size = 0;
 	@ConfigField(desc = "Maximal allowed time for session resumption", alias = MAX_RESUMPTION_TIMEOUT_PROP_KEY)
 	private int max_resumption_timeout = 15 * 60;
 	@ConfigField(desc = "Default resumption timeout", alias = RESUMPTION_TIMEOUT_PROP_KEY)
@@ -141,6 +145,7 @@ public class StreamManagementIOProcessor
 				return false;
 			} else if (packet.getElemName() == ENABLE_NAME) {
 				OutQueue outQueue = newOutQueue();
+				outQueue.setMaxSize(max_out_queue_size);
 				service.getSessionData().putIfAbsent(OUT_COUNTER_KEY, outQueue);
 				service.getSessionData().putIfAbsent(IN_COUNTER_KEY, newCounter());
 
@@ -244,9 +249,12 @@ public class StreamManagementIOProcessor
 		OutQueue outQueue = (OutQueue) service.getSessionData().get(OUT_COUNTER_KEY);
 		if (outQueue == null) {
 			OutQueue.Entry e = new OutQueue.Entry(packet);
-			connectionManager.processUndeliveredPacket(e.getPacketWithStamp(), e.stamp, null);
+			connectionManager.processUndeliveredPacket(e.getPacketWithStamp(), e.getStamp(), null);
 		} else {
 			outQueue.append(packet);
+			if (service.getSessionData().containsKey(RESUMPTION_TASK_KEY)) {
+				returnPacketsOverLimit(service, outQueue);
+			}
 		}
 
 		return service.getSessionData().containsKey(RESUMPTION_TASK_KEY);
@@ -295,7 +303,7 @@ public class StreamManagementIOProcessor
 
 					// resending packets thru new connection
 					OutQueue outQueue = (OutQueue) newService.getSessionData().get(OUT_COUNTER_KEY);
-					List<OutQueue.Entry> packetsToResend = new ArrayList<OutQueue.Entry>(outQueue.getQueue());
+					List<OutQueue.Entry> packetsToResend = outQueue.getEntries();
 					for (OutQueue.Entry entry : packetsToResend) {
 						Packet packetToResend = entry.getPacketWithStamp();
 						if (log.isLoggable(Level.FINE)) {
@@ -427,7 +435,7 @@ public class StreamManagementIOProcessor
 				if (!service.getSessionData().containsKey(RESUMPTION_TASK_KEY)) {
 					TimerTask timerTask = new ResumptionTimeoutTask(service);
 					service.getSessionData().put(RESUMPTION_TASK_KEY, timerTask);
-					connectionManager.addTimerTask(timerTask, resumptionTimeout * 1000);
+					connectionManager.addTimeoutTask(timerTask, resumptionTimeout, TimeUnit.SECONDS);
 
 					// set timestamp of begining of resumption to be able to detect
 					// if something went wrong during resumption and service is
@@ -435,6 +443,10 @@ public class StreamManagementIOProcessor
 					// after twice as long as resumption timeout
 					service.getSessionData().put(RESUMPTION_TIMEOUT_START_KEY, System.currentTimeMillis());
 					service.clearWaitingPackets();
+					OutQueue outQueue = (OutQueue) service.getSessionData().get(OUT_COUNTER_KEY);
+					if (outQueue != null) {
+						returnPacketsOverLimit(service, outQueue);
+					}
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, "Service stopped - resumption enabled and timeout started [{0}]",
 								new Object[]{service});
@@ -460,6 +472,8 @@ public class StreamManagementIOProcessor
 
 	@Override
 	public void getStatistics(StatisticsList list) {
+		list.add(connectionManager.getName(), "StreamManagement/Unacked packets returned as undelivered",
+				 spilledPackets.get(), Level.FINE);
 	}
 
 	@Override
@@ -561,6 +575,23 @@ public class StreamManagementIOProcessor
 		return oldUserJid.getBareJID().equals(newUserJid.getBareJID());
 	}
 
+	/**
+	 * Method returns the oldest packets over the limit of packets waiting for ack as undelivered, so messages will be
+	 * stored in offline storage. It is called only when the session waits for resumption, as packets bounced while the
+	 * client is still connected would be reported to senders as errors and delivered again.
+	 */
+	private void returnPacketsOverLimit(XMPPIOService service, OutQueue outQueue) {
+		OutQueue.Entry spilled;
+		while ((spilled = outQueue.pollOverLimit()) != null) {
+			spilledPackets.incrementAndGet();
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Too many packets waiting for resumption, returning oldest as undelivered: {1} [{0}]",
+						new Object[]{service, spilled.packet});
+			}
+			connectionManager.processUndeliveredPacket(spilled.getPacketWithStamp(), spilled.getStamp(), null);
+		}
+	}
+
 	/**
 	 * Method responsible for sending recipient-unavailable error for all not acked packets
 	 *
@@ -572,8 +603,8 @@ public class StreamManagementIOProcessor
 		if (outQueue != null) {
 			OutQueue.Entry e = null;
 
-			while ((e = outQueue.queue.poll()) != null) {
-				connectionManager.processUndeliveredPacket(e.getPacketWithStamp(), e.stamp, null);
+			while ((e = outQueue.poll()) != null) {
+				connectionManager.processUndeliveredPacket(e.getPacketWithStamp(), e.getStamp(), null);
 			}
 		}
 	}
@@ -602,6 +633,19 @@ public class StreamManagementIOProcessor
 			return counter;
 		}
 
+		/**
+		 * Returns number of increments of the counter since it had passed value, taking overflow of the counter into
+		 * account.
+		 */
+		public int countSince(int value) {
+			int count = counter - value;
+
+			if (count < 0) {
+				count = (Integer.MAX_VALUE - value) + counter + 1;
+			}
+			return count;
+		}
+
 		/**
 		 * Sets value of a counter - use only for testing!
 		 *
@@ -613,24 +657,36 @@ public class StreamManagementIOProcessor
 
 	/**
 	 * OutQueue class implements queue of outgoing packets waiting for ack with implementation of removing acked
-	 * elements when id of acked packet is passed
+	 * elements when id of acked packet is passed. Packets are kept in a ring buffer together with time when they were
+	 * sent, so appending and acking packets does not allocate any objects. Delay element is added only to copies of
+	 * packets which are resent or returned as undelivered.
 	 */
 	public static class OutQueue
 			extends Counter {
 
-		private final ArrayDeque<Entry> queue = new ArrayDeque<Entry>();
+		private static final int DEF_CAPACITY = 16;
 
+		private int head = 0;
+		private int maxSize = 0;
+		private Packet[] packets = new Packet[DEF_CAPACITY];
 		private boolean resumptionEnabled = false;
+		private int size = 0;
+		private long[] stamps = new long[DEF_CAPACITY];
 
 		/**
 		 * Append packet to waiting for ack queue
-		 *
 		 */
 		public void append(Packet packet) {
 			if (!packet.wasProcessedBy(XMLNS)) {
 				packet.processedBy(XMLNS);
 
-				queue.offer(new Entry(packet));
+				if (size == packets.length) {
+					grow();
+				}
+				int idx = (head + size) & (packets.length - 1);
+				packets[idx] = packet;
+				stamps[idx] = System.currentTimeMillis();
+				size++;
 				inc();
 			}
 		}
@@ -640,15 +696,61 @@ public class StreamManagementIOProcessor
 		 *
 		 */
 		public void ack(int value) {
-			int count = get() - value;
+			int count = countSince(value);
 
-			if (count < 0) {
-				count = (Integer.MAX_VALUE - value) + get() + 1;
+			while (count < size) {
+				packets[head] = null;
+				head = (head + 1) & (packets.length - 1);
+				size--;
+			}
+		}
+
+		/**
+		 * Removes the oldest packet waiting for ack.
+		 *
+		 * @return removed entry or <code>null</code> if there are no packets waiting for ack
+		 */
+		public Entry poll() {
+			if (size == 0) {
+				return null;
+			}
+			Entry entry = new Entry(packets[head], stamps[head]);
+			packets[head] = null;
+			head = (head + 1) & (packets.length - 1);
+			size--;
+			return entry;
+		}
+
+		/**
+		 * Removes the oldest packet waiting for ack if there are more packets waiting than the limit set with {@link
+		 * #setMaxSize(int)}.
+		 *
+		 * @return removed entry or <code>null</code> if the limit is not exceeded
+		 */
+		public Entry pollOverLimit() {
+			if (maxSize <= 0 || size <= maxSize) {
+				return null;
 			}
+			return poll();
+		}
 
-			while (count < queue.size()) {
-				queue.poll();
+		/**
+		 * Returns packets waiting for ack in order in which they were sent.
+		 */
+		public List<Entry> getEntries() {
+			List<Entry> entries = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				int idx = (head + i) & (packets.length - 1);
+				entries.add(new Entry(packets[idx], stamps[idx]));
 			}
+			return entries;
+		}
+
+		/**
+		 * Sets maximal number of packets waiting for ack, <code>0</code> for no limit.
+		 */
+		public void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
 		}
 
 		public void setResumptionEnabled(boolean enabled) {
@@ -659,14 +761,27 @@ public class StreamManagementIOProcessor
 		 * Returns size of queue containing packets waiting for ack
 		 */
 		public int waitingForAck() {
-			return queue.size();
+			return size;
 		}
 
 		/**
-		 * Method returns internal queue with packets waiting for ack - use testing only!
+		 * Method returns copy of internal queue with packets waiting for ack - use testing only!
 		 */
 		protected ArrayDeque<Entry> getQueue() {
-			return queue;
+			return new ArrayDeque<>(getEntries());
+		}
+
+		private void grow() {
+			Packet[] newPackets = new Packet[packets.length << 1];
+			long[] newStamps = new long[newPackets.length];
+			for (int i = 0; i < size; i++) {
+				int idx = (head + i) & (packets.length - 1);
+				newPackets[i] = packets[idx];
+				newStamps[i] = stamps[idx];
+			}
+			packets = newPackets;
+			stamps = newStamps;
+			head = 0;
 		}
 
 		public static void main(String[] args) throws TigaseStringprepException {
@@ -679,19 +794,25 @@ public class StreamManagementIOProcessor
 		public static class Entry {
 
 			private final Packet packet;
-			private final long stamp = System.currentTimeMillis();
+			private final long stamp;
 
 			public Entry(Packet packet) {
+				this(packet, System.currentTimeMillis());
+			}
+
+			private Entry(Packet packet, long stamp) {
 				this.packet = packet;
+				this.stamp = stamp;
+			}
+
+			public long getStamp() {
+				return stamp;
 			}
 
 			public Packet getPacketWithStamp() {
 				Packet result = packet.copyElementOnly();
 				if (result.getElemName() != Iq.ELEM_NAME && !result.isXMLNSStaticStr(DELAY_PATH, DELAY_XMLNS)) {
-					String stamp = null;
-					synchronized (formatter) {
-						stamp = formatter.format(this.stamp);
-					}
+					String stamp = formatter.format(Instant.ofEpochMilli(this.stamp));
 					String from = null;
 					if (packet.getStanzaTo() != null) {
 						from = packet.getStanzaTo().getDomain();
@@ -26,11 +26,13 @@ import tigase.util.dns.DNSEntry;
 import tigase.util.dns.DNSResolverFactory;
 import tigase.xmpp.Authorization;
 import tigase.xmpp.PacketErrorTypeException;
+import tigase.xmpp.jid.JID;
 
 import java.net.UnknownHostException;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -39,6 +41,18 @@ import java.util.stream.Stream;
 import static tigase.server.ConnectionManager.*;
 
 /**
+ * Outgoing and incoming connections for a pair of local and remote domain.
+ * <br>
+ * Packets are sent directly to the queue of an outgoing connection. To keep order of packets exchanged by a pair of
+ * users, packets are split into stripes by bare JIDs of the sender and the recipient and all packets of a stripe are
+ * sent over the same connection. A stripe may be moved to a connection with less stripes only when the queue of its
+ * connection is empty. Selecting a connection for a stripe and adding a packet to its queue is done under a lock of
+ * the stripe, so the queue cannot be filled by another thread between the check and the move. Packets are queued here
+ * only if there is no outgoing connection for them. Later packets of a stripe with queued packets are queued as well,
+ * so they are not sent before the older ones, while packets of other stripes are still sent directly. Queued packets
+ * are sent by the thread which holds the send lock. When queues of all outgoing connections grow over a threshold, a
+ * new connection is opened.
+ * <br>
  * Created: Jun 14, 2010 12:32:49 PM
  *
  * @author <a href="mailto:artur.hefczyc@tigase.org">Artur Hefczyc</a>
@@ -47,6 +61,7 @@ public class CIDConnections {
 
 	private static final Logger log = Logger.getLogger(CIDConnections.class.getName());
 	private static final Random random = new Random();
+	private static final int STRIPES = 32;
 
 	private CID cid = null;
 	private S2SConnectionSelector connectionSelector = null;
@@ -66,9 +81,15 @@ public class CIDConnections {
 	private Set<S2SConnection> outgoing = new ConcurrentSkipListSet<S2SConnection>();
 	private AtomicBoolean outgoingOpenInProgress = new AtomicBoolean(false);
 	private Set<S2SConnection> outgoing_handshaking = new ConcurrentSkipListSet<S2SConnection>();
+	private int scaleUpQueueDepth = 0;
 	private ReentrantLock sendInProgress = new ReentrantLock();
+	private final Object[] stripeLocks = new Object[STRIPES];
+	// number of queued packets of each stripe, guarded by the lock of the stripe
+	private final int[] stripeWaiting = new int[STRIPES];
+	private final AtomicReferenceArray<S2SConnection> stripes = new AtomicReferenceArray<>(STRIPES);
 	private boolean testMode = Boolean.getBoolean("test");
-	private ConcurrentLinkedQueue<Packet> waitingPackets = new ConcurrentLinkedQueue<Packet>();
+	private volatile long waitingLatency = 0;
+	private ConcurrentLinkedQueue<WaitingPacket> waitingPackets = new ConcurrentLinkedQueue<WaitingPacket>();
 
 	public CIDConnections(CID cid, S2SConnectionHandlerIfc<S2SIOService> handler, S2SConnectionSelector selector,
 						  int maxInConns, int maxOutConns, int maxOutConnsPerIP, long max_waiting_time) {
@@ -85,6 +106,9 @@ public class CIDConnections {
 		this.max_out_conns_per_ip = maxOutConnsPerIP;
 		this.max_waiting_time = max_waiting_time;
 		this.oneWayAuthentication = oneWayAuthentication;
+		for (int i = 0; i < STRIPES; i++) {
+			stripeLocks[i] = new Object();
+		}
 	}
 
 	public void resetOutgoingInProgress() {
@@ -313,6 +337,39 @@ public class CIDConnections {
 		return waitingPackets.size();
 	}
 
+	/**
+	 * Returns moving average of time in ms for which packets waited for an outgoing connection.
+	 */
+	public long getWaitingLatency() {
+		return waitingLatency;
+	}
+
+	/**
+	 * Returns the highest latency of queues of outgoing connections.
+	 */
+	public long getQueueLatency(TimeUnit unit) {
+		long result = 0;
+
+		for (S2SConnection s2SConnection : outgoing) {
+			S2SIOService serv = s2SConnection.getS2SIOService();
+
+			if (serv != null) {
+				result = Math.max(result, serv.getQueueLatency(unit));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Sets number of packets waiting in queues of all outgoing connections above which additional connection is
+	 * opened, up to the limit of outgoing connections. Value <code>0</code> disables opening of additional
+	 * connections.
+	 */
+	public void setScaleUpQueueDepth(int scaleUpQueueDepth) {
+		this.scaleUpQueueDepth = scaleUpQueueDepth;
+	}
+
 	public void reconnectionFailed(Map<String, Object> port_props) {
 		S2SConnection s2s_conn = (S2SConnection) port_props.get(S2SIOService.S2S_CONNECTION_KEY);
 
@@ -421,61 +478,126 @@ public class CIDConnections {
 			log.log(Level.FINEST, "Sending packet: " + packet);
 		}
 		if (packet != null) {
-			if ((firstWaitingTime == 0) || waitingPackets.isEmpty()) {
-				firstWaitingTime = System.currentTimeMillis();
+			S2SConnection s2s_conn = null;
+			boolean sent = false;
+
+			int idx = stripeIndex(packet);
+
+			// packet may go directly to a connection only if there are no older packets of its stripe waiting in the
+			// queue, both are checked and done with the lock of the stripe held
+			synchronized (stripeLocks[idx]) {
+				if (stripeWaiting[idx] == 0) {
+					s2s_conn = getOutgoingConnection(idx, packet);
+					sent = s2s_conn != null && sendPacket(s2s_conn, packet);
+				}
+				if (!sent) {
+					if ((firstWaitingTime == 0) || waitingPackets.isEmpty()) {
+						firstWaitingTime = System.currentTimeMillis();
+					}
+					stripeWaiting[idx]++;
+					waitingPackets.offer(new WaitingPacket(packet));
+				}
+			}
+			if (sent) {
+				checkScaleUp(s2s_conn);
 			}
-			waitingPackets.offer(packet);
 		}
-		if (sendInProgress.tryLock()) {
+
+		boolean packetSent = false;
+		boolean blocked = false;
+
+		// packet may be added after the loop finished, but before lock was released, so we need to check again. Packets
+		// queued by other threads while the lock was held are sent here as well.
+		while (!blocked && !waitingPackets.isEmpty() && sendInProgress.tryLock()) {
 			try {
-				boolean packetSent = false;
-				Packet waiting = null;
+				WaitingPacket waiting = null;
 
 				while ((waiting = waitingPackets.peek()) != null) {
-					S2SConnection s2s_conn = getOutgoingConnection(waiting);
-
+					int idx = stripeIndex(waiting.packet);
+					S2SConnection s2s_conn;
+					boolean sent;
+
+					synchronized (stripeLocks[idx]) {
+						s2s_conn = getOutgoingConnection(idx, waiting.packet);
+						sent = s2s_conn != null && sendPacket(s2s_conn, waiting.packet);
+						if (sent) {
+							stripeWaiting[idx]--;
+							waitingPackets.poll();
+						}
+					}
 					if (s2s_conn != null) {
-						try {
-							if (s2s_conn.isConnected()) {
-								packetSent = s2s_conn.sendPacket(waiting);
-								waitingPackets.poll();
-								if (log.isLoggable(Level.FINEST)) {
-									log.log(Level.FINEST, "Packet: {0} sent over connection: {1}",
-											new Object[]{waiting, s2s_conn.getS2SIOService()});
-								}
-							} else {
-								if (log.isLoggable(Level.FINEST)) {
-									log.log(Level.FINEST, "There was a closed connection available - removing " +
-											"connection {0} from set of active connections", s2s_conn);
-								}
-								outgoing.remove(s2s_conn);
-							}
-						} catch (Exception ex) {
-							log.log(Level.FINE, "A problem sending packet, connection broken? Retrying later. {0}",
-									waiting);
+						if (sent) {
+							packetSent = true;
+							long latency = System.currentTimeMillis() - waiting.time;
+							long prev = waitingLatency;
+							waitingLatency = prev == 0 ? latency : prev + ((latency - prev) >> 3);
+						} else if (s2s_conn.isConnected()) {
+							// connection is broken, but not closed yet
+							blocked = true;
+
+							break;
 						}
 					} else {
 						if (log.isLoggable(Level.FINEST)) {
-							log.log(Level.FINEST, "There is no connection available to send the packet: {0}", waiting);
+							log.log(Level.FINEST, "There is no connection available to send the packet: {0}",
+									waiting.packet);
 						}
+						blocked = true;
 
 						break;
 					}
 				}
-				if (!packetSent) {
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST, "No packet could be sent, trying to open more connections: {0}", cid);
-					}
-					checkOpenConnections();
-				} else {
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST, "Some packets were sent, not trying to open more connections: {0}", cid);
-					}
-				}
 			} finally {
 				sendInProgress.unlock();
 			}
 		}
+		if (blocked && !packetSent) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "No packet could be sent, trying to open more connections: {0}", cid);
+			}
+			checkOpenConnections();
+		}
+	}
+
+	private boolean sendPacket(S2SConnection s2s_conn, Packet packet) {
+		try {
+			if (s2s_conn.isConnected()) {
+				boolean result = s2s_conn.sendPacket(packet);
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Packet: {0} sent over connection: {1}",
+							new Object[]{packet, s2s_conn.getS2SIOService()});
+				}
+				return result;
+			} else {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "There was a closed connection available - removing " +
+							"connection {0} from set of active connections", s2s_conn);
+				}
+				outgoing.remove(s2s_conn);
+			}
+		} catch (Exception ex) {
+			log.log(Level.FINE, "A problem sending packet, connection broken? Retrying later. {0}", packet);
+		}
+		return false;
+	}
+
+	/**
+	 * Opens additional outgoing connection if queues of all outgoing connections are too long.
+	 */
+	private void checkScaleUp(S2SConnection s2s_conn) {
+		if (scaleUpQueueDepth <= 0 || s2s_conn.getQueueDepth() < scaleUpQueueDepth ||
+				outgoing.size() + outgoing_handshaking.size() >= max_out_conns || outgoingOpenInProgress.get()) {
+			return;
+		}
+		for (S2SConnection conn : outgoing) {
+			if (conn.getQueueDepth() < scaleUpQueueDepth) {
+				return;
+			}
+		}
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Queues of all outgoing connections are full, opening a new connection: {0}", cid);
+		}
+		checkOpenConnections();
 	}
 
 	private void checkOpenConnections() {
@@ -526,8 +648,42 @@ public class CIDConnections {
 		return result;
 	}
 
-	private S2SConnection getOutgoingConnection(Packet packet) {
-		return connectionSelector.selectConnection(packet, outgoing);
+	/**
+	 * Returns connection for the stripe of the packet, moving the stripe to another connection if possible. Caller has
+	 * to hold the lock of the stripe until the packet is added to the queue of the returned connection.
+	 */
+	private S2SConnection getOutgoingConnection(int idx, Packet packet) {
+		S2SConnection owner = stripes.get(idx);
+		boolean active = owner != null && owner.isConnected() && outgoing.contains(owner);
+
+		if (active && owner.getQueueDepth() > 0) {
+			// stripe cannot be moved while its packets may be still waiting in the queue
+			return owner;
+		}
+
+		S2SConnection candidate = connectionSelector.selectConnection(packet, outgoing);
+
+		if (candidate == null || candidate == owner) {
+			return active ? owner : candidate;
+		}
+		if (active && candidate.getStripesCount() >= owner.getStripesCount() - 1) {
+			return owner;
+		}
+		stripes.set(idx, candidate);
+		if (owner != null) {
+			owner.stripeReleased();
+		}
+		candidate.stripeAssigned();
+
+		return candidate;
+	}
+
+	private static int stripeIndex(Packet packet) {
+		JID from = packet.getStanzaFrom();
+		JID to = packet.getStanzaTo();
+		int h = (from == null ? 0 : from.getBareJID().hashCode()) * 31 + (to == null ? 0 : to.getBareJID().hashCode());
+
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
 	}
 
 	void initNewConnection(String ip, int port, S2SConnection s2s_conn, Map<String, Object> port_props) {
@@ -562,7 +718,7 @@ public class CIDConnections {
 					}
 				}
 			}
-			if (firstWaitingTime + max_waiting_time <= System.currentTimeMillis()) {
+			if (!waitingPackets.isEmpty() && firstWaitingTime + max_waiting_time <= System.currentTimeMillis()) {
 				sendPacketsBack();
 				firstWaitingTime = 0;
 				if (log.isLoggable(Level.FINEST)) {
@@ -628,10 +784,9 @@ public class CIDConnections {
 						port_props.put(S2SIOService.CERT_REQUIRED_DOMAIN, serverName);
 
 						initNewConnection(ip, dNSEntry.getPort(), s2s_conn, port_props);
-						result = true;
-						if (++all_outgoing >= max_out_conns) {
-							return result;
-						}
+
+						// further connections are opened when queues of open connections grow
+						return true;
 					}
 				}
 			}
@@ -644,16 +799,28 @@ public class CIDConnections {
 	}
 
 	private void sendPacketsBack() {
-		Packet p = null;
+		WaitingPacket waiting = null;
 
-		while ((p = waitingPackets.poll()) != null) {
-			try {
-				handler.addOutPacket(
-						Authorization.REMOTE_SERVER_NOT_FOUND.getResponseMessage(p, "S2S - destination host not found",
-																				 true));
-			} catch (PacketErrorTypeException e) {
-				log.log(Level.WARNING, "Packet: {0} processing exception: {1}", new Object[]{p.toString(), e});
+		// the send lock keeps the thread sending queued packets from polling the queue at the same time
+		sendInProgress.lock();
+		try {
+			while ((waiting = waitingPackets.poll()) != null) {
+				Packet p = waiting.packet;
+				int idx = stripeIndex(p);
+
+				synchronized (stripeLocks[idx]) {
+					stripeWaiting[idx]--;
+				}
+				try {
+					handler.addOutPacket(
+							Authorization.REMOTE_SERVER_NOT_FOUND.getResponseMessage(p, "S2S - destination host not found",
+																					 true));
+				} catch (PacketErrorTypeException e) {
+					log.log(Level.WARNING, "Packet: {0} processing exception: {1}", new Object[]{p.toString(), e});
+				}
 			}
+		} finally {
+			sendInProgress.unlock();
 		}
 	}
 
@@ -680,6 +847,16 @@ public class CIDConnections {
 		}
 	}
 
+	private static class WaitingPacket {
+
+		private final Packet packet;
+		private final long time = System.currentTimeMillis();
+
+		private WaitingPacket(Packet packet) {
+			this.packet = packet;
+		}
+	}
+
 	@Override
 	public String toString() {
 		final StringBuffer sb = new StringBuffer("CIDConnections{");
@@ -21,6 +21,7 @@ import tigase.server.Packet;
 
 import java.io.IOException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +39,10 @@ public class S2SConnection
 	private S2SConnectionHandlerIfc<S2SIOService> handler = null;
 	private String ipAddress = null;
 	private S2SIOService service = null;
+	/**
+	 * Number of stripes of packets assigned to this connection
+	 */
+	private final AtomicInteger stripes = new AtomicInteger();
 	/**
 	 * Control packets for s2s connection establishing
 	 */
@@ -61,6 +66,14 @@ public class S2SConnection
 		return ipAddress;
 	}
 
+	/**
+	 * Returns number of packets waiting to be written to the socket.
+	 */
+	public int getQueueDepth() {
+		S2SIOService serv = service;
+		return serv == null ? 0 : serv.getQueueDepth();
+	}
+
 	public S2SIOService getS2SIOService() {
 		return service;
 	}
@@ -69,6 +82,10 @@ public class S2SConnection
 		this.service = serv;
 	}
 
+	public int getStripesCount() {
+		return stripes.get();
+	}
+
 	public int getWaitingControlCount() {
 		return waitingControlPackets.size();
 	}
@@ -91,6 +108,14 @@ public class S2SConnection
 		return handler.writePacketToSocket(service, packet);
 	}
 
+	void stripeAssigned() {
+		stripes.incrementAndGet();
+	}
+
+	void stripeReleased() {
+		stripes.decrementAndGet();
+	}
+
 	@Override
 	public String toString() {
 		return "S2S: " + service;
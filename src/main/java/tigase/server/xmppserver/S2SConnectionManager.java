@@ -77,6 +77,8 @@ public class S2SConnectionManager
 
 	public static final String S2S_CONNECTION_SELECTOR_PROP_KEY = "s2s-conn-selector";
 
+	public static final String SCALE_UP_QUEUE_DEPTH_PROP_KEY = "scale-up-queue-depth";
+
 	public static final String S2S_CONNECTION_SELECTOR_PROP_VAL = "tigase.server.xmppserver.S2SRandomSelector";
 
 	public static final String S2S_DOMAIN_MAPPING_PROP_KEY = "s2s-domain-mapping";
@@ -112,7 +114,9 @@ public class S2SConnectionManager
 	@Inject
 	private List<S2SFilterIfc> filters = Collections.emptyList();
 	private int maxINConnections = MAX_INCOMING_CONNECTIONS_PROP_VAL;
+	@ConfigField(desc = "Maximal number of outgoing connections to a single IP address of remote domain", alias = MAX_OUT_PER_IP_CONNECTIONS_PROP_KEY)
 	private int maxOUTPerIPConnections = MAX_OUT_PER_IP_CONNECTIONS_PROP_VAL;
+	@ConfigField(desc = "Maximal number of outgoing connections to remote domain", alias = MAX_OUT_TOTAL_CONNECTIONS_PROP_KEY)
 	private int maxOUTTotalConnections = MAX_OUT_TOTAL_CONNECTIONS_PROP_VAL;
 	/**
 	 * <code>maxPacketWaitingTime</code> keeps the maximum time packets can wait for sending in ServerPacketQueue.
@@ -127,6 +131,8 @@ public class S2SConnectionManager
 
 	@ConfigField(desc = "Whether s2s connection is required to be authenticated both ways before allowing transmission", alias = "one-way-authentication")
 	private boolean oneWayAuthentication = false;
+	@ConfigField(desc = "Number of packets waiting in queue of each outgoing connection above which a new connection is opened", alias = SCALE_UP_QUEUE_DEPTH_PROP_KEY)
+	private int scaleUpQueueDepth = 100;
 	/**
 	 * List of processors which should handle all traffic incoming from the network. In most cases if not all, these
 	 * processors handle just protocol traffic, all the rest traffic should be passed on to MR.
@@ -544,6 +550,10 @@ public class S2SConnectionManager
 			long total_dbKeys = 0;
 			long total_waiting = 0;
 			long total_waiting_control = 0;
+			long total_queue_latency = 0;
+			long max_queue_latency = 0;
+			long max_waiting_latency = 0;
+			int active_cids = 0;
 
 			for (Map.Entry<CID, CIDConnections> cid_conn : cidConnections.entrySet()) {
 				int outgoing = cid_conn.getValue().getOutgoingCount();
@@ -554,6 +564,8 @@ public class S2SConnectionManager
 				int dbKeys = cid_conn.getValue().getDBKeysCount();
 				int waiting = cid_conn.getValue().getWaitingCount();
 				int waiting_control = cid_conn.getValue().getWaitingControlCount();
+				long queue_latency = cid_conn.getValue().getQueueLatency(TimeUnit.MILLISECONDS);
+				long waiting_latency = cid_conn.getValue().getWaitingLatency();
 
 				if (log.isLoggable(Level.FINEST)) {
 
@@ -574,7 +586,19 @@ public class S2SConnectionManager
 				total_dbKeys += dbKeys;
 				total_waiting += waiting;
 				total_waiting_control += waiting_control;
+				if (outgoing > 0) {
+					++active_cids;
+					total_queue_latency += queue_latency;
+					list.add(getName(), "CID " + cid_conn.getKey() + " queue latency [ms]", queue_latency,
+							 Level.FINEST);
+				}
+				max_queue_latency = Math.max(max_queue_latency, queue_latency);
+				max_waiting_latency = Math.max(max_waiting_latency, waiting_latency);
 			}
+			list.add(getName(), "Average queue latency [ms]", active_cids > 0 ? total_queue_latency / active_cids : 0,
+					 Level.FINEST);
+			list.add(getName(), "Max queue latency [ms]", max_queue_latency, Level.FINEST);
+			list.add(getName(), "Max waiting for connection [ms]", max_waiting_latency, Level.FINEST);
 			list.add(getName(), "Total outgoing", total_outgoing, Level.FINEST);
 			list.add(getName(), "Total outgoing TLS", total_outgoing_tls, Level.FINEST);
 			list.add(getName(), "Total outgoing handshaking", total_outgoing_handshaking, Level.FINEST);
@@ -666,6 +690,7 @@ public class S2SConnectionManager
 
 		CIDConnections cid_conns = new CIDConnections(cid, this, connSelector, maxINConnections, maxOUTTotalConnections,
 													  maxOUTPerIPConnections, maxPacketWaitingTime, oneWayAuthentication);
+		cid_conns.setScaleUpQueueDepth(scaleUpQueueDepth);
 
 		cidConnections.put(cid, cid_conns);
 
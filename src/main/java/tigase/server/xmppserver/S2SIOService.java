@@ -17,10 +17,13 @@
  */
 package tigase.server.xmppserver;
 
+import tigase.server.Packet;
 import tigase.xmpp.XMPPIOService;
 
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,6 +48,13 @@ public class S2SIOService
 	private Set<CID> authenticatedCIDsIN = new CopyOnWriteArraySet<CID>();
 	private CIDConnections cid_conns = null;
 	private String dbKey = null;
+	private final AtomicLong packetsQueued = new AtomicLong();
+	/**
+	 * Number of queued packets which has to be written to finish current measurement of queue latency
+	 */
+	private final AtomicLong probeSeq = new AtomicLong();
+	private volatile long probeTime = 0;
+	private volatile long queueLatency = 0;
 	private S2SConnection s2s_conn = null;
 
 	private String session_id = null;
@@ -85,6 +95,30 @@ public class S2SIOService
 		}
 	}
 
+	@Override
+	public void addPacketToSend(Packet packet) {
+		long seq = packetsQueued.incrementAndGet();
+		if (probeSeq.get() == 0) {
+			probeTime = System.nanoTime();
+			probeSeq.compareAndSet(0, seq);
+		}
+		super.addPacketToSend(packet);
+	}
+
+	/**
+	 * Returns number of packets queued and not written to the socket yet.
+	 */
+	public int getQueueDepth() {
+		return (int) Math.max(0, packetsQueued.get() - getTotalPacketsWritten());
+	}
+
+	/**
+	 * Returns moving average of time spent by packets in the queue before being written to the socket.
+	 */
+	public long getQueueLatency(TimeUnit unit) {
+		return unit.convert(queueLatency, TimeUnit.NANOSECONDS);
+	}
+
 	public Set<CID> getCIDs() {
 		final CopyOnWriteArraySet<CID> cids = new CopyOnWriteArraySet<>();
 		cids.addAll(authenticatedCIDsIN);
@@ -124,6 +158,17 @@ public class S2SIOService
 		dbKey = key;
 	}
 
+	@Override
+	protected void packetsWritten(int count) {
+		super.packetsWritten(count);
+		long seq = probeSeq.get();
+		if (seq != 0 && getTotalPacketsWritten() >= seq && probeSeq.compareAndSet(seq, 0)) {
+			long latency = System.nanoTime() - probeTime;
+			long prev = queueLatency;
+			queueLatency = prev == 0 ? latency : prev + ((latency - prev) >> 3);
+		}
+	}
+
 	@Override
 	public String toString() {
 		CID cid = (CID) getSessionData().get("cid");
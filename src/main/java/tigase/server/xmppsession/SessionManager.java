@@ -218,6 +218,7 @@ public class SessionManager
 			int queueSize = maxQueueSize / threadsNo;
 
 			boolean requireNewPool = false;
+			ProcessingThreads.Scheduler scheduler = ProcessingThreads.Scheduler.HASHED;
 			if (proc instanceof XMPPProcessorConcurrencyAwareIfc) {
 				XMPPProcessorConcurrencyAwareIfc procca = (XMPPProcessorConcurrencyAwareIfc) proc;
 				if (threadsNo != procca.getThreadsNo()) {
@@ -234,6 +235,12 @@ public class SessionManager
 				} else {
 					queueSize = maxQueueSize / threadsNo;
 				}
+				if (procca.getScheduler() != scheduler) {
+					scheduler = procca.getScheduler();
+					log.log(Level.CONFIG, "Scheduler for plugin: {0} set to: {1}",
+							new Object[]{proc.id(), scheduler});
+					requireNewPool = true;
+				}
 			}
 
 			threadsNo = threadsNo * pluginsThreadFactor;
@@ -247,14 +254,13 @@ public class SessionManager
 				// so if one exits we will keep it and not create another one
 				if (!workerThreads.containsKey(proc.id())) {
 					ProcessorWorkerThread worker = new ProcessorWorkerThread();
-					ProcessingThreads<ProcessorWorkerThread> pt = new ProcessingThreads<ProcessorWorkerThread>(worker,
-																											   threadsNo,
-																											   queueSize,
-																											   proc.id());
+					ProcessingThreads<ProcessorWorkerThread> pt = ProcessingThreads.create(scheduler, worker, threadsNo,
+																						   queueSize, proc.id());
 
 					workerThreads.put(proc.id(), pt);
-					log.log(Level.CONFIG, "Created thread pool: {0}, queue per thread: {1} for plugin id: {2}",
-							new Object[]{threadsNo, queueSize, proc.id()});
+					log.log(Level.CONFIG,
+							"Created thread pool: {0}, queue per thread: {1}, scheduler: {2} for plugin id: {3}",
+							new Object[]{threadsNo, queueSize, scheduler, proc.id()});
 				}
 			}
 			processors.put(proc.id(), (XMPPProcessorIfc) proc);
@@ -681,6 +687,7 @@ public class SessionManager
 									 ", Runs: " + proc.getTotalRuns() + ", Lost: " + proc.getDroppedPackets(),
 							 Level.INFO);
 				}
+				proc.getStatistics(getName(), list);
 			}
 			list.add(getName(), "Total queues wait", totalQueuesWait, Level.INFO);
 			list.add(getName(), "Total queues overflow", totalQueuesOverflow, Level.INFO);
@@ -2641,6 +2648,10 @@ public class SessionManager
 		@Override
 		public void process(QueueItem item) {
 			XMPPProcessorIfc processor = item.getProcessor();
+			// the worker is shared by virtual threads when it is not running as a thread itself
+			ArrayDeque<Packet> local_results = Thread.currentThread() == this
+											   ? this.local_results
+											   : new ArrayDeque<Packet>(10);
 
 			try {
 				processor.process(item.getPacket(), item.getConn(), naUserRepository, local_results,
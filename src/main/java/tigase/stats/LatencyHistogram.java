@@ -0,0 +1,95 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Thread safe histogram of durations with fixed buckets from 1ms to 5s. Values are recorded in nanoseconds and
+ * reported in milliseconds.
+ */
+public class LatencyHistogram {
+
+	private static final long[] BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+
+	private final LongAdder[] buckets = new LongAdder[BOUNDS_MS.length + 1];
+	private final LongAdder count = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+	private final String name;
+	private final LongAdder total = new LongAdder();
+
+	public LatencyHistogram(String name) {
+		this.name = name;
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns number of recorded values for each bucket, last bucket contains values above 5s.
+	 */
+	public long[] getBuckets() {
+		long[] result = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			result[i] = buckets[i].sum();
+		}
+		return result;
+	}
+
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void getStatistics(String compName, StatisticsList list, Level level) {
+		long cnt = count.sum();
+
+		list.add(compName, name + " count", cnt, level);
+		list.add(compName, name + " avg [ms]", cnt == 0 ? 0f : (float) (total.sum() / cnt) / 1000_000f, level);
+		list.add(compName, name + " max [ms]", (float) max.get() / 1000_000f, level);
+		for (int i = 0; i < BOUNDS_MS.length; i++) {
+			list.add(compName, name + " <= " + BOUNDS_MS[i] + "ms", buckets[i].sum(), Level.FINEST);
+		}
+		list.add(compName, name + " > " + BOUNDS_MS[BOUNDS_MS.length - 1] + "ms", buckets[BOUNDS_MS.length].sum(),
+				 Level.FINEST);
+	}
+
+	public void record(long nanos) {
+		int idx = 0;
+
+		// compared in nanoseconds, so a value between two bounds is not truncated down into the lower bucket
+		while (idx < BOUNDS_MS.length && nanos > TimeUnit.MILLISECONDS.toNanos(BOUNDS_MS[idx])) {
+			idx++;
+		}
+		buckets[idx].increment();
+		count.increment();
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+}
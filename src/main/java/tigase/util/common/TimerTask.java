@@ -23,7 +23,7 @@ import java.util.logging.Logger;
 
 /**
  * TimerTask class is basic implementation of java.util.TimerTask class which is used with ScheduledExecutorService in
- * AbstractMessageRecevier.
+ * AbstractMessageRecevier or with {@link TimingWheel}.
  */
 public abstract class TimerTask
 		implements Runnable {
@@ -31,12 +31,20 @@ public abstract class TimerTask
 	private static final Logger log = Logger.getLogger(TimerTask.class.getName());
 	private boolean cancelled = false;
 	private ScheduledFuture<?> future = null;
+	private TimingWheel.Timeout timeout = null;
 
 	public void setScheduledFuture(ScheduledFuture<?> future) {
 		this.future = future;
 	}
 
+	public void setTimeout(TimingWheel.Timeout timeout) {
+		this.timeout = timeout;
+	}
+
 	public boolean isScheduled() {
+		if (timeout != null) {
+			return timeout.isPending();
+		}
 		return future != null && !future.isCancelled() && !future.isDone();
 	}
 
@@ -59,6 +67,9 @@ public abstract class TimerTask
 		if (future != null && !future.isDone()) {
 			future.cancel(mayInterruptIfRunning);
 		}
+		if (timeout != null) {
+			timeout.cancel();
+		}
 	}
 
 	public void reset(boolean mayInterruptIfRunning) {
@@ -66,5 +77,9 @@ public abstract class TimerTask
 			future.cancel(mayInterruptIfRunning);
 		}
 		future = null;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		timeout = null;
 	}
 }
@@ -0,0 +1,362 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel for large number of timeouts which are often cancelled or re-armed before they expire, ie.
+ * inactivity or ping deadlines of connections. Timeouts are kept in linked lists of wheel buckets, so scheduling,
+ * re-arming and cancelling a timeout is O(1), while each tick of the wheel processes only a single bucket.
+ * <br>
+ * Expired tasks are executed by the wheel thread, so they should not block, unless an executor is passed to the
+ * constructor, in which case expired tasks are handed to it. Timeouts never expire before their delay passes, but they
+ * may expire up to a single tick later.
+ */
+public class TimingWheel {
+
+	private static final Logger log = Logger.getLogger(TimingWheel.class.getName());
+
+	private final Bucket[] buckets;
+	private final Executor executor;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final int mask;
+	private final String name;
+	private final long startTime = System.nanoTime();
+	private final long tickNanos;
+	private long cancelled = 0;
+	private long expired = 0;
+	private int pending = 0;
+	private volatile long processedTick = -1;
+	private long scheduled = 0;
+	private volatile boolean shutdown = false;
+	private Thread worker = null;
+
+	/**
+	 * Creates timing wheel.
+	 *
+	 * @param name name of the wheel thread
+	 * @param tickDuration duration of a single tick, which is precision of the wheel
+	 * @param unit unit of tick duration
+	 * @param ticksPerWheel number of buckets, rounded up to power of 2
+	 */
+	public TimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		this(name, tickDuration, unit, ticksPerWheel, null);
+	}
+
+	/**
+	 * Creates timing wheel executing expired tasks with the executor.
+	 *
+	 * @param name name of the wheel thread
+	 * @param tickDuration duration of a single tick, which is precision of the wheel
+	 * @param unit unit of tick duration
+	 * @param ticksPerWheel number of buckets, rounded up to power of 2
+	 * @param executor executor of expired tasks or <code>null</code> to execute them by the wheel thread
+	 */
+	public TimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+		if (tickDuration <= 0 || ticksPerWheel <= 0) {
+			throw new IllegalArgumentException("Tick duration and ticks per wheel must be positive");
+		}
+		this.name = name;
+		this.executor = executor;
+		this.tickNanos = unit.toNanos(tickDuration);
+		int size = Integer.highestOneBit(ticksPerWheel);
+		if (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.buckets = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			buckets[i] = new Bucket();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Schedules execution of the task after the delay. Wheel thread is started on first call to this method.
+	 *
+	 * @return handle which may be used to cancel or re-arm timeout
+	 *
+	 * @throws RejectedExecutionException if the wheel was shutdown
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(this, task);
+		lock.lock();
+		try {
+			ensureStarted();
+			link(timeout, deadlineTick(unit.toNanos(delay)));
+		} finally {
+			lock.unlock();
+		}
+		return timeout;
+	}
+
+	/**
+	 * Re-arms the timeout to expire after the new delay, no matter if it was pending, cancelled or already expired.
+	 */
+	public void reschedule(Timeout timeout, long delay, TimeUnit unit) {
+		if (timeout.wheel != this) {
+			throw new IllegalArgumentException("Timeout belongs to a different timing wheel");
+		}
+		lock.lock();
+		try {
+			ensureStarted();
+			if (timeout.bucket != null) {
+				unlink(timeout);
+			}
+			link(timeout, deadlineTick(unit.toNanos(delay)));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void shutdown() {
+		lock.lock();
+		try {
+			shutdown = true;
+			if (worker != null) {
+				LockSupport.unpark(worker);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getPendingCount() {
+		lock.lock();
+		try {
+			return pending;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		int occupied = 0;
+		int maxSize = 0;
+		long cancelledCnt;
+		long expiredCnt;
+		long scheduledCnt;
+		int pendingCnt;
+
+		lock.lock();
+		try {
+			for (Bucket bucket : buckets) {
+				if (bucket.size > 0) {
+					occupied++;
+					maxSize = Math.max(maxSize, bucket.size);
+				}
+			}
+			cancelledCnt = cancelled;
+			expiredCnt = expired;
+			scheduledCnt = scheduled;
+			pendingCnt = pending;
+		} finally {
+			lock.unlock();
+		}
+
+		list.add(compName, "Timing wheel pending timeouts", pendingCnt, Level.FINE);
+		list.add(compName, "Timing wheel scheduled timeouts", scheduledCnt, Level.FINER);
+		list.add(compName, "Timing wheel expired timeouts", expiredCnt, Level.FINER);
+		list.add(compName, "Timing wheel cancelled timeouts", cancelledCnt, Level.FINER);
+		list.add(compName, "Timing wheel occupied buckets", occupied, Level.FINEST);
+		list.add(compName, "Timing wheel max bucket size", maxSize, Level.FINEST);
+	}
+
+	private boolean cancel(Timeout timeout) {
+		lock.lock();
+		try {
+			if (timeout.bucket == null) {
+				return false;
+			}
+			unlink(timeout);
+			cancelled++;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long deadlineTick(long delayNanos) {
+		long deadline = System.nanoTime() - startTime + Math.max(0, delayNanos);
+		// rounding up, so timeouts are never executed too early
+		return (deadline + tickNanos - 1) / tickNanos;
+	}
+
+	private void ensureStarted() {
+		if (shutdown) {
+			throw new RejectedExecutionException("Timing wheel " + name + " is shutdown");
+		}
+		if (worker == null) {
+			worker = new Thread(this::run, name);
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	private void link(Timeout timeout, long deadlineTick) {
+		// timeout can not be added to a bucket of a tick which was already processed
+		long tick = Math.max(deadlineTick, processedTick + 1);
+		Bucket bucket = buckets[(int) (tick & mask)];
+
+		timeout.deadlineTick = tick;
+		timeout.bucket = bucket;
+		timeout.prev = null;
+		timeout.next = bucket.head;
+		if (bucket.head != null) {
+			bucket.head.prev = timeout;
+		}
+		bucket.head = timeout;
+		bucket.size++;
+		pending++;
+		scheduled++;
+	}
+
+	private void unlink(Timeout timeout) {
+		Bucket bucket = timeout.bucket;
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			bucket.head = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = null;
+		bucket.size--;
+		pending--;
+	}
+
+	private void run() {
+		List<Runnable> expiredTasks = new ArrayList<>();
+		while (!shutdown) {
+			long tick = processedTick + 1;
+			long waitNanos = startTime + tick * tickNanos - System.nanoTime();
+			if (waitNanos > 0) {
+				LockSupport.parkNanos(this, waitNanos);
+				continue;
+			}
+
+			lock.lock();
+			try {
+				Timeout timeout = buckets[(int) (tick & mask)].head;
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.deadlineTick <= tick) {
+						unlink(timeout);
+						expired++;
+						expiredTasks.add(timeout.task);
+					}
+					timeout = next;
+				}
+				processedTick = tick;
+			} finally {
+				lock.unlock();
+			}
+
+			for (Runnable task : expiredTasks) {
+				try {
+					if (executor == null) {
+						task.run();
+					} else {
+						executor.execute(task);
+					}
+				} catch (RejectedExecutionException ex) {
+					log.log(Level.WARNING, "Executor rejected expired task " + task + " of " + name, ex);
+				} catch (Throwable ex) {
+					log.log(Level.WARNING, "Exception during execution of expired task " + task + " of " + name, ex);
+				}
+			}
+			expiredTasks.clear();
+		}
+	}
+
+	/**
+	 * Handle of a task scheduled in the {@link TimingWheel}.
+	 */
+	public static class Timeout {
+
+		private final Runnable task;
+		private final TimingWheel wheel;
+		private Bucket bucket;
+		private long deadlineTick;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(TimingWheel wheel, Runnable task) {
+			this.wheel = wheel;
+			this.task = task;
+		}
+
+		/**
+		 * Cancels the timeout.
+		 *
+		 * @return <code>true</code> if timeout was pending and was cancelled
+		 */
+		public boolean cancel() {
+			return wheel.cancel(this);
+		}
+
+		public Runnable getTask() {
+			return task;
+		}
+
+		public boolean isPending() {
+			wheel.lock.lock();
+			try {
+				return bucket != null;
+			} finally {
+				wheel.lock.unlock();
+			}
+		}
+
+		/**
+		 * Re-arms the timeout to expire after the new delay.
+		 */
+		public void reschedule(long delay, TimeUnit unit) {
+			wheel.reschedule(this, delay, unit);
+		}
+
+		@Override
+		public String toString() {
+			return "Timeout[task: " + task + ", deadlineTick: " + deadlineTick + "]";
+		}
+	}
+
+	private static class Bucket {
+
+		private Timeout head;
+		private int size;
+
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes items on a shared pool of threads keeping order of items with the same key.
+ * <br>
+ * Items are put into buckets selected by the key (hash code), so items with the same key always end-up in the same
+ * bucket and are processed one by one in the order they were added. Bucket with waiting items is put in the queue
+ * of ready buckets and processed by the first free thread of the pool, so a slow item blocks only items of its own
+ * bucket and not all items assigned to the same thread.
+ * <br>
+ * For each bucket time spent by items waiting in the bucket is measured and reported in statistics, which makes
+ * buckets blocked by slow items visible.
+ * <br>
+ * Items have no priorities, items of a bucket are processed in the order they were added, whatever their priority is.
+ * <br>
+ * When executor is stopped, items which are not processed yet are kept and may be moved to other executor or queue
+ * with {@link #drainTo(ObjIntConsumer)}.
+ */
+public class KeyedSerialExecutor<E> {
+
+	/**
+	 * Maximal number of items processed from a bucket before it is put back to the queue of ready buckets, so other
+	 * buckets are not starved.
+	 */
+	protected static final int MAX_BATCH = 32;
+	private static final long PRODUCER_WAIT_MILLIS = 10;
+	private static final long WORKER_WAIT_MILLIS = 100;
+	private static final int STATS_TOP_BUCKETS = 10;
+	private static final Logger log = Logger.getLogger(KeyedSerialExecutor.class.getName());
+
+	private final Bucket<E>[] buckets;
+	private final Consumer<E> consumer;
+	private final int maxQueueSize;
+	private final String name;
+	private final Object notFull = new Object();
+	private final AtomicInteger queueSize = new AtomicInteger(0);
+	private final LinkedBlockingQueue<Bucket<E>> readyBuckets = new LinkedBlockingQueue<>();
+	private final int threadsNo;
+	private final AtomicInteger waitingProducers = new AtomicInteger(0);
+	private volatile boolean stopped = false;
+	private List<Worker> workers = null;
+
+	@SuppressWarnings("unchecked")
+	public KeyedSerialExecutor(String name, int threadsNo, int bucketsNo, int maxQueueSize, Consumer<E> consumer) {
+		this.name = name;
+		this.threadsNo = threadsNo;
+		this.maxQueueSize = maxQueueSize;
+		this.consumer = consumer;
+		this.buckets = new Bucket[bucketsNo];
+		for (int i = 0; i < bucketsNo; i++) {
+			buckets[i] = new Bucket<>(i);
+		}
+	}
+
+	public int getMaxQueueSize() {
+		return maxQueueSize;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getThreadsNo() {
+		return threadsNo;
+	}
+
+	/**
+	 * Adds item for processing without blocking.
+	 *
+	 * @return <code>false</code> if the item was not added due to queue overflow
+	 */
+	public boolean offer(int key, E item) {
+		if (queueSize.incrementAndGet() > maxQueueSize) {
+			queueSize.decrementAndGet();
+			return false;
+		}
+		add(key, item);
+		return true;
+	}
+
+	/**
+	 * Adds item for processing waiting if necessary for the room in the queue.
+	 */
+	public void put(int key, E item) throws InterruptedException {
+		while (!offer(key, item)) {
+			if (stopped) {
+				// nothing will make room in the queue, item is kept to be drained
+				queueSize.incrementAndGet();
+				add(key, item);
+				return;
+			}
+			synchronized (notFull) {
+				waitingProducers.incrementAndGet();
+				try {
+					if (queueSize.get() >= maxQueueSize) {
+						notFull.wait(PRODUCER_WAIT_MILLIS);
+					}
+				} finally {
+					waitingProducers.decrementAndGet();
+				}
+			}
+		}
+	}
+
+	public int size() {
+		return queueSize.get();
+	}
+
+	/**
+	 * Removes all items which were not processed and passes them with their keys to the given consumer, keeping order
+	 * of items with the same key. May be called only when executor is not running.
+	 *
+	 * @return number of removed items
+	 */
+	public synchronized int drainTo(ObjIntConsumer<E> target) {
+		if (workers != null) {
+			throw new IllegalStateException("Executor " + name + " is running");
+		}
+		int count = 0;
+		for (Bucket<E> bucket : buckets) {
+			Entry<E> entry;
+			while ((entry = bucket.items.poll()) != null) {
+				queueSize.decrementAndGet();
+				target.accept(entry.item, entry.key);
+				++count;
+			}
+			bucket.scheduled.set(false);
+		}
+		readyBuckets.clear();
+		return count;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		long processed = 0;
+		long totalWait = 0;
+		long maxWait = 0;
+		for (Bucket<E> bucket : buckets) {
+			processed += bucket.processed;
+			totalWait += bucket.totalWait;
+			maxWait = Math.max(maxWait, bucket.maxWait);
+		}
+		list.add(compName, name + " ready buckets", readyBuckets.size(), Level.FINE);
+		list.add(compName, name + " average wait [ms]",
+				 processed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWait / processed), Level.FINE);
+		list.add(compName, name + " max wait [ms]", TimeUnit.NANOSECONDS.toMillis(maxWait), Level.FINE);
+
+		if (list.checkLevel(Level.FINEST)) {
+			// buckets with the oldest waiting items are blocked by slow processing
+			long now = System.nanoTime();
+			long[][] waiting = new long[buckets.length][];
+			int count = 0;
+			for (Bucket<E> bucket : buckets) {
+				Entry<E> head = bucket.items.peek();
+				if (head != null) {
+					waiting[count++] = new long[]{now - head.time, bucket.idx};
+				}
+			}
+			Arrays.sort(waiting, 0, count, (a, b) -> Long.compare(b[0], a[0]));
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < Math.min(count, STATS_TOP_BUCKETS); i++) {
+				Bucket<E> bucket = buckets[(int) waiting[i][1]];
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(bucket.idx)
+						.append(':')
+						.append(TimeUnit.NANOSECONDS.toMillis(waiting[i][0]))
+						.append("ms/")
+						.append(bucket.items.size());
+			}
+			list.add(compName, name + " oldest waiting per bucket [bucket:wait/size]", sb.toString(), Level.FINEST);
+		}
+	}
+
+	public synchronized void start() {
+		if (workers != null) {
+			return;
+		}
+		stopped = false;
+		workers = new ArrayList<>(threadsNo);
+		for (int i = 0; i < threadsNo; i++) {
+			Worker worker = new Worker();
+			worker.setName(name + "_" + i);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		log.log(Level.CONFIG, "{0}: started {1} threads for {2} buckets",
+				new Object[]{name, threadsNo, buckets.length});
+	}
+
+	/**
+	 * Stops processing and waits until threads finish items which they are processing. Items which are waiting are
+	 * kept in the executor.
+	 */
+	public synchronized void stop() {
+		if (workers == null) {
+			return;
+		}
+		stopped = true;
+		boolean interrupted = false;
+		for (Worker worker : workers) {
+			while (worker.isAlive() && worker != Thread.currentThread()) {
+				try {
+					worker.join();
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+			}
+		}
+		workers = null;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void add(int key, E item) {
+		Bucket<E> bucket = buckets[Math.abs(key % buckets.length)];
+
+		bucket.items.offer(new Entry<>(key, item));
+		if (bucket.scheduled.compareAndSet(false, true)) {
+			readyBuckets.offer(bucket);
+		}
+	}
+
+	private void process(Bucket<E> bucket) {
+		int batch = 0;
+		Entry<E> entry;
+		while (batch < MAX_BATCH && !stopped && (entry = bucket.items.poll()) != null) {
+			++batch;
+			queueSize.decrementAndGet();
+
+			long wait = System.nanoTime() - entry.time;
+			bucket.totalWait += wait;
+			if (wait > bucket.maxWait) {
+				bucket.maxWait = wait;
+			}
+			++bucket.processed;
+
+			try {
+				consumer.accept(entry.item);
+			} catch (Exception ex) {
+				log.log(Level.SEVERE, "[" + name + "] Exception during processing: " + entry.item, ex);
+			}
+		}
+
+		if (waitingProducers.get() > 0) {
+			synchronized (notFull) {
+				notFull.notifyAll();
+			}
+		}
+
+		// Items added after clearing the flag will schedule the bucket again,
+		// items added before are detected here.
+		bucket.scheduled.set(false);
+		if (!bucket.items.isEmpty() && bucket.scheduled.compareAndSet(false, true)) {
+			readyBuckets.offer(bucket);
+		}
+	}
+
+	private static class Bucket<E> {
+
+		private final int idx;
+		private final ConcurrentLinkedQueue<Entry<E>> items = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		// updated only by the thread processing the bucket
+		private volatile long maxWait = 0;
+		private volatile long processed = 0;
+		private volatile long totalWait = 0;
+
+		private Bucket(int idx) {
+			this.idx = idx;
+		}
+	}
+
+	private static class Entry<E> {
+
+		private final E item;
+		private final int key;
+		private final long time = System.nanoTime();
+
+		private Entry(int key, E item) {
+			this.key = key;
+			this.item = item;
+		}
+	}
+
+	private class Worker
+			extends Thread {
+
+		@Override
+		public void run() {
+			while (!stopped) {
+				try {
+					// workers are not interrupted, so the item being processed is always finished
+					Bucket<E> bucket = readyBuckets.poll(WORKER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+					if (bucket != null) {
+						process(bucket);
+					}
+				} catch (InterruptedException ex) {
+					// spurious interruption, check the flag
+				}
+			}
+		}
+	}
+}
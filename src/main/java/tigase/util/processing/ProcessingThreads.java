@@ -18,10 +18,12 @@
 package tigase.util.processing;
 
 import tigase.server.Packet;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.XMPPProcessorIfc;
 import tigase.xmpp.XMPPResourceConnection;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -77,56 +79,35 @@ public class ProcessingThreads<E extends WorkerThread> {
 //  }
 	}
 
-	public boolean addItem(XMPPProcessorIfc processor, Packet packet, XMPPResourceConnection conn) {
-		boolean ret = false;
-		QueueItem item = new QueueItem(processor, packet, conn);
-
-		try {
-			if ((item.getConn() != null) && item.getConn().isAuthorized()) {
-
-				// Queueing packets per user...
-				ret = workerThreads.get(Math.abs(conn.getJID().getBareJID().hashCode()) % numWorkerThreads).offer(item);
-
-//      ret = queues.get(Math.abs(conn.getJID().getBareJID().hashCode()
-//          % numQueues)).offer(item, packet.getPriority().ordinal());
-			} else {
-				if (packet.getPacketFrom() != null) {
+	protected ProcessingThreads(int numWorkerThreads, String name) {
+		this.numWorkerThreads = numWorkerThreads;
+		workerThreads = new ArrayList<E>(numWorkerThreads);
+		this.name = name;
+	}
 
-					// Queueing packets per user's connection...
-					ret = workerThreads.get(Math.abs(packet.getPacketFrom().hashCode()) % numWorkerThreads).offer(item);
-				} else {
-
-					// Otherwise per destination address
-					// If the packet elemTo is set then used it, otherwise just packetTo:
-					if (packet.getStanzaTo() != null) {
-						ret = workerThreads.get(
-								Math.abs(packet.getStanzaTo().getBareJID().hashCode()) % numWorkerThreads).offer(item);
-
-//          ret = queues.get(Math.abs(packet.getStanzaTo().hashCode() % numQueues)).offer(item,
-//              packet.getPriority().ordinal());
-					} else {
-						ret = workerThreads.get(Math.abs(packet.getTo().hashCode())).offer(item);
-
-//          ret = queues.get(Math.abs(packet.getTo().hashCode() % numQueues)).offer(item,
-//              packet.getPriority().ordinal());
-					}
+	public static <E extends WorkerThread> ProcessingThreads<E> create(Scheduler scheduler, E worker,
+																	   int numWorkerThreads, int maxQueueSize,
+																	   String name)
+			throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+		switch (scheduler) {
+			case WORK_STEALING:
+				return new WorkStealingProcessingThreads<E>(worker, numWorkerThreads, maxQueueSize, name);
+			case VIRTUAL_THREADS:
+				if (VirtualThreadsProcessingThreads.isSupported()) {
+					return new VirtualThreadsProcessingThreads<E>(worker, numWorkerThreads, maxQueueSize, name);
 				}
-			}
-		} catch (Exception e) {
-
-			// This should not happen, but just in case until we are sure all
-			// cases are catched.
-			// Otherwise per destination address
-			// If the packet elemTo is set then used it, otherwise just packetTo:
-			if (packet.getStanzaTo() != null) {
-				ret = workerThreads.get(Math.abs(packet.getStanzaTo().getBareJID().hashCode()) % numWorkerThreads)
-						.offer(item);
-			} else {
-				ret = workerThreads.get(Math.abs(packet.getTo().hashCode()) % numWorkerThreads).offer(item);
-			}
-
-			// ret = nullQueue.offer(item, packet.getPriority().ordinal());
+				log.log(Level.WARNING,
+						"Virtual threads are not supported by this JVM, using platform threads for processor {0}",
+						name);
+				return new ProcessingThreads<E>(worker, numWorkerThreads, maxQueueSize, name);
+			default:
+				return new ProcessingThreads<E>(worker, numWorkerThreads, maxQueueSize, name);
 		}
+	}
+
+	public boolean addItem(XMPPProcessorIfc processor, Packet packet, XMPPResourceConnection conn) {
+		QueueItem item = new QueueItem(processor, packet, conn);
+		boolean ret = offer(item, hashCodeForItem(packet, conn));
 
 		if (!ret) {
 			++droppedPackets;
@@ -185,10 +166,81 @@ public class ProcessingThreads<E extends WorkerThread> {
 		return ret;
 	}
 
+	public void getStatistics(String compName, StatisticsList list) {
+	}
+
 	public void shutdown() {
 		for (WorkerThread workerThread : workerThreads) {
 			workerThread.shutdown();
 		}
 	}
+
+	protected void addWorkerThread(E worker) {
+		worker.setDaemon(true);
+		worker.setName(name + "-proc-" + workerThreads.size());
+		worker.start();
+		workerThreads.add(worker);
+	}
+
+	protected int getNumWorkerThreads() {
+		return numWorkerThreads;
+	}
+
+	protected List<E> getWorkerThreads() {
+		return workerThreads;
+	}
+
+	/**
+	 * Calculates hash code used to select queue for the item. Packets are put in queues in such a way that all packets
+	 * for the same user end-up in the same queue.
+	 */
+	protected int hashCodeForItem(Packet packet, XMPPResourceConnection conn) {
+		try {
+			if ((conn != null) && conn.isAuthorized()) {
+
+				// Queueing packets per user...
+				return Math.abs(conn.getJID().getBareJID().hashCode());
+			} else {
+				if (packet.getPacketFrom() != null) {
+
+					// Queueing packets per user's connection...
+					return Math.abs(packet.getPacketFrom().hashCode());
+				}
+			}
+		} catch (Exception e) {
+
+			// This should not happen, but just in case until we are sure all
+			// cases are catched.
+		}
+
+		// Otherwise per destination address
+		// If the packet elemTo is set then used it, otherwise just packetTo:
+		if (packet.getStanzaTo() != null) {
+			return Math.abs(packet.getStanzaTo().getBareJID().hashCode());
+		} else {
+			return Math.abs(packet.getTo().hashCode());
+		}
+	}
+
+	protected boolean offer(QueueItem item, int hashCode) {
+		return workerThreads.get(hashCode % numWorkerThreads).offer(item);
+	}
+
+	public enum Scheduler {
+		/**
+		 * Each worker thread has own queue and all packets for the same user are processed by the same thread.
+		 */
+		HASHED,
+		/**
+		 * Packets for the same user are processed in order, but idle worker threads may take over packets waiting
+		 * for busy worker threads.
+		 */
+		WORK_STEALING,
+		/**
+		 * Packets for the same user are processed in order by virtual threads (requires Java 21 or newer), which is
+		 * best suited for processors doing blocking calls. On older JVMs {@link #HASHED} is used instead.
+		 */
+		VIRTUAL_THREADS
+	}
 }
 
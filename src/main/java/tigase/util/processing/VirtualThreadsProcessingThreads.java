@@ -0,0 +1,225 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processing threads which process packets of each group of users (lane) on a separate virtual thread.
+ * <br>
+ * Packets for the same user end-up in the same lane and are processed in order. A virtual thread is started when
+ * the first packet is added to an empty lane and finishes when the lane is empty again. Plugins doing blocking calls
+ * (ie. to the database) block only a virtual thread, so the number of packets processed at the same time is limited
+ * by the number of lanes and not by the number of OS threads.
+ * <br>
+ * Packets of all lanes are processed by {@link WorkerThread#process(QueueItem)} of the worker passed to the
+ * constructor, which is never started as a thread, so the method is called concurrently from many virtual threads and
+ * may not keep state between calls.
+ * <br>
+ * On Java older than 24 a virtual thread blocked inside of a <code>synchronized</code> block pins its carrier thread.
+ * JDBC repositories synchronize on shared prepared statements, so blocking database calls made there pin carriers and
+ * the number of them in progress at the same time is limited by the number of carrier threads
+ * (<code>-Djdk.virtualThreadScheduler.parallelism</code>, number of CPU cores by default). A warning is logged when
+ * this processing is created on such JVM.
+ * <br>
+ * Virtual threads are available since Java 21, use {@link #isSupported()} to check if they can be used on the
+ * running JVM.
+ */
+public class VirtualThreadsProcessingThreads<E extends WorkerThread>
+		extends ProcessingThreads<E> {
+
+	/**
+	 * Number of lanes created for each configured thread.
+	 */
+	protected static final int LANES_PER_THREAD = 1024;
+	private static final Logger log = Logger.getLogger(VirtualThreadsProcessingThreads.class.getName());
+	private static final boolean PINNING_ON_SYNCHRONIZED = Runtime.version().feature() < 24;
+	private static final boolean SUPPORTED = createThreadFactory("virtual-threads-check-") != null;
+
+	private final AtomicInteger activeLanes = new AtomicInteger(0);
+	private final Lane[] lanes;
+	private final int maxQueueSize;
+	private final AtomicInteger queueSize = new AtomicInteger(0);
+	private final LongAdder runs = new LongAdder();
+	private final ThreadFactory threadFactory;
+	private final E worker;
+	private final AtomicLong averageProcessingTime = new AtomicLong(0);
+	private final AtomicInteger maxActiveLanes = new AtomicInteger(0);
+	private volatile boolean stopped = false;
+
+	public static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	/**
+	 * Creates factory of virtual threads using reflection, so this class may be loaded on older JVMs.
+	 *
+	 * @return factory of virtual threads or <code>null</code> if virtual threads are not available.
+	 */
+	private static ThreadFactory createThreadFactory(String prefix) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			log.log(Level.FINEST, "Virtual threads are not available", ex);
+			return null;
+		}
+	}
+
+	public VirtualThreadsProcessingThreads(E worker, int numWorkerThreads, int maxQueueSize, String name) {
+		super(numWorkerThreads, name);
+		this.threadFactory = createThreadFactory(name + "-vproc-");
+		if (threadFactory == null) {
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+		}
+		this.worker = worker;
+		// maxQueueSize is a limit per thread, the same as for ProcessingThreads
+		this.maxQueueSize = maxQueueSize * numWorkerThreads;
+		this.lanes = new Lane[numWorkerThreads * LANES_PER_THREAD];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane();
+		}
+		log.log(Level.CONFIG, "Created virtual threads processing: {0}, lanes: {1}",
+				new Object[]{name, lanes.length});
+		if (PINNING_ON_SYNCHRONIZED) {
+			log.log(Level.WARNING,
+					"Virtual threads blocked in synchronized blocks pin carrier threads on Java {0}, number of " +
+							"concurrent blocking calls (ie. JDBC) of processor {1} is limited by the number of " +
+							"carrier threads, use Java 24 or newer to remove this limit",
+					new Object[]{Runtime.version().feature(), name});
+		}
+	}
+
+	public int getActiveLanes() {
+		return activeLanes.get();
+	}
+
+	@Override
+	public long getAverageProcessingTime() {
+		return averageProcessingTime.get();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		list.add(compName, "Processor: " + getName() + " active virtual threads", getActiveLanes(), Level.FINE);
+		list.add(compName, "Processor: " + getName() + " max active virtual threads", maxActiveLanes.get(),
+				 Level.FINE);
+	}
+
+	@Override
+	public int getTotalQueueSize() {
+		return queueSize.get();
+	}
+
+	@Override
+	public int getTotalRuns() {
+		return (int) runs.sum();
+	}
+
+	/**
+	 * Stops accepting new packets. Packets already queued are still processed by running virtual threads, which
+	 * finish when their lanes are empty.
+	 */
+	@Override
+	public void shutdown() {
+		stopped = true;
+	}
+
+	@Override
+	protected boolean offer(QueueItem item, int hashCode) {
+		if (stopped) {
+			return false;
+		}
+		if (queueSize.incrementAndGet() > maxQueueSize) {
+			queueSize.decrementAndGet();
+			return false;
+		}
+
+		Lane lane = lanes[hashCode % lanes.length];
+
+		lane.items.offer(item);
+		if (lane.scheduled.compareAndSet(false, true)) {
+			start(lane);
+		}
+
+		return true;
+	}
+
+	private void process(Lane lane) {
+		try {
+			while (true) {
+				QueueItem item = lane.items.poll();
+				if (item == null) {
+					// Items added after clearing the flag will start new thread,
+					// items added before are detected here.
+					lane.scheduled.set(false);
+					if (lane.items.isEmpty() || !lane.scheduled.compareAndSet(false, true)) {
+						break;
+					}
+					continue;
+				}
+				queueSize.decrementAndGet();
+
+				long start = System.currentTimeMillis();
+				try {
+					worker.process(item);
+				} catch (Exception e) {
+					log.log(Level.SEVERE,
+							worker.getClass().getName() + ",(" + getName() + ") Exception during packet processing: " +
+									item.getPacket(), e);
+				}
+
+				long end = System.currentTimeMillis() - start;
+				if (end > 0) {
+					averageProcessingTime.updateAndGet(prev -> (prev + end) / 2);
+				}
+				runs.increment();
+			}
+		} finally {
+			activeLanes.decrementAndGet();
+		}
+	}
+
+	private void start(Lane lane) {
+		maxActiveLanes.accumulateAndGet(activeLanes.incrementAndGet(), Math::max);
+		threadFactory.newThread(() -> process(lane)).start();
+	}
+
+	/**
+	 * Group of users with packets processed in order by a single virtual thread at a time. Lane has a running virtual
+	 * thread when <code>scheduled</code> is set.
+	 */
+	private static class Lane {
+
+		private final ConcurrentLinkedQueue<QueueItem> items = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	}
+}
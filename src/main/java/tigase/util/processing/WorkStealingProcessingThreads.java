@@ -0,0 +1,249 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processing threads which keep order of packets for the same user but do not pin a user to a single thread.
+ * <br>
+ * Items are put into lanes selected by the same hash code as used by {@link ProcessingThreads}, so all packets for the
+ * same user end-up in the same lane. Lane with waiting items is scheduled on the deque of its home worker thread and
+ * only one worker thread at a time may process items from the lane. Worker thread with nothing to do takes (steals)
+ * a whole lane waiting in the deque of another, busy worker thread. As there are many more lanes than threads, a
+ * single busy user delays only a small fraction of other users and the remaining lanes are processed by idle threads.
+ */
+public class WorkStealingProcessingThreads<E extends WorkerThread>
+		extends ProcessingThreads<E> {
+
+	/**
+	 * Number of lanes created for each worker thread.
+	 */
+	protected static final int LANES_PER_THREAD = 64;
+	/**
+	 * Maximal number of items processed from a lane before the lane is given back to the deque, so other lanes of the
+	 * same worker thread are not starved.
+	 */
+	protected static final int MAX_BATCH = 32;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final Logger log = Logger.getLogger(WorkStealingProcessingThreads.class.getName());
+
+	private final LongAdder idleWaits = new LongAdder();
+	private final AtomicInteger idleWorkers = new AtomicInteger(0);
+	private final Lane[] lanes;
+	private final int maxQueueSize;
+	private final AtomicInteger queueSize = new AtomicInteger(0);
+	private final LongAdder steals = new LongAdder();
+	private final Worker[] workers;
+
+	@SuppressWarnings({"unchecked"})
+	public WorkStealingProcessingThreads(E worker, int numWorkerThreads, int maxQueueSize, String name) {
+		super(numWorkerThreads, name);
+		// maxQueueSize is a limit per thread, the same as for ProcessingThreads
+		this.maxQueueSize = maxQueueSize * numWorkerThreads;
+		this.lanes = new Lane[numWorkerThreads * LANES_PER_THREAD];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane(i % numWorkerThreads);
+		}
+		this.workers = new WorkStealingProcessingThreads.Worker[numWorkerThreads];
+		for (int j = 0; j < numWorkerThreads; j++) {
+			WorkerThread t = worker.getNewInstance();
+
+			workers[j] = new Worker(j, t);
+			t.setItemsSource(workers[j]);
+			addWorkerThread((E) t);
+			log.log(Level.FINEST, "Created work stealing worker thread: {0}, lanes: {1}",
+					new Object[]{t.getName(), LANES_PER_THREAD});
+		}
+	}
+
+	public long getIdleWaits() {
+		return idleWaits.sum();
+	}
+
+	public long getSteals() {
+		return steals.sum();
+	}
+
+	@Override
+	public int getTotalQueueSize() {
+		return queueSize.get();
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		super.getStatistics(compName, list);
+		list.add(compName, "Processor: " + getName() + " stolen lanes", getSteals(), Level.FINE);
+		list.add(compName, "Processor: " + getName() + " idle waits", getIdleWaits(), Level.FINE);
+		list.add(compName, "Processor: " + getName() + " idle threads", idleWorkers.get(), Level.FINER);
+	}
+
+	@Override
+	protected boolean offer(QueueItem item, int hashCode) {
+		if (queueSize.incrementAndGet() > maxQueueSize) {
+			queueSize.decrementAndGet();
+			return false;
+		}
+
+		Lane lane = lanes[hashCode % lanes.length];
+
+		lane.items.offer(item);
+		schedule(lane, workers[lane.home]);
+
+		return true;
+	}
+
+	private void schedule(Lane lane, Worker worker) {
+		if (lane.scheduled.compareAndSet(false, true)) {
+			worker.lanes.offerLast(lane);
+			wakeUp(worker);
+		}
+	}
+
+	private void wakeUp(Worker worker) {
+		if (worker.idle) {
+			LockSupport.unpark(worker.thread);
+		} else if (idleWorkers.get() > 0) {
+			// home thread is busy, let idle thread steal the lane
+			for (Worker w : workers) {
+				if (w.idle) {
+					LockSupport.unpark(w.thread);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Group of users with packets processed in order by a single thread at a time. Lane is scheduled (present in deque
+	 * of one of worker threads or processed by a worker thread) when <code>scheduled</code> is set.
+	 */
+	private static class Lane {
+
+		private final int home;
+		private final ConcurrentLinkedQueue<QueueItem> items = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		private Lane(int home) {
+			this.home = home;
+		}
+	}
+
+	private class Worker
+			implements WorkerThread.ItemsSource {
+
+		private final int idx;
+		private final ConcurrentLinkedDeque<Lane> lanes = new ConcurrentLinkedDeque<>();
+		private final Thread thread;
+		private int batch = 0;
+		private Lane current = null;
+		private volatile boolean idle = false;
+
+		private Worker(int idx, Thread thread) {
+			this.idx = idx;
+			this.thread = thread;
+		}
+
+		@Override
+		public QueueItem take() throws InterruptedException {
+			while (true) {
+				if (current != null) {
+					if (batch < MAX_BATCH) {
+						QueueItem item = current.items.poll();
+						if (item != null) {
+							++batch;
+							queueSize.decrementAndGet();
+							return item;
+						}
+					}
+					release(current);
+					current = null;
+				}
+
+				Lane lane = lanes.pollFirst();
+				if (lane == null) {
+					lane = steal();
+				}
+				if (lane == null) {
+					awaitWork();
+				} else {
+					current = lane;
+					batch = 0;
+				}
+			}
+		}
+
+		private void awaitWork() throws InterruptedException {
+			idle = true;
+			idleWorkers.incrementAndGet();
+			try {
+				// check once more after announcing that we are idle, so producer
+				// which scheduled a lane in the meantime will wake us up
+				if (!hasWork()) {
+					idleWaits.increment();
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+				}
+			} finally {
+				idleWorkers.decrementAndGet();
+				idle = false;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+
+		private boolean hasWork() {
+			for (Worker w : workers) {
+				if (!w.lanes.isEmpty()) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void release(Lane lane) {
+			// Items added after clearing the flag will schedule the lane again,
+			// items added before are detected here.
+			lane.scheduled.set(false);
+			if (!lane.items.isEmpty()) {
+				schedule(lane, this);
+			}
+		}
+
+		private Lane steal() {
+			for (int i = 1; i < workers.length; i++) {
+				Lane lane = workers[(idx + i) % workers.length].lanes.pollLast();
+				if (lane != null) {
+					steals.increment();
+					return lane;
+				}
+			}
+			return null;
+		}
+	}
+}
@@ -35,6 +35,8 @@ public abstract class WorkerThread
 
 	//private PriorityQueueAbstract<QueueItem> queue = null;
 	private LinkedBlockingQueue<QueueItem> queue = null;
+	// if set, items are taken from it instead of the queue of this thread
+	private ItemsSource itemsSource = null;
 	private long runsCnt = 0;
 	private boolean stopped = false;
 
@@ -60,7 +62,7 @@ public abstract class WorkerThread
 
 		while (!stopped) {
 			try {
-				item = queue.take();
+				item = (itemsSource == null) ? queue.take() : itemsSource.take();
 
 				long start = System.currentTimeMillis();
 
@@ -94,7 +96,7 @@ public abstract class WorkerThread
 	}
 
 	public int size() {
-		return queue.size();
+		return (queue == null) ? 0 : queue.size();
 	}
 
 	public void shutdown() {
@@ -105,5 +107,20 @@ public abstract class WorkerThread
 		}
 	}
 
+	void setItemsSource(ItemsSource itemsSource) {
+		this.itemsSource = itemsSource;
+	}
+
+	/**
+	 * Source of items for worker threads which do not use own queue, ie. threads of
+	 * {@link WorkStealingProcessingThreads}. Method <code>take()</code> is called by the worker thread after the
+	 * previously taken item was processed.
+	 */
+	interface ItemsSource {
+
+		QueueItem take() throws InterruptedException;
+
+	}
+
 }
 
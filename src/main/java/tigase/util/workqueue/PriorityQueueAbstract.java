@@ -20,6 +20,10 @@ package tigase.util.workqueue;
 import tigase.annotations.TigaseDeprecated;
 import tigase.sys.TigaseRuntime;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.function.ToIntFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -83,12 +87,71 @@ public abstract class PriorityQueueAbstract<E> {
 		return null;
 	}
 
+	/**
+	 * Takes elements from the queue to the given collection waiting if necessary until at least one element is
+	 * available. Elements are taken in the same order as they would be returned by subsequent calls to
+	 * <code>take()</code>.
+	 * <br>
+	 * Default implementation takes a single element, implementations should override it to take more elements at once
+	 * with a single synchronization.
+	 *
+	 * @param c collection to which elements are added
+	 * @param maxElements maximal number of elements to take
+	 *
+	 * @return number of elements added to the collection
+	 */
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		c.add(take());
+		return 1;
+	}
+
 	public abstract void init(int maxPriority, int maxSize);
 
+	/**
+	 * Adds elements from the given queue without blocking. Elements which were added are removed from the given queue,
+	 * so after the call it contains only elements which could not be added due to queue overflow.
+	 *
+	 * @param elements queue of elements to add
+	 * @param priority function returning priority of an element
+	 *
+	 * @return number of added elements
+	 */
+	public int offerAll(Queue<E> elements, ToIntFunction<? super E> priority) {
+		int added = 0;
+
+		for (Iterator<E> it = elements.iterator(); it.hasNext(); ) {
+			E element = it.next();
+
+			if (offer(element, priority.applyAsInt(element))) {
+				it.remove();
+				++added;
+			}
+		}
+
+		return added;
+	}
+
 	public abstract boolean offer(E element, int priority);
 
 	public abstract void put(E element, int priority) throws InterruptedException;
 
+	/**
+	 * Adds all elements from the given queue waiting if necessary for space in the queue. Elements are removed from
+	 * the given queue when they are added, so if the call is interrupted the given queue contains only elements which
+	 * were not added.
+	 *
+	 * @param elements queue of elements to add
+	 * @param priority function returning priority of an element
+	 */
+	public void putAll(Queue<E> elements, ToIntFunction<? super E> priority) throws InterruptedException {
+		E element;
+
+		while ((element = elements.peek()) != null) {
+			put(element, priority.applyAsInt(element));
+			elements.poll();
+		}
+	}
+
 	public abstract void setMaxSize(int maxSize);
 
 	public abstract int[] size();
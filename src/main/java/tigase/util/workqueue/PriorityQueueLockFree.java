@@ -0,0 +1,415 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.ToIntFunction;
+
+/**
+ * Priority queue built from bounded, array backed, lock-free multi-producer/single-consumer rings - one ring for each
+ * priority.
+ * <br>
+ * Producers claim a slot in a ring with a single CAS operation and never take a lock, so any number of threads may
+ * call {@link #offer(Object, int)} and {@link #put(Object, int)} at the same time. Elements may be taken by a single
+ * consumer thread only, which is how queues are used by <code>AbstractMessageReceiver</code> - each queue is drained
+ * by exactly one <code>QueueListener</code> thread.
+ * <br>
+ * Priorities are handled in the same way as in {@link PriorityQueueRelaxed}: <code>offer()</code> places an element
+ * rejected by a full ring in the ring of the next (lower) priority, while <code>put()</code> waits until there is
+ * free space in the ring of the requested priority. Only <code>put()</code> called on a full ring and
+ * <code>take()</code> called on an empty queue block the calling thread.
+ * <br>
+ * Rings are allocated up front, so memory for <code>maxPriority * maxSize</code> references is reserved on
+ * initialization.
+ */
+public class PriorityQueueLockFree<E>
+		extends PriorityQueueAbstract<E> {
+
+	private static final long PRODUCER_WAIT_MILLIS = 10;
+
+	private final Object notFull = new Object();
+	private final AtomicInteger waitingProducers = new AtomicInteger(0);
+	/**
+	 * Rings currently read by the consumer. It may be a ring already replaced in {@link #rings} by
+	 * {@link #setMaxSize(int)} but not yet fully drained.
+	 */
+	private AtomicReferenceArray<Ring<E>> heads = null;
+	/**
+	 * Rings to which new elements are added by producers.
+	 */
+	private AtomicReferenceArray<Ring<E>> rings = null;
+	private volatile Thread waitingConsumer = null;
+
+	public PriorityQueueLockFree() {
+	}
+
+	protected PriorityQueueLockFree(int maxPriority, int maxSize) {
+		init(maxPriority, maxSize);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		c.add(take());
+
+		int count = 1;
+		E e;
+
+		while ((count < maxElements) && ((e = poll()) != null)) {
+			c.add(e);
+			++count;
+		}
+		if (count > 1) {
+			signalProducers();
+		}
+
+		return count;
+	}
+
+	@Override
+	public final void init(int maxPriority, int maxSize) {
+		rings = new AtomicReferenceArray<>(maxPriority);
+		heads = new AtomicReferenceArray<>(maxPriority);
+		for (int i = 0; i < maxPriority; i++) {
+			Ring<E> ring = new Ring<>(maxSize);
+			rings.set(i, ring);
+			heads.set(i, ring);
+		}
+	}
+
+	@Override
+	public boolean offer(E element, int priority) {
+		if (!enqueue(element, priority)) {
+			return false;
+		}
+
+		signalConsumer();
+		return true;
+	}
+
+	@Override
+	public int offerAll(Queue<E> elements, ToIntFunction<? super E> priority) {
+		int added = 0;
+
+		for (Iterator<E> it = elements.iterator(); it.hasNext(); ) {
+			E element = it.next();
+
+			if (enqueue(element, priority.applyAsInt(element))) {
+				it.remove();
+				++added;
+			}
+		}
+		if (added > 0) {
+			signalConsumer();
+		}
+
+		return added;
+	}
+
+	@Override
+	public void put(E element, int priority) throws InterruptedException {
+		checkPriority(priority);
+
+		while (!add(element, priority)) {
+			awaitNotFull(priority);
+		}
+
+		signalConsumer();
+	}
+
+	@Override
+	public void putAll(Queue<E> elements, ToIntFunction<? super E> priority) throws InterruptedException {
+		boolean added = false;
+
+		try {
+			E element;
+
+			while ((element = elements.peek()) != null) {
+				int pr = priority.applyAsInt(element);
+
+				checkPriority(pr);
+				while (!add(element, pr)) {
+					// The consumer must know about already added elements before
+					// we start waiting for it to make some room in the ring
+					if (added) {
+						signalConsumer();
+						added = false;
+					}
+					awaitNotFull(pr);
+				}
+				added = true;
+				elements.poll();
+			}
+		} finally {
+			if (added) {
+				signalConsumer();
+			}
+		}
+	}
+
+	@Override
+	public void setMaxSize(int maxSize) {
+		for (int i = 0; i < rings.length(); i++) {
+			Ring<E> oldRing = rings.get(i);
+			if (oldRing.limit == maxSize) {
+				continue;
+			}
+
+			// We don't want to lose any data so the new size must
+			// be enough to keep all exising elements. Elements left in the old
+			// ring are taken by the consumer before switching to the new one.
+			Ring<E> newRing = new Ring<>(Math.max(oldRing.size(), maxSize));
+			oldRing.next = newRing;
+			oldRing.close();
+			rings.set(i, newRing);
+		}
+		synchronized (notFull) {
+			notFull.notifyAll();
+		}
+	}
+
+	@Override
+	public int[] size() {
+		int[] result = new int[heads.length()];
+
+		for (int i = 0; i < result.length; i++) {
+			for (Ring<E> ring = heads.get(i); ring != null; ring = ring.next) {
+				result[i] += ring.size();
+			}
+		}
+
+		return result;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		while (true) {
+			E e = poll();
+
+			if (e == null) {
+				// Announce that we are going to sleep and check once more, so
+				// a producer which added an element in the meantime will wake us up
+				waitingConsumer = Thread.currentThread();
+				try {
+					e = poll();
+					if (e == null) {
+						LockSupport.park(this);
+					}
+				} finally {
+					waitingConsumer = null;
+				}
+				if (e == null) {
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					continue;
+				}
+			}
+
+			signalProducers();
+			return e;
+		}
+	}
+
+	@Override
+	public int totalSize() {
+		int result = 0;
+
+		for (int size : size()) {
+			result += size;
+		}
+
+		return result;
+	}
+
+	private boolean add(E element, int priority) {
+		Ring<E> ring = rings.get(priority);
+
+		while (true) {
+			switch (ring.offer(element)) {
+				case Ring.ADDED:
+					return true;
+				case Ring.FULL:
+					return false;
+				default:
+					// ring was replaced by setMaxSize(), retry with the new one
+					ring = ring.next;
+					break;
+			}
+		}
+	}
+
+	private void awaitNotFull(int priority) throws InterruptedException {
+		synchronized (notFull) {
+			waitingProducers.incrementAndGet();
+			try {
+				if (rings.get(priority).isFull()) {
+					notFull.wait(PRODUCER_WAIT_MILLIS);
+				}
+			} finally {
+				waitingProducers.decrementAndGet();
+			}
+		}
+	}
+
+	private void checkPriority(int priority) {
+		if ((priority < 0) || (rings.length() <= priority)) {
+			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (rings.length() - 1));
+		}
+	}
+
+	/**
+	 * Adds element without notifying the consumer. If the ring of the given priority is full the element is added to
+	 * the ring of the next lower priority.
+	 */
+	private boolean enqueue(E element, int priority) {
+		checkPriority(priority);
+
+		int pr = priority;
+		while (!add(element, pr)) {
+			if (pr >= rings.length() - 1) {
+				return false;
+			}
+			++pr;
+		}
+
+		return true;
+	}
+
+	private E poll() {
+		for (int i = 0; i < heads.length(); i++) {
+			Ring<E> ring = heads.get(i);
+
+			while (true) {
+				E e = ring.poll();
+				if (e != null) {
+					return e;
+				}
+				Ring<E> next = ring.next;
+				if (next == null || !ring.isDrained()) {
+					break;
+				}
+				heads.set(i, next);
+				ring = next;
+			}
+		}
+
+		return null;
+	}
+
+	private void signalConsumer() {
+		Thread consumer = waitingConsumer;
+
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	private void signalProducers() {
+		if (waitingProducers.get() > 0) {
+			synchronized (notFull) {
+				notFull.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Bounded ring of elements. Slots are claimed by producers by incrementing <code>tail</code> and are published by
+	 * storing the element in the claimed slot. Empty (<code>null</code>) slot below <code>tail</code> is claimed but
+	 * not published yet. Ring may be closed by setting <code>CLOSED</code> bit in <code>tail</code>, after that no
+	 * more slots may be claimed.
+	 */
+	private static final class Ring<E> {
+
+		private static final int ADDED = 0;
+		private static final int CLOSED = 2;
+		private static final long CLOSED_BIT = 1L << 62;
+		private static final int FULL = 1;
+
+		private final int limit;
+		private final int mask;
+		private final AtomicReferenceArray<E> slots;
+		private final AtomicLong tail = new AtomicLong(0);
+		// written by the consumer thread only
+		private volatile long head = 0;
+		private volatile Ring<E> next = null;
+
+		private Ring(int maxSize) {
+			limit = Math.max(1, maxSize);
+			int capacity = limit == 1 ? 1 : Integer.highestOneBit(limit - 1) << 1;
+			mask = capacity - 1;
+			slots = new AtomicReferenceArray<>(capacity);
+		}
+
+		private void close() {
+			long t;
+			do {
+				t = tail.get();
+			} while (!tail.compareAndSet(t, t | CLOSED_BIT));
+		}
+
+		private boolean isDrained() {
+			long t = tail.get();
+			return (t & CLOSED_BIT) != 0 && head == (t & ~CLOSED_BIT);
+		}
+
+		private boolean isFull() {
+			long t = tail.get();
+			return (t & CLOSED_BIT) == 0 && t - head >= limit;
+		}
+
+		private int offer(E element) {
+			while (true) {
+				long t = tail.get();
+				if ((t & CLOSED_BIT) != 0) {
+					return CLOSED;
+				}
+				if (t - head >= limit) {
+					return FULL;
+				}
+				if (tail.compareAndSet(t, t + 1)) {
+					slots.set((int) t & mask, element);
+					return ADDED;
+				}
+			}
+		}
+
+		private E poll() {
+			long h = head;
+			int idx = (int) h & mask;
+			E e = slots.get(idx);
+
+			if (e == null) {
+				return null;
+			}
+			slots.lazySet(idx, null);
+			head = h + 1;
+
+			return e;
+		}
+
+		private int size() {
+			return (int) Math.max(0, (tail.get() & ~CLOSED_BIT) - head);
+		}
+	}
+}
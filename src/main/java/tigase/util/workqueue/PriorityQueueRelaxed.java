@@ -17,7 +17,11 @@
  */
 package tigase.util.workqueue;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.ToIntFunction;
 import java.util.logging.Logger;
 
 /**
@@ -42,6 +46,34 @@ public class PriorityQueueRelaxed<E>
 		init(maxPriority, maxSize);
 	}
 
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		int count = 0;
+
+		while (count == 0) {
+			synchronized (this) {
+				while (lowestNonEmpty == Integer.MAX_VALUE) {
+					this.wait();
+				}
+
+				while ((count < maxElements) && (lowestNonEmpty != Integer.MAX_VALUE)) {
+					LinkedBlockingQueue<E> q = qs[lowestNonEmpty];
+					E e = q.poll();
+
+					if (e != null) {
+						c.add(e);
+						++count;
+					}
+					if ((e == null) || q.isEmpty()) {
+						lowestNonEmpty = findNextNonEmpty();
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
 	@Override
 	@SuppressWarnings("unchecked")
 	public final void init(int maxPriority, int maxSize) {
@@ -78,6 +110,62 @@ public class PriorityQueueRelaxed<E>
 		add(element, priority, true);
 	}
 
+	@Override
+	public int offerAll(Queue<E> elements, ToIntFunction<? super E> priority) {
+		int added = 0;
+		int lowest = Integer.MAX_VALUE;
+
+		for (Iterator<E> it = elements.iterator(); it.hasNext(); ) {
+			E element = it.next();
+			int pr = enqueue(element, priority.applyAsInt(element));
+
+			if (pr >= 0) {
+				it.remove();
+				++added;
+				lowest = Math.min(lowest, pr);
+			}
+		}
+		if (lowest != Integer.MAX_VALUE) {
+			signalAdded(lowest);
+		}
+
+		return added;
+	}
+
+	@Override
+	public void putAll(Queue<E> elements, ToIntFunction<? super E> priority) throws InterruptedException {
+		int lowest = Integer.MAX_VALUE;
+
+		try {
+			E element;
+
+			while ((element = elements.peek()) != null) {
+				int pr = priority.applyAsInt(element);
+
+				checkPriority(pr);
+
+				LinkedBlockingQueue<E> q = qs[pr];
+
+				if (!q.offer(element)) {
+
+					// The consumer must know about already added elements before
+					// we start waiting for it to make some room in the queue
+					if (lowest != Integer.MAX_VALUE) {
+						signalAdded(lowest);
+						lowest = Integer.MAX_VALUE;
+					}
+					q.put(element);
+				}
+				lowest = Math.min(lowest, pr);
+				elements.poll();
+			}
+		} finally {
+			if (lowest != Integer.MAX_VALUE) {
+				signalAdded(lowest);
+			}
+		}
+	}
+
 	@Override
 	public void setMaxSize(int maxSize) {
 		for (int i = 0; i < qs.length; i++) {
@@ -159,9 +247,7 @@ public class PriorityQueueRelaxed<E>
 	// to queues at the same time.
 	// private boolean add(E element, int priority, boolean blocking, String owner)
 	private boolean add(E element, int priority, boolean blocking) throws InterruptedException {
-		if ((priority < 0) || (qs.length <= priority)) {
-			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (qs.length - 1));
-		}
+		checkPriority(priority);
 
 		boolean result = true;
 		LinkedBlockingQueue<E> q = qs[priority];
@@ -184,16 +270,7 @@ public class PriorityQueueRelaxed<E>
 		}
 
 		if (result) {
-			synchronized (this) {
-				if (priority < lowestNonEmpty) {
-
-//        log.finest("[" + owner + "] setting new priority from " +
-//                lowestNonEmpty + ", to: " + priority);
-					lowestNonEmpty = priority;
-				}
-
-				this.notify();
-			}
+			signalAdded(priority);
 		} else {
 			if (priority < qs.length - 1) {
 
@@ -205,6 +282,30 @@ public class PriorityQueueRelaxed<E>
 		return result;
 	}
 
+	private void checkPriority(int priority) {
+		if ((priority < 0) || (qs.length <= priority)) {
+			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (qs.length - 1));
+		}
+	}
+
+	/**
+	 * Adds element without blocking and without notifying the consumer. If the queue of the given priority is full
+	 * the element is added to the queue of the next lower priority.
+	 *
+	 * @return priority of the queue to which the element was added or <code>-1</code> if all queues are full
+	 */
+	private int enqueue(E element, int priority) {
+		checkPriority(priority);
+
+		for (int pr = priority; pr < qs.length; pr++) {
+			if (qs[pr].offer(element)) {
+				return pr;
+			}
+		}
+
+		return -1;
+	}
+
 	private int findNextNonEmpty() {
 		for (int i = 0; i < qs.length; i++) {
 			if (!qs[i].isEmpty()) {
@@ -214,5 +315,18 @@ public class PriorityQueueRelaxed<E>
 
 		return Integer.MAX_VALUE;
 	}
+
+	private void signalAdded(int priority) {
+		synchronized (this) {
+			if (priority < lowestNonEmpty) {
+
+//        log.finest("[" + owner + "] setting new priority from " +
+//                lowestNonEmpty + ", to: " + priority);
+				lowestNonEmpty = priority;
+			}
+
+			this.notify();
+		}
+	}
 }
 
@@ -17,7 +17,11 @@
  */
 package tigase.util.workqueue;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.ToIntFunction;
 import java.util.logging.Logger;
 
 /**
@@ -42,6 +46,34 @@ public class PriorityQueueStrict<E>
 		init(maxPriority, maxSize);
 	}
 
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) throws InterruptedException {
+		int count = 0;
+
+		while (count == 0) {
+			synchronized (this) {
+				while (lowestNonEmpty == Integer.MAX_VALUE) {
+					this.wait();
+				}
+
+				while ((count < maxElements) && (lowestNonEmpty != Integer.MAX_VALUE)) {
+					LinkedBlockingQueue<E> q = qs[lowestNonEmpty];
+					E e = q.poll();
+
+					if (e != null) {
+						c.add(e);
+						++count;
+					}
+					if ((e == null) || q.isEmpty()) {
+						lowestNonEmpty = findNextNonEmpty();
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
 	@Override
 	@SuppressWarnings("unchecked")
 	public final void init(int maxPriority, int maxSize) {
@@ -80,6 +112,59 @@ public class PriorityQueueStrict<E>
 		add(element, priority, true);
 	}
 
+	@Override
+	public int offerAll(Queue<E> elements, ToIntFunction<? super E> priority) {
+		int added = 0;
+		int lowest = Integer.MAX_VALUE;
+
+		for (Iterator<E> it = elements.iterator(); it.hasNext(); ) {
+			E element = it.next();
+			int pr = normalizePriority(priority.applyAsInt(element));
+
+			if (qs[pr].offer(element)) {
+				it.remove();
+				++added;
+				lowest = Math.min(lowest, pr);
+			}
+		}
+		if (lowest != Integer.MAX_VALUE) {
+			signalAdded(lowest);
+		}
+
+		return added;
+	}
+
+	@Override
+	public void putAll(Queue<E> elements, ToIntFunction<? super E> priority) throws InterruptedException {
+		int lowest = Integer.MAX_VALUE;
+
+		try {
+			E element;
+
+			while ((element = elements.peek()) != null) {
+				int pr = normalizePriority(priority.applyAsInt(element));
+				LinkedBlockingQueue<E> q = qs[pr];
+
+				if (!q.offer(element)) {
+
+					// The consumer must know about already added elements before
+					// we start waiting for it to make some room in the queue
+					if (lowest != Integer.MAX_VALUE) {
+						signalAdded(lowest);
+						lowest = Integer.MAX_VALUE;
+					}
+					q.put(element);
+				}
+				lowest = Math.min(lowest, pr);
+				elements.poll();
+			}
+		} finally {
+			if (lowest != Integer.MAX_VALUE) {
+				signalAdded(lowest);
+			}
+		}
+	}
+
 	@Override
 	public void setMaxSize(int maxSize) {
 		for (int i = 0; i < qs.length; i++) {
@@ -159,15 +244,7 @@ public class PriorityQueueStrict<E>
 	// to queues at the same time.
 	// private boolean add(E element, int priority, boolean blocking, String owner)
 	private boolean add(E element, int pr, boolean blocking) throws InterruptedException {
-		int priority = pr;
-
-		if (priority < 0) {
-			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (qs.length - 1));
-		}
-
-		if (qs.length <= priority) {
-			priority = qs.length - 1;
-		}
+		int priority = normalizePriority(pr);
 
 		boolean result = true;
 		LinkedBlockingQueue<E> q = qs[priority];
@@ -187,16 +264,7 @@ public class PriorityQueueStrict<E>
 		}
 
 		if (result) {
-			synchronized (this) {
-				if (priority < lowestNonEmpty) {
-
-//        log.finest("[" + owner + "] setting new priority from " +
-//                lowestNonEmpty + ", to: " + priority);
-					lowestNonEmpty = priority;
-				}
-
-				this.notify();
-			}
+			signalAdded(priority);
 		}
 
 		return result;
@@ -211,5 +279,26 @@ public class PriorityQueueStrict<E>
 
 		return Integer.MAX_VALUE;
 	}
+
+	private int normalizePriority(int priority) {
+		if (priority < 0) {
+			throw new IllegalArgumentException("parameter priority must be " + "between 0 and " + (qs.length - 1));
+		}
+
+		return Math.min(priority, qs.length - 1);
+	}
+
+	private void signalAdded(int priority) {
+		synchronized (this) {
+			if (priority < lowestNonEmpty) {
+
+//        log.finest("[" + owner + "] setting new priority from " +
+//                lowestNonEmpty + ", to: " + priority);
+				lowestNonEmpty = priority;
+			}
+
+			this.notify();
+		}
+	}
 }
 
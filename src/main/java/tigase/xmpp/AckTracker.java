@@ -0,0 +1,185 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.server.Packet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps packets sent with XMPP ack request until they are confirmed by the other side. Packets are numbered with
+ * consecutive sequence numbers and stored in a ring buffer indexed by the sequence number, so tracking and confirming a
+ * packet does not allocate anything. Packets are delivered over a single stream in order, so confirmation of a
+ * sequence number confirms all packets sent before it as well.
+ * <br>
+ * Packets are never dropped by the tracker, so every packet not confirmed is returned by {@link #drain()}. To keep
+ * memory bounded if the other side never confirms packets, the owner should check {@link #isFull()} after adding a
+ * packet and stop the stream when the limit is reached, so all tracked packets are drained and processed as
+ * undelivered.
+ * <br>
+ * Time from adding a packet until its confirmation is tracked as a moving average, which covers time spent by the
+ * packet in the send queue, in the network and waiting for being read by the other side.
+ */
+public class AckTracker {
+
+	public static final int DEF_MAX_SIZE = 10000;
+	private static final int DEF_CAPACITY = 16;
+
+	/**
+	 * Sequence number of the oldest packet which was not confirmed yet
+	 */
+	private long first = 1;
+	private volatile long latency = 0;
+	private int mask;
+	private int maxSize = DEF_MAX_SIZE;
+	/**
+	 * Sequence number which will be assigned to the next packet
+	 */
+	private long next = 1;
+	private Packet[] ring;
+	private long[] stamps;
+
+	public AckTracker() {
+		this(DEF_CAPACITY);
+	}
+
+	public AckTracker(int initialCapacity) {
+		int capacity = 2;
+		while (capacity < initialCapacity) {
+			capacity <<= 1;
+		}
+		ring = new Packet[capacity];
+		stamps = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds packet waiting for confirmation.
+	 *
+	 * @return sequence number assigned to the packet
+	 */
+	public synchronized long add(Packet packet) {
+		if (next - first == ring.length) {
+			grow();
+		}
+		int idx = (int) (next & mask);
+		ring[idx] = packet;
+		stamps[idx] = System.nanoTime();
+		return next++;
+	}
+
+	/**
+	 * Confirms packet with the sequence number and all packets added before it.
+	 *
+	 * @return number of packets confirmed by this call
+	 */
+	public synchronized int ack(long seq) {
+		if (seq < first) {
+			return 0;
+		}
+		long last = Math.min(seq, next - 1);
+		int count = (int) (last - first + 1);
+		if (count > 0) {
+			long sample = System.nanoTime() - stamps[(int) (last & mask)];
+			latency = latency == 0 ? sample : latency + (sample - latency) / 8;
+		}
+		for (; first <= last; first++) {
+			ring[(int) (first & mask)] = null;
+		}
+		return count;
+	}
+
+	/**
+	 * Removes all packets which are not confirmed yet.
+	 *
+	 * @return removed packets in order in which they were added
+	 */
+	public synchronized List<Packet> drain() {
+		if (first == next) {
+			return Collections.emptyList();
+		}
+		List<Packet> result = new ArrayList<>((int) (next - first));
+		for (; first < next; first++) {
+			int idx = (int) (first & mask);
+			result.add(ring[idx]);
+			ring[idx] = null;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns packets which are not confirmed yet without removing them.
+	 */
+	public synchronized List<Packet> snapshot() {
+		List<Packet> result = new ArrayList<>((int) (next - first));
+		for (long seq = first; seq < next; seq++) {
+			result.add(ring[(int) (seq & mask)]);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns sequence number of the oldest packet which is not confirmed yet or sequence number of the next packet if
+	 * all packets are confirmed.
+	 */
+	public synchronized long getFirstSeq() {
+		return first;
+	}
+
+	public synchronized int size() {
+		return (int) (next - first);
+	}
+
+	/**
+	 * Sets number of tracked packets at which {@link #isFull()} returns <code>true</code>.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Returns <code>true</code> if number of packets waiting for confirmation reached the limit.
+	 */
+	public synchronized boolean isFull() {
+		return next - first >= maxSize;
+	}
+
+	/**
+	 * Returns moving average of time from adding a packet until its confirmation in nanoseconds or <code>0</code> if
+	 * no packet was confirmed yet.
+	 */
+	public long getLatencyNanos() {
+		return latency;
+	}
+
+	private void grow() {
+		Packet[] newRing = new Packet[ring.length << 1];
+		long[] newStamps = new long[newRing.length];
+		int newMask = newRing.length - 1;
+		for (long seq = first; seq < next; seq++) {
+			newRing[(int) (seq & newMask)] = ring[(int) (seq & mask)];
+			newStamps[(int) (seq & newMask)] = stamps[(int) (seq & mask)];
+		}
+		ring = newRing;
+		stamps = newStamps;
+		mask = newMask;
+	}
+
+}
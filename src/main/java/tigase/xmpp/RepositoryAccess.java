@@ -344,6 +344,36 @@ public abstract class RepositoryAccess {
 		// return null;
 	}
 
+	/**
+	 * This method returns all data stored in given node as a map of keys and values. Repositories which support it
+	 * load whole node with a single query, so it is much faster than calling <code>getData()</code> for each key
+	 * returned by <code>getDataKeys()</code>.
+	 *
+	 * @param subnode a <code>String</code> value pointing to specific subnode in user reposiotry where data are
+	 * stored.
+	 *
+	 * @return a <code>Map</code> of all keys and values found in given subnode.
+	 *
+	 * @throws NotAuthorizedException is thrown when session has not been authorized yet and there is no access to
+	 * permanent storage.
+	 * @see #setData(String, String, String)
+	 */
+	public Map<String, String> getDataMap(final String subnode) throws NotAuthorizedException, TigaseDBException {
+		if (is_anonymous) {
+			return null;
+		}
+		if (!isAuthorized()) {
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG);
+		}
+		try {
+			return repo.getDataMap(getBareJID(), subnode);
+		} catch (UserNotFoundException e) {
+			log.log(Level.FINEST, "Problem accessing reposiotry: ", e);
+
+			throw new NotAuthorizedException(NO_ACCESS_TO_REP_MSG, e);
+		}    // end of try-catch
+	}
+
 	/**
 	 * This method allows to retrieve list of values associated with one key. As it is possible to store many values
 	 * with one key there are a few methods which provides this functionality. If given key does not exists in given
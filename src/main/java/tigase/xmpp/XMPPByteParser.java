@@ -0,0 +1,567 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import tigase.xml.SimpleHandler;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * XML stream parser consuming UTF-8 encoded bytes directly from a <code>ByteBuffer</code>, so data read from the
+ * socket does not have to be decoded to a <code>char[]</code> before parsing.
+ * <br>
+ * The parser calls the same <code>SimpleHandler</code> callbacks as <code>SimpleParser</code> does, character data and
+ * attribute values are passed in the escaped form, as they were received. Contents of CDATA sections is escaped before
+ * it is passed to the handler. Parser state, including bytes of a multibyte character split between reads, is kept in
+ * the handler with <code>saveParserState()</code>, so a single instance may be shared by all connections.
+ * <br>
+ * Limits of names, attributes and character data sizes are read from the same system properties as used by
+ * <code>SimpleParser</code>.
+ */
+public class XMPPByteParser {
+
+	public static final String MAX_ATTRIBS_NUMBER_PROP_KEY = "tigase.xml.max_attrib_number";
+
+	public static final String MAX_ATTRIBUTE_NAME_SIZE_PROP_KEY = "tigase.xml.max_attribute_name_size";
+
+	public static final String MAX_ATTRIBUTE_VALUE_SIZE_PROP_KEY = "tigase.xml.max_attribute_value_size";
+
+	public static final String MAX_CDATA_SIZE_PROP_KEY = "tigase.xml.max_cdata_size";
+
+	public static final String MAX_ELEMENT_NAME_SIZE_PROP_KEY = "tigase.xml.max_element_size";
+
+	private static final String[] ALLOWED_ENTITIES = {"amp", "apos", "gt", "lt", "quot"};
+	private static final String CDATA_SECTION_START = "![CDATA[";
+	private static final int MAX_ENTITY_SIZE = 10;
+	private static final XMPPByteParser instance = new XMPPByteParser();
+	// shared marker of a stream waiting for next top level element, saved instead of idle parser state
+	private static final Object IDLE_STATE = new Object();
+
+	private final int maxAttribsNumber = Integer.getInteger(MAX_ATTRIBS_NUMBER_PROP_KEY, 50);
+	private final int maxAttributeNameSize = Integer.getInteger(MAX_ATTRIBUTE_NAME_SIZE_PROP_KEY, 1024);
+	private final int maxAttributeValueSize = Integer.getInteger(MAX_ATTRIBUTE_VALUE_SIZE_PROP_KEY, 10 * 1024);
+	private final int maxCDataSize = Integer.getInteger(MAX_CDATA_SIZE_PROP_KEY, 1024 * 1024);
+	private final int maxElementNameSize = Integer.getInteger(MAX_ELEMENT_NAME_SIZE_PROP_KEY, 1024);
+
+	protected enum State {
+		START,
+		OPEN_BRACKET,
+		ELEMENT_NAME,
+		END_ELEMENT_NAME,
+		END_ELEMENT_SPACE,
+		ATTRIB_SPACE,
+		ATTRIB_NAME,
+		ATTRIB_EQUALS,
+		ATTRIB_QUOTE,
+		ATTRIB_VALUE,
+		CLOSE_EMPTY,
+		CDATA,
+		CDATA_SECTION,
+		OTHER_XML,
+		ERROR
+	}
+
+	public static XMPPByteParser getInstance() {
+		return instance;
+	}
+
+	private static boolean isWhite(char c) {
+		return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	private static boolean isNameChar(char c) {
+		switch (c) {
+			case '<':
+			case '>':
+			case '=':
+			case '&':
+			case '/':
+			case '\'':
+			case '"':
+			case '?':
+			case '!':
+				return false;
+			default:
+				return !isWhite(c);
+		}
+	}
+
+	private static boolean isValidEntity(CharSequence seq, int start, int end) {
+		if (end - start < 2) {
+			return false;
+		}
+		if (seq.charAt(start) == '#') {
+			boolean hex = seq.charAt(start + 1) == 'x';
+			int idx = hex ? start + 2 : start + 1;
+			if (idx == end) {
+				return false;
+			}
+			for (; idx < end; idx++) {
+				if (Character.digit(seq.charAt(idx), hex ? 16 : 10) < 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return Arrays.binarySearch(ALLOWED_ENTITIES, seq.subSequence(start, end).toString()) >= 0;
+	}
+
+	/**
+	 * Replaces parser state kept by the handler with a shared marker if the parser waits for the next top level element
+	 * and has no pending data, so idle connections do not retain parser buffers. Handler must not have any open
+	 * element except the stream root.
+	 *
+	 * @return <code>true</code> if parser state was released
+	 */
+	public boolean releaseIdleState(SimpleHandler handler) {
+		Object saved = handler.restoreParserState();
+		if (saved == IDLE_STATE) {
+			return true;
+		}
+		if (!(saved instanceof ParserState)) {
+			return false;
+		}
+
+		ParserState state = (ParserState) saved;
+		if (state.state != State.CDATA || state.pendingBytes != 0) {
+			return false;
+		}
+		if (state.cdata != null) {
+			// whitespace between top level elements is ignored
+			for (int i = 0; i < state.cdata.length(); i++) {
+				if (!isWhite(state.cdata.charAt(i))) {
+					return false;
+				}
+			}
+		}
+		handler.saveParserState(IDLE_STATE);
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if the parser state was released by {@link #releaseIdleState(SimpleHandler)}.
+	 */
+	public boolean isIdleState(Object state) {
+		return state == IDLE_STATE;
+	}
+
+	/**
+	 * Parses all remaining bytes of the buffer.
+	 *
+	 * @return <code>false</code> if the buffer contains a byte sequence which is not valid UTF-8 or a character which
+	 * is not allowed in XML. In such case the buffer position is set to the offending byte, data before it is already
+	 * parsed and <code>handler.error()</code> is not called, so the caller may decide how to handle such input.
+	 */
+	public boolean parse(SimpleHandler handler, ByteBuffer data) {
+		Object saved = handler.restoreParserState();
+		ParserState state;
+
+		if (saved == IDLE_STATE) {
+			state = new ParserState();
+			state.state = State.CDATA;
+		} else if (saved == null) {
+			state = new ParserState();
+		} else {
+			state = (ParserState) saved;
+		}
+		try {
+			while (data.hasRemaining()) {
+				if (state.state == State.ERROR) {
+					data.position(data.limit());
+					return true;
+				}
+
+				int pos = data.position();
+				byte b = data.get();
+
+				if (b >= 0 && state.pendingBytes == 0) {
+					if (b < 0x20 && !isWhite((char) b)) {
+						data.position(pos);
+						return false;
+					}
+					process(handler, state, (char) b);
+					continue;
+				}
+
+				int cp = decode(state, b);
+
+				if (cp == -1) {
+					// waiting for next bytes of a multibyte character
+					continue;
+				}
+				if (cp < 0) {
+					state.pendingBytes = 0;
+					data.position(pos);
+					return false;
+				}
+				if (cp >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+					process(handler, state, Character.highSurrogate(cp));
+					process(handler, state, Character.lowSurrogate(cp));
+				} else {
+					process(handler, state, (char) cp);
+				}
+			}
+		} finally {
+			handler.saveParserState(state);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns decoded code point, -1 if more bytes are needed or -2 if byte sequence is not valid UTF-8.
+	 */
+	private int decode(ParserState state, byte b) {
+		if (state.pendingBytes == 0) {
+			if ((b & 0xE0) == 0xC0) {
+				state.codePoint = b & 0x1F;
+				state.pendingBytes = 1;
+				state.minCodePoint = 0x80;
+			} else if ((b & 0xF0) == 0xE0) {
+				state.codePoint = b & 0x0F;
+				state.pendingBytes = 2;
+				state.minCodePoint = 0x800;
+			} else if ((b & 0xF8) == 0xF0) {
+				state.codePoint = b & 0x07;
+				state.pendingBytes = 3;
+				state.minCodePoint = 0x10000;
+			} else {
+				return -2;
+			}
+			return -1;
+		}
+
+		if ((b & 0xC0) != 0x80) {
+			return -2;
+		}
+		state.codePoint = (state.codePoint << 6) | (b & 0x3F);
+		if (--state.pendingBytes > 0) {
+			return -1;
+		}
+
+		int cp = state.codePoint;
+
+		if (cp < state.minCodePoint || cp > Character.MAX_CODE_POINT ||
+				(cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) || cp == 0xFFFE || cp == 0xFFFF) {
+			return -2;
+		}
+		return cp;
+	}
+
+	private void error(SimpleHandler handler, ParserState state, String message) {
+		state.state = State.ERROR;
+		handler.error(message);
+	}
+
+	private boolean checkEntity(SimpleHandler handler, ParserState state, StringBuilder sb) {
+		if (state.entityStart >= 0) {
+			error(handler, state, "Malformed XML: unterminated entity: " + sb.substring(state.entityStart));
+			return false;
+		}
+		return true;
+	}
+
+	private boolean appendEscaped(SimpleHandler handler, ParserState state, StringBuilder sb, char c) {
+		if (state.entityStart >= 0) {
+			if (c == ';') {
+				if (!isValidEntity(sb, state.entityStart + 1, sb.length())) {
+					error(handler, state, "Malformed XML: unsupported entity: " + sb.substring(state.entityStart));
+					return false;
+				}
+				state.entityStart = -1;
+			} else if (sb.length() - state.entityStart > MAX_ENTITY_SIZE) {
+				error(handler, state, "Malformed XML: unterminated entity: " + sb.substring(state.entityStart));
+				return false;
+			}
+		} else if (c == '&') {
+			state.entityStart = sb.length();
+		}
+		sb.append(c);
+		return true;
+	}
+
+	private void startElement(SimpleHandler handler, ParserState state) {
+		StringBuilder[] names = null;
+		StringBuilder[] values = null;
+
+		if (state.attribCount > 0) {
+			names = Arrays.copyOf(state.attribNames, state.attribCount);
+			values = Arrays.copyOf(state.attribValues, state.attribCount);
+			Arrays.fill(state.attribNames, 0, state.attribCount, null);
+			Arrays.fill(state.attribValues, 0, state.attribCount, null);
+			state.attribCount = 0;
+		}
+		handler.startElement(state.name, names, values);
+	}
+
+	private void process(SimpleHandler handler, ParserState state, char c) {
+		switch (state.state) {
+			case START:
+				if (c == '<') {
+					state.state = State.OPEN_BRACKET;
+				} else if (!isWhite(c)) {
+					error(handler, state, "Not allowed character at the beginning of the stream: " + c);
+				}
+				break;
+
+			case OPEN_BRACKET:
+				if (c == '/') {
+					state.name = new StringBuilder();
+					state.state = State.END_ELEMENT_NAME;
+				} else if (c == '?' || c == '!') {
+					state.other = new StringBuilder().append(c);
+					state.state = State.OTHER_XML;
+				} else if (isNameChar(c)) {
+					state.name = new StringBuilder().append(c);
+					state.state = State.ELEMENT_NAME;
+				} else {
+					error(handler, state, "Malformed XML: unexpected character after '<': " + c);
+				}
+				break;
+
+			case ELEMENT_NAME:
+				if (isWhite(c)) {
+					state.state = State.ATTRIB_SPACE;
+				} else if (c == '/') {
+					state.state = State.CLOSE_EMPTY;
+				} else if (c == '>') {
+					startElement(handler, state);
+					state.state = State.CDATA;
+				} else if (!isNameChar(c)) {
+					error(handler, state, "Malformed XML: not allowed character in element name: " + c);
+				} else if (state.name.length() >= maxElementNameSize) {
+					error(handler, state, "Max element name size exceeded: " + maxElementNameSize);
+				} else {
+					state.name.append(c);
+				}
+				break;
+
+			case END_ELEMENT_NAME:
+				if (c == '>') {
+					endElement(handler, state);
+				} else if (isWhite(c) && state.name.length() > 0) {
+					state.state = State.END_ELEMENT_SPACE;
+				} else if (!isNameChar(c)) {
+					error(handler, state, "Malformed XML: not allowed character in element name: " + c);
+				} else if (state.name.length() >= maxElementNameSize) {
+					error(handler, state, "Max element name size exceeded: " + maxElementNameSize);
+				} else {
+					state.name.append(c);
+				}
+				break;
+
+			case END_ELEMENT_SPACE:
+				if (c == '>') {
+					endElement(handler, state);
+				} else if (!isWhite(c)) {
+					error(handler, state, "Malformed XML: unexpected character in closing tag: " + c);
+				}
+				break;
+
+			case ATTRIB_SPACE:
+				if (c == '/') {
+					state.state = State.CLOSE_EMPTY;
+				} else if (c == '>') {
+					startElement(handler, state);
+					state.state = State.CDATA;
+				} else if (isNameChar(c)) {
+					if (state.attribCount >= maxAttribsNumber) {
+						error(handler, state, "Max attributes number exceeded: " + maxAttribsNumber);
+					} else {
+						state.attribName = new StringBuilder().append(c);
+						state.state = State.ATTRIB_NAME;
+					}
+				} else if (!isWhite(c)) {
+					error(handler, state, "Malformed XML: unexpected character in element: " + c);
+				}
+				break;
+
+			case ATTRIB_NAME:
+				if (c == '=') {
+					state.state = State.ATTRIB_QUOTE;
+				} else if (isWhite(c)) {
+					state.state = State.ATTRIB_EQUALS;
+				} else if (!isNameChar(c)) {
+					error(handler, state, "Malformed XML: not allowed character in attribute name: " + c);
+				} else if (state.attribName.length() >= maxAttributeNameSize) {
+					error(handler, state, "Max attribute name size exceeded: " + maxAttributeNameSize);
+				} else {
+					state.attribName.append(c);
+				}
+				break;
+
+			case ATTRIB_EQUALS:
+				if (c == '=') {
+					state.state = State.ATTRIB_QUOTE;
+				} else if (!isWhite(c)) {
+					error(handler, state, "Malformed XML: missing '=' after attribute name: " + state.attribName);
+				}
+				break;
+
+			case ATTRIB_QUOTE:
+				if (c == '\'' || c == '"') {
+					state.quote = c;
+					state.attribValue = new StringBuilder();
+					state.state = State.ATTRIB_VALUE;
+				} else if (!isWhite(c)) {
+					error(handler, state, "Malformed XML: attribute value is not quoted: " + state.attribName);
+				}
+				break;
+
+			case ATTRIB_VALUE:
+				if (c == state.quote) {
+					if (checkEntity(handler, state, state.attribValue)) {
+						state.attribNames[state.attribCount] = state.attribName;
+						state.attribValues[state.attribCount] = state.attribValue;
+						state.attribCount++;
+						state.attribName = null;
+						state.attribValue = null;
+						state.state = State.ATTRIB_SPACE;
+					}
+				} else if (c == '<') {
+					error(handler, state, "Malformed XML: not allowed character in attribute value: " + c);
+				} else if (state.attribValue.length() >= maxAttributeValueSize) {
+					error(handler, state, "Max attribute value size exceeded: " + maxAttributeValueSize);
+				} else {
+					appendEscaped(handler, state, state.attribValue, c);
+				}
+				break;
+
+			case CLOSE_EMPTY:
+				if (c == '>') {
+					startElement(handler, state);
+					endElement(handler, state);
+				} else {
+					error(handler, state, "Malformed XML: unexpected character after '/': " + c);
+				}
+				break;
+
+			case CDATA:
+				if (c == '<') {
+					if (state.cdata != null) {
+						if (!checkEntity(handler, state, state.cdata)) {
+							break;
+						}
+						handler.elementCData(state.cdata);
+						state.cdata = null;
+					}
+					state.state = State.OPEN_BRACKET;
+				} else {
+					if (state.cdata == null) {
+						state.cdata = new StringBuilder(100);
+					} else if (state.cdata.length() >= maxCDataSize) {
+						error(handler, state, "Max cdata size exceeded: " + maxCDataSize);
+						break;
+					}
+					appendEscaped(handler, state, state.cdata, c);
+				}
+				break;
+
+			case CDATA_SECTION:
+				if (c == ']') {
+					state.brackets++;
+					break;
+				}
+				if (c == '>' && state.brackets >= 2) {
+					appendCDataSection(state, ']', state.brackets - 2);
+					state.brackets = 0;
+					state.state = State.CDATA;
+					break;
+				}
+				appendCDataSection(state, ']', state.brackets);
+				state.brackets = 0;
+				if (state.cdata.length() >= maxCDataSize) {
+					error(handler, state, "Max cdata size exceeded: " + maxCDataSize);
+					break;
+				}
+				switch (c) {
+					case '&':
+						state.cdata.append("&amp;");
+						break;
+					case '<':
+						state.cdata.append("&lt;");
+						break;
+					case '>':
+						state.cdata.append("&gt;");
+						break;
+					default:
+						state.cdata.append(c);
+				}
+				break;
+
+			case OTHER_XML:
+				if (c == '>') {
+					handler.otherXML(state.other);
+					state.other = null;
+					state.state = State.CDATA;
+				} else if (state.other.length() >= maxCDataSize) {
+					error(handler, state, "Max cdata size exceeded: " + maxCDataSize);
+				} else {
+					state.other.append(c);
+					if (state.other.length() == CDATA_SECTION_START.length() &&
+							CDATA_SECTION_START.contentEquals(state.other)) {
+						state.other = null;
+						if (state.cdata == null) {
+							state.cdata = new StringBuilder(100);
+						}
+						state.state = State.CDATA_SECTION;
+					}
+				}
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	private void appendCDataSection(ParserState state, char c, int count) {
+		for (int i = 0; i < count; i++) {
+			state.cdata.append(c);
+		}
+	}
+
+	private void endElement(SimpleHandler handler, ParserState state) {
+		if (handler.endElement(state.name)) {
+			state.name = null;
+			state.state = State.CDATA;
+		} else {
+			error(handler, state, "Malformed XML: element close tag does not match the tag: " + state.name);
+		}
+	}
+
+	protected class ParserState {
+
+		StringBuilder attribName = null;
+		StringBuilder[] attribNames = new StringBuilder[maxAttribsNumber];
+		StringBuilder attribValue = null;
+		StringBuilder[] attribValues = new StringBuilder[maxAttribsNumber];
+		int attribCount = 0;
+		int brackets = 0;
+		StringBuilder cdata = null;
+		int codePoint = 0;
+		int entityStart = -1;
+		int minCodePoint = 0;
+		StringBuilder name = null;
+		StringBuilder other = null;
+		int pendingBytes = 0;
+		char quote = '\'';
+		State state = State.START;
+
+	}
+}
@@ -168,6 +168,14 @@ public class XMPPDomBuilderHandler<RefObject>
 		// Just ignore
 	}
 
+	/**
+	 * Returns <code>true</code> if there is any element which was started but not finished yet, except the stream root
+	 * element.
+	 */
+	public boolean hasOpenElements() {
+		return !el_stack.isEmpty();
+	}
+
 	public boolean parseError() {
 		return error;
 	}
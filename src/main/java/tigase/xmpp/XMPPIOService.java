@@ -17,6 +17,8 @@
  */
 package tigase.xmpp;
 
+import tigase.io.ByteBufferPool;
+import tigase.io.ElementSerializer;
 import tigase.net.IOService;
 import tigase.server.ConnectionManager;
 import tigase.server.Packet;
@@ -28,12 +30,18 @@ import tigase.xml.SimpleParser;
 import tigase.xml.SingletonFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -71,7 +79,10 @@ public class XMPPIOService<RefObject>
 
 	public ReentrantLock writeInProgress = new ReentrantLock();
 	protected SimpleParser parser = SingletonFactory.getParserInstance();
+	protected XMPPByteParser byteParser = XMPPByteParser.getInstance();
 	protected XMPPIOProcessor[] processors = null;
+	private volatile boolean ackLimitReached = false;
+	private boolean byteParsing = false;
 	private XMPPDomBuilderHandler<RefObject> domHandler = null;
 	private boolean firstPacket = true;
 	private String jid = null;
@@ -86,18 +97,24 @@ public class XMPPIOService<RefObject>
 	 * results.
 	 */
 	private ConcurrentLinkedQueue<Packet> receivedPackets = new ConcurrentLinkedQueue<Packet>();
-	private long req_idx = 0;
+	private ElementSerializer serializer = null;
 	@SuppressWarnings("rawtypes")
 	protected XMPPIOServiceListener serviceListener = null;
 	private boolean strict_ack = false;
 	private long totalPacketsReceived = 0;
 	private long totalPacketsSent = 0;
-	private ConcurrentSkipListMap<String, Packet> waitingForAck = new ConcurrentSkipListMap<String, Packet>();
+	private final AtomicLong totalPacketsWritten = new AtomicLong();
+	private final AckTracker waitingForAck = new AckTracker();
 	/**
 	 * The <code>waitingPackets</code> queue keeps data which have to be processed.
 	 */
 	private ConcurrentLinkedQueue<Packet> waitingPackets = new ConcurrentLinkedQueue<Packet>();
 	private boolean white_char_ack = false;
+	/**
+	 * Id of the last ack request received which was not confirmed yet
+	 */
+	private String pendingAckId = null;
+	private boolean batchingAcks = false;
 	private String xmlns = null;
 	private boolean xmpp_ack = false;
 
@@ -126,18 +143,34 @@ public class XMPPIOService<RefObject>
 				}
 			}
 		}
+		++packetsSent;
+		++totalPacketsSent;
 		if (xmpp_ack) {
-			String req = "" + (++req_idx);
-
-			packet.getElement().addChild(new Element(REQ_NAME, new String[]{ID_ATT}, new String[]{req}));
-			waitingForAck.put(req, packet);
+			long req;
+			boolean full;
+
+			// sequence numbers have to follow order of packets in the queue as acks are cumulative
+			synchronized (waitingForAck) {
+				req = waitingForAck.add(packet);
+				packet.getElement()
+						.addChild(new Element(REQ_NAME, new String[]{ID_ATT}, new String[]{Long.toString(req)}));
+				waitingPackets.offer(packet);
+				full = waitingForAck.isFull();
+			}
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "Added req {1} for packet: {2} [{0}]", new Object[]{toString(), req, packet});
 			}
+			if (full && !ackLimitReached) {
+				// the other side does not confirm packets, so the connection is stopped and all packets waiting
+				// for ack are processed as undelivered instead of keeping them indefinitely
+				ackLimitReached = true;
+				log.log(Level.WARNING, "Limit of {1} packets waiting for ack reached, stopping connection [{0}]",
+						new Object[]{toString(), waitingForAck.size()});
+				forceStop();
+			}
+		} else {
+			waitingPackets.offer(packet);
 		}
-		++packetsSent;
-		++totalPacketsSent;
-		waitingPackets.offer(packet);
 	}
 
 	@Override
@@ -220,6 +253,21 @@ public class XMPPIOService<RefObject>
 
 	@Override
 	public void processWaitingPackets() throws IOException {
+		if (getWriteBatchBytes() > 0) {
+			processWaitingPacketsInBatches(getWriteBatchBytes());
+		} else {
+			processWaitingPacketsOneByOne();
+		}
+
+		// notify io processors that all waiting packets were sent
+		if (processors != null) {
+			for (XMPPIOProcessor processor : processors) {
+				processor.packetsSent(this);
+			}
+		}
+	}
+
+	private void processWaitingPacketsOneByOne() throws IOException {
 		Packet packet = null;
 
 		// int cnt = 0;
@@ -236,17 +284,101 @@ public class XMPPIOService<RefObject>
 
 			// and after sending it we should remove it to minimalize chances of lost packets
 			waitingPackets.poll();
+			packetsWritten(1);
 
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "SENT: {1} [{0}]", new Object[]{toString(), packet.getElement().toString()});
 			}
 		}    // end of while (packet = waitingPackets.poll() != null)
+	}
 
-		// notify io processors that all waiting packets were sent
-		if (processors != null) {
-			for (XMPPIOProcessor processor : processors) {
-				processor.packetsSent(this);
+	/**
+	 * Returns <code>true</code> if packets may be serialized directly to bytes sent over the connection.
+	 * Implementations which need to process every serialized packet before it is sent should return
+	 * <code>false</code>, so packets are passed to {@link #writeRawDataBatch(List)} as strings.
+	 */
+	protected boolean isElementSerializationSupported() {
+		return true;
+	}
+
+	/**
+	 * Returns <code>true</code> if received data may be parsed directly from bytes read from the socket. Bytes are not
+	 * passed to {@link #readData()} and {@link #checkData(char[])} in such case, so implementations overriding any of
+	 * these methods should return <code>false</code>.
+	 */
+	protected boolean isByteParsingSupported() {
+		return true;
+	}
+
+	@Override
+	public long getRetainedHeapEstimate() {
+		long size = super.getRetainedHeapEstimate();
+		if (serializer != null) {
+			size += 600;
+		}
+		XMPPDomBuilderHandler<RefObject> handler = domHandler;
+		if (handler != null && handler.restoreParserState() != null &&
+				!byteParser.isIdleState(handler.restoreParserState())) {
+			// parser state keeps arrays for attributes names and values
+			size += 1024;
+		}
+		return size;
+	}
+
+	@Override
+	protected boolean canPark() {
+		return receivedPackets.isEmpty() && waitingPackets.isEmpty();
+	}
+
+	@Override
+	protected void releaseIdleState() {
+		super.releaseIdleState();
+		if (writeInProgress.tryLock()) {
+			try {
+				serializer = null;
+			} finally {
+				writeInProgress.unlock();
+			}
+		}
+		if (isByteParsing() && domHandler != null && !domHandler.hasOpenElements()) {
+			byteParser.releaseIdleState(domHandler);
+		}
+	}
+
+	private void processWaitingPacketsInBatches(int maxBatchBytes) throws IOException {
+		if (isElementSerializationSupported()) {
+			serializeWaitingPacketsInBatches(maxBatchBytes);
+			return;
+		}
+
+		List<String> batch = new ArrayList<>();
+
+		while (!waitingPackets.isEmpty()) {
+			int batchBytes = 0;
+
+			// packets are only peeked here and polled after they are sent
+			for (Packet packet : waitingPackets) {
+				if (!batch.isEmpty() && batchBytes >= maxBatchBytes) {
+					break;
+				}
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "Sending packet: {1} [{0}]", new Object[]{toString(), packet});
+				}
+
+				String data = packet.getElement().toString();
+
+				batch.add(data);
+				batchBytes += data.length();
+			}
+
+			writeRawDataBatch(batch);
+
+			// and after sending them we should remove them to minimalize chances of lost packets
+			for (int i = 0; i < batch.size(); i++) {
+				waitingPackets.poll();
 			}
+			packetsWritten(batch.size());
+			batch.clear();
 		}
 	}
 
@@ -279,6 +411,55 @@ public class XMPPIOService<RefObject>
 		// }
 	}
 
+	private void serializeWaitingPacketsInBatches(int maxBatchBytes) {
+		// serializer keeps state, so it cannot be used concurrently
+		writeInProgress.lock();
+		try {
+			if (serializer == null) {
+				serializer = new ElementSerializer(ByteBufferPool.getInstance(), maxBatchBytes);
+			}
+
+			while (!waitingPackets.isEmpty()) {
+				int count = 0;
+
+				try {
+					// packets are only peeked here and polled after they are sent
+					for (Packet packet : waitingPackets) {
+						if (count > 0 && serializer.length() >= maxBatchBytes) {
+							break;
+						}
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Sending packet: {1} [{0}]", new Object[]{toString(), packet});
+						}
+						serializer.write(packet.getElement());
+						++count;
+					}
+				} catch (RuntimeException ex) {
+					serializer.reset();
+					throw ex;
+				}
+
+				writeBuffers(serializer.flush(), count);
+
+				// and after sending them we should remove them to minimalize chances of lost packets
+				for (int i = 0; i < count; i++) {
+					waitingPackets.poll();
+				}
+				packetsWritten(count);
+			}
+		} finally {
+			writeInProgress.unlock();
+		}
+	}
+
+	/**
+	 * Writes many strings at once. Implementations which need to process every string separately should override this
+	 * method.
+	 */
+	public void writeRawDataBatch(List<String> data) throws IOException {
+		writeDataBatch(data);
+	}
+
 	public void xmppStreamOpen(final String data) {
 		try {
 			if (log.isLoggable(Level.FINEST)) {
@@ -324,6 +505,13 @@ public class XMPPIOService<RefObject>
 		return totalPacketsSent;
 	}
 
+	/**
+	 * Returns number of packets taken from the queue of waiting packets and written to the socket.
+	 */
+	public long getTotalPacketsWritten() {
+		return totalPacketsWritten.get();
+	}
+
 	public String getUserJid() {
 		return this.jid;
 	}
@@ -332,21 +520,68 @@ public class XMPPIOService<RefObject>
 		this.jid = jid;
 	}
 
+	/**
+	 * @deprecated use {@link #drainWaitingForAck()} which removes returned packets from the tracker
+	 */
+	@Deprecated
 	public Map<String, Packet> getWaitingForAct() {
-		for (Packet p : waitingForAck.values()) {
-			Element req = p.getElement().getChild(REQ_NAME);
+		Map<String, Packet> result = new LinkedHashMap<>();
+		long seq = waitingForAck.getFirstSeq();
 
-			if (req == null) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Missing req element in waiting for ACK packet: {1} [{0}]",
-							new Object[]{toString(), p});
-				}
-			} else {
-				p.getElement().removeChild(req);
+		for (Packet p : waitingForAck.snapshot()) {
+			removeAckRequest(p);
+			result.put(Long.toString(seq++), p);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Removes and returns packets which were not confirmed by the other side yet, including packets which were not
+	 * sent yet, in order in which they were added. Request elements are removed from returned packets so they may be
+	 * sent again.
+	 */
+	public List<Packet> drainWaitingForAck() {
+		List<Packet> packets;
+
+		synchronized (waitingForAck) {
+			packets = waitingForAck.drain();
+			if (!packets.isEmpty()) {
+				// all queued packets are tracked, so they are returned as well
+				waitingPackets.clear();
 			}
 		}
+		for (Packet p : packets) {
+			removeAckRequest(p);
+		}
 
-		return waitingForAck;
+		return packets;
+	}
+
+	public int waitingForAckSize() {
+		return waitingForAck.size();
+	}
+
+	/**
+	 * Returns <code>true</code> if the connection was stopped because the limit of packets waiting for ack was reached.
+	 */
+	public boolean isAckLimitReached() {
+		return ackLimitReached;
+	}
+
+	/**
+	 * Sets number of packets waiting for ack at which the connection is stopped.
+	 */
+	public void setMaxWaitingForAck(int maxWaitingForAck) {
+		waitingForAck.setMaxSize(maxWaitingForAck);
+	}
+
+	/**
+	 * Returns moving average of time from queuing a packet until its confirmation by the other side in nanoseconds or
+	 * <code>0</code> if XMPP ack is not used or no packet was confirmed yet.
+	 */
+	public long getAckLatencyNanos() {
+		return waitingForAck.getLatencyNanos();
 	}
 
 	public String getXMLNS() {
@@ -367,6 +602,18 @@ public class XMPPIOService<RefObject>
 
 	}
 
+	/**
+	 * Enables parsing of received data directly from bytes read from the socket with {@link XMPPByteParser}. It has
+	 * no effect if the service does not support it.
+	 */
+	public void setByteParsing(boolean byteParsing) {
+		this.byteParsing = byteParsing;
+	}
+
+	public boolean isByteParsing() {
+		return byteParsing && isByteParsingSupported();
+	}
+
 	@SuppressWarnings({"unchecked", "rawtypes"})
 	public void setIOServiceListener(XMPPIOServiceListener servList) {
 		this.serviceListener = servList;
@@ -426,6 +673,19 @@ public class XMPPIOService<RefObject>
 		}
 		if (packet.getElemName() == ACK_NAME) {
 			String ack_id = packet.getAttributeStaticStr(ID_ATT);
+
+			if (ack_id != null) {
+				try {
+					int acked = waitingForAck.ack(Long.parseLong(ack_id));
+
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "Received ack {1} confirming {2} packets [{0}]",
+								new Object[]{toString(), ack_id, acked});
+					}
+				} catch (NumberFormatException ex) {
+					log.log(Level.FINE, "Invalid ack id: {1} [{0}]", new Object[]{toString(), ack_id});
+				}
+			}
 		} else {
 			sendAck(packet);
 			++packetsReceived;
@@ -453,7 +713,9 @@ public class XMPPIOService<RefObject>
 		// implemented instead.
 		// readLock.lock();
 		// try {
-		if (isConnected()) {
+		if (isConnected() && isByteParsing()) {
+			processSocketBytes();
+		} else if (isConnected()) {
 			char[] data = readData();
 
 			while (isConnected() && (data != null) && (data.length > 0)) {
@@ -484,20 +746,8 @@ public class XMPPIOService<RefObject>
 				try {
 					parser.parse(domHandler, data, 0, data.length);
 					if (domHandler.parseError()) {
-						if (log.isLoggable(Level.FINE)) {
-							log.log(Level.FINE, "Data parsing error: {1} [{0}]",
-									new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(new String(data))});
-						} else {
-							log.log(Level.INFO, "Data parsing error, stopping connection [{0}]", toString());
-						}
-						if (serviceListener != null) {
-							Element err = new Element("not-well-formed", new String[]{"xmlns"},
-													  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
-							String streamErrorStr = serviceListener.xmppStreamError(this,
-																					Collections.singletonList(err));
-							writeRawData(streamErrorStr);
-						}
-						forceStop();
+						final char[] parsed = data;
+						stopOnParseError(() -> new String(parsed));
 
 						return;
 
@@ -525,6 +775,77 @@ public class XMPPIOService<RefObject>
 		}
 	}
 
+	private void processSocketBytes() throws IOException {
+		ByteBuffer data = readBytes();
+
+		while (isConnected() && (data != null) && data.hasRemaining()) {
+			final ByteBuffer received = data;
+			final int start = data.position();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "READ:{1} [{0}]", new Object[]{toString(), decodeForLog(received, start)});
+			}
+
+			// This is log for debugging only,
+			// in normal mode don't even call below code
+			assert debug(decodeForLog(received, start), "--RECEIVED:");
+
+			try {
+				if (!byteParser.parse(domHandler, data)) {
+					if (handleMalformedInput(data)) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "Malformed input handled at byte {1} [{0}]",
+									new Object[]{toString(), data.position()});
+						}
+					} else {
+						domHandler.error("Malformed UTF-8 data at byte " + data.position());
+					}
+				}
+				if (domHandler.parseError()) {
+					stopOnParseError(() -> decodeForLog(received, start));
+
+					return;
+				}
+
+				moveParsedPacketsToReceived(true);
+			} catch (Exception ex) {
+				log.log(Level.INFO, "Incorrect XML data: " + decodeForLog(received, start) + ", stopping connection " +
+						" [" + toString() + "] exception: ", ex);
+				forceStop();
+			} finally {
+				// buffer is cleared so it can be returned to the pool while the connection is idle
+				data.clear();
+				if (domHandler.isStreamClosed()) {
+					xmppStreamClosed();
+				}
+			}
+			data = readBytes();
+		}
+	}
+
+	private String decodeForLog(ByteBuffer data, int start) {
+		ByteBuffer tmp = data.duplicate();
+
+		tmp.position(start);
+		return StandardCharsets.UTF_8.decode(tmp).toString();
+	}
+
+	private void stopOnParseError(Supplier<String> data) throws IOException {
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Data parsing error: {1} [{0}]",
+					new Object[]{toString(), StringUtilities.convertNonPrintableCharactersToLiterals(data.get())});
+		} else {
+			log.log(Level.INFO, "Data parsing error, stopping connection [{0}]", toString());
+		}
+		if (serviceListener != null) {
+			Element err = new Element("not-well-formed", new String[]{"xmlns"},
+									  new String[]{"urn:ietf:params:xml:ns:xmpp-streams"});
+			String streamErrorStr = serviceListener.xmppStreamError(this, Collections.singletonList(err));
+			writeRawData(streamErrorStr);
+		}
+		forceStop();
+	}
+
 	@Override
 	protected int receivedPackets() {
 		return receivedPackets.size();
@@ -604,46 +925,79 @@ public class XMPPIOService<RefObject>
 		}
 	}
 
+	private void removeAckRequest(Packet p) {
+		Element req = p.getElement().getChild(REQ_NAME);
+
+		if (req == null) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "Missing req element in waiting for ACK packet: {1} [{0}]",
+						new Object[]{toString(), p});
+			}
+		} else {
+			p.getElement().removeChild(req);
+		}
+	}
+
 	private void sendAck(Packet packet) {
 
 		// If stanza receiving confirmation is configured,
 		// try to send confirmation back
-		if (white_char_ack || xmpp_ack) {
-			String ack = null;
+		if (xmpp_ack) {
+			Element req = packet.getElement().getChild(REQ_NAME);
 
-			if (white_char_ack) {
+			if (req != null) {
+				packet.getElement().removeChild(req);
 
-				// If confirming via white space is enabled then prepare space ack.
-				ack = " ";
+				String req_val = req.getAttributeStaticStr(ID_ATT);
+
+				// XMPP ack might be enabled in configuration but the client may not
+				// support it. In such a case we do not send XMPP ack.
+				if (req_val != null) {
+					pendingAckId = req_val;
+					if (!batchingAcks) {
+						flushAck();
+					}
+					return;
+				}
 			}
-			if (xmpp_ack) {
-				Element req = packet.getElement().getChild(REQ_NAME);
+		}
+		if (white_char_ack) {
 
-				if (req != null) {
-					packet.getElement().removeChild(req);
+			// If confirming via white space is enabled then send space ack.
+			writeAck(" ");
+		}
+	}
 
-					String req_val = req.getAttributeStaticStr(ID_ATT);
+	/**
+	 * Sends confirmation of the last request received. Acks are cumulative, so a single ack confirms all packets
+	 * received in a batch.
+	 */
+	private void flushAck() {
+		String req_val = pendingAckId;
 
-					if (req_val != null) {
+		if (req_val != null) {
+			pendingAckId = null;
+			writeAck("<" + ACK_NAME + " " + ID_ATT + "=\"" + req_val + "\"/>");
+		}
+	}
 
-						// XMPP ack might be enabled in configuration but the client may not
-						// support it. In such a case we do not send XMPP ack.
-						ack = "<" + ACK_NAME + " " + ID_ATT + "=\"" + req_val + "\"/>";
-					}
-				}
-			}
-			if (ack != null) {
-				try {
-					writeRawData(ack);
-					log.log(Level.FINEST, "Sent ack confirmation: '" + ack + "'");
-				} catch (Exception ex) {
-					forceStop();
-					log.log(Level.FINE, "Can't send ack confirmation: '" + ack + "'", ex);
-				}
-			}
+	private void writeAck(String ack) {
+		try {
+			writeRawData(ack);
+			log.log(Level.FINEST, "Sent ack confirmation: '" + ack + "'");
+		} catch (Exception ex) {
+			forceStop();
+			log.log(Level.FINE, "Can't send ack confirmation: '" + ack + "'", ex);
 		}
 	}
 
+	/**
+	 * Should be called by implementations writing packets from the queue of waiting packets on their own.
+	 */
+	protected void packetsWritten(int count) {
+		totalPacketsWritten.addAndGet(count);
+	}
+
 	protected boolean hasParsedElements() {
 		return !domHandler.getParsedElements().isEmpty();
 	}
@@ -655,24 +1009,30 @@ public class XMPPIOService<RefObject>
 		if (elems.size() > 0 && sendAck) {
 			readCompleted();
 		}
-		while ((elem = elems.poll()) != null) {
-			try {
-				// assert debug(elem.toString() + "\n");
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "Read packet: {1} [{0}]", new Object[]{toString(), elem});
-				}
+		batchingAcks = true;
+		try {
+			while ((elem = elems.poll()) != null) {
+				try {
+					// assert debug(elem.toString() + "\n");
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "Read packet: {1} [{0}]", new Object[]{toString(), elem});
+					}
 
-				// System.out.print(elem.toString());
-				Packet pack = Packet.packetInstance(elem);
+					// System.out.print(elem.toString());
+					Packet pack = Packet.packetInstance(elem);
 
-				addReceivedPacket(pack);
-				if (sendAck) {
-					sendAck(pack);
+					addReceivedPacket(pack);
+					if (sendAck) {
+						sendAck(pack);
+					}
+				} catch (TigaseStringprepException ex) {
+					log.log(Level.INFO, "Incorrect to/from JID format for stanza: " + elem.toString() + " [" + toString() + "]", ex);
 				}
-			} catch (TigaseStringprepException ex) {
-				log.log(Level.INFO, "Incorrect to/from JID format for stanza: " + elem.toString() + " [" + toString() + "]", ex);
-			}
-		}    // end of while ((elem = elems.poll()) != null)
+			}    // end of while ((elem = elems.poll()) != null)
+		} finally {
+			batchingAcks = false;
+		}
+		flushAck();
 	}
 
 	/**
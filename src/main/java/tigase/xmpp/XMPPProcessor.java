@@ -22,6 +22,7 @@ import tigase.kernel.beans.config.ConfigField;
 import tigase.server.ComponentInfo;
 import tigase.server.Packet;
 import tigase.stats.StatisticsList;
+import tigase.util.processing.ProcessingThreads;
 import tigase.xml.Element;
 
 import java.util.Collection;
@@ -57,6 +58,8 @@ public abstract class XMPPProcessor
 	protected static ComponentInfo cmpInfo = null;
 	@ConfigField(desc = "Queue size which should be used by processor")
 	private Integer queueSize = null;
+	@ConfigField(desc = "Scheduler used for distributing packets between threads of processor")
+	private ProcessingThreads.Scheduler scheduler = ProcessingThreads.Scheduler.HASHED;
 	@ConfigField(desc = "Numbers of threads which should be used by processor")
 	private int threadsNo = concurrentQueuesNo();
 
@@ -159,6 +162,11 @@ public abstract class XMPPProcessor
 		return queueSize;
 	}
 
+	@Override
+	public ProcessingThreads.Scheduler getScheduler() {
+		return scheduler;
+	}
+
 	private Authorization checkPacket(Packet packet, String[][] elemPaths, String[] elemXMLNS, Set<StanzaType> types) {
 		Authorization result = null;
 		boolean names_ok = elemPaths == ALL_PATHS;
@@ -17,6 +17,8 @@
  */
 package tigase.xmpp;
 
+import tigase.util.processing.ProcessingThreads;
+
 /**
  * Created by andrzej on 27.06.2016.
  */
@@ -26,4 +28,8 @@ public interface XMPPProcessorConcurrencyAwareIfc {
 
 	Integer getQueueSize();
 
+	default ProcessingThreads.Scheduler getScheduler() {
+		return ProcessingThreads.Scheduler.HASHED;
+	}
+
 }
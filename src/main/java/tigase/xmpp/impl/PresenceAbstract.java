@@ -32,6 +32,7 @@ import tigase.xmpp.jid.JID;
 
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -56,9 +57,16 @@ public abstract class PresenceAbstract
 
 	public static final String USERS_STATUS_CHANGES = "Users status changes";
 
+	public static final String PRESENCES_GENERATED = "Presences generated";
+
 	protected static final String XMLNS = CLIENT_XMLNS;
 
 	private static final Logger log = Logger.getLogger(PresenceAbstract.class.getName());
+	/**
+	 * Number of presences sent to roster buddies with {@link #sendPresenceCopy(Element, JID, JID, Queue)}, including
+	 * probes and initial presences, shared by all presence processors.
+	 */
+	private static final LongAdder presencesGenerated = new LongAdder();
 	//private static final String[]   PRESENCE_PRIORITY_PATH  = { "presence", "priority" };
 	//private static final String[]   XMLNSS                  = { XMLNS, RosterAbstract.XMLNS_LOAD };
 	@ConfigField(desc = "Probe full JID", alias = PRESENCE_PROBE_FULL_JID_KEY)
@@ -105,6 +113,66 @@ public abstract class PresenceAbstract
 		return RosterFactory.getRosterImplementation(true);
 	}
 
+	/**
+	 * Returns presence stanza which may be sent to many recipients with {@link #sendPresenceCopy(Element, JID, JID,
+	 * Queue)}. If {@code pres} is <code>null</code> then presence of type {@code t} (or <em>unavailable</em>) from
+	 * {@code from} address is created, in the same way as {@link #sendPresence(StanzaType, JID, JID, Queue, Element)}
+	 * does it.
+	 */
+	protected static Element presenceTemplate(StanzaType t, JID from, Element pres) {
+		if (pres != null) {
+			return pres;
+		}
+
+		Element presence = new Element(PRESENCE_ELEMENT_NAME);
+
+		presence.setAttribute("type", (t != null) ? t.toString() : StanzaType.unavailable.toString());
+		if (null != from) {
+			presence.setAttribute("from", from.toString());
+		}
+		presence.setXMLNS(XMLNS);
+
+		return presence;
+	}
+
+	/**
+	 * Parses <em>from</em> address of the presence template, so it is done only once for all recipients.
+	 */
+	protected static JID presenceTemplateFrom(Element template) throws TigaseStringprepException {
+		String from = template.getAttributeStaticStr("from");
+
+		return (from == null) ? null : JID.jidInstance(from);
+	}
+
+	/**
+	 * Sends a copy of the presence template to the given recipient. Stanza addresses are not parsed for each copy, so
+	 * it is much cheaper than {@link #sendPresence(StanzaType, JID, JID, Queue, Element)} when the same presence is
+	 * sent to many buddies.
+	 *
+	 * @param template presence stanza returned by {@link #presenceTemplate(StanzaType, JID, Element)}.
+	 * @param from parsed <em>from</em> address of the template.
+	 * @param to is a <code>JID</code> instance with stanza destination address.
+	 * @param results this a collection with packets which have been generated as input packet processing results.
+	 */
+	protected static Packet sendPresenceCopy(Element template, JID from, JID to, Queue<Packet> results) {
+		Packet result = Packet.packetInstance(template.clone(), from, to);
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Sending presence info: {0}", result);
+		}
+		results.offer(result);
+		presencesGenerated.increment();
+
+		return result;
+	}
+
+	/**
+	 * Returns number of presences sent to roster buddies, including probes and initial presences.
+	 */
+	protected static long getPresencesGenerated() {
+		return presencesGenerated.sum();
+	}
+
 	protected static Element prepareProbe(XMPPResourceConnection session) throws NotAuthorizedException {
 		Element presProbe = new Element(PRESENCE_ELEMENT_NAME);
 		presProbe.setXMLNS(XMLNS);
@@ -449,8 +517,18 @@ public abstract class PresenceAbstract
 		}
 
 		// Probe is always broadcasted with initial presence
-		Element presInit = session.getPresence();
+		Element presInit = presenceTemplate(null, null, session.getPresence());
 		Element presProbe = prepareProbe(session);
+		JID presInitFrom;
+		JID presProbeFrom;
+
+		try {
+			presInitFrom = presenceTemplateFrom(presInit);
+			presProbeFrom = presenceTemplateFrom(presProbe);
+		} catch (TigaseStringprepException ex) {
+			log.log(Level.FINE, "Presence stringprep addressing problem, skipping probe broadcast: {0}", presInit);
+			return;
+		}
 
 		JID[] buddies = roster_util.getBuddies(session, SUB_BOTH);
 
@@ -466,11 +544,11 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending presence probe to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presProbe);
+					sendPresenceCopy(presProbe, presProbeFrom, buddy, results);
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending intial presence to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presInit);
+					sendPresenceCopy(presInit, presInitFrom, buddy, results);
 					roster_util.setPresenceSent(session, buddy, true);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
@@ -495,7 +573,7 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending probe to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presProbe);
+					sendPresenceCopy(presProbe, presProbeFrom, buddy, results);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Skipping sending presence probe to: " + buddy);
@@ -520,7 +598,7 @@ public abstract class PresenceAbstract
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, session.getBareJID() + " | Sending initial presence to: " + buddy);
 					}
-					sendPresence(null, null, buddy, results, presInit);
+					sendPresenceCopy(presInit, presInitFrom, buddy, results);
 					roster_util.setPresenceSent(session, buddy, true);
 				} else {
 					if (log.isLoggable(Level.FINEST)) {
@@ -27,6 +27,7 @@ import tigase.server.Packet;
 import tigase.server.Priority;
 import tigase.server.xmppsession.SessionManager;
 import tigase.stats.StatisticsList;
+import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.*;
 import tigase.xmpp.impl.annotation.Handle;
@@ -92,6 +93,8 @@ public class PresenceState
 	@ConfigField(desc = "Enable roster lazy loading", alias = ENABLE_ROSTER_LAZY_LOADING_KEY)
 	private boolean rosterLazyLoading = true;
 	private long usersStatusChanges = 0;
+	private long statsPresencesGenerated = 0;
+	private long statsTime = System.currentTimeMillis();
 
 	/**
 	 * Add JID to collection of JIDs to which direct presence was sent. To all these addresses unavailable presence must
@@ -241,12 +244,24 @@ public class PresenceState
 				log.log(Level.FINEST, session.getBareJID() + " | Buddies found: " + Arrays.toString(buddies));
 			}
 
+			// presence is prepared and its addresses are parsed only once for all buddies
+			Element template = presenceTemplate(t, session.getJID(), pres);
+			JID templateFrom;
+
+			try {
+				templateFrom = presenceTemplateFrom(template);
+			} catch (TigaseStringprepException ex) {
+				log.log(Level.FINE, "Presence stringprep addressing problem, skipping presence broadcast: {0}",
+						template);
+				return;
+			}
+
 			Priority pack_priority = Priority.PRESENCE;
 			int pres_cnt = 0;
 
 			for (JID buddy : buddies) {
 				if (requiresPresenceSending(roster, buddy, session, false)) {
-					Packet pack = sendPresence(t, session.getJID(), buddy, results, pres);
+					Packet pack = sendPresenceCopy(template, templateFrom, buddy, results);
 
 					if (pres_cnt == HIGH_PRIORITY_PRESENCES_NO) {
 						++pres_cnt;
@@ -483,6 +498,17 @@ public class PresenceState
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
 		list.add(id(), USERS_STATUS_CHANGES, usersStatusChanges, Level.INFO);
+
+		long now = System.currentTimeMillis();
+		long generated = getPresencesGenerated();
+
+		list.add(id(), PRESENCES_GENERATED, generated, Level.FINE);
+		if (list.checkLevel(Level.FINE)) {
+			long rate = now > statsTime ? (generated - statsPresencesGenerated) * 1000 / (now - statsTime) : 0;
+			list.add(id(), PRESENCES_GENERATED + " per second", rate, Level.FINE);
+			statsPresencesGenerated = generated;
+			statsTime = now;
+		}
 	}
 
 	public void rebroadcastPresence(XMPPResourceConnection session, Queue<Packet> results)
@@ -34,20 +34,38 @@ import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+/**
+ * Privacy list prepared for checking stanzas. Items are indexed when the list is created: JID rules by full JID, bare
+ * JID and domain, group and subscription rules by their values. For each value and each stanza type the index keeps
+ * position of the first matching item, so checking a stanza takes a few hash lookups instead of a scan of all items.
+ * Groups and subscriptions are looked up in the roster when the stanza is checked, so roster changes do not require
+ * the list to be rebuilt.
+ */
 public class PrivacyList {
 
 	public static final PrivacyList ALLOW_ALL = new PrivacyList(null, new Element("list"));
 	private static final Logger log = Logger.getLogger(PrivacyList.class.getCanonicalName());
 	private static final Set<Item.Type> ALL_TYPES = EnumSet.allOf(Item.Type.class);
+	private static final int TYPES_COUNT = Item.Type.values().length;
+	private static final int NO_MATCH = Integer.MAX_VALUE;
 	private static final PrivacyList DENY_ALL = new PrivacyList(null, new Element("list")) {
 		@Override
 		public boolean isAllowed(JID jid, Item.Type type) {
 			return false;
 		}
 	};
+	private final int[] allIndex = newIndexEntry();
+	private final Map<BareJID, int[]> bareJidIndex = new HashMap<>();
+	private final Map<String, int[]> domainIndex = new HashMap<>();
+	private final Map<JID, int[]> fullJidIndex = new HashMap<>();
+	private final Map<String, int[]> groupIndex = new HashMap<>();
 	private final Item[] items;
 	private final String name;
 	private final Function<JID, RosterElement> rosterElementGetter;
+	// first position of group or subscription item for each type, used to skip roster lookup
+	private final int[] rosterIndex = newIndexEntry();
+	private final Map<RosterAbstract.SubscriptionType, int[]> subscriptionIndex = new EnumMap<>(
+			RosterAbstract.SubscriptionType.class);
 
 	public static PrivacyList create(final Map<BareJID, RosterElement> roster, Element el) {
 		if (el == null) {
@@ -81,6 +99,9 @@ public class PrivacyList {
 				.map(this::elemToItem)
 				.filter(it -> it != null)
 				.toArray(x -> new Item[x]);
+		for (int i = 0; i < items.length; i++) {
+			indexItem(items[i], i);
+		}
 	}
 
 	public String getName() {
@@ -92,6 +113,43 @@ public class PrivacyList {
 	}
 
 	public boolean isAllowed(JID jid, Item.Type type) {
+		final int t = type.ordinal();
+		int first = allIndex[t];
+
+		if (jid != null) {
+			first = Math.min(first, find(fullJidIndex, jid, t));
+			first = Math.min(first, find(bareJidIndex, jid.getBareJID(), t));
+			first = Math.min(first, find(domainIndex, jid.getDomain(), t));
+		}
+		if (rosterIndex[t] < first) {
+			RosterElement rosterElement = rosterElementGetter.apply(jid);
+			String[] groups = rosterElement == null ? null : rosterElement.getGroups();
+
+			if (groups != null) {
+				for (String group : groups) {
+					first = Math.min(first, find(groupIndex, group, t));
+				}
+			}
+			if (!subscriptionIndex.isEmpty()) {
+				RosterAbstract.SubscriptionType subscription =
+						rosterElement == null ? null : rosterElement.getSubscription();
+
+				for (Map.Entry<RosterAbstract.SubscriptionType, int[]> e : subscriptionIndex.entrySet()) {
+					if (e.getValue()[t] < first && subscriptionMatches(e.getKey(), subscription)) {
+						first = e.getValue()[t];
+					}
+				}
+			}
+		}
+
+		return first == NO_MATCH || items[first].isAllowed();
+	}
+
+	/**
+	 * Checks items one by one, in the same way as the list was checked before the index was introduced. Used to
+	 * verify and benchmark the index.
+	 */
+	boolean isAllowedByScan(JID jid, Item.Type type) {
 		for (Item item : items) {
 			if (item.matches(jid, type)) {
 				return item.isAllowed();
@@ -132,6 +190,73 @@ public class PrivacyList {
 		return this;
 	}
 
+	private static int[] newIndexEntry() {
+		int[] entry = new int[TYPES_COUNT];
+		Arrays.fill(entry, NO_MATCH);
+		return entry;
+	}
+
+	private static boolean subscriptionMatches(RosterAbstract.SubscriptionType itemSubscription,
+											   RosterAbstract.SubscriptionType subscription) {
+		switch (itemSubscription) {
+			case none:
+				return subscription == null || (!RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
+						!RosterAbstract.FROM_SUBSCRIBED.contains(subscription));
+			case to:
+				return RosterAbstract.TO_SUBSCRIBED.contains(subscription);
+			case from:
+				return RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
+			case both:
+				return RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
+						RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
+		}
+		return false;
+	}
+
+	private static <K> int find(Map<K, int[]> index, K key, int type) {
+		int[] entry = index.get(key);
+		return entry == null ? NO_MATCH : entry[type];
+	}
+
+	private static void index(int[] entry, Set<Item.Type> types, int position) {
+		for (Item.Type type : types) {
+			// items are sorted, so only the first matching item is kept
+			if (entry[type.ordinal()] == NO_MATCH) {
+				entry[type.ordinal()] = position;
+			}
+		}
+	}
+
+	private void indexItem(Item item, int position) {
+		if (item instanceof ItemAll) {
+			index(allIndex, ALL_TYPES, position);
+		} else if (item instanceof ItemJid) {
+			ItemJid itemJid = (ItemJid) item;
+			JID jid = itemJid.jid;
+			int[] entry;
+
+			if (jid.getResource() != null) {
+				entry = fullJidIndex.computeIfAbsent(jid, k -> newIndexEntry());
+			} else if (jid.getLocalpart() != null) {
+				entry = bareJidIndex.computeIfAbsent(jid.getBareJID(), k -> newIndexEntry());
+			} else {
+				entry = domainIndex.computeIfAbsent(jid.getDomain(), k -> newIndexEntry());
+			}
+			index(entry, itemJid.types, position);
+		} else if (item instanceof ItemGroup) {
+			ItemGroup itemGroup = (ItemGroup) item;
+
+			index(groupIndex.computeIfAbsent(itemGroup.group, k -> newIndexEntry()), itemGroup.types, position);
+			index(rosterIndex, itemGroup.types, position);
+		} else if (item instanceof ItemSubscription) {
+			ItemSubscription itemSubscription = (ItemSubscription) item;
+
+			index(subscriptionIndex.computeIfAbsent(itemSubscription.subscription, k -> newIndexEntry()),
+				  itemSubscription.types, position);
+			index(rosterIndex, itemSubscription.types, position);
+		}
+	}
+
 	private Item elemToItem(Element el) {
 		String type = el.getAttributeStaticStr("type");
 		String value = el.getAttributeStaticStr("value");
@@ -354,20 +479,7 @@ public class PrivacyList {
 				return false;
 			}
 
-			RosterAbstract.SubscriptionType subscription = getSubscriptionForJID(jid);
-			switch (this.subscription) {
-				case none:
-					return subscription == null || (!RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
-							!RosterAbstract.FROM_SUBSCRIBED.contains(subscription));
-				case to:
-					return RosterAbstract.TO_SUBSCRIBED.contains(subscription);
-				case from:
-					return RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
-				case both:
-					return RosterAbstract.TO_SUBSCRIBED.contains(subscription) &&
-							RosterAbstract.FROM_SUBSCRIBED.contains(subscription);
-			}
-			return false;
+			return subscriptionMatches(this.subscription, getSubscriptionForJID(jid));
 		}
 
 		@Override
@@ -26,6 +26,7 @@ import tigase.xmpp.jid.JID;
 
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
@@ -222,7 +223,10 @@ public class RosterElement {
 	}
 
 	public void setOtherData(String other_data) {
-		otherData = other_data;
+		if (!Objects.equals(otherData, other_data)) {
+			otherData = other_data;
+			modified = true;
+		}
 	}
 
 	public String getMixParticipantId() {
@@ -230,7 +234,10 @@ public class RosterElement {
 	}
 
 	public void setMixParticipantId(String value) {
-		this.mixParticipantId = value;
+		if (!Objects.equals(this.mixParticipantId, value)) {
+			this.mixParticipantId = value;
+			modified = true;
+		}
 	}
 
 	public Element getRosterElement() {
@@ -337,7 +344,10 @@ public class RosterElement {
 	}
 
 	public void setPersistent(boolean persistent) {
-		this.persistent = persistent;
+		if (this.persistent != persistent) {
+			this.persistent = persistent;
+			modified = true;
+		}
 	}
 
 	public double getActivity() {
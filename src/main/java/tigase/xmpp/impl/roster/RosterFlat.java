@@ -18,6 +18,7 @@
 package tigase.xmpp.impl.roster;
 
 import tigase.db.TigaseDBException;
+import tigase.db.UserRepository;
 import tigase.server.PolicyViolationException;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
@@ -46,6 +47,12 @@ import java.util.logging.Logger;
 public class RosterFlat
 		extends RosterAbstract {
 
+	/**
+	 * Key in the common session data under which lists of buddies with particular subscription types are cached for
+	 * presence broadcasts.
+	 */
+	protected static final String BROADCAST_PLAN = "roster-broadcast-plan";
+	private static final JID[] NO_BUDDIES = new JID[0];
 	private static final Logger log = Logger.getLogger(RosterFlat.class.getName());
 	private static final SimpleParser parser = SingletonFactory.getParserInstance();
 
@@ -93,6 +100,35 @@ public class RosterFlat
 		return result;
 	}
 
+	/**
+	 * Reads roster of the user directly from the user repository, without user session. Roster stored as a single
+	 * string and roster stored by {@link RosterPerItem} are both supported.
+	 *
+	 * @return <code>true</code> if roster of the user was found in the repository
+	 */
+	public static boolean readRosterUtil(UserRepository repo, BareJID user, Map<BareJID, RosterElement> roster)
+			throws TigaseDBException {
+		String roster_str = repo.getData(user, ROSTER);
+
+		if (roster_str != null) {
+			parseRosterUtil(roster_str, roster, null);
+			return true;
+		}
+
+		Map<String, String> items = repo.getDataMap(user, RosterPerItem.ROSTER_ITEMS_NODE);
+
+		if ((items == null) || items.isEmpty()) {
+			return false;
+		}
+		for (String item : items.values()) {
+			if (item != null) {
+				parseRosterUtil(item, roster, null);
+			}
+		}
+
+		return true;
+	}
+
 	public RosterElement addTempBuddy(JID buddy, XMPPResourceConnection session)
 			throws NotAuthorizedException, TigaseDBException {
 		RosterElement relem = getRosterElementInstance(buddy.copyWithoutResource(), null, null, session);
@@ -146,6 +182,7 @@ public class RosterFlat
 			}
 			relem.setMixParticipantId(mixParticipantId);
 			if (addBuddy(relem, roster)) {
+				invalidateBroadcastPlan(session);
 				saveUserRoster(session);
 				// notify that roster element was changed!
 			} else {
@@ -181,6 +218,7 @@ public class RosterFlat
 			if (subscription != null) {
 				relem.setSubscription(subscription);
 			}
+			invalidateBroadcastPlan(session);
 			saveUserRoster(session);
 			// notify that roster element was changed!
 			if (log.isLoggable(Level.FINEST)) {
@@ -237,6 +275,26 @@ public class RosterFlat
 
 	}
 
+	/**
+	 * Returns buddies with one of given subscription types. Result is cached in the user session until the roster is
+	 * modified, so the returned array must not be modified.
+	 */
+	@Override
+	public JID[] getBuddies(XMPPResourceConnection session, EnumSet<SubscriptionType> subscrs)
+			throws NotAuthorizedException, TigaseDBException {
+		BroadcastPlan plan = getBroadcastPlan(session);
+		JID[] buddies = plan.buddies.get(subscrs);
+
+		if (buddies == null) {
+			buddies = super.getBuddies(session, subscrs);
+			plan.buddies.put(EnumSet.copyOf(subscrs), buddies == null ? NO_BUDDIES : buddies);
+		} else if (buddies == NO_BUDDIES) {
+			buddies = null;
+		}
+
+		return buddies;
+	}
+
 	@Override
 	public String[] getBuddyGroups(XMPPResourceConnection session, JID buddy)
 			throws NotAuthorizedException, TigaseDBException {
@@ -377,6 +435,7 @@ public class RosterFlat
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "Removing roster buddy: {0}, after removal: {1}", new Object[]{jid, roster});
 		}
+		invalidateBroadcastPlan(session);
 		saveUserRoster(session);
 		// notify that roster element was changed!
 
@@ -418,6 +477,7 @@ public class RosterFlat
 
 		if (relem != null) {
 			relem.setSubscription(subscription);
+			invalidateBroadcastPlan(session);
 			saveUserRoster(session);
 			// notify that roster element was changed!
 
@@ -582,6 +642,32 @@ public class RosterFlat
 		//
 	}
 
+	/**
+	 * Drops lists of buddies cached for presence broadcasts. It has to be called whenever a buddy is added to or
+	 * removed from the roster or its subscription is changed.
+	 */
+	protected void invalidateBroadcastPlan(XMPPResourceConnection session) {
+		BroadcastPlan plan = (BroadcastPlan) session.getCommonSessionData(BROADCAST_PLAN);
+
+		if (plan != null) {
+			plan.valid = false;
+		}
+	}
+
+	private BroadcastPlan getBroadcastPlan(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		BroadcastPlan plan = (BroadcastPlan) session.getCommonSessionData(BROADCAST_PLAN);
+
+		// roster could be reloaded, then cached lists are no longer valid
+		if (plan == null || !plan.valid || plan.roster != roster) {
+			plan = new BroadcastPlan(roster);
+			session.putCommonSessionData(BROADCAST_PLAN, plan);
+		}
+
+		return plan;
+	}
+
 	@Override
 	protected void updateRosterItem(XMPPResourceConnection session, RosterModifiedEvent event)
 			throws NotAuthorizedException, TigaseDBException {
@@ -590,6 +676,7 @@ public class RosterFlat
 		Map<BareJID, RosterElement> roster = getUserRoster(session);
 		if (event.getSubscription() == SubscriptionType.remove) {
 			roster.remove(event.getJid().getBareJID());
+			invalidateBroadcastPlan(session);
 			return;
 		}
 
@@ -605,10 +692,26 @@ public class RosterFlat
 			element.setSubscription(event.getSubscription());
 			element.setMixParticipantId(event.getMixParticipantId());
 		}
+		invalidateBroadcastPlan(session);
 
 		super.updateRosterItem(session, event);
 	}
 
+	/**
+	 * Lists of buddies with particular subscription types, computed for the roster instance loaded to the session.
+	 * Invalidated plan is replaced by a new one, so a list computed concurrently with a roster change is never reused.
+	 */
+	private static class BroadcastPlan {
+
+		private final Map<EnumSet<SubscriptionType>, JID[]> buddies = new ConcurrentHashMap<>();
+		private final Map<BareJID, RosterElement> roster;
+		private volatile boolean valid = true;
+
+		private BroadcastPlan(Map<BareJID, RosterElement> roster) {
+			this.roster = roster;
+		}
+	}
+
 	private class RosterElemComparator
 			implements Comparator<JID> {
 
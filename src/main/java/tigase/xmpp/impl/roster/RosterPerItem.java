@@ -0,0 +1,143 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import tigase.db.TigaseDBException;
+import tigase.xmpp.NotAuthorizedException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Roster implementation which stores each roster item under a separate key in the <code>roster-items</code> node of
+ * the user repository instead of storing the whole roster as a single XML string. Only modified items are written
+ * back to the repository, so a change of a single contact in a large roster does not rewrite the whole roster.
+ * <br>
+ * Roster stored by {@link RosterFlat} is migrated to this format when the user logs in for the first time.
+ * It can be enabled by setting <code>roster-implementation</code> to the name of this class.
+ */
+public class RosterPerItem
+		extends RosterFlat {
+
+	/** Name of the user repository node in which roster items are stored */
+	public static final String ROSTER_ITEMS_NODE = "roster-items";
+
+	private static final Logger log = Logger.getLogger(RosterPerItem.class.getName());
+
+	@Override
+	public Map<BareJID, RosterElement> loadUserRoster(XMPPResourceConnection session)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = new ConcurrentHashMap<BareJID, RosterElement>(100, 0.25f, 1);
+
+		session.putCommonSessionData(ROSTER, roster);
+
+		// Roster stored as a single string has priority, as if it exists then either it was not migrated yet,
+		// or the migration was interrupted, or the server was switched back to RosterFlat for some time.
+		String roster_str = session.getData(null, ROSTER, null);
+
+		if ((roster_str != null) && !roster_str.isEmpty()) {
+			parseRoster(roster_str, roster, session);
+			migrateUserRoster(session, roster);
+
+			return roster;
+		}
+
+		Map<String, String> items = session.getDataMap(ROSTER_ITEMS_NODE);
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Loaded user {1} roster items: {0}", new Object[]{items, session.getjid()});
+		}
+		if ((items != null) && !items.isEmpty()) {
+			boolean modified = false;
+
+			for (String item : items.values()) {
+				if ((item != null) && !item.isEmpty()) {
+					modified |= parseRoster(item, roster, session);
+				}
+			}
+			if (modified) {
+				saveUserRoster(session);
+			}
+		}
+
+		return roster;
+	}
+
+	@Override
+	public boolean removeBuddy(XMPPResourceConnection session, JID jid)
+			throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+		RosterElement relem = roster.remove(jid.getBareJID());
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "Removed roster buddy: {0}, item: {1}", new Object[]{jid, relem});
+		}
+		invalidateBroadcastPlan(session);
+		if ((relem != null) && relem.isPersistent()) {
+			session.removeData(ROSTER_ITEMS_NODE, itemKey(relem));
+		}
+
+		return true;
+	}
+
+	@Override
+	protected void saveUserRoster(XMPPResourceConnection session) throws NotAuthorizedException, TigaseDBException {
+		Map<BareJID, RosterElement> roster = getUserRoster(session);
+
+		for (RosterElement relem : roster.values()) {
+			if (relem.isPersistent() && relem.isModified()) {
+				saveRosterItem(session, relem);
+			}
+		}
+	}
+
+	private void migrateUserRoster(XMPPResourceConnection session, Map<BareJID, RosterElement> roster)
+			throws NotAuthorizedException, TigaseDBException {
+		session.removeDataGroup(ROSTER_ITEMS_NODE);
+		for (RosterElement relem : roster.values()) {
+			if (relem.isPersistent()) {
+				saveRosterItem(session, relem);
+			}
+		}
+		// removed only after all items are stored, so interrupted migration is repeated on next login
+		session.removeData(null, ROSTER);
+		if (log.isLoggable(Level.FINE)) {
+			log.log(Level.FINE, "Migrated roster of user {0} with {1} items to per-item storage",
+					new Object[]{session.getBareJID(), roster.size()});
+		}
+	}
+
+	private void saveRosterItem(XMPPResourceConnection session, RosterElement relem)
+			throws NotAuthorizedException, TigaseDBException {
+		String item = relem.getRosterElement().toString();
+
+		if (log.isLoggable(Level.FINEST)) {
+			log.log(Level.FINEST, "{0} | Saving roster item: {1}", new Object[]{session.getBareJID(), item});
+		}
+		session.setData(ROSTER_ITEMS_NODE, itemKey(relem), item);
+	}
+
+	private static String itemKey(RosterElement relem) {
+		return relem.getJid().getBareJID().toString();
+	}
+}
@@ -157,4 +157,61 @@ public class ClusterConnectionSelectorTest
 		assertSame(serv3, selector.selectConnection(p, conn));
 	}
 
+	@Test
+	public void testStripeMovedFromCongestedConnection() throws Exception {
+		ClusterConnection conn = new ClusterConnection("test");
+		ClusterConnectionSelector selector = new ClusterConnectionSelector();
+		selector.setClusterConnectionHandler(new ClusterConnectionHandler() {
+
+			@Override
+			public int hashCodeForPacket(Packet packet) {
+				return packet.getStanzaFrom().hashCode();
+			}
+		});
+		Map<String, Object> props = new HashMap<>();
+		props.put(CLUSTER_SYS_CONNECTIONS_PER_NODE_PROP_KEY, 0);
+		selector.setProperties(props);
+
+		TestIOService serv1 = new TestIOService();
+		TestIOService serv2 = new TestIOService();
+		conn.addConn(serv1);
+		conn.addConn(serv2);
+
+		Element el = new Element("iq", new String[]{"from"}, new String[]{"test1"});
+		Packet p = Packet.packetInstance(el);
+		XMPPIOService<Object> owner = selector.selectConnection(p, conn);
+		XMPPIOService<Object> other = owner == serv1 ? serv2 : serv1;
+		owner.addPacketToSend(p);
+
+		// stripe stays on congested connection while its packets are not written yet
+		queuePackets(owner, 2000);
+		Thread.sleep(60);
+		assertSame(owner, selector.selectConnection(p, conn));
+		owner.addPacketToSend(p);
+		assertEquals(0, selector.getStripeMoves());
+
+		// all packets of the stripe were written, but connection is still congested
+		((TestIOService) owner).written(2002);
+		queuePackets(owner, 2000);
+		Thread.sleep(60);
+		assertSame(other, selector.selectConnection(p, conn));
+		assertEquals(1, selector.getStripeMoves());
+		assertSame(other, selector.selectConnection(p, conn));
+		assertEquals(1, selector.getStripeMoves());
+	}
+
+	private void queuePackets(XMPPIOService<Object> serv, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			serv.addPacketToSend(Packet.packetInstance(new Element("message")));
+		}
+	}
+
+	private static class TestIOService
+			extends ClusterIOService<Object> {
+
+		private void written(int count) {
+			packetsWritten(count);
+		}
+	}
+
 }
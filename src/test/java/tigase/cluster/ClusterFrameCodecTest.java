@@ -0,0 +1,249 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.cluster.api.ClusterElement;
+import tigase.io.ByteBufferPool;
+import tigase.io.ElementSerializer;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPByteParser;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+public class ClusterFrameCodecTest {
+
+	private static final Logger log = Logger.getLogger(ClusterFrameCodecTest.class.getName());
+
+	@Test
+	public void testRoundTrip() {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder();
+		ClusterFrameCodec.Decoder decoder = new ClusterFrameCodec.Decoder(1024 * 1024);
+		List<Element> expected = new ArrayList<>();
+
+		for (int i = 0; i < 10; i++) {
+			Element elem = createClusterPacket(i);
+
+			expected.add(elem);
+			encoder.writeElement(elem);
+		}
+
+		Collector collector = new Collector();
+
+		Assert.assertEquals(10, decoder.decode(ByteBuffer.wrap(encoder.toByteArray()), collector));
+		Assert.assertEquals(expected.size(), collector.elements.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertElementEquals(expected.get(i), collector.elements.get(i));
+		}
+
+		// children without xmlns have the default namespace of the parent, like after parsing XML
+		Element data = collector.elements.get(0).getChild(ClusterElement.CLUSTER_DATA_EL_NAME);
+
+		Assert.assertEquals(ClusterElement.XMLNS, data.getXMLNS());
+		Assert.assertEquals("jabber:client", data.getChild("message").getChild("body").getXMLNS());
+	}
+
+	@Test
+	public void testNamesAreSentOnce() {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder();
+
+		encoder.writeElement(createClusterPacket(0));
+
+		int first = encoder.toByteArray().length;
+		int dictionarySize = encoder.getDictionarySize();
+
+		encoder.writeElement(createClusterPacket(0));
+
+		int second = encoder.toByteArray().length;
+
+		// method name is sent only in the first packet, later it is an integer command id
+		Assert.assertTrue(first > second + "packet-forward-sm-cmd".length());
+		Assert.assertEquals(dictionarySize, encoder.getDictionarySize());
+	}
+
+	@Test
+	public void testIncompleteFrames() {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder();
+		ClusterFrameCodec.Decoder decoder = new ClusterFrameCodec.Decoder(1024 * 1024);
+
+		encoder.writeElement(createClusterPacket(0));
+		encoder.writeText("<ack id=\"1\"/>");
+		encoder.writeElement(createClusterPacket(1));
+
+		byte[] data = encoder.toByteArray();
+		Collector collector = new Collector();
+		int frames = 0;
+
+		for (byte b : data) {
+			frames += decoder.decode(ByteBuffer.wrap(new byte[]{b}), collector);
+		}
+		Assert.assertEquals(3, frames);
+		Assert.assertEquals(0, decoder.getPendingBytes());
+		Assert.assertEquals(2, collector.elements.size());
+		Assert.assertEquals(1, collector.texts.size());
+		Assert.assertEquals("<ack id=\"1\"/>", collector.texts.get(0));
+		assertElementEquals(createClusterPacket(1), collector.elements.get(1));
+	}
+
+	@Test
+	public void testMixedContentSentAsText() {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder();
+		ClusterFrameCodec.Decoder decoder = new ClusterFrameCodec.Decoder(1024 * 1024);
+		Element mixed = new Element("body", "text");
+
+		mixed.addChild(new Element("b", "bold"));
+
+		int dictionarySize = encoder.getDictionarySize();
+
+		encoder.writeElement(mixed);
+		Assert.assertEquals(dictionarySize, encoder.getDictionarySize());
+		encoder.writeElement(createClusterPacket(0));
+
+		Collector collector = new Collector();
+
+		Assert.assertEquals(2, decoder.decode(ByteBuffer.wrap(encoder.toByteArray()), collector));
+		Assert.assertEquals(mixed.toString(), collector.texts.get(0));
+		assertElementEquals(createClusterPacket(0), collector.elements.get(0));
+	}
+
+	@Test(expected = ClusterFrameCodec.FrameException.class)
+	public void testFrameSizeLimit() {
+		ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder();
+		ClusterFrameCodec.Decoder decoder = new ClusterFrameCodec.Decoder(64);
+
+		encoder.writeElement(createClusterPacket(0));
+		decoder.decode(ByteBuffer.wrap(encoder.toByteArray()), new Collector());
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughput() {
+		final int iterations = 200000;
+		// packets sent in a single write
+		final int batch = 64;
+		Element[] packets = new Element[batch];
+
+		for (int i = 0; i < batch; i++) {
+			packets[i] = createClusterPacket(i);
+		}
+
+		for (int round = 0; round < 5; round++) {
+			ByteBufferPool pool = new ByteBufferPool(64 * 1024 * 1024);
+			ElementSerializer serializer = new ElementSerializer(pool, 64 * 1024);
+			DomBuilderHandler handler = new DomBuilderHandler();
+			XMPPByteParser parser = XMPPByteParser.getInstance();
+			int received = 0;
+			long start = System.nanoTime();
+
+			for (int i = 0; i < iterations; i += batch) {
+				for (Element packet : packets) {
+					serializer.write(packet);
+				}
+				for (ByteBuffer buffer : serializer.flush()) {
+					parser.parse(handler, buffer);
+					pool.release(buffer);
+				}
+				while (handler.getParsedElements().poll() != null) {
+					++received;
+				}
+			}
+			long xmlTime = System.nanoTime() - start;
+
+			Assert.assertEquals(iterations / batch * batch, received);
+
+			ClusterFrameCodec.Encoder encoder = new ClusterFrameCodec.Encoder();
+			ClusterFrameCodec.Decoder decoder = new ClusterFrameCodec.Decoder(64 * 1024 * 1024);
+			Collector collector = new Collector();
+
+			received = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i += batch) {
+				for (Element packet : packets) {
+					encoder.writeElement(packet);
+				}
+				ByteBuffer buffer = encoder.flush();
+
+				received += decoder.decode(buffer, collector);
+				ByteBufferPool.getInstance().release(buffer);
+				collector.elements.clear();
+			}
+			long binaryTime = System.nanoTime() - start;
+
+			Assert.assertEquals(iterations / batch * batch, received);
+			log.info("XML: " + (received * 1000000000L / xmlTime) + " packets/s, binary framing: " +
+							 (received * 1000000000L / binaryTime) + " packets/s");
+		}
+	}
+
+	private static void assertElementEquals(Element expected, Element actual) {
+		tigase.Assert.assertElementEquals(expected, actual);
+		tigase.Assert.assertElementEquals(actual, expected);
+		Assert.assertEquals(expected.toString(), actual.toString());
+	}
+
+	private Element createClusterPacket(int i) {
+		Element cluster = new Element(ClusterElement.CLUSTER_EL_NAME, null,
+									  new String[]{"to", "from", "type", "id", "xmlns"},
+									  new String[]{"sess-man@node2.example.com", "sess-man@node1.example.com", "set",
+												   "cl-" + i, ClusterElement.XMLNS});
+		Element control = new Element(ClusterElement.CLUSTER_CONTROL_EL_NAME);
+		Element visited = new Element(ClusterElement.VISITED_NODES_EL_NAME);
+
+		visited.addChild(new Element(ClusterElement.NODE_ID_EL_NAME, "sess-man@node1.example.com"));
+		control.addChild(visited);
+		control.addChild(new Element(ClusterElement.CLUSTER_METHOD_EL_NAME, null,
+									 new String[]{ClusterElement.CLUSTER_NAME_ATTR},
+									 new String[]{"packet-forward-sm-cmd"}));
+		control.addChild(new Element(ClusterElement.FIRST_NODE_EL_NAME, "sess-man@node1.example.com"));
+		cluster.addChild(control);
+
+		Element data = new Element(ClusterElement.CLUSTER_DATA_EL_NAME);
+		Element message = new Element("message", null, new String[]{"xmlns", "from", "to", "type", "id"},
+									  new String[]{"jabber:client", "juliet@example.com/balcony",
+												   "romeo@example.net/orchard", "chat", "msg-" + i});
+
+		message.addChild(new Element("body", "Wherefore art thou, Romeo? &amp; \u0105\u0119\u20ac \ud83d\ude00"));
+		data.addChild(message);
+		cluster.addChild(data);
+		return cluster;
+	}
+
+	private static class Collector
+			implements ClusterFrameCodec.FrameHandler {
+
+		private final List<Element> elements = new ArrayList<>();
+		private final List<String> texts = new ArrayList<>();
+
+		@Override
+		public void elementReceived(Element elem) {
+			elements.add(elem);
+		}
+
+		@Override
+		public void textReceived(ByteBuffer data) {
+			texts.add(StandardCharsets.UTF_8.decode(data).toString());
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import org.junit.Test;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class NodeHashRingTest {
+
+	@Test
+	public void testSameOwnerRegardlessOfNodesOrder() {
+		List<JID> nodes = createNodes(6);
+		NodeHashRing ring1 = new NodeHashRing(64);
+		ring1.setNodes(nodes);
+
+		List<JID> reversed = new ArrayList<>(nodes);
+		Collections.reverse(reversed);
+		NodeHashRing ring2 = new NodeHashRing(64);
+		ring2.setNodes(reversed);
+
+		for (int i = 0; i < 1000; i++) {
+			BareJID jid = BareJID.bareJIDInstanceNS("user" + i, "example.com");
+			assertEquals(ring1.getNode(jid), ring2.getNode(jid));
+		}
+	}
+
+	@Test
+	public void testDistributionAndRebalancing() {
+		final int users = 60000;
+		List<JID> nodes = createNodes(6);
+		NodeHashRing ring = new NodeHashRing(64);
+		ring.setNodes(nodes);
+
+		Map<JID, Integer> counts = new HashMap<>();
+		JID[] owners = new JID[users];
+		for (int i = 0; i < users; i++) {
+			owners[i] = ring.getNode(BareJID.bareJIDInstanceNS("user" + i, "example.com"));
+			counts.merge(owners[i], 1, Integer::sum);
+		}
+		assertEquals(nodes.size(), counts.size());
+		for (int count : counts.values()) {
+			// each node should own roughly 1/6 of users
+			assertTrue("unbalanced: " + counts, Math.abs(count - users / 6) < users / 6 / 3);
+		}
+
+		JID newNode = JID.jidInstanceNS("sess-man", "node7.example.com", null);
+		List<JID> extended = new ArrayList<>(nodes);
+		extended.add(newNode);
+		ring.setNodes(extended);
+
+		int moved = 0;
+		for (int i = 0; i < users; i++) {
+			JID owner = ring.getNode(BareJID.bareJIDInstanceNS("user" + i, "example.com"));
+			if (!owner.equals(owners[i])) {
+				// users are moved only to the new node
+				assertEquals(newNode, owner);
+				moved++;
+			}
+		}
+		assertTrue("moved: " + moved, Math.abs(moved - users / 7) < users / 7 / 3);
+
+		ring.setNodes(nodes);
+		for (int i = 0; i < users; i++) {
+			assertEquals(owners[i], ring.getNode(BareJID.bareJIDInstanceNS("user" + i, "example.com")));
+		}
+	}
+
+	@Test
+	public void testEmptyRing() {
+		NodeHashRing ring = new NodeHashRing(64);
+		assertNull(ring.getNode("user@example.com"));
+		assertTrue(ring.getNodes().isEmpty());
+	}
+
+	private List<JID> createNodes(int count) {
+		List<JID> nodes = new ArrayList<>();
+		for (int i = 1; i <= count; i++) {
+			nodes.add(JID.jidInstanceNS("sess-man", "node" + i + ".example.com", null));
+		}
+		return nodes;
+	}
+}
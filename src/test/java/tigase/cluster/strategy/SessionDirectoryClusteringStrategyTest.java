@@ -0,0 +1,190 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.cluster.strategy;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.cluster.api.ClusterControllerIfc;
+import tigase.cluster.api.SessionManagerClusteredIfc;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class SessionDirectoryClusteringStrategyTest {
+
+	private final JID node1 = JID.jidInstanceNS("sess-man@node1");
+	private final JID node2 = JID.jidInstanceNS("sess-man@node2");
+	private final JID node3 = JID.jidInstanceNS("sess-man@node3");
+	private final List<JID> nodesConnected = new ArrayList<>();
+	/**
+	 * Command name and target nodes of each command sent to the cluster
+	 */
+	private final List<Object[]> sent = new ArrayList<>();
+	private SessionDirectoryClusteringStrategy<ConnectionRecord> strategy;
+
+	@Before
+	public void setUp() {
+		strategy = new SessionDirectoryClusteringStrategy<>();
+		strategy.sm = (SessionManagerClusteredIfc) Proxy.newProxyInstance(getClass().getClassLoader(),
+																		   new Class[]{SessionManagerClusteredIfc.class},
+																		   (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getComponentId":
+					return node1;
+				case "isLocalDomain":
+					return "localhost".equals(args[0]);
+				case "getNodesConnected":
+					return nodesConnected;
+				case "getXMPPResourceConnections":
+					return new ConcurrentHashMap<>();
+				default:
+					return method.getReturnType() == boolean.class ? false : null;
+			}
+		});
+		strategy.cluster = (ClusterControllerIfc) Proxy.newProxyInstance(getClass().getClassLoader(),
+																		  new Class[]{ClusterControllerIfc.class},
+																		  (proxy, method, args) -> {
+			if ("sendToNodes".equals(method.getName())) {
+				sent.add(new Object[]{args[0], args[args.length - 1]});
+			}
+			return null;
+		});
+		connect(node2);
+	}
+
+	@Test
+	public void testPacketForwardedToOwnerNode() throws TigaseStringprepException {
+		BareJID user = findUserOwnedBy(node2);
+
+		assertEquals(Collections.singletonList(node2),
+					 strategy.getNodesForPacketForward(node1, null, createMessage(user)));
+	}
+
+	@Test
+	public void testOwnerForwardsToNodesWithSessions() throws TigaseStringprepException {
+		connect(node3);
+		BareJID user = findUserOwnedBy(node1);
+		strategy.addRecord(createRecord(node3, user, "res1"));
+
+		// packet received by the owner node
+		assertEquals(Collections.singletonList(node3),
+					 strategy.getNodesForPacketForward(node1, null, createMessage(user)));
+
+		// packet forwarded to the owner by the first node
+		Set<JID> visited = new HashSet<>(Arrays.asList(node2, node1));
+		assertEquals(Collections.singletonList(node3),
+					 strategy.getNodesForPacketForward(node2, visited, createMessage(user)));
+
+		// node which is not an owner does not forward packet received from other node
+		BareJID other = findUserOwnedBy(node2);
+		assertNull(strategy.getNodesForPacketForward(node3, new HashSet<>(Arrays.asList(node3, node1)),
+													 createMessage(other)));
+	}
+
+	@Test
+	public void testPacketReturnedToFirstNodeWithoutSession() throws TigaseStringprepException {
+		BareJID user = findUserOwnedBy(node1);
+		Set<JID> visited = new HashSet<>(Arrays.asList(node2, node1));
+
+		assertTrue(strategy.sendToNextNode(node2, visited, new HashMap<>(), createMessage(user)));
+		assertEquals(1, sent.size());
+		assertArrayEquals(new JID[]{node2}, (JID[]) sent.get(0)[1]);
+	}
+
+	@Test
+	public void testRebalanceOnNodeJoinAndLeave() {
+		List<BareJID> users = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			BareJID user = BareJID.bareJIDInstanceNS("user" + i, "localhost");
+			if (node1.equals(strategy.getOwnerNode(user))) {
+				users.add(user);
+				strategy.addRecord(createRecord(node2, user, "res"));
+			}
+		}
+		assertFalse(users.isEmpty());
+
+		connect(node3);
+		int kept = 0;
+		for (BareJID user : users) {
+			JID owner = strategy.getOwnerNode(user);
+			// consistent hashing moves users only to the new node
+			assertTrue(owner.equals(node1) || owner.equals(node3));
+			if (owner.equals(node1)) {
+				assertNotNull(strategy.getConnectionRecords(user));
+				++kept;
+			} else {
+				assertNull(strategy.getConnectionRecords(user));
+			}
+		}
+		assertTrue(kept > 0 && kept < users.size());
+
+		// records of sessions on the node which left are removed
+		nodesConnected.remove(node2);
+		strategy.nodeDisconnected(node2);
+		for (BareJID user : users) {
+			assertNull(strategy.getConnectionRecords(user));
+		}
+	}
+
+	@Test
+	public void testConnectionRecordsAreCopied() {
+		BareJID user = findUserOwnedBy(node1);
+		strategy.addRecord(createRecord(node2, user, "res1"));
+
+		Set<ConnectionRecord> records = strategy.getConnectionRecords(user);
+		assertEquals(1, records.size());
+		records.clear();
+
+		assertEquals(1, strategy.getConnectionRecords(user).size());
+	}
+
+	private void connect(JID node) {
+		nodesConnected.add(node);
+		strategy.nodeConnected(node);
+	}
+
+	private ConnectionRecord createRecord(JID node, BareJID user, String resource) {
+		ConnectionRecord rec = new ConnectionRecord();
+		rec.setRecordFields(node, JID.jidInstanceNS(user, resource), UUID.randomUUID().toString(),
+							JID.jidInstanceNS("c2s@" + node.getDomain() + "/" + resource));
+		return rec;
+	}
+
+	private Packet createMessage(BareJID to) throws TigaseStringprepException {
+		return Packet.packetInstance(new Element("message", new String[]{"from", "to", "type"},
+												 new String[]{"sender@localhost/res", to.toString(), "chat"}));
+	}
+
+	private BareJID findUserOwnedBy(JID node) {
+		for (int i = 0; i < 1000; i++) {
+			BareJID user = BareJID.bareJIDInstanceNS("user" + i, "localhost");
+			if (node.equals(strategy.getOwnerNode(user))) {
+				return user;
+			}
+		}
+		throw new AssertionError("No user owned by " + node);
+	}
+}
@@ -0,0 +1,331 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.db.jdbc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.db.DataRepository;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PooledDataRepositoryTest {
+
+	@Test
+	public void testParametersAppliedOnBorrowedConnection() throws SQLException {
+		FakeConnection conn = new FakeConnection();
+		PooledDataRepository pool = newPool(conn);
+
+		PreparedStatement ps = pool.getPreparedStatement(0, "update");
+		synchronized (ps) {
+			ps.setString(1, "user");
+			ps.setLong(2, 5L);
+			Assert.assertEquals(1, pool.getIdleCount());
+			Assert.assertEquals(1, ps.executeUpdate());
+		}
+
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertEquals(
+				Arrays.asList("update:setString:1:user", "update:setLong:2:5", "update:executeUpdate",
+							  "update:getUpdateCount", "update:clearParameters", "update:clearBatch"), conn.calls);
+		Assert.assertEquals(1, pool.getWaitTimeHistogram().getCount());
+	}
+
+	@Test
+	public void testUnclosedResultSetDoesNotHoldConnection() throws SQLException {
+		PooledDataRepository pool = newPool(new FakeConnection());
+
+		for (int i = 0; i < 3; i++) {
+			PreparedStatement ps = pool.getPreparedStatement(0, "select");
+			ResultSet rs = ps.executeQuery();
+			Assert.assertEquals(1, pool.getIdleCount());
+			Assert.assertSame(ps, rs.getStatement());
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(1L, rs.getLong("id"));
+		}
+		Assert.assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testNestedStatementsWhileReadingResults() throws SQLException {
+		PooledDataRepository pool = newPool(new FakeConnection());
+
+		ResultSet rs = pool.getPreparedStatement(0, "select").executeQuery();
+		List<Long> ids = new ArrayList<>();
+		while (rs.next()) {
+			ids.add(rs.getLong(1));
+			Assert.assertEquals(1, pool.getPreparedStatement(0, "update").executeUpdate());
+			Assert.assertTrue(pool.getPreparedStatement(0, "select").executeQuery().next());
+		}
+		rs.close();
+
+		Assert.assertEquals(Arrays.asList(1L, 2L), ids);
+		Assert.assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testExecuteResultAvailableAfterConnectionReturned() throws SQLException {
+		PooledDataRepository pool = newPool(new FakeConnection());
+
+		PreparedStatement ps = pool.getPreparedStatement(0, "call");
+		Assert.assertTrue(ps.execute());
+		Assert.assertEquals(1, pool.getIdleCount());
+
+		ResultSet rs = ps.getResultSet();
+		Assert.assertTrue(rs.next());
+		Assert.assertEquals("1", rs.getString(1));
+		Assert.assertNull(ps.getResultSet());
+		Assert.assertFalse(ps.getMoreResults());
+	}
+
+	@Test
+	public void testSlowQueryDoesNotBlockOthers() throws Exception {
+		PooledDataRepository pool = newPool(new FakeConnection(), new FakeConnection());
+		CountDownLatch executed = new CountDownLatch(1);
+		CountDownLatch finish = new CountDownLatch(1);
+
+		Thread slow = new Thread(() -> {
+			try {
+				pool.getPreparedStatement(0, "slow").executeQuery().close();
+			} catch (Exception ex) {
+				throw new RuntimeException(ex);
+			}
+		});
+		FakeConnection.slowExecuted = executed;
+		FakeConnection.slowFinish = finish;
+		slow.start();
+
+		Assert.assertTrue(executed.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < 10; i++) {
+			ResultSet rs = pool.getPreparedStatement(0, "select").executeQuery();
+			rs.close();
+		}
+		Assert.assertEquals(1, pool.getIdleCount());
+
+		finish.countDown();
+		slow.join();
+		Assert.assertEquals(2, pool.getIdleCount());
+	}
+
+	@Test
+	public void testRepoHandleIsExclusive() throws SQLException {
+		PooledDataRepository pool = newPool(new FakeConnection());
+
+		DataRepository handle = pool.takeRepoHandle(null);
+		Assert.assertNotSame(pool, handle);
+		Assert.assertEquals(0, pool.getIdleCount());
+		try {
+			pool.getPreparedStatement(0, "update").executeUpdate();
+			Assert.fail("connection should not be available");
+		} catch (SQLTimeoutException ex) {
+			// expected
+		}
+
+		pool.releaseRepoHandle(handle);
+		Assert.assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testGeneratedKeysAvailableAfterConnectionReturned() throws SQLException {
+		PooledDataRepository pool = newPool(new FakeConnection());
+		pool.initPreparedStatement("insert", "insert", Statement.RETURN_GENERATED_KEYS);
+
+		PreparedStatement ps = pool.getPreparedStatement(0, "insert");
+		Assert.assertEquals(1, ps.executeUpdate());
+		Assert.assertEquals(1, pool.getIdleCount());
+
+		ResultSet rs = ps.getGeneratedKeys();
+		Assert.assertTrue(rs.next());
+		Assert.assertEquals(42L, rs.getLong(1));
+		Assert.assertEquals("42", rs.getString("id"));
+		Assert.assertFalse(rs.next());
+		pool.release(null, rs);
+		Assert.assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testSqlServerStatementReleasedAfterExecution() throws Exception {
+		PooledDataRepository pool = newPool(new FakeConnection());
+		pool.initialize("jdbc:sqlserver://localhost;databaseName=tigasedb");
+
+		PreparedStatement ps = pool.getPreparedStatement(0, "login");
+		ps.setString(1, "user");
+		ps.executeUpdate();
+		Assert.assertEquals(1, pool.getIdleCount());
+
+		ResultSet rs = ps.getGeneratedKeys();
+		Assert.assertTrue(rs.next());
+		Assert.assertEquals(42, rs.getInt(1));
+	}
+
+	@Test
+	public void testCreatedStatementReleasedAfterExecution() throws SQLException {
+		FakeConnection conn = new FakeConnection();
+		PooledDataRepository pool = newPool(conn);
+
+		Statement stmt = pool.createStatement(null);
+		Assert.assertEquals(1, stmt.executeUpdate("delete"));
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertTrue(conn.calls.contains("stmt:close"));
+		Assert.assertFalse(stmt.getGeneratedKeys().next());
+
+		ResultSet rs = stmt.executeQuery("select");
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertTrue(rs.next());
+		stmt.close();
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertTrue(stmt.isClosed());
+	}
+
+	@Test
+	public void testTransactionOnPoolFails() throws SQLException {
+		PooledDataRepository pool = newPool(new FakeConnection());
+
+		try {
+			pool.startTransaction();
+			Assert.fail("transaction should not be started on the pool");
+		} catch (SQLFeatureNotSupportedException ex) {
+			// expected
+		}
+
+		DataRepository handle = pool.takeRepoHandle(null);
+		handle.startTransaction();
+		pool.releaseRepoHandle(handle);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRepoHandleFailsWithoutFreeConnection() {
+		PooledDataRepository pool = newPool(new FakeConnection());
+
+		pool.takeRepoHandle(null);
+		pool.takeRepoHandle(null);
+	}
+
+	private PooledDataRepository newPool(FakeConnection... connections) {
+		PooledDataRepository pool = new PooledDataRepository();
+		pool.setBorrowTimeout(Duration.ofMillis(100));
+		for (FakeConnection conn : connections) {
+			pool.addRepo(conn.repo);
+		}
+		return pool;
+	}
+
+	private static class FakeConnection {
+
+		private static volatile CountDownLatch slowExecuted = null;
+		private static volatile CountDownLatch slowFinish = null;
+
+		private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+		private final DataRepository repo = (DataRepository) Proxy.newProxyInstance(
+				FakeConnection.class.getClassLoader(), new Class[]{DataRepository.class}, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "getPreparedStatement":
+							return statement((String) args[1]);
+						case "createStatement":
+							return statement("stmt");
+						case "getDatabaseType":
+							return DataRepository.dbTypes.derby;
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "equals":
+							return proxy == args[0];
+						default:
+							return null;
+					}
+				});
+
+		private PreparedStatement statement(String key) {
+			return (PreparedStatement) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(),
+															  new Class[]{PreparedStatement.class},
+															  (proxy, method, args) -> {
+																  StringBuilder sb = new StringBuilder(key).append(
+																		  ':').append(method.getName());
+																  if (args != null) {
+																	  for (Object arg : args) {
+																		  sb.append(':').append(arg);
+																	  }
+																  }
+																  calls.add(sb.toString());
+																  switch (method.getName()) {
+																	  case "executeQuery":
+																		  if ("slow".equals(key)) {
+																			  slowExecuted.countDown();
+																			  slowFinish.await();
+																		  }
+																		  return resultSet(1L, 2L);
+																	  case "execute":
+																		  return true;
+																	  case "getResultSet":
+																		  return resultSet(1L);
+																	  case "getGeneratedKeys":
+																		  return resultSet(42L);
+																	  case "executeUpdate":
+																	  case "getUpdateCount":
+																		  return 1;
+																	  default:
+																		  return null;
+																  }
+															  });
+		}
+
+		private ResultSet resultSet(Object... values) {
+			ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+					FakeConnection.class.getClassLoader(), new Class[]{ResultSetMetaData.class},
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+							case "getColumnCount":
+								return 1;
+							case "getColumnLabel":
+								return "id";
+							case "getColumnType":
+								return Types.BIGINT;
+							default:
+								return null;
+						}
+					});
+			int[] position = new int[]{-1};
+			return (ResultSet) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(),
+													  new Class[]{ResultSet.class}, (proxy, method, args) -> {
+						switch (method.getName()) {
+							case "next":
+								return ++position[0] < values.length;
+							case "getMetaData":
+								return metaData;
+							case "getObject":
+								return values[position[0]];
+							default:
+								return null;
+						}
+					});
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.eventbus.component;
+
+import org.junit.Before;
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RemoteEventsBatcherTest {
+
+	private static final String FROM = "eventbus@node0";
+	private final JID node1 = JID.jidInstanceNS("eventbus@node1");
+	private final JID node2 = JID.jidInstanceNS("eventbus@node2");
+	private RemoteEventsBatcher batcher;
+	private List<Object[]> sent;
+
+	@Before
+	public void setUp() {
+		sent = new ArrayList<>();
+		batcher = new RemoteEventsBatcher(3, (elem, from, to) -> sent.add(new Object[]{elem, from, to}));
+	}
+
+	@Test
+	public void testBatchPerNode() {
+		batcher.add(FROM, node1, "test.Event1", item("e1"), null);
+		batcher.add(FROM, node1, "test.Event2", item("e2"), null);
+		batcher.add(FROM, node2, "test.Event1", item("e3"), null);
+		assertEquals(0, sent.size());
+
+		batcher.flush();
+		assertEquals(2, sent.size());
+		for (Object[] msg : sent) {
+			Element items = ((Element) msg[0]).getChild("items");
+			assertEquals(FROM, msg[1]);
+			if (node1.equals(msg[2])) {
+				assertNull(items.getAttributeStaticStr("node"));
+				assertEquals(2, items.getChildren().size());
+				assertEquals("e1", items.getChildren().get(0).getChildren().get(0).getName());
+				assertEquals("e2", items.getChildren().get(1).getChildren().get(0).getName());
+			} else {
+				assertEquals(node2, msg[2]);
+				assertEquals("test.Event1", items.getAttributeStaticStr("node"));
+				assertEquals(1, items.getChildren().size());
+			}
+		}
+
+		sent.clear();
+		batcher.flush();
+		assertEquals(0, sent.size());
+		assertEquals(2, batcher.getBatchesSent());
+		assertEquals(3, batcher.getEventsSent());
+		assertEquals(2, batcher.getMaxBatchSize());
+	}
+
+	@Test
+	public void testMaxBatchSize() {
+		for (int i = 0; i < 7; i++) {
+			batcher.add(FROM, node1, "test.Event1", item("e" + i), null);
+		}
+		assertEquals(2, sent.size());
+		batcher.flush();
+		assertEquals(3, sent.size());
+		assertEquals(1, ((Element) sent.get(2)[0]).getChild("items").getChildren().size());
+	}
+
+	@Test
+	public void testSupersede() {
+		batcher.add(FROM, node1, "test.Digest", item("d1"), Arrays.asList(Object.class, "map1"));
+		batcher.add(FROM, node1, "test.Event1", item("e1"), null);
+		batcher.add(FROM, node1, "test.Digest", item("d2"), Arrays.asList(Object.class, "map1"));
+		assertEquals(0, sent.size());
+
+		batcher.flush();
+		assertEquals(1, sent.size());
+		List<Element> items = ((Element) sent.get(0)[0]).getChild("items").getChildren();
+		assertEquals(2, items.size());
+		assertEquals("e1", items.get(0).getChildren().get(0).getName());
+		assertEquals("d2", items.get(1).getChildren().get(0).getName());
+		assertEquals(1, batcher.getEventsSuperseded());
+
+		sent.clear();
+		batcher.add(FROM, node1, "test.Digest", item("d3"), Arrays.asList(Object.class, "map1"));
+		batcher.add(FROM, node1, "test.Digest", item("d4"), Arrays.asList(Object.class, "map1"));
+		batcher.flush();
+		Element single = ((Element) sent.get(0)[0]).getChild("items");
+		assertEquals("test.Digest", single.getAttributeStaticStr("node"));
+		assertEquals(1, single.getChildren().size());
+		assertSame(node1, sent.get(0)[2]);
+	}
+
+	private static Element item(String name) {
+		Element item = new Element("item");
+		item.addChild(new Element(name));
+		return item;
+	}
+
+}
@@ -20,6 +20,7 @@ package tigase.eventbus.impl;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import tigase.eventbus.EventListener;
 import tigase.eventbus.FillRoutedEvent;
 import tigase.eventbus.HandleEvent;
@@ -30,12 +31,15 @@ import tigase.xml.Element;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
 public class EventBusImplementationTest {
 
+	private static final Logger log = Logger.getLogger(EventBusImplementationTest.class.getName());
 	private EventBusImplementation eventBus;
 
 	@Before
@@ -352,6 +356,93 @@ public class EventBusImplementationTest {
 		assertNull(cmv.resp[2]);
 	}
 
+	@Test
+	public void testDispatchCacheInvalidation() {
+		final AtomicInteger counter = new AtomicInteger();
+
+		eventBus.fire(new Event12());
+		Assert.assertEquals(0, eventBus.getHandlersForEvent(Event12.class).length);
+
+		EventListener<Event1> l0 = e -> counter.incrementAndGet();
+		eventBus.addListener(Event1.class, l0);
+		eventBus.fire(new Event12());
+		Assert.assertEquals(1, counter.get());
+		Assert.assertSame(eventBus.getHandlersForEvent(Event12.class), eventBus.getHandlersForEvent(Event12.class));
+
+		ConsumerMethodVisibility cmv = new ConsumerMethodVisibility();
+		eventBus.registerAll(cmv);
+		eventBus.fire(new Event12());
+		Assert.assertEquals(2, counter.get());
+		Assert.assertNotNull(cmv.resp[2]);
+		Assert.assertEquals(4, eventBus.getHandlersForEvent(Event12.class).length);
+
+		eventBus.unregisterAll(cmv);
+		eventBus.removeListener(l0);
+		eventBus.fire(new Event12());
+		Assert.assertEquals(2, counter.get());
+		Assert.assertEquals(0, eventBus.getHandlersForEvent(Event12.class).length);
+	}
+
+	@Test
+	public void testDispatchModeBatched() {
+		final AtomicInteger tasks = new AtomicInteger();
+		eventBus.setExecutor(command -> {
+			tasks.incrementAndGet();
+			command.run();
+		});
+
+		Consumer c = new Consumer();
+		eventBus.registerAll(c);
+
+		eventBus.fire(new Event12(), this);
+		Assert.assertEquals(3, tasks.get());
+
+		Arrays.fill(c.resp, null);
+		eventBus.setDispatchMode(EventBusImplementation.DispatchMode.batched);
+		eventBus.fire(new Event12(), this);
+		Assert.assertEquals(4, tasks.get());
+		assertNotNull(c.resp[0]);
+		assertNotNull(c.resp[1]);
+		assertNotNull(c.resp[2]);
+
+		Arrays.fill(c.resp, null);
+		eventBus.setDispatchMode(EventBusImplementation.DispatchMode.inline);
+		eventBus.fire(new Event12(), this);
+		Assert.assertEquals(4, tasks.get());
+		assertNotNull(c.resp[0]);
+		assertNotNull(c.resp[1]);
+		assertNotNull(c.resp[2]);
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughput() {
+		final int iterations = 1000000;
+		final AtomicInteger counter = new AtomicInteger();
+
+		eventBus.registerAll(new Consumer());
+		eventBus.registerAll(new ConsumerMethodVisibility());
+		eventBus.addListener(Event1.class, e -> counter.incrementAndGet());
+		eventBus.addListener(Event12.class, e -> counter.incrementAndGet());
+		eventBus.addListener(Event2.class, e -> counter.incrementAndGet());
+
+		final Event12 event = new Event12();
+		for (EventBusImplementation.DispatchMode mode : EventBusImplementation.DispatchMode.values()) {
+			eventBus.setDispatchMode(mode);
+			for (int round = 0; round < 3; round++) {
+				counter.set(0);
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					eventBus.fire(event, this);
+				}
+				long time = System.nanoTime() - start;
+
+				Assert.assertEquals(2 * iterations, counter.get());
+				log.info("dispatch mode " + mode + ": " + (iterations * 1000000000L / time) + " events/s");
+			}
+		}
+	}
+
 	@Test
 	public void testRemoveListener() {
 		final Object resp[] = new Object[]{null, null, null, null, null};
@@ -0,0 +1,87 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+public class ByteBufferPoolTest {
+
+	@Test
+	public void testAcquireRoundsUpToSizeClass() {
+		ByteBufferPool pool = new ByteBufferPool(1024 * 1024);
+
+		Assert.assertEquals(1024, pool.acquire(100).capacity());
+		Assert.assertEquals(1536, pool.acquire(1025).capacity());
+		Assert.assertEquals(2048, pool.acquire(2048).capacity());
+		Assert.assertEquals(98304, pool.acquire(65537).capacity());
+		Assert.assertTrue(pool.acquire(2048).isDirect());
+	}
+
+	@Test
+	public void testReleasedBufferIsReused() {
+		ByteBufferPool pool = new ByteBufferPool(1024 * 1024);
+
+		ByteBuffer buffer = pool.acquire(2000);
+		buffer.put((byte) 1);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		pool.release(buffer);
+		Assert.assertEquals(2048, pool.getPooledBytes());
+
+		ByteBuffer reused = pool.acquire(1800);
+		Assert.assertSame(buffer, reused);
+		Assert.assertEquals(0, reused.position());
+		Assert.assertEquals(reused.capacity(), reused.limit());
+		Assert.assertEquals(ByteOrder.BIG_ENDIAN, reused.order());
+		Assert.assertEquals(0, pool.getPooledBytes());
+		Assert.assertEquals(1, pool.getHits());
+		Assert.assertEquals(1, pool.getMisses());
+	}
+
+	@Test
+	public void testForeignAndOversizedBuffersAreNotPooled() {
+		ByteBufferPool pool = new ByteBufferPool(64 * 1024 * 1024);
+
+		pool.release(ByteBuffer.allocate(2048));
+		pool.release(ByteBuffer.allocateDirect(2000));
+		Assert.assertEquals(0, pool.getPooledBytes());
+
+		ByteBuffer big = pool.acquire(8 * 1024 * 1024);
+		Assert.assertFalse(big.isDirect());
+		pool.release(big);
+		Assert.assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testPoolSizeLimit() {
+		ByteBufferPool pool = new ByteBufferPool(4096);
+
+		ByteBuffer b1 = pool.acquire(2048);
+		ByteBuffer b2 = pool.acquire(2048);
+		ByteBuffer b3 = pool.acquire(2048);
+		pool.release(b1);
+		pool.release(b2);
+		pool.release(b3);
+
+		Assert.assertEquals(4096, pool.getPooledBytes());
+		Assert.assertEquals(1, pool.getDropped());
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+public class ElementSerializerTest {
+
+	private static final Logger log = Logger.getLogger(ElementSerializerTest.class.getName());
+
+	private static final String[] STANZAS = {
+			"<message from='juliet@example.com/balcony' to='romeo@example.net' type='chat' id='msg-1' xml:lang='en'>" +
+					"<body>Wherefore art thou, Romeo? &amp; &lt;\u0105\u0119\u20ac \ud83d\ude00&gt;</body><thread>e0ffe42b28561960</thread>" +
+					"<active xmlns='http://jabber.org/protocol/chatstates'/></message>",
+			"<presence from='juliet@example.com/balcony' to='romeo@example.net'><show>away</show>" +
+					"<status>Out of office</status><priority>5</priority><c xmlns='http://jabber.org/protocol/caps' " +
+					"hash='sha-1' node='http://tigase.org/tigase' ver='QgayPKawpkPSDYmwT/WM94uAlu0='/></presence>",
+			"<iq type='result' id='roster-1' to='juliet@example.com/balcony'><query xmlns='jabber:iq:roster'>" +
+					"<item jid='romeo@example.net' name='Romeo' subscription='both'><group>Friends</group></item>" +
+					"<item jid='nurse@example.com' name='Nurse' subscription='to'/></query></iq>"};
+
+	private final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	@Test
+	public void testSerializedStanzasMatchToString() {
+		ElementSerializer serializer = new ElementSerializer(new ByteBufferPool(1024 * 1024), 1024);
+
+		for (String stanza : STANZAS) {
+			Element elem = parse(stanza);
+
+			serializer.write(elem);
+			Assert.assertEquals(elem.toString().getBytes(StandardCharsets.UTF_8).length, serializer.length());
+
+			Element result = parse(toString(serializer.flush()));
+			tigase.Assert.assertElementEquals(elem, result);
+			tigase.Assert.assertElementEquals(result, elem);
+			Assert.assertEquals(elem.getChildren().size(), result.getChildren().size());
+			Assert.assertEquals(elem.getCData(), result.getCData());
+		}
+	}
+
+	@Test
+	public void testQuotesInAttributeValues() {
+		ElementSerializer serializer = new ElementSerializer(new ByteBufferPool(1024 * 1024), 1024);
+
+		serializer.write(parse("<item jid=\"obrien@example.com\" name=\"O'Brien\"/>"));
+		String data = toString(serializer.flush());
+		Assert.assertEquals("<item jid=\"obrien@example.com\" name=\"O'Brien\"/>", data);
+		Element result = parse(data);
+		Assert.assertNotNull(result);
+		Assert.assertEquals("O'Brien", result.getAttributeStaticStr("name"));
+
+		serializer.write(parse("<item name='Say \"hi\"'/>"));
+		data = toString(serializer.flush());
+		Assert.assertEquals("<item name=\"Say &quot;hi&quot;\"/>", data);
+		Assert.assertNotNull(parse(data));
+	}
+
+	@Test
+	public void testDataSpansManyBuffers() {
+		ElementSerializer serializer = new ElementSerializer(new ByteBufferPool(1024 * 1024), 1024);
+		StringBuilder expected = new StringBuilder();
+
+		for (int i = 0; i < 100; i++) {
+			for (String stanza : STANZAS) {
+				Element elem = parse(stanza);
+
+				serializer.write(elem);
+				expected.append(elem.toString());
+			}
+		}
+
+		ByteBuffer[] buffers = serializer.flush();
+		Assert.assertTrue(buffers.length > 1);
+		Assert.assertEquals(expected.toString().getBytes(StandardCharsets.UTF_8).length, remaining(buffers));
+		Assert.assertEquals(0, serializer.length());
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughput() throws Exception {
+		final int iterations = 1000000;
+		Element[] elems = new Element[STANZAS.length];
+		for (int i = 0; i < STANZAS.length; i++) {
+			elems[i] = parse(STANZAS[i]);
+		}
+
+		ByteBufferPool pool = new ByteBufferPool(64 * 1024 * 1024);
+		ElementSerializer serializer = new ElementSerializer(pool, 16 * 1024);
+		CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+
+		for (int round = 0; round < 3; round++) {
+			long bytes = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				encoder.reset();
+				ByteBuffer buffer = encoder.encode(CharBuffer.wrap(elems[i % elems.length].toString()));
+				bytes += buffer.remaining();
+			}
+			long stringTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				serializer.write(elems[i % elems.length]);
+				for (ByteBuffer buffer : serializer.flush()) {
+					bytes -= buffer.remaining();
+					pool.release(buffer);
+				}
+			}
+			long serializerTime = System.nanoTime() - start;
+
+			Assert.assertEquals(0, bytes);
+			log.info("toString() + encoder: " + (iterations * 1000000000L / stringTime) +
+							 " stanzas/s, serializer: " + (iterations * 1000000000L / serializerTime) + " stanzas/s");
+		}
+	}
+
+	private Element parse(String data) {
+		DomBuilderHandler handler = new DomBuilderHandler();
+		char[] chars = data.toCharArray();
+		parser.parse(handler, chars, 0, chars.length);
+		return handler.getParsedElements().poll();
+	}
+
+	private static int remaining(ByteBuffer[] buffers) {
+		int result = 0;
+		for (ByteBuffer buffer : buffers) {
+			result += buffer.remaining();
+		}
+		return result;
+	}
+
+	private static String toString(ByteBuffer[] buffers) {
+		ByteBuffer data = ByteBuffer.allocate(remaining(buffers));
+		for (ByteBuffer buffer : buffers) {
+			data.put(buffer);
+		}
+		return new String(data.array(), StandardCharsets.UTF_8);
+	}
+}
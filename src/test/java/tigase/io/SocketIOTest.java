@@ -0,0 +1,66 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+public class SocketIOTest {
+
+	@Test
+	public void testGatheringWrite() throws IOException {
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			try (SocketChannel client = SocketChannel.open(server.getLocalAddress());
+				 SocketChannel accepted = server.accept()) {
+				SocketIO io = new SocketIO(accepted);
+
+				String[] parts = {"<message id='1'/>", "<presence/>", "<iq type='get' id='2'/>"};
+				ByteBuffer[] buffers = new ByteBuffer[parts.length + 1];
+				int length = 0;
+				for (int i = 0; i < parts.length; i++) {
+					byte[] data = parts[i].getBytes(StandardCharsets.UTF_8);
+					buffers[i] = ByteBufferPool.getInstance().acquire(data.length);
+					buffers[i].put(data).flip();
+					length += data.length;
+				}
+				// heap buffers are written as well, after direct ones
+				buffers[parts.length] = ByteBuffer.wrap("</stream>".getBytes(StandardCharsets.UTF_8));
+				length += buffers[parts.length].remaining();
+
+				Assert.assertEquals(length, io.writeBatch(buffers));
+				Assert.assertFalse(io.waitingToSend());
+
+				ByteBuffer received = ByteBuffer.allocate(length);
+				while (received.hasRemaining()) {
+					client.read(received);
+				}
+				Assert.assertEquals(String.join("", parts) + "</stream>",
+									new String(received.array(), StandardCharsets.UTF_8));
+			}
+		}
+	}
+}
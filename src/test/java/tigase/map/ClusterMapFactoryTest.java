@@ -20,9 +20,17 @@ package tigase.map;
 import org.junit.Assert;
 import org.junit.Test;
 import tigase.eventbus.EventBus;
+import tigase.eventbus.component.stores.Subscription;
 import tigase.eventbus.impl.EventBusImplementation;
+import tigase.xmpp.jid.JID;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class ClusterMapFactoryTest {
 
@@ -197,4 +205,89 @@ public class ClusterMapFactoryTest {
 		}
 		Assert.assertTrue(received[0]);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testReplicatedMap() throws Exception {
+		final ClusterMapFactory factory1 = new ClusterMapFactory();
+		factory1.setEventBus(new EventBusImplementation());
+		factory1.setNodeId("node1");
+		final ClusterMapFactory factory2 = new ClusterMapFactory();
+		factory2.setEventBus(new EventBusImplementation());
+		factory2.setNodeId("node2");
+
+		final BlockingQueue<ClusterMapFactory.MapItemsEvent> events = new LinkedBlockingQueue<>();
+		factory1.getEventBus().addListener(ClusterMapFactory.MapItemsEvent.class, events::offer);
+
+		final Map<String, String> map1 = factory1.createReplicatedMap("replicated", String.class, String.class);
+		final Map<String, String> map2 = factory2.createReplicatedMap("replicated", String.class, String.class);
+
+		map1.put("k1", "v1");
+		map1.put("k2", "v2");
+		map1.remove("k1");
+		factory1.flush();
+
+		ClusterMapFactory.MapItemsEvent event = events.poll(10, TimeUnit.SECONDS);
+		Assert.assertNotNull("MapItemsEvent not received", event);
+		Assert.assertEquals(1, event.getSeq());
+		factory2.onMapItems(event);
+
+		Assert.assertNull(map2.get("k1"));
+		Assert.assertEquals("v2", map2.get("k2"));
+		Assert.assertEquals(1, map2.size());
+
+		factory1.destroyMap(map1);
+		factory2.destroyMap(map2);
+	}
+
+	@Test
+	public void testFullStateSentOnlyToCreatingNode() throws Exception {
+		final EventBusImplementation eventBus1 = new EventBusImplementation();
+		final ClusterMapFactory factory1 = new ClusterMapFactory();
+		factory1.setEventBus(eventBus1);
+		factory1.setNodeId("node1");
+		final ClusterMapFactory factory3 = new ClusterMapFactory();
+		factory3.setEventBus(new EventBusImplementation());
+		factory3.setNodeId("node3");
+
+		final Map<String, String> map1 = factory1.createReplicatedMap("replicated", String.class, String.class);
+		final Map<String, String> map3 = factory3.createReplicatedMap("replicated", String.class, String.class);
+		map1.put("k1", "v1");
+
+		final BlockingQueue<ClusterMapFactory.MapItemsEvent> events = new LinkedBlockingQueue<>();
+		eventBus1.addListener(ClusterMapFactory.MapItemsEvent.class, events::offer);
+
+		ClusterMapFactory.NewMapCreatedEvent created = new ClusterMapFactory.NewMapCreatedEvent();
+		created.setUid("replicated");
+		created.setKeyClass(String.class);
+		created.setValueClass(String.class);
+		created.setReplicated(true);
+		created.setNode("node2");
+		factory1.onNewMapCreated(created);
+
+		ClusterMapFactory.MapItemsEvent event;
+		do {
+			// skipping batches of changes sent by the flush timer
+			event = events.poll(10, TimeUnit.SECONDS);
+		} while (event != null && event.getSeq() != 0);
+		Assert.assertNotNull("MapItemsEvent not received", event);
+		Assert.assertEquals("node2", event.getTarget());
+
+		List<Subscription> subscriptions = new ArrayList<>();
+		for (String node : new String[]{"node2", "node3"}) {
+			Subscription subscription = new Subscription(JID.jidInstanceNS("eventbus@" + node));
+			subscription.setInClusterSubscription(true);
+			subscriptions.add(subscription);
+		}
+		Collection<Subscription> routed = eventBus1.getEventRoutingSelector(ClusterMapFactory.MapItemsEvent.class)
+				.getSubscriptions(event, subscriptions);
+		Assert.assertEquals(1, routed.size());
+		Assert.assertEquals("node2", routed.iterator().next().getJid().getDomain());
+
+		// delivered to other node anyway, ie. by older version
+		factory3.onMapItems(event);
+		Assert.assertTrue(map3.isEmpty());
+
+		factory1.destroyMap(map1);
+		factory3.destroyMap(map3);
+	}
+}
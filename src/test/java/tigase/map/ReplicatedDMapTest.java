@@ -0,0 +1,156 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.kernel.DefaultTypesConverter;
+import tigase.xml.Element;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ReplicatedDMapTest {
+
+	@Test
+	public void testConcurrentChangesConverge() {
+		ReplicatedDMap<String, String> map1 = createMap("node1");
+		ReplicatedDMap<String, String> map2 = createMap("node2");
+
+		map1.put("a", "1");
+		map2.apply(map1.collectChanges());
+		Assert.assertEquals("1", map2.get("a"));
+
+		map1.put("a", "from-node1");
+		map2.put("a", "from-node2");
+		Element changes1 = map1.collectChanges();
+		Element changes2 = map2.collectChanges();
+		map1.apply(changes2);
+		map2.apply(changes1);
+
+		Assert.assertEquals(map1.get("a"), map2.get("a"));
+		Assert.assertEquals(1, map1.getConflicts());
+		Assert.assertEquals(1, map2.getConflicts());
+		Assert.assertArrayEquals(map1.getDigest(), map2.getDigest());
+
+		// old version received again does not override newer one
+		String value = map1.get("a");
+		Assert.assertEquals(0, map1.apply(changes1));
+		Assert.assertEquals(value, map1.get("a"));
+	}
+
+	@Test
+	public void testRemoveIsNotUndone() {
+		ReplicatedDMap<String, String> map1 = createMap("node1");
+		ReplicatedDMap<String, String> map2 = createMap("node2");
+
+		map1.put("a", "1");
+		Element added = map1.collectChanges();
+		map2.apply(added);
+		map1.remove("a");
+		map2.apply(map1.collectChanges());
+
+		Assert.assertNull(map2.get("a"));
+		Assert.assertEquals(0, map2.size());
+		Assert.assertTrue(map2.isEmpty());
+
+		map2.apply(added);
+		Assert.assertNull(map2.get("a"));
+
+		// only expired tombstones are removed
+		Assert.assertEquals(0, map2.purgeTombstones(System.currentTimeMillis() - 60 * 1000));
+		Assert.assertEquals(1, map2.purgeTombstones(System.currentTimeMillis() + 1));
+	}
+
+	@Test
+	public void testSynchronizationOfMissedChanges() {
+		ReplicatedDMap<String, String> map1 = createMap("node1");
+		ReplicatedDMap<String, String> map2 = createMap("node2");
+
+		for (int i = 0; i < 100; i++) {
+			map1.put("key-" + i, "value-" + i);
+		}
+		map2.apply(map1.collectChanges());
+		Assert.assertTrue(map1.diffBuckets(map2.getDigest()).isEmpty());
+
+		// changes which were lost
+		map1.put("key-1", "changed");
+		map1.remove("key-2");
+		map1.put("key-100", "added");
+		map1.collectChanges();
+
+		BitSet diff = map2.diffBuckets(map1.getDigest());
+		Assert.assertFalse(diff.isEmpty());
+		Assert.assertTrue(diff.cardinality() <= 3);
+
+		Element items = map1.collectItems(diff);
+		Assert.assertTrue(items.getChildren().size() < 50);
+		map2.apply(items);
+
+		Assert.assertTrue(map2.diffBuckets(map1.getDigest()).isEmpty());
+		Assert.assertEquals(new HashMap<>(map1), new HashMap<>(map2));
+		Assert.assertEquals("changed", map2.get("key-1"));
+		Assert.assertNull(map2.get("key-2"));
+		Assert.assertEquals("added", map2.get("key-100"));
+	}
+
+	@Test
+	public void testBatching() {
+		ReplicatedDMap<String, String> map = createMap("node1");
+		Assert.assertNull(map.collectChanges());
+
+		for (int i = 0; i < 10; i++) {
+			map.put("a", "value-" + i);
+		}
+		map.put("b", "b");
+		Assert.assertEquals(2, map.getPendingChanges());
+
+		Element changes = map.collectChanges();
+		Assert.assertEquals(2, changes.getChildren().size());
+		Assert.assertEquals(0, map.getPendingChanges());
+		Assert.assertNull(map.collectChanges());
+
+		Assert.assertFalse(map.batchReceived("node2", 1, System.currentTimeMillis()));
+		Assert.assertFalse(map.batchReceived("node2", 2, System.currentTimeMillis()));
+		Assert.assertTrue(map.batchReceived("node2", 4, System.currentTimeMillis()));
+	}
+
+	@Test
+	public void testVersionVector() {
+		VersionVector v1 = VersionVector.EMPTY.increment("node1");
+		VersionVector v2 = v1.increment("node2");
+		VersionVector v3 = v1.increment("node1");
+
+		Assert.assertEquals(VersionVector.Order.BEFORE, v1.compare(v2));
+		Assert.assertEquals(VersionVector.Order.AFTER, v2.compare(v1));
+		Assert.assertEquals(VersionVector.Order.CONCURRENT, v2.compare(v3));
+		Assert.assertEquals(VersionVector.Order.EQUAL, v2.compare(VersionVector.parse(v2.toString())));
+		Assert.assertTrue(v2.winsWith(v3) != v3.winsWith(v2));
+
+		VersionVector merged = v2.merge(v3);
+		Assert.assertEquals(2, merged.get("node1"));
+		Assert.assertEquals(1, merged.get("node2"));
+		Assert.assertEquals(VersionVector.Order.AFTER, merged.compare(v2));
+		Assert.assertEquals(VersionVector.Order.AFTER, merged.compare(v3));
+	}
+
+	private ReplicatedDMap<String, String> createMap(String node) {
+		return new ReplicatedDMap<>("test", node, new DefaultTypesConverter(), String.class, String.class);
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.net;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLoopEngineTest {
+
+	private final List<SocketChannel> channels = new ArrayList<>();
+	private EventLoopEngine engine;
+	private ServerSocketChannel server;
+
+	@Before
+	public void setUp() throws IOException {
+		engine = new EventLoopEngine(1, 2);
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("127.0.0.1", 0));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		engine.shutdown();
+		for (SocketChannel sc : channels) {
+			sc.close();
+		}
+		server.close();
+	}
+
+	@Test
+	public void testBlockingServiceDoesNotStallLoop() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		TestService blocking = new TestService("blocking", release);
+		TestService other = new TestService("other", null);
+
+		SocketChannel blockingClient = connect(blocking);
+		SocketChannel otherClient = connect(other);
+		engine.addSocketService(blocking);
+		engine.addSocketService(other);
+
+		blockingClient.write(ByteBuffer.wrap(new byte[]{1}));
+		assertTrue(blocking.called.await(5, TimeUnit.SECONDS));
+
+		otherClient.write(ByteBuffer.wrap(new byte[]{1}));
+		assertTrue("service stalled by blocking processing on the same loop",
+				   other.called.await(5, TimeUnit.SECONDS));
+		assertFalse(other.thread.getName().startsWith("eventLoop-"));
+
+		release.countDown();
+	}
+
+	@Test
+	public void testServiceNotCalledConcurrently() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		TestService blocking = new TestService("blocking", release);
+		SocketChannel client = connect(blocking);
+		engine.addSocketService(blocking);
+
+		client.write(ByteBuffer.wrap(new byte[]{1}));
+		assertTrue(blocking.called.await(5, TimeUnit.SECONDS));
+		client.write(ByteBuffer.wrap(new byte[]{2}));
+		Thread.sleep(100);
+		assertTrue(blocking.calls == 1);
+
+		release.countDown();
+		client.write(ByteBuffer.wrap(new byte[]{3}));
+		long end = System.currentTimeMillis() + 5000;
+		while (blocking.calls < 2 && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertTrue(blocking.calls >= 2);
+		assertFalse(blocking.concurrent);
+	}
+
+	private SocketChannel connect(TestService service) throws IOException {
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		SocketChannel accepted = server.accept();
+		accepted.configureBlocking(false);
+		channels.add(client);
+		channels.add(accepted);
+		service.channel = accepted;
+		return client;
+	}
+
+	private static class TestService
+			extends IOService<Object> {
+
+		private final CountDownLatch called = new CountDownLatch(1);
+		private final String id;
+		private final CountDownLatch release;
+		private SocketChannel channel;
+		private volatile int calls = 0;
+		private volatile boolean concurrent = false;
+		private volatile boolean inCall = false;
+		private volatile Thread thread;
+
+		private TestService(String id, CountDownLatch release) {
+			this.id = id;
+			this.release = release;
+		}
+
+		@Override
+		public IOService<?> call() throws IOException {
+			if (inCall) {
+				concurrent = true;
+			}
+			inCall = true;
+			try {
+				thread = Thread.currentThread();
+				channel.read(ByteBuffer.allocate(16));
+				calls++;
+				called.countDown();
+				if (release != null) {
+					release.await(5, TimeUnit.SECONDS);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				inCall = false;
+			}
+			return this;
+		}
+
+		@Override
+		public void forceStop() {
+		}
+
+		@Override
+		public SocketChannel getSocketChannel() {
+			return channel;
+		}
+
+		@Override
+		public String getUniqueId() {
+			return id;
+		}
+
+		@Override
+		public void processWaitingPackets() {
+		}
+
+		@Override
+		public boolean waitingToSend() {
+			return false;
+		}
+
+		@Override
+		protected boolean isSocketServiceReady() {
+			return true;
+		}
+
+		@Override
+		protected void processSocketData() {
+		}
+
+		@Override
+		protected int receivedPackets() {
+			return 0;
+		}
+	}
+}
@@ -20,11 +20,17 @@ package tigase.server.websocket;
 import junit.framework.TestCase;
 import org.junit.Assert;
 import org.junit.Test;
+import tigase.io.IOInterface;
+import tigase.net.IOService;
 import tigase.util.Base64;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -209,6 +215,65 @@ public class WebSocketHybiTest
 
 	}
 
+	@Test
+	public void testReadWriteAfterPark() throws Exception {
+		final ArrayDeque<ByteBuffer> incoming = new ArrayDeque<>();
+		final ByteBuffer written = ByteBuffer.allocate(1024);
+		WebSocketXMPPIOService<Object> io = new WebSocketXMPPIOService<Object>(
+				new WebSocketProtocolIfc[]{new WebSocketHybi()}) {
+
+			@Override
+			protected ByteBuffer readBytes() {
+				return incoming.poll();
+			}
+
+			@Override
+			protected void writeBytes(ByteBuffer data) {
+				if (data != null) {
+					written.put(data);
+				}
+			}
+		};
+		// IO which is always idle, so the connection may be parked
+		IOInterface socketIO = (IOInterface) Proxy.newProxyInstance(IOInterface.class.getClassLoader(),
+																	  new Class[]{IOInterface.class},
+																	  (proxy, method, args) -> {
+																		  Class<?> type = method.getReturnType();
+																		  if (type == boolean.class) {
+																			  return false;
+																		  }
+																		  if (type == int.class) {
+																			  return 0;
+																		  }
+																		  if (type == long.class) {
+																			  return 0L;
+																		  }
+																		  return null;
+																	  });
+		setField(IOService.class, io, "socketIO", socketIO);
+		setField(WebSocketXMPPIOService.class, io, "protocol", impl);
+		setField(WebSocketXMPPIOService.class, io, "started", true);
+		io.setState(WebSocketXMPPIOService.State.handshaked);
+
+		for (String suffix : new String[]{"before", "after"}) {
+			incoming.add(generateIncomingFrame("<in-" + suffix + "/>"));
+			Assert.assertEquals("<in-" + suffix + "/>", new String(io.readData()));
+
+			written.clear();
+			io.writeData("<out-" + suffix + "/>");
+			written.flip();
+			Assert.assertEquals((byte) 0x81, written.get());
+			byte[] payload = new byte[written.get()];
+			written.get(payload);
+			Assert.assertEquals("<out-" + suffix + "/>", new String(payload, StandardCharsets.UTF_8));
+
+			if ("before".equals(suffix)) {
+				Assert.assertTrue(io.park());
+				Assert.assertTrue(io.isParked());
+			}
+		}
+	}
+
 	@Override
 	protected void setUp() throws Exception {
 		impl = new WebSocketHybi();
@@ -237,6 +302,12 @@ public class WebSocketHybiTest
 		return tmp;
 	}
 
+	private static void setField(Class<?> cls, Object obj, String name, Object value) throws Exception {
+		Field f = cls.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(obj, value);
+	}
+
 	private ByteBuffer generateIncomingFrame(String input) throws IOException {
 		ByteBuffer buf = ByteBuffer.wrap(input.getBytes());
 		final ByteBuffer tmp = ByteBuffer.allocate(1024);
@@ -20,12 +20,21 @@ package tigase.server.xmppclient;
 import junit.framework.TestCase;
 import org.junit.Test;
 import tigase.TestLogger;
+import tigase.net.IOService;
+import tigase.server.ConnectionManager;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.xmppclient.StreamManagementIOProcessor.OutQueue;
 import tigase.util.stringprep.TigaseStringprepException;
 import tigase.xml.Element;
+import tigase.xmpp.XMPPIOService;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -114,6 +123,56 @@ public class StreamManagementIOProcessorTest
 						e.getPacketWithStamp().isXMLNSStaticStr(DELAY_PATH, DELAY_XMLNS)));
 	}
 
+	@Test
+	public void testMaxSizeReturnsOldest() throws TigaseStringprepException {
+		OutQueue queue = new OutQueue();
+		queue.setMaxSize(5);
+
+		for (int i = 1; i <= 40; i++) {
+			queue.append(newMessage(i));
+			OutQueue.Entry removed = queue.pollOverLimit();
+			if (i <= 5) {
+				assertNull(removed);
+			} else {
+				assertEquals(String.valueOf(i - 5),
+							 removed.getPacketWithStamp().getElement().getAttributeStaticStr("id"));
+			}
+		}
+
+		assertEquals(5, queue.waitingForAck());
+		assertEquals(40, queue.get());
+
+		queue.ack(38);
+		assertEquals(2, queue.waitingForAck());
+		assertEquals("39", queue.poll().getPacketWithStamp().getElement().getAttributeStaticStr("id"));
+		assertEquals("40", queue.poll().getPacketWithStamp().getElement().getAttributeStaticStr("id"));
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testLiveSessionOverLimitKeepsPackets() throws Exception {
+		List<Packet> undelivered = new ArrayList<>();
+		StreamManagementIOProcessor processor = newProcessor(undelivered);
+		XMPPIOService<Object> service = newService(processor, 5);
+
+		for (int i = 1; i <= 8; i++) {
+			assertFalse(processor.processOutgoing(service, newMessage(i)));
+		}
+
+		// packets were written to the connected client, so they must not be bounced or stored offline
+		assertTrue(undelivered.isEmpty());
+		assertEquals(8, getOutQueue(service).waitingForAck());
+
+		// once the session waits for resumption, only the limit of packets is kept
+		service.getSessionData().put(getKey("RESUMPTION_TASK_KEY"), true);
+		assertTrue(processor.processOutgoing(service, newMessage(9)));
+
+		assertEquals(5, getOutQueue(service).waitingForAck());
+		assertEquals(4, undelivered.size());
+		assertEquals("1", undelivered.get(0).getElement().getAttributeStaticStr("id"));
+		assertEquals("4", undelivered.get(3).getElement().getAttributeStaticStr("id"));
+	}
+
 	@Test
 	public void testNoDelayForIq() {
 		OutQueue queue = new OutQueue();
@@ -197,4 +256,82 @@ public class StreamManagementIOProcessorTest
 				.forEach((OutQueue.Entry e) -> assertFalse(
 						e.getPacketWithStamp().isXMLNSStaticStr(new String[]{"iq", "delay"}, DELAY_XMLNS)));
 	}
+
+	private Packet newMessage(int id) throws TigaseStringprepException {
+		return Packet.packetInstance(new Element("message", new String[]{"id", "from", "to"},
+												 new String[]{String.valueOf(id), "from@example.com",
+															  "to@example.com"}));
+	}
+
+	private StreamManagementIOProcessor newProcessor(List<Packet> undelivered) throws Exception {
+		ConnectionManager connectionManager = new ConnectionManager() {
+			@Override
+			public Queue<Packet> processSocketData(XMPPIOService serv) {
+				return null;
+			}
+
+			@Override
+			public boolean processUndeliveredPacket(Packet packet, Long stamp, String errorMessage) {
+				undelivered.add(packet);
+				return true;
+			}
+
+			@Override
+			public void reconnectionFailed(Map port_props) {
+			}
+
+			@Override
+			public void xmppStreamClosed(XMPPIOService serv) {
+			}
+
+			@Override
+			public String[] xmppStreamOpened(XMPPIOService serv, Map attribs) {
+				return null;
+			}
+
+			@Override
+			public void packetsReady(IOService service) throws IOException {
+			}
+
+			@Override
+			public void tlsHandshakeCompleted(IOService service) {
+			}
+
+			@Override
+			protected long getMaxInactiveTime() {
+				return 3 * MINUTE;
+			}
+
+			@Override
+			protected XMPPIOService<?> getXMPPIOServiceInstance() {
+				return null;
+			}
+		};
+
+		StreamManagementIOProcessor processor = new StreamManagementIOProcessor();
+		Field f = StreamManagementIOProcessor.class.getDeclaredField("connectionManager");
+		f.setAccessible(true);
+		f.set(processor, connectionManager);
+		return processor;
+	}
+
+	private XMPPIOService<Object> newService(StreamManagementIOProcessor processor, int maxSize) throws Exception {
+		XMPPIOService<Object> service = new XMPPIOService<>();
+		OutQueue outQueue = processor.newOutQueue();
+		outQueue.setMaxSize(maxSize);
+		service.getSessionData().put(getKey("OUT_COUNTER_KEY"), outQueue);
+		service.getSessionData().put(getKey("IN_COUNTER_KEY"), processor.newCounter());
+		return service;
+	}
+
+	private OutQueue getOutQueue(XMPPIOService<Object> service) throws Exception {
+		return (OutQueue) service.getSessionData().get(getKey("OUT_COUNTER_KEY"));
+	}
+
+	private String getKey(String name) throws Exception {
+		Field f = StreamManagementIOProcessor.class.getDeclaredField(name);
+		f.setAccessible(true);
+		return (String) f.get(null);
+	}
+
 }
@@ -0,0 +1,268 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.server.xmppserver;
+
+import org.junit.Assert;
+import org.junit.Test;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CIDConnectionsTest {
+
+	private final List<Runnable> openTasks = new CopyOnWriteArrayList<>();
+	private final CIDConnections.CIDConnectionsOpenerService opener = new CIDConnections.CIDConnectionsOpenerService() {
+		@Override
+		public void schedule(Runnable r, long delay, TimeUnit unit) {
+			openTasks.add(r);
+		}
+	};
+	@SuppressWarnings("unchecked")
+	private final S2SConnectionHandlerIfc<S2SIOService> handler = (S2SConnectionHandlerIfc<S2SIOService>) Proxy.newProxyInstance(
+			CIDConnectionsTest.class.getClassLoader(), new Class[]{S2SConnectionHandlerIfc.class},
+			(proxy, method, args) -> {
+				switch (method.getName()) {
+					case "getConnectionOpenerService":
+						return opener;
+					case "getServerNameForDomain":
+						return args[0];
+					case "writePacketToSocket":
+						((FakeService) args[0]).queue.offer((Packet) args[1]);
+						return true;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+				}
+			});
+
+	@Test
+	public void testPacketsWaitingForConnectionSentInOrder() throws Exception {
+		CIDConnections conns = newCIDConnections(1);
+
+		for (int i = 0; i < 10; i++) {
+			conns.sendPacket(newPacket("user" + (i % 3), i));
+		}
+		Assert.assertEquals(10, conns.getWaitingCount());
+		Assert.assertEquals(1, openTasks.size());
+
+		FakeService service = addOutgoing(conns);
+		conns.sendPacket(null);
+
+		Assert.assertEquals(0, conns.getWaitingCount());
+		Assert.assertEquals(10, service.queue.size());
+		int expected = 0;
+		for (Packet packet : service.queue) {
+			Assert.assertEquals(String.valueOf(expected++), packet.getStanzaId());
+		}
+	}
+
+	@Test
+	public void testPerUserOrderKeptWhileStripesMove() throws Exception {
+		CIDConnections conns = newCIDConnections(4);
+		List<FakeService> services = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			services.add(addOutgoing(conns));
+		}
+
+		Map<String, Integer> lastDelivered = new ConcurrentHashMap<>();
+		AtomicInteger delivered = new AtomicInteger();
+		List<String> errors = new CopyOnWriteArrayList<>();
+		int senders = 4;
+		int usersPerSender = 8;
+		int packetsPerUser = 500;
+		int total = senders * usersPerSender * packetsPerUser;
+
+		List<Thread> threads = new ArrayList<>();
+		for (FakeService service : services) {
+			threads.add(new Thread(() -> {
+				while (delivered.get() < total) {
+					// packet is removed from the queue only after it is delivered, as it is done by socket writes
+					Packet packet = service.queue.peek();
+					if (packet == null) {
+						Thread.yield();
+						continue;
+					}
+					String user = packet.getStanzaFrom().getLocalpart();
+					int seq = Integer.parseInt(packet.getStanzaId());
+					Integer last = lastDelivered.put(user, seq);
+					if (last != null && last >= seq) {
+						errors.add(user + ": " + seq + " delivered after " + last);
+					}
+					service.queue.poll();
+					delivered.incrementAndGet();
+				}
+			}));
+		}
+		for (int s = 0; s < senders; s++) {
+			final int sender = s;
+			threads.add(new Thread(() -> {
+				try {
+					for (int seq = 0; seq < packetsPerUser; seq++) {
+						for (int u = 0; u < usersPerSender; u++) {
+							conns.sendPacket(newPacket("user" + sender + "-" + u, seq));
+						}
+					}
+				} catch (TigaseStringprepException ex) {
+					errors.add(ex.toString());
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join(TimeUnit.SECONDS.toMillis(30));
+		}
+
+		Assert.assertEquals(Collections.emptyList(), errors);
+		Assert.assertEquals(total, delivered.get());
+		Assert.assertEquals(0, conns.getWaitingCount());
+	}
+
+	@Test
+	public void testPacketSentDirectlyWhileQueuedPacketsAreSent() throws Exception {
+		CIDConnections conns = newCIDConnections(1);
+		FakeService service = addOutgoing(conns);
+
+		// another thread holds the send lock while it sends queued packets
+		Field f = CIDConnections.class.getDeclaredField("sendInProgress");
+		f.setAccessible(true);
+		ReentrantLock sendInProgress = (ReentrantLock) f.get(conns);
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch finish = new CountDownLatch(1);
+		Thread sender = new Thread(() -> {
+			sendInProgress.lock();
+			try {
+				locked.countDown();
+				finish.await();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				sendInProgress.unlock();
+			}
+		});
+		sender.start();
+		Assert.assertTrue(locked.await(10, TimeUnit.SECONDS));
+
+		try {
+			conns.sendPacket(newPacket("user", 0));
+			Assert.assertEquals(0, conns.getWaitingCount());
+			Assert.assertEquals(1, service.queue.size());
+		} finally {
+			finish.countDown();
+			sender.join();
+		}
+	}
+
+	@Test
+	public void testScaleUpWhenAllQueuesAreDeep() throws Exception {
+		CIDConnections conns = newCIDConnections(3);
+		conns.setScaleUpQueueDepth(3);
+		FakeService first = addOutgoing(conns);
+
+		conns.sendPacket(newPacket("user", 0));
+		conns.sendPacket(newPacket("user", 1));
+		Assert.assertEquals(0, openTasks.size());
+
+		conns.sendPacket(newPacket("user", 2));
+		Assert.assertEquals(3, first.queue.size());
+		Assert.assertEquals(1, openTasks.size());
+		Assert.assertTrue(conns.getOutgoingInProgress());
+
+		// new connection is established, its queue is empty
+		conns.resetOutgoingInProgress();
+		FakeService second = addOutgoing(conns);
+		conns.sendPacket(newPacket("user", 3));
+		Assert.assertEquals(1, openTasks.size());
+
+		// all queues are deep, but the limit of connections is reached
+		for (int i = 0; i < 3; i++) {
+			second.queue.offer(newPacket("other", i));
+		}
+		addOutgoing(conns).queue.addAll(second.queue);
+		conns.sendPacket(newPacket("user", 4));
+		Assert.assertEquals(1, openTasks.size());
+	}
+
+	@Test
+	public void testScaleUpDisabled() throws Exception {
+		CIDConnections conns = newCIDConnections(3);
+		conns.setScaleUpQueueDepth(0);
+		FakeService service = addOutgoing(conns);
+
+		for (int i = 0; i < 10; i++) {
+			conns.sendPacket(newPacket("user", i));
+		}
+		Assert.assertEquals(10, service.queue.size());
+		Assert.assertEquals(0, openTasks.size());
+	}
+
+	private CIDConnections newCIDConnections(int maxOutConns) {
+		return new CIDConnections(new CID("local.example.com", "remote.example.com"), handler,
+								  new S2SRandomSelector(), 4, maxOutConns, maxOutConns, 60 * 1000);
+	}
+
+	@SuppressWarnings("unchecked")
+	private FakeService addOutgoing(CIDConnections conns) throws Exception {
+		FakeService service = new FakeService();
+		S2SConnection conn = new S2SConnection(handler, "127.0.0." + (service.hashCode() & 0xff));
+		conn.setS2SIOService(service);
+		service.setS2SConnection(conn);
+
+		Field f = CIDConnections.class.getDeclaredField("outgoing");
+		f.setAccessible(true);
+		((Set<S2SConnection>) f.get(conns)).add(conn);
+		return service;
+	}
+
+	private Packet newPacket(String user, int seq) throws TigaseStringprepException {
+		return Packet.packetInstance(new Element("message", new String[]{"from", "to", "id"},
+												 new String[]{user + "@local.example.com/res",
+															  "friend@remote.example.com", String.valueOf(seq)}));
+	}
+
+	private static class FakeService
+			extends S2SIOService {
+
+		private final Queue<Packet> queue = new ConcurrentLinkedQueue<>();
+
+		@Override
+		public int getQueueDepth() {
+			return queue.size();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.stats;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketBoundsAreInclusive() {
+		LatencyHistogram histogram = new LatencyHistogram("test");
+
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+		histogram.record(TimeUnit.MICROSECONDS.toNanos(1500));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(2));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(5000));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(5000) + 1);
+
+		long[] buckets = histogram.getBuckets();
+		assertEquals(1, buckets[0]);
+		assertEquals(2, buckets[1]);
+		assertEquals(1, buckets[buckets.length - 2]);
+		assertEquals(1, buckets[buckets.length - 1]);
+		assertEquals(5, histogram.getCount());
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.common;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TimingWheelTest {
+
+	private final TimingWheel wheel = new TimingWheel("test-wheel", 10, TimeUnit.MILLISECONDS, 8);
+
+	@After
+	public void tearDown() {
+		wheel.shutdown();
+	}
+
+	@Test
+	public void testExpiresNotBeforeDelay() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		AtomicLong executedAt = new AtomicLong();
+		long start = System.nanoTime();
+
+		// longer than a single rotation of the wheel
+		wheel.schedule(() -> {
+			executedAt.set(System.nanoTime());
+			latch.countDown();
+		}, 150, TimeUnit.MILLISECONDS);
+
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(executedAt.get() - start) >= 150);
+		Assert.assertEquals(0, wheel.getPendingCount());
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		CountDownLatch cancelled = new CountDownLatch(1);
+		CountDownLatch other = new CountDownLatch(1);
+
+		TimingWheel.Timeout timeout = wheel.schedule(cancelled::countDown, 30, TimeUnit.MILLISECONDS);
+		wheel.schedule(other::countDown, 60, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(2, wheel.getPendingCount());
+		Assert.assertTrue(timeout.cancel());
+		Assert.assertFalse(timeout.cancel());
+		Assert.assertFalse(timeout.isPending());
+
+		Assert.assertTrue(other.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(1, cancelled.getCount());
+	}
+
+	@Test
+	public void testReschedule() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+
+		TimingWheel.Timeout timeout = wheel.schedule(latch::countDown, 20, TimeUnit.MILLISECONDS);
+		timeout.reschedule(200, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(1, wheel.getPendingCount());
+		Assert.assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+
+		// expired timeout may be armed again
+		CountDownLatch again = new CountDownLatch(1);
+		TimingWheel.Timeout timeout2 = wheel.schedule(again::countDown, 0, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(again.await(5, TimeUnit.SECONDS));
+		Assert.assertFalse(timeout2.isPending());
+		timeout.reschedule(10, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(timeout.isPending());
+	}
+
+	@Test
+	public void testTimerTaskCancel() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(1);
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		};
+
+		task.setTimeout(wheel.schedule(task, 30, TimeUnit.MILLISECONDS));
+		Assert.assertTrue(task.isScheduled());
+		task.cancel();
+		Assert.assertFalse(task.isScheduled());
+		Assert.assertFalse(latch.await(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testExpiredTasksHandedToExecutor() throws InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "test-executor"));
+		TimingWheel executorWheel = new TimingWheel("test-wheel-executor", 1, TimeUnit.MILLISECONDS, 64, executor);
+		try {
+			CountDownLatch blocked = new CountDownLatch(1);
+			CountDownLatch latch = new CountDownLatch(1);
+			AtomicReference<String> thread = new AtomicReference<>();
+
+			// blocking task must not delay expiration of other timeouts
+			executorWheel.schedule(() -> {
+				try {
+					blocked.await();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}, 1, TimeUnit.MILLISECONDS);
+			executorWheel.schedule(() -> {
+				thread.set(Thread.currentThread().getName());
+				latch.countDown();
+			}, 5, TimeUnit.MILLISECONDS);
+
+			Assert.assertTrue(waitForPending(executorWheel, 0));
+			blocked.countDown();
+			Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+			Assert.assertEquals("test-executor", thread.get());
+		} finally {
+			executorWheel.shutdown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void testShutdown() {
+		wheel.shutdown();
+		wheel.schedule(() -> {
+		}, 10, TimeUnit.MILLISECONDS);
+	}
+
+	private boolean waitForPending(TimingWheel wheel, int pending) throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			if (wheel.getPendingCount() == pending) {
+				return true;
+			}
+			Thread.sleep(10);
+		}
+		return false;
+	}
+
+}
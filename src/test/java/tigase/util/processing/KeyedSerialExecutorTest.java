@@ -0,0 +1,150 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class KeyedSerialExecutorTest {
+
+	@Test
+	public void testOrderPerKeyIsKept() throws InterruptedException {
+		final int keys = 50;
+		final int itemsPerKey = 100;
+		Map<Integer, List<Integer>> processed = new ConcurrentHashMap<>();
+		CountDownLatch done = new CountDownLatch(keys * itemsPerKey);
+
+		KeyedSerialExecutor<int[]> executor = new KeyedSerialExecutor<>("test", 4, 16, 10000, item -> {
+			processed.computeIfAbsent(item[0], k -> new ArrayList<>()).add(item[1]);
+			done.countDown();
+		});
+		executor.start();
+		try {
+			for (int i = 0; i < itemsPerKey; i++) {
+				for (int k = 0; k < keys; k++) {
+					executor.put(k, new int[]{k, i});
+				}
+			}
+
+			Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+			for (List<Integer> items : processed.values()) {
+				Assert.assertEquals(itemsPerKey, items.size());
+				for (int i = 0; i < itemsPerKey; i++) {
+					Assert.assertEquals(i, items.get(i).intValue());
+				}
+			}
+			Assert.assertEquals(0, executor.size());
+		} finally {
+			executor.stop();
+		}
+	}
+
+	@Test
+	public void testSlowItemDoesNotBlockOtherBuckets() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch others = new CountDownLatch(10);
+
+		KeyedSerialExecutor<Integer> executor = new KeyedSerialExecutor<>("test", 2, 16, 100, key -> {
+			if (key == 0) {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					// nothing to do
+				}
+			} else {
+				others.countDown();
+			}
+		});
+		executor.start();
+		try {
+			executor.put(0, 0);
+			for (int k = 1; k <= 10; k++) {
+				executor.put(k, k);
+			}
+			Assert.assertTrue(others.await(10, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			executor.stop();
+		}
+	}
+
+	@Test
+	public void testStopFinishesItemAndKeepsWaiting() throws InterruptedException {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Integer> processed = new ArrayList<>();
+		boolean[] interrupted = new boolean[1];
+
+		KeyedSerialExecutor<Integer> executor = new KeyedSerialExecutor<>("test", 1, 4, 100, item -> {
+			if (item == 0) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					interrupted[0] = true;
+				}
+			}
+			processed.add(item);
+		});
+		executor.start();
+		for (int i = 0; i < 5; i++) {
+			executor.put(7, i);
+		}
+		Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		Thread stopping = new Thread(executor::stop);
+		stopping.start();
+		Thread.sleep(200);
+		Assert.assertTrue("stop() should wait for the item being processed", stopping.isAlive());
+		release.countDown();
+		stopping.join(10000);
+		Assert.assertFalse(stopping.isAlive());
+
+		Assert.assertFalse(interrupted[0]);
+		Assert.assertEquals(1, processed.size());
+		Assert.assertEquals(4, executor.size());
+
+		List<Integer> drained = new ArrayList<>();
+		Assert.assertEquals(4, executor.drainTo((item, key) -> {
+			Assert.assertEquals(7, key);
+			drained.add(item);
+		}));
+		Assert.assertEquals(Arrays.asList(1, 2, 3, 4), drained);
+		Assert.assertEquals(0, executor.size());
+	}
+
+	@Test
+	public void testOfferOverflow() {
+		KeyedSerialExecutor<Integer> executor = new KeyedSerialExecutor<>("test", 1, 4, 2, key -> {
+		});
+
+		// not started, so items are kept in buckets
+		Assert.assertTrue(executor.offer(1, 1));
+		Assert.assertTrue(executor.offer(2, 2));
+		Assert.assertFalse(executor.offer(3, 3));
+		Assert.assertEquals(2, executor.size());
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.processing;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import tigase.db.NonAuthUserRepository;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.XMPPProcessor;
+import tigase.xmpp.XMPPProcessorIfc;
+import tigase.xmpp.XMPPResourceConnection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class VirtualThreadsProcessingThreadsTest {
+
+	private static final int USERS = 100;
+	private static final int PACKETS_PER_USER = 50;
+
+	private final AtomicInteger newInstances = new AtomicInteger(0);
+	private CountDownLatch blocked;
+	private CountDownLatch processed;
+	private Map<String, List<String>> processedByUser;
+	private XMPPProcessorIfc processor = new TestProcessor();
+	private ProcessingThreads<TestWorkerThread> threads;
+
+	@Before
+	public void setUp() {
+		processed = new CountDownLatch(USERS * PACKETS_PER_USER);
+		processedByUser = new ConcurrentHashMap<>();
+	}
+
+	@After
+	public void tearDown() {
+		if (blocked != null) {
+			blocked.countDown();
+		}
+		if (threads != null) {
+			threads.shutdown();
+		}
+	}
+
+	@Test
+	public void testFallbackToPlatformThreads() throws Exception {
+		threads = ProcessingThreads.create(ProcessingThreads.Scheduler.VIRTUAL_THREADS, new TestWorkerThread(), 2,
+										   100, "test");
+		if (VirtualThreadsProcessingThreads.isSupported()) {
+			Assert.assertTrue(threads instanceof VirtualThreadsProcessingThreads);
+		} else {
+			Assert.assertEquals(ProcessingThreads.class, threads.getClass());
+			try {
+				new VirtualThreadsProcessingThreads<>(new TestWorkerThread(), 2, 100, "test");
+				Assert.fail("Virtual threads processing created on JVM without virtual threads");
+			} catch (UnsupportedOperationException ex) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testOrderPerUserIsKept() throws TigaseStringprepException, InterruptedException {
+		Assume.assumeTrue(VirtualThreadsProcessingThreads.isSupported());
+		threads = new VirtualThreadsProcessingThreads<>(new TestWorkerThread(), 1, 10000, "test");
+
+		for (int i = 0; i < PACKETS_PER_USER; i++) {
+			for (int u = 0; u < USERS; u++) {
+				Packet packet = createPacket(u, i);
+				Assert.assertTrue(threads.addItem(processor, packet, null));
+			}
+		}
+
+		Assert.assertTrue(processed.await(30, TimeUnit.SECONDS));
+		Assert.assertEquals(USERS, processedByUser.size());
+		for (List<String> ids : processedByUser.values()) {
+			Assert.assertEquals(PACKETS_PER_USER, ids.size());
+			for (int i = 0; i < PACKETS_PER_USER; i++) {
+				Assert.assertEquals(String.valueOf(i), ids.get(i));
+			}
+		}
+		Assert.assertEquals(0, threads.getTotalQueueSize());
+		// packets are processed by the worker passed to the constructor, no thread instances are created for lanes
+		Assert.assertEquals(0, newInstances.get());
+	}
+
+	@Test
+	public void testShutdownProcessesQueuedPackets() throws TigaseStringprepException, InterruptedException {
+		Assume.assumeTrue(VirtualThreadsProcessingThreads.isSupported());
+		blocked = new CountDownLatch(1);
+		processed = new CountDownLatch(PACKETS_PER_USER);
+		threads = new VirtualThreadsProcessingThreads<>(new TestWorkerThread(), 1, 10000, "test");
+
+		for (int i = 0; i < PACKETS_PER_USER; i++) {
+			Assert.assertTrue(threads.addItem(processor, createPacket(0, i), null));
+		}
+		threads.shutdown();
+		Assert.assertFalse(threads.addItem(processor, createPacket(0, PACKETS_PER_USER), null));
+
+		blocked.countDown();
+		Assert.assertTrue(processed.await(30, TimeUnit.SECONDS));
+		Assert.assertEquals(PACKETS_PER_USER, processedByUser.get("user0@example.com").size());
+		Assert.assertEquals(0, threads.getTotalQueueSize());
+	}
+
+	private Packet createPacket(int user, int id) throws TigaseStringprepException {
+		return Packet.packetInstance(new Element("message", new String[]{"from", "to", "type", "id"},
+												 new String[]{"sender@example.com", "user" + user + "@example.com",
+															  "chat", String.valueOf(id)}));
+	}
+
+	private static class TestProcessor
+			extends XMPPProcessor
+			implements XMPPProcessorIfc {
+
+		@Override
+		public String id() {
+			return "test";
+		}
+
+		@Override
+		public void process(Packet packet, XMPPResourceConnection session, NonAuthUserRepository repo,
+							Queue<Packet> results, Map<String, Object> settings) {
+		}
+	}
+
+	private class TestWorkerThread
+			extends WorkerThread {
+
+		@Override
+		public WorkerThread getNewInstance() {
+			newInstances.incrementAndGet();
+			return new TestWorkerThread();
+		}
+
+		@Override
+		public void process(QueueItem item) {
+			if (blocked != null) {
+				try {
+					blocked.await(30, TimeUnit.SECONDS);
+				} catch (InterruptedException ex) {
+					// nothing to do
+				}
+			}
+			Packet packet = item.getPacket();
+			List<String> ids = processedByUser.computeIfAbsent(packet.getStanzaTo().toString(),
+																  k -> new ArrayList<>());
+			synchronized (ids) {
+				ids.add(packet.getStanzaId());
+			}
+			processed.countDown();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PriorityQueueBatchTest {
+
+	private static final Class[] QUEUES = {PriorityQueueRelaxed.class, PriorityQueueStrict.class,
+										   PriorityQueueLockFree.class, NonpriorityQueue.class};
+
+	@Test
+	public void testDrainToKeepsOrder() throws InterruptedException {
+		for (Class<? extends PriorityQueueAbstract> cls : QUEUES) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(1, 100, cls);
+			for (int i = 0; i < 10; i++) {
+				queue.put(i, 0);
+			}
+
+			List<Integer> items = new ArrayList<>();
+			Assert.assertEquals(cls.getSimpleName(), 4, queue.drainTo(items, 4));
+			Assert.assertEquals(cls.getSimpleName(), 6, queue.drainTo(items, 100));
+			Assert.assertEquals(cls.getSimpleName(), Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), items);
+			Assert.assertEquals(cls.getSimpleName(), 0, queue.totalSize());
+		}
+	}
+
+	@Test
+	public void testDrainToHonorsPriority() throws InterruptedException {
+		for (Class<? extends PriorityQueueAbstract> cls : new Class[]{PriorityQueueRelaxed.class,
+																	  PriorityQueueLockFree.class}) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 100, cls);
+			Queue<Integer> elements = new ArrayDeque<>(Arrays.asList(20, 10, 0, 21, 11));
+
+			queue.putAll(elements, element -> element / 10);
+			Assert.assertTrue(elements.isEmpty());
+
+			List<Integer> items = new ArrayList<>();
+			Assert.assertEquals(cls.getSimpleName(), 5, queue.drainTo(items, 10));
+			Assert.assertEquals(cls.getSimpleName(), Arrays.asList(0, 10, 11, 20, 21), items);
+		}
+	}
+
+	@Test
+	public void testOfferAllLeavesRejected() {
+		for (Class<? extends PriorityQueueAbstract> cls : QUEUES) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(1, 3, cls);
+			Queue<Integer> elements = new ArrayDeque<>(Arrays.asList(0, 1, 2, 3, 4));
+
+			Assert.assertEquals(cls.getSimpleName(), 3, queue.offerAll(elements, element -> 0));
+			Assert.assertEquals(cls.getSimpleName(), Arrays.asList(3, 4), new ArrayList<>(elements));
+			Assert.assertEquals(cls.getSimpleName(), 3, queue.totalSize());
+		}
+	}
+
+	@Test
+	public void testPutAllWaitsForConsumer() throws InterruptedException {
+		for (Class<? extends PriorityQueueAbstract> cls : QUEUES) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(1, 4, cls);
+			int count = 100;
+			List<Integer> items = new ArrayList<>();
+			CountDownLatch done = new CountDownLatch(1);
+
+			Thread consumer = new Thread(() -> {
+				try {
+					while (items.size() < count) {
+						queue.drainTo(items, 3);
+					}
+					done.countDown();
+				} catch (InterruptedException ex) {
+					// nothing to do
+				}
+			});
+			consumer.setDaemon(true);
+			consumer.start();
+
+			Queue<Integer> elements = new ArrayDeque<>();
+			for (int i = 0; i < count; i++) {
+				elements.offer(i);
+			}
+			queue.putAll(elements, element -> 0);
+
+			Assert.assertTrue(cls.getSimpleName(), done.await(10, TimeUnit.SECONDS));
+			for (int i = 0; i < count; i++) {
+				Assert.assertEquals(cls.getSimpleName(), i, items.get(i).intValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.util.workqueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+public class PriorityQueueLockFreeTest {
+
+	private static final Logger log = Logger.getLogger(PriorityQueueLockFreeTest.class.getName());
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(3, 10);
+
+		queue.put(20, 2);
+		queue.put(10, 1);
+		queue.put(0, 0);
+		queue.put(11, 1);
+
+		Assert.assertArrayEquals(new int[]{1, 2, 1}, queue.size());
+		Assert.assertEquals(4, queue.totalSize());
+		Assert.assertEquals(0, queue.take().intValue());
+		Assert.assertEquals(10, queue.take().intValue());
+		Assert.assertEquals(11, queue.take().intValue());
+		Assert.assertEquals(20, queue.take().intValue());
+		Assert.assertEquals(0, queue.totalSize());
+	}
+
+	@Test
+	public void testOfferOverflow() throws InterruptedException {
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(2, 3);
+
+		for (int i = 0; i < 6; i++) {
+			Assert.assertTrue(queue.offer(i, 0));
+		}
+		Assert.assertFalse(queue.offer(6, 0));
+		Assert.assertArrayEquals(new int[]{3, 3}, queue.size());
+
+		for (int i = 0; i < 6; i++) {
+			Assert.assertEquals(i, queue.take().intValue());
+		}
+	}
+
+	@Test
+	public void testPutBlocksWhenFull() throws InterruptedException {
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(1, 2);
+		queue.put(1, 0);
+		queue.put(2, 0);
+
+		CountDownLatch added = new CountDownLatch(1);
+		Thread producer = new Thread(() -> {
+			try {
+				queue.put(3, 0);
+				added.countDown();
+			} catch (InterruptedException ex) {
+				// test will fail on missing element
+			}
+		});
+		producer.start();
+
+		Assert.assertFalse(added.await(100, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, queue.take().intValue());
+		Assert.assertTrue(added.await(1, TimeUnit.SECONDS));
+		Assert.assertEquals(2, queue.take().intValue());
+		Assert.assertEquals(3, queue.take().intValue());
+	}
+
+	@Test
+	public void testSetMaxSizeKeepsElements() throws InterruptedException {
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(1, 4);
+		for (int i = 0; i < 4; i++) {
+			queue.put(i, 0);
+		}
+
+		queue.setMaxSize(8);
+		for (int i = 4; i < 12; i++) {
+			queue.put(i, 0);
+		}
+		Assert.assertEquals(12, queue.totalSize());
+
+		for (int i = 0; i < 12; i++) {
+			Assert.assertEquals(i, queue.take().intValue());
+		}
+	}
+
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 10000;
+		PriorityQueueLockFree<Integer> queue = new PriorityQueueLockFree<>(3, 64);
+
+		List<Thread> threads = startProducers(queue, producers, perProducer);
+
+		int[] lastSeen = new int[producers];
+		for (int i = 0; i < producers; i++) {
+			lastSeen[i] = -1;
+		}
+		for (int i = 0; i < producers * perProducer; i++) {
+			int value = queue.take();
+			int producer = value / perProducer;
+			// elements from a single producer with the same priority must not be reordered
+			Assert.assertTrue(lastSeen[producer] < value);
+			lastSeen[producer] = value;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(0, queue.totalSize());
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughput() throws InterruptedException {
+		final int producers = Math.max(2, Runtime.getRuntime().availableProcessors());
+		final int perProducer = 500000;
+
+		for (Class<? extends PriorityQueueAbstract> cls : new Class[]{PriorityQueueRelaxed.class,
+																	   PriorityQueueStrict.class,
+																	   NonpriorityQueue.class,
+																	   PriorityQueueLockFree.class}) {
+			PriorityQueueAbstract<Integer> queue = PriorityQueueAbstract.getPriorityQueue(3, 1024, cls);
+
+			long start = System.nanoTime();
+			List<Thread> threads = startProducers(queue, producers, perProducer);
+			for (int i = 0; i < producers * perProducer; i++) {
+				queue.take();
+			}
+			long time = System.nanoTime() - start;
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			log.info(cls.getSimpleName() + ": " + (producers * perProducer * 1000000000L / time) +
+							 " elements/s with " + producers + " producers");
+		}
+	}
+
+	private List<Thread> startProducers(PriorityQueueAbstract<Integer> queue, int producers, int perProducer) {
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			Thread thread = new Thread(() -> {
+				try {
+					for (int i = 0; i < perProducer; i++) {
+						queue.put(base + i, 0);
+					}
+				} catch (InterruptedException ex) {
+					Assert.fail(ex.getMessage());
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		return threads;
+	}
+
+}
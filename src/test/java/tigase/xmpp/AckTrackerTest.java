@@ -0,0 +1,163 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.server.Packet;
+import tigase.util.stringprep.TigaseStringprepException;
+import tigase.xml.Element;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Logger;
+
+public class AckTrackerTest {
+
+	private static final Logger log = Logger.getLogger(AckTrackerTest.class.getName());
+
+	@Test
+	public void testCumulativeAck() throws TigaseStringprepException {
+		AckTracker tracker = new AckTracker(4);
+		Packet[] packets = createPackets(10);
+
+		for (int i = 0; i < packets.length; i++) {
+			Assert.assertEquals(i + 1, tracker.add(packets[i]));
+		}
+		Assert.assertEquals(10, tracker.size());
+
+		Assert.assertEquals(3, tracker.ack(3));
+		Assert.assertEquals(0, tracker.ack(2));
+		Assert.assertEquals(7, tracker.size());
+		Assert.assertEquals(4, tracker.getFirstSeq());
+
+		// ack of not used sequence number confirms only packets which were sent
+		Assert.assertEquals(7, tracker.ack(100));
+		Assert.assertEquals(0, tracker.size());
+		Assert.assertEquals(11, tracker.add(packets[0]));
+	}
+
+	@Test
+	public void testDrainKeepsOrder() throws TigaseStringprepException {
+		AckTracker tracker = new AckTracker(2);
+		Packet[] packets = createPackets(20);
+
+		for (int i = 0; i < packets.length; i++) {
+			tracker.add(packets[i]);
+			if (i % 3 == 2) {
+				// wrap around the ring while it grows
+				tracker.ack(tracker.getFirstSeq());
+			}
+		}
+
+		List<Packet> snapshot = tracker.snapshot();
+		List<Packet> drained = tracker.drain();
+
+		Assert.assertEquals(snapshot, drained);
+		Assert.assertEquals(14, drained.size());
+		for (int i = 0; i < drained.size(); i++) {
+			Assert.assertSame(packets[i + 6], drained.get(i));
+		}
+		Assert.assertEquals(0, tracker.size());
+		Assert.assertTrue(tracker.drain().isEmpty());
+		Assert.assertEquals(21, tracker.add(packets[0]));
+	}
+
+	@Test
+	public void testIsFull() throws TigaseStringprepException {
+		AckTracker tracker = new AckTracker(2);
+		tracker.setMaxSize(5);
+		Packet[] packets = createPackets(8);
+
+		for (int i = 0; i < 4; i++) {
+			tracker.add(packets[i]);
+		}
+		Assert.assertFalse(tracker.isFull());
+		tracker.add(packets[4]);
+		Assert.assertTrue(tracker.isFull());
+
+		// packets over the limit are still tracked, none of them is lost
+		for (int i = 5; i < packets.length; i++) {
+			Assert.assertEquals(i + 1, tracker.add(packets[i]));
+		}
+		Assert.assertEquals(8, tracker.size());
+		Assert.assertEquals(3, tracker.ack(3));
+		Assert.assertTrue(tracker.isFull());
+		Assert.assertEquals(2, tracker.ack(5));
+		Assert.assertFalse(tracker.isFull());
+
+		List<Packet> drained = tracker.drain();
+		Assert.assertEquals(3, drained.size());
+		for (int i = 0; i < drained.size(); i++) {
+			Assert.assertSame(packets[i + 5], drained.get(i));
+		}
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughput() throws TigaseStringprepException {
+		final int iterations = 10000000;
+		// number of packets in flight before the other side confirms them
+		final int window = 64;
+		Packet[] packets = createPackets(window);
+
+		for (int round = 0; round < 3; round++) {
+			ConcurrentSkipListMap<String, Packet> map = new ConcurrentSkipListMap<>();
+			String[] reqs = new String[window];
+			long req_idx = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				String req = "" + (++req_idx);
+				map.put(req, packets[i % window]);
+				reqs[i % window] = req;
+				if (i % window == window - 1) {
+					// string ids are not ordered numerically, so each of them is confirmed separately
+					for (String ack : reqs) {
+						map.remove(ack);
+					}
+				}
+			}
+			long mapTime = System.nanoTime() - start;
+
+			AckTracker tracker = new AckTracker();
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				long req = tracker.add(packets[i % window]);
+				if (i % window == window - 1) {
+					tracker.ack(req);
+				}
+			}
+			long trackerTime = System.nanoTime() - start;
+
+			Assert.assertEquals(map.size(), tracker.size());
+			log.info("ConcurrentSkipListMap: " + (iterations * 1000000000L / mapTime) + " packets/s, AckTracker: " +
+							 (iterations * 1000000000L / trackerTime) + " packets/s");
+		}
+	}
+
+	private Packet[] createPackets(int count) throws TigaseStringprepException {
+		Packet[] packets = new Packet[count];
+		for (int i = 0; i < count; i++) {
+			packets[i] = Packet.packetInstance(new Element("message", new String[]{"id", "from", "to"},
+														   new String[]{String.valueOf(i), "from@example.com",
+																		"to@example.com"}));
+		}
+		return packets;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp;
+
+import org.junit.Test;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class XMPPByteParserTest {
+
+	private static final String STREAM_OPEN = "<?xml version='1.0'?><stream:stream xmlns='jabber:client' " +
+			"xmlns:stream='http://etherx.jabber.org/streams' to=\"example.com\" version='1.0'>";
+
+	private static final String STANZAS =
+			"<message to='juliet@example.com' type='chat' id='m1'><body>Za\u017c\u00f3\u0142\u0107 g\u0119\u015bl\u0105 " +
+					"ja\u017a\u0144 \u2603 \ud83d\ude00 &amp; &lt;tag&gt;</body></message>" +
+					"<iq type=\"get\" id=\"i1\"><query xmlns=\"jabber:iq:roster\"/></iq>\n " +
+					"<presence><status>\u65e5\u672c\u8a9e</status><priority>5</priority></presence>";
+
+	@Test
+	public void testSameElementsAsSimpleParser() {
+		List<Element> expected = parseChars(STREAM_OPEN + STANZAS);
+
+		assertEquals(3, expected.size());
+
+		byte[] bytes = (STREAM_OPEN + STANZAS).getBytes(StandardCharsets.UTF_8);
+		for (int chunk = 1; chunk <= 7; chunk++) {
+			XMPPDomBuilderHandler<Object> handler = newHandler();
+			for (int pos = 0; pos < bytes.length; pos += chunk) {
+				ByteBuffer data = ByteBuffer.wrap(bytes, pos, Math.min(chunk, bytes.length - pos));
+				assertTrue(XMPPByteParser.getInstance().parse(handler, data));
+				assertFalse(data.hasRemaining());
+			}
+			assertFalse(handler.parseError());
+
+			List<Element> parsed = new ArrayList<>(handler.getParsedElements());
+			assertEquals("chunk " + chunk, expected.size(), parsed.size());
+			for (int i = 0; i < expected.size(); i++) {
+				assertEquals("chunk " + chunk, expected.get(i).toString(), parsed.get(i).toString());
+			}
+		}
+	}
+
+	@Test
+	public void testCDataSection() {
+		XMPPDomBuilderHandler<Object> handler = parseBytes(
+				STREAM_OPEN + "<message><body><![CDATA[<b>a & b</b>]]]></body></message>");
+
+		assertFalse(handler.parseError());
+		assertEquals("&lt;b&gt;a &amp; b&lt;/b&gt;]",
+					 handler.getParsedElements().peek().getChild("body").getCData());
+	}
+
+	@Test
+	public void testEntities() {
+		XMPPDomBuilderHandler<Object> handler = parseBytes(
+				STREAM_OPEN + "<message><body a='&quot;&apos;'>&#169; &#x1F600; &amp;</body></message>");
+
+		assertFalse(handler.parseError());
+		assertEquals("&#169; &#x1F600; &amp;", handler.getParsedElements().peek().getChild("body").getCData());
+	}
+
+	@Test
+	public void testMalformedUtf8() {
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		byte[] bytes = (STREAM_OPEN + "<message><body>ab").getBytes(StandardCharsets.UTF_8);
+		ByteBuffer data = ByteBuffer.allocate(bytes.length + 3);
+		data.put(bytes).put((byte) 0xC5).put((byte) 'c').put((byte) 'd').flip();
+
+		assertFalse(XMPPByteParser.getInstance().parse(handler, data));
+		assertEquals(bytes.length + 1, data.position());
+		assertFalse(handler.parseError());
+
+		// TLS handshake sent to plain connection
+		handler = newHandler();
+		data = ByteBuffer.wrap(new byte[]{0x16, 0x03, 0x01, 0x02, 0x00, 0x01});
+		assertFalse(XMPPByteParser.getInstance().parse(handler, data));
+		assertEquals(0, data.position());
+	}
+
+	@Test
+	public void testNotWellFormed() {
+		String[] invalid = {"<message><body>a &nbsp; b</body></message>", "<message><body>a & b</body></message>",
+							"<message to='a<b'/>", "<message><body></message>", "<message to=a/>"};
+
+		for (String data : invalid) {
+			assertTrue(data, parseBytes(STREAM_OPEN + data).parseError());
+		}
+	}
+
+	@Test
+	public void testReleaseIdleState() {
+		XMPPByteParser parser = XMPPByteParser.getInstance();
+		XMPPDomBuilderHandler<Object> handler = parseBytes(STREAM_OPEN + "<message><body>a");
+
+		assertFalse(parser.releaseIdleState(handler));
+
+		parser.parse(handler, ByteBuffer.wrap("b</body></message>\n ".getBytes(StandardCharsets.UTF_8)));
+		assertTrue(parser.releaseIdleState(handler));
+		assertTrue(parser.isIdleState(handler.restoreParserState()));
+
+		parser.parse(handler, ByteBuffer.wrap("<iq type='get' id='i1'/>".getBytes(StandardCharsets.UTF_8)));
+		assertFalse(handler.parseError());
+		List<Element> parsed = new ArrayList<>(handler.getParsedElements());
+		assertEquals(2, parsed.size());
+		assertEquals("ab", parsed.get(0).getChild("body").getCData());
+		assertEquals("i1", parsed.get(1).getAttributeStaticStr("id"));
+	}
+
+	private XMPPDomBuilderHandler<Object> newHandler() {
+		XMPPIOService<Object> ioserv = new XMPPIOService<Object>() {
+			@Override
+			protected void xmppStreamOpened(Map<String, String> attribs) {
+			}
+		};
+		return new XMPPDomBuilderHandler<>(ioserv);
+	}
+
+	private XMPPDomBuilderHandler<Object> parseBytes(String data) {
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		XMPPByteParser.getInstance().parse(handler, ByteBuffer.wrap(data.getBytes(StandardCharsets.UTF_8)));
+		return handler;
+	}
+
+	private List<Element> parseChars(String data) {
+		SimpleParser parser = SingletonFactory.getParserInstance();
+		XMPPDomBuilderHandler<Object> handler = newHandler();
+		char[] chars = data.toCharArray();
+
+		parser.parse(handler, chars, 0, chars.length);
+		assertFalse(handler.parseError());
+		return new ArrayList<>(handler.getParsedElements());
+	}
+}
@@ -19,12 +19,86 @@ package tigase.xmpp.impl;
 
 import org.junit.Ignore;
 import org.junit.Test;
+import org.junit.experimental.categories.Category;
 import tigase.xml.Element;
+import tigase.xmpp.impl.roster.RosterAbstract;
+import tigase.xmpp.impl.roster.RosterElement;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
 
 public class PrivacyListTest {
 
+	private static final Logger log = Logger.getLogger(PrivacyListTest.class.getName());
+	private static final RosterAbstract.SubscriptionType[] SUBSCRIPTIONS = {RosterAbstract.SubscriptionType.none,
+																			 RosterAbstract.SubscriptionType.to,
+																			 RosterAbstract.SubscriptionType.from,
+																			 RosterAbstract.SubscriptionType.both};
+	private static final String[] TYPES = {"message", "iq", "presence-in", "presence-out"};
+
+	@Test
+	public void testIndexMatchesScan() {
+		Random random = new Random(1234);
+		Map<BareJID, RosterElement> roster = createRoster(random, 50);
+
+		for (int size : new int[]{2, 10, 100, 1000}) {
+			PrivacyList list = PrivacyList.create(roster, createList(random, size, true));
+			for (int i = 0; i < 5000; i++) {
+				JID jid = randomJid(random);
+				for (PrivacyList.Item.Type type : PrivacyList.Item.Type.values()) {
+					assertEquals(list + ", " + jid + ", " + type, list.isAllowedByScan(jid, type),
+								 list.isAllowed(jid, type));
+				}
+			}
+		}
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughput() {
+		final int iterations = 1000000;
+		Random random = new Random(1234);
+		Map<BareJID, RosterElement> roster = createRoster(random, 1000);
+		JID[] jids = new JID[1024];
+		for (int i = 0; i < jids.length; i++) {
+			jids[i] = randomJid(random);
+		}
+		PrivacyList.Item.Type[] types = PrivacyList.Item.Type.values();
+
+		for (int size : new int[]{10, 100, 1000}) {
+			PrivacyList list = PrivacyList.create(roster, createList(random, size, false));
+			for (int round = 0; round < 3; round++) {
+				int allowed = 0;
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					if (list.isAllowedByScan(jids[i & 1023], types[i & 3])) {
+						allowed++;
+					}
+				}
+				long scanTime = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					if (list.isAllowed(jids[i & 1023], types[i & 3])) {
+						allowed--;
+					}
+				}
+				long indexTime = System.nanoTime() - start;
+
+				assertEquals(0, allowed);
+				log.info("list of " + size + " items, scan: " + (iterations * 1000000000L / scanTime) +
+								 " checks/s, index: " + (iterations * 1000000000L / indexTime) + " checks/s");
+			}
+		}
+	}
+
 	@Test
 	@Ignore
 	public void testToString() {
@@ -64,4 +138,62 @@ public class PrivacyListTest {
 
 //		System.out.println(privacyList.toString());
 	}
-}
\ No newline at end of file
+
+	private Map<BareJID, RosterElement> createRoster(Random random, int size) {
+		Map<BareJID, RosterElement> roster = new HashMap<>();
+		for (int i = 0; i < size; i++) {
+			JID jid = JID.jidInstanceNS("user-" + i, "domain-" + (i % 3) + ".com", null);
+			RosterElement relem = new RosterElement(jid, null, new String[]{"group-" + random.nextInt(10),
+																		   "group-" + random.nextInt(10)});
+			relem.setSubscription(SUBSCRIPTIONS[random.nextInt(SUBSCRIPTIONS.length)]);
+			roster.put(jid.getBareJID(), relem);
+		}
+		return roster;
+	}
+
+	private Element createList(Random random, int size, boolean withTypes) {
+		Element list = new Element("list");
+		list.setAttribute("name", "list-" + size);
+		for (int i = 0; i < size; i++) {
+			String action = random.nextBoolean() ? "allow" : "deny";
+			Element item;
+			if (i == size - 1 && random.nextBoolean()) {
+				item = new Element("item", new String[]{"action", "order"}, new String[]{action, String.valueOf(i)});
+			} else {
+				String type;
+				String value;
+				switch (random.nextInt(6)) {
+					case 0:
+						type = "group";
+						value = "group-" + random.nextInt(10);
+						break;
+					case 1:
+						type = "subscription";
+						value = SUBSCRIPTIONS[random.nextInt(SUBSCRIPTIONS.length)].name();
+						break;
+					default:
+						type = "jid";
+						value = randomJid(random).toString();
+						break;
+				}
+				item = new Element("item", new String[]{"type", "value", "action", "order"},
+								   new String[]{type, value, action, String.valueOf(i)});
+			}
+			if (withTypes) {
+				for (String stanza : TYPES) {
+					if (random.nextInt(4) == 0) {
+						item.addChild(new Element(stanza));
+					}
+				}
+			}
+			list.addChild(item);
+		}
+		return list;
+	}
+
+	private JID randomJid(Random random) {
+		String localpart = random.nextInt(4) == 0 ? null : ("user-" + random.nextInt(1200));
+		String resource = random.nextBoolean() ? null : ("res-" + random.nextInt(3));
+		return JID.jidInstanceNS(localpart, "domain-" + random.nextInt(3) + ".com", resource);
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import org.junit.Test;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.jid.JID;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class RosterFlatTest
+		extends ProcessorTestCase {
+
+	@Test
+	public void testBroadcastPlan() throws Exception {
+		RosterFlat roster = new RosterFlat();
+		JID userJid = JID.jidInstanceNS("user-" + UUID.randomUUID() + "@example.com/res-1");
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/" + UUID.randomUUID()),
+													userJid);
+		JID buddy1 = JID.jidInstanceNS("buddy-1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy-2@example.com");
+
+		assertNull(roster.getBuddies(session, RosterAbstract.FROM_SUBSCRIBED));
+
+		roster.addBuddy(session, buddy1, "Buddy 1", null, RosterAbstract.SubscriptionType.both, null);
+		roster.addBuddy(session, buddy2, "Buddy 2", null, RosterAbstract.SubscriptionType.to, null);
+
+		JID[] buddies = roster.getBuddies(session, RosterAbstract.FROM_SUBSCRIBED);
+		assertArrayEquals(new JID[]{buddy1}, buddies);
+		// cached until roster is changed
+		assertSame(buddies, roster.getBuddies(session, RosterAbstract.FROM_SUBSCRIBED));
+		assertEquals(new HashSet<>(Arrays.asList(buddy1, buddy2)),
+					 new HashSet<>(Arrays.asList(roster.getBuddies(session, RosterAbstract.TO_SUBSCRIBED))));
+
+		roster.setBuddySubscription(session, RosterAbstract.SubscriptionType.both, buddy2);
+		assertEquals(new HashSet<>(Arrays.asList(buddy1, buddy2)),
+					 new HashSet<>(Arrays.asList(roster.getBuddies(session, RosterAbstract.FROM_SUBSCRIBED))));
+
+		roster.removeBuddy(session, buddy1);
+		assertArrayEquals(new JID[]{buddy2}, roster.getBuddies(session, RosterAbstract.FROM_SUBSCRIBED));
+
+		// temporary buddies are never included
+		roster.setOnline(session, JID.jidInstanceNS("temp@example.com/res"), true);
+		assertArrayEquals(new JID[]{buddy2}, roster.getBuddies(session, RosterAbstract.FROM_SUBSCRIBED));
+	}
+}
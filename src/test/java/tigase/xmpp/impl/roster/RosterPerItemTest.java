@@ -0,0 +1,198 @@
+/*
+ * Tigase XMPP Server - The instant messaging server
+ * Copyright (C) 2004 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.xmpp.impl.roster;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class RosterPerItemTest
+		extends ProcessorTestCase {
+
+	private static final Logger log = Logger.getLogger(RosterPerItemTest.class.getName());
+
+	private RosterPerItem roster;
+
+	@Before
+	public void setRoster() {
+		roster = new RosterPerItem();
+	}
+
+	@Test
+	public void testItemsStoredSeparately() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-" + UUID.randomUUID() + "@example.com/res-1");
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/" + UUID.randomUUID()),
+													userJid);
+
+		for (int i = 0; i < 3; i++) {
+			roster.addBuddy(session, JID.jidInstanceNS("buddy-" + i + "@example.com"), "Buddy " + i,
+							new String[]{"Friends"}, RosterAbstract.SubscriptionType.both, null);
+		}
+
+		String[] keys = getUserRepository().getKeys(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS_NODE);
+		assertNotNull(keys);
+		Arrays.sort(keys);
+		assertArrayEquals(new String[]{"buddy-0@example.com", "buddy-1@example.com", "buddy-2@example.com"}, keys);
+		assertNull(getUserRepository().getData(userJid.getBareJID(), RosterAbstract.ROSTER));
+
+		Map<BareJID, RosterElement> loaded = roster.loadUserRoster(session);
+		assertEquals(3, loaded.size());
+		assertEquals("Buddy 1", loaded.get(BareJID.bareJIDInstanceNS("buddy-1@example.com")).getName());
+		assertEquals(RosterAbstract.SubscriptionType.both,
+					 loaded.get(BareJID.bareJIDInstanceNS("buddy-1@example.com")).getSubscription());
+	}
+
+	@Test
+	public void testOnlyModifiedItemsWritten() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-" + UUID.randomUUID() + "@example.com/res-1");
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/" + UUID.randomUUID()),
+													userJid);
+		JID buddy1 = JID.jidInstanceNS("buddy-1@example.com");
+		JID buddy2 = JID.jidInstanceNS("buddy-2@example.com");
+
+		roster.addBuddy(session, buddy1, "Buddy 1", null, RosterAbstract.SubscriptionType.none, null);
+		roster.addBuddy(session, buddy2, "Buddy 2", null, RosterAbstract.SubscriptionType.none, null);
+
+		String item2 = getUserRepository().getData(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS_NODE,
+												   buddy2.toString());
+		assertNotNull(item2);
+
+		roster.setBuddySubscription(session, RosterAbstract.SubscriptionType.both, buddy1);
+
+		assertEquals(item2, getUserRepository().getData(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS_NODE,
+														buddy2.toString()));
+		String item1 = getUserRepository().getData(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS_NODE,
+												   buddy1.toString());
+		assertTrue(item1, item1.contains("subs=\"both\""));
+		assertFalse(roster.isModified(session));
+
+		roster.removeBuddy(session, buddy2);
+		assertNull(getUserRepository().getData(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS_NODE,
+											   buddy2.toString()));
+		assertEquals(1, roster.loadUserRoster(session).size());
+	}
+
+	@Test
+	public void testMigrationFromFlat() throws Exception {
+		JID userJid = JID.jidInstanceNS("user-" + UUID.randomUUID() + "@example.com/res-1");
+		XMPPResourceConnection session = getSession(JID.jidInstanceNS("c2s@example.com/" + UUID.randomUUID()),
+													userJid);
+		seedFlatRoster(userJid.getBareJID(), 10);
+
+		Map<BareJID, RosterElement> loaded = roster.loadUserRoster(session);
+		assertEquals(10, loaded.size());
+		assertNull(getUserRepository().getData(userJid.getBareJID(), RosterAbstract.ROSTER));
+		assertEquals(10, getUserRepository().getKeys(userJid.getBareJID(), RosterPerItem.ROSTER_ITEMS_NODE).length);
+
+		loaded = roster.loadUserRoster(session);
+		assertEquals(10, loaded.size());
+		assertEquals("Buddy 7", loaded.get(BareJID.bareJIDInstanceNS("buddy-7@example.com")).getName());
+
+		Map<BareJID, RosterElement> offline = new HashMap<>();
+		assertTrue(RosterFlat.readRosterUtil(getUserRepository(), userJid.getBareJID(), offline));
+		assertEquals(10, offline.size());
+	}
+
+	@Category(tigase.tests.SlowTest.class)
+	@Test
+	public void testThroughput() throws Exception {
+		final int contacts = 5000;
+		final int iterations = 100;
+		final int maxRosterSize = RosterAbstract.getMaxRosterSize();
+		RosterAbstract.setMaxRosterSize(Math.max(maxRosterSize, contacts));
+		try {
+			measureThroughput(contacts, iterations);
+		} finally {
+			RosterAbstract.setMaxRosterSize(maxRosterSize);
+		}
+	}
+
+	private void measureThroughput(int contacts, int iterations) throws Exception {
+
+		RosterFlat flat = new RosterFlat();
+		JID flatJid = JID.jidInstanceNS("user-flat@example.com/res-1");
+		XMPPResourceConnection flatSession = getSession(JID.jidInstanceNS("c2s@example.com/flat"), flatJid);
+		seedFlatRoster(flatJid.getBareJID(), contacts);
+
+		JID itemsJid = JID.jidInstanceNS("user-items@example.com/res-1");
+		XMPPResourceConnection itemsSession = getSession(JID.jidInstanceNS("c2s@example.com/items"), itemsJid);
+		seedFlatRoster(itemsJid.getBareJID(), contacts);
+		// migrates roster to per-item storage
+		roster.loadUserRoster(itemsSession);
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				assertEquals(contacts, flat.loadUserRoster(flatSession).size());
+			}
+			long flatLogin = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				assertEquals(contacts, roster.loadUserRoster(itemsSession).size());
+			}
+			long itemsLogin = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				flat.setBuddySubscription(flatSession, i % 2 == 0
+														  ? RosterAbstract.SubscriptionType.both
+														  : RosterAbstract.SubscriptionType.to,
+										  JID.jidInstanceNS("buddy-" + i + "@example.com"));
+			}
+			long flatUpdate = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				roster.setBuddySubscription(itemsSession, i % 2 == 0
+														  ? RosterAbstract.SubscriptionType.both
+														  : RosterAbstract.SubscriptionType.to,
+											JID.jidInstanceNS("buddy-" + i + "@example.com"));
+			}
+			long itemsUpdate = System.nanoTime() - start;
+
+			log.info("roster of " + contacts + " contacts, login: flat " + (flatLogin / iterations / 1000) +
+							 "us, per-item " + (itemsLogin / iterations / 1000) + "us, update: flat " +
+							 (flatUpdate / iterations / 1000) + "us, per-item " + (itemsUpdate / iterations / 1000) +
+							 "us");
+		}
+	}
+
+	private void seedFlatRoster(BareJID user, int contacts) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < contacts; i++) {
+			RosterElement relem = new RosterElement(JID.jidInstanceNS("buddy-" + i + "@example.com"), "Buddy " + i,
+													new String[]{"Friends"});
+			relem.setSubscription(RosterAbstract.SubscriptionType.both);
+			sb.append(relem.getRosterElement().toString());
+		}
+		getUserRepository().setData(user, RosterAbstract.ROSTER, sb.toString());
+	}
+}